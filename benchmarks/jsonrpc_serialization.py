@@ -0,0 +1,86 @@
+""" Compares the serialization of a large publishDiagnostics notification.
+
+Usage:
+    python -m benchmarks.jsonrpc_serialization [--diagnostics N] [--repeat N]
+
+The notification is serialized with json and a generic default serializer,
+which is how messages were written before the serializer registry existed,
+and with the registry and every installed json backend.
+All results are parsed again and compared.
+"""
+import argparse
+import json
+import time
+
+from stexls import vscode
+from stexls.jsonrpc.core import NotificationObject
+from stexls.jsonrpc.serialization import JSON_BACKENDS, JsonEncoder
+
+
+def default_serializer(child):
+    ' The generic fallback passed to json.dumps. '
+    try:
+        if hasattr(child, 'to_json') and callable(child.to_json):
+            return child.to_json()
+        elif hasattr(child, 'serialize') and callable(child.serialize):
+            return child.serialize()
+    except Exception:
+        pass
+    return dict(child.__dict__.items())
+
+
+def publish_diagnostics(num_diagnostics: int) -> NotificationObject:
+    ' Creates a notification with diagnostics similar to the ones of a large file. '
+    uri = 'file:///home/user/MathHub/smglom/mv/source/module.en.tex'
+    diagnostics = []
+    for i in range(num_diagnostics):
+        line = i // 4
+        location = vscode.Range(vscode.Position(line, i % 80), vscode.Position(line, i % 80 + 12))
+        related = []
+        if i % 3 == 0:
+            related.append(vscode.DiagnosticRelatedInformation(
+                vscode.Location(uri, location), f'Symbol "symbol{i}" previously defined here.'))
+        diagnostics.append(vscode.Diagnostic(
+            location,
+            f'Symbol "symbol{i}" is not referenced.',
+            vscode.DiagnosticSeverity.Warning if i % 2 else vscode.DiagnosticSeverity.Information,
+            code=i % 7,
+            source='stexls',
+            relatedInformation=related))
+    return NotificationObject('textDocument/publishDiagnostics', {'uri': uri, 'diagnostics': diagnostics})
+
+
+def measure(function, repeat: int):
+    ' Returns the result and the fastest time of `repeat` calls. '
+    best = float('inf')
+    for _ in range(repeat):
+        begin = time.perf_counter()
+        result = function()
+        best = min(best, time.perf_counter() - begin)
+    return result, best
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__, formatter_class=argparse.RawDescriptionHelpFormatter)
+    parser.add_argument('--diagnostics', type=int, default=5000, help='Number of diagnostics in the notification.')
+    parser.add_argument('--repeat', type=int, default=20, help='Number of measurements, of which the fastest is shown.')
+    args = parser.parse_args()
+    vscode.register_serializers()
+    message = publish_diagnostics(args.diagnostics)
+    expected, baseline = measure(
+        lambda: json.dumps(message, default=default_serializer).encode('utf-8'), args.repeat)
+    print(f'{"default serializer":>20}: {baseline * 1000:8.2f}ms  {len(expected)} bytes')
+    for backend in JSON_BACKENDS:
+        try:
+            encoder = JsonEncoder(backend)
+        except ImportError:
+            print(f'{backend:>20}: not installed')
+            continue
+        content, duration = measure(lambda: encoder.encode(message), args.repeat)
+        if json.loads(content) != json.loads(expected):
+            raise RuntimeError(f'Json written with backend "{backend}" differs.')
+        print(f'{backend:>20}: {duration * 1000:8.2f}ms  {len(content)} bytes  {baseline / duration:5.2f}x')
+
+
+if __name__ == '__main__':
+    main()
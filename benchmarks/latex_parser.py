@@ -0,0 +1,100 @@
+""" Compares the parse time of the latex parser backends.
+
+Usage:
+    python -m benchmarks.latex_parser [--root WORKSPACE] [--synthetic PARAGRAPHS] [--repeat N]
+
+If a workspace root is given, all files inside it are parsed.
+Else a synthetic module with the given number of paragraphs is generated.
+Every file is parsed by every backend, once keeping the whole syntax tree (tokenizer, trefier)
+and once keeping only what the compiler needs.
+The trees of both backends are compared, so that the benchmark fails if they differ.
+"""
+import argparse
+import tempfile
+import time
+from pathlib import Path
+from typing import Dict, List, Tuple
+
+from stexls.latex.parser import (PARSER_BACKENDS, Environment, LatexParser,
+                                 Node, OArgument)
+from stexls.util.workspace import Workspace
+
+
+def synthetic_module(num_paragraphs: int) -> str:
+    paragraphs = []
+    for i in range(num_paragraphs):
+        paragraphs.append(rf'''
+  \begin{{frame}}[t]{{Frame {i} with \emph{{emphasized}} text}}
+    Paragraph {i} references \trefi[module{i}?symbol]{{symbol}} and \mtrefii[other?name]{{first}}{{second}}
+    and defines \defi[name=definition{i}]{{definition}} with math $x_{i} = \frac{{1}}{{{i}}}$ and
+    \begin{{itemize}}
+      \item an item with \verb|verbatim| text and a [bracket,
+      \item a display \[ \sum_{{n=0}}^{{{i}}} n \] % comment
+    \end{{itemize}}
+  \end{{frame}}
+  \symdef[name=sym{i}]{{sym{i}}}[1]{{\mathbf{{#1}}}}''')
+    return '\\begin{modsig}{module}\n' + '\n'.join(paragraphs) + '\n\\end{modsig}\n'
+
+
+def describe(node: Node) -> tuple:
+    parts = [type(node).__name__, node.begin, node.end]
+    if isinstance(node, (Environment, OArgument)) and node.name is not None:
+        parts.append(describe(node.name))
+    if isinstance(node, Environment):
+        parts.extend(map(describe, node.oargs))
+        parts.extend(map(describe, node.rargs))
+    if isinstance(node, OArgument) and node.value is not None:
+        parts.append(describe(node.value))
+    parts.extend(map(describe, node.children))
+    return tuple(parts)
+
+
+def parse(files: List[Tuple[Path, str]], backend: str, keep_tree: bool, repeat: int) -> Tuple[float, Dict[Path, tuple]]:
+    ' Parses every file `repeat` times and returns the fastest time and the trees of files without syntax errors. '
+    trees: Dict[Path, tuple] = {}
+    best = float('inf')
+    for _ in range(repeat):
+        begin = time.perf_counter()
+        for file, content in files:
+            parser = LatexParser(file, keep_tree=keep_tree, backend=backend)
+            try:
+                parser.parse(content)
+            except Exception:
+                continue
+            if not parser.syntax_errors:
+                trees[file] = parser.root
+        best = min(best, time.perf_counter() - begin)
+    return best, {file: describe(root) for file, root in trees.items()}
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__, formatter_class=argparse.RawDescriptionHelpFormatter)
+    parser.add_argument('--root', type=Path, help='Workspace to parse.')
+    parser.add_argument('--synthetic', type=int, default=500, help='Number of paragraphs of the synthetic module.')
+    parser.add_argument('--repeat', type=int, default=3, help='Number of measurements, of which the fastest is shown.')
+    args = parser.parse_args()
+    if args.root:
+        files = [(file, file.read_text(errors='ignore')) for file in Workspace(args.root).files]
+    else:
+        content = synthetic_module(args.synthetic)
+        files = [(Path(tempfile.gettempdir()) / 'module.tex', content)]
+    size = sum(len(content) for _, content in files)
+    print(f'{len(files)} files, {size / 1024:.1f} KiB')
+    for keep_tree in (True, False):
+        times: Dict[str, float] = {}
+        trees: Dict[str, Dict[Path, tuple]] = {}
+        for backend in PARSER_BACKENDS:
+            times[backend], trees[backend] = parse(files, backend, keep_tree, args.repeat)
+        baseline = times[PARSER_BACKENDS[0]]
+        for backend in PARSER_BACKENDS:
+            print(f'{backend:>8} keep_tree={keep_tree!s:5}: {times[backend]:7.3f}s  speedup {baseline / times[backend]:5.1f}x')
+        different = [
+            file for file in trees[PARSER_BACKENDS[0]]
+            if any(trees[backend].get(file) != trees[PARSER_BACKENDS[0]][file] for backend in PARSER_BACKENDS)
+        ]
+        if different:
+            raise RuntimeError(f'Backends created different trees for {len(different)} files, e.g. {different[0]}')
+
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,90 @@
+""" Measures how long it takes to link a binding at the end of a deep import chain.
+
+Usage:
+    python -m benchmarks.link_latency [--depth MODULES] [--symbols SYMBOLS] [--repeat N]
+
+A temporary workspace with a chain of modules is generated, where every module imports
+the previous one, and a binding of the last module references symbols of all of them.
+The binding is linked with a new linker (every module of the chain is linked)
+and with a linker that already linked the chain (only the binding is linked).
+
+Both are measured once with the objects copied in memory and once with every object loaded
+from it's objectfile, which is what the linker did before objects could be cloned.
+"""
+import argparse
+import contextlib
+import gc
+import tempfile
+import time
+from pathlib import Path
+from typing import Callable, Dict, Iterator
+
+from stexls.stex.compiler import Compiler, StexObject
+from stexls.stex.linker import Linker
+
+
+def generate_chain(source: Path, depth: int, num_symbols: int) -> Path:
+    for i in range(depth):
+        imports = rf'\gimport{{module{i - 1}}}' if i > 0 else ''
+        definitions = '\n'.join(rf'\symi{{symbol{i}-{j}}}' for j in range(num_symbols))
+        (source / f'module{i}.tex').write_text(
+            f'\\begin{{modsig}}{{module{i}}}\n{imports}\n{definitions}\n\\end{{modsig}}\n')
+    references = '\n'.join(
+        rf'\trefi[module{i}]{{symbol{i}-{j}}}'
+        for i in range(depth)
+        for j in range(0, num_symbols, max(1, num_symbols // 4)))
+    binding = source / f'module{depth - 1}.en.tex'
+    binding.write_text(
+        f'\\begin{{mhmodnl}}{{module{depth - 1}}}{{en}}\n{references}\n\\end{{mhmodnl}}\n')
+    return binding
+
+
+@contextlib.contextmanager
+def reload_from_objectfiles(compiler: Compiler) -> Iterator[None]:
+    ' Makes the linker load every object from the objectfile instead of copying it. '
+    clone = StexObject.clone
+    StexObject.clone = lambda self: compiler.load_from_objectfile(self.file)
+    try:
+        yield
+    finally:
+        StexObject.clone = clone
+
+
+def measure(fn: Callable[[], object], repeat: int) -> float:
+    fn()
+    gc.collect()
+    begin = time.perf_counter()
+    for _ in range(repeat):
+        fn()
+    return (time.perf_counter() - begin) / repeat
+
+
+def main():
+    argparser = argparse.ArgumentParser(description=__doc__, formatter_class=argparse.RawDescriptionHelpFormatter)
+    argparser.add_argument('--depth', type=int, default=30, help='Number of modules in the import chain.')
+    argparser.add_argument('--symbols', type=int, default=50, help='Number of symbols defined by each module.')
+    argparser.add_argument('--repeat', type=int, default=10, help='Number of measurements to average.')
+    args = argparser.parse_args()
+    with tempfile.TemporaryDirectory() as tmpdir:
+        root = Path(tmpdir)
+        source = root / 'repository' / 'source'
+        source.mkdir(parents=True)
+        binding = generate_chain(source, args.depth, args.symbols)
+        compiler = Compiler(root, root / 'objects')
+        objects: Dict[Path, StexObject] = {
+            file: compiler.compile(file)
+            for file in sorted(source.glob('*.tex'))
+        }
+        print(f'{"":>10} {"cold (ms)":>10} {"warm (ms)":>10}')
+        for label, context in (('clone', contextlib.nullcontext()), ('reload', reload_from_objectfiles(compiler))):
+            with context:
+                warm = Linker(compiler.outdir)
+                cold_time = measure(
+                    lambda: Linker(compiler.outdir).link(binding, objects, compiler), args.repeat)
+                warm_time = measure(
+                    lambda: warm.link(binding, objects, compiler), args.repeat)
+            print(f'{label:>10} {cold_time * 1000:>10.2f} {warm_time * 1000:>10.2f}')
+
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,105 @@
+""" Compares the size and load time of the binary objectfile format against pickle.
+
+Usage:
+    python -m benchmarks.objectfile_format [--root WORKSPACE] [--synthetic FILES]
+
+If a workspace root is given, all files inside it are compiled and the resulting
+objects are serialized with both formats.
+Else synthetic objects with a structure similar to large bindings are generated.
+"""
+import argparse
+import io
+import pickle
+import time
+from pathlib import Path
+from typing import Callable, List
+
+from stexls import vscode
+from stexls.stex.compiler import (Compiler, ObjectHeader, StexObject,
+                                  StexObjectReader, StexObjectWriter)
+from stexls.stex.dependency import Dependency
+from stexls.stex.reference_type import ReferenceType
+from stexls.stex.references import Reference
+from stexls.stex.symbols import (BindingSymbol, DefSymbol, DefType,
+                                 ModuleType, ScopeSymbol)
+from stexls.util.workspace import Workspace
+
+
+def compile_workspace(root: Path) -> List[StexObject]:
+    workspace = Workspace(root)
+    compiler = Compiler(root, root / '.stexls' / 'benchmark')
+    objects = []
+    for file in workspace.files:
+        objects.append(compiler.compile(file, dryrun=True))
+    return objects
+
+
+def synthetic_objects(num_files: int, num_symbols: int = 200) -> List[StexObject]:
+    objects = []
+    for i in range(num_files):
+        file = Path(f'/workspace/repository{i % 10}/source/module{i}.en.tex')
+        uri = file.as_uri()
+        obj = StexObject(file)
+
+        def make_range(line: int) -> vscode.Range:
+            return vscode.Range(vscode.Position(line, 4), vscode.Position(line, 20))
+        binding = BindingSymbol(vscode.Location(uri, make_range(1)), f'module{i}', 'en')
+        obj.symbol_table.add_child(binding)
+        dep = Dependency(make_range(1), binding, f'module{i}', ModuleType.MODSIG, file.with_name(f'module{i}.tex'))
+        obj.dependencies.append(dep)
+        module_ref = Reference(make_range(1), binding, (f'module{i}',), ReferenceType.MODSIG, dep)
+        obj.references.append(module_ref)
+        for line in range(2, num_symbols + 2):
+            scope = ScopeSymbol(vscode.Location(uri, make_range(line)))
+            binding.add_child(scope)
+            scope.add_child(DefSymbol(
+                DefType.DEF, vscode.Location(uri, make_range(line)), f'symbol-{line}'))
+            obj.references.append(Reference(
+                make_range(line), scope, (f'module{i}', f'symbol-{line}'), ReferenceType.DEF, module_ref))
+        objects.append(obj)
+    return objects
+
+
+def dump_binary(obj: StexObject) -> bytes:
+    fd = io.BytesIO()
+    StexObjectWriter(fd).write(obj)
+    return fd.getvalue()
+
+
+def load_binary(data: bytes) -> StexObject:
+    return StexObjectReader(io.BytesIO(data)).read()
+
+
+def load_header(data: bytes) -> ObjectHeader:
+    return StexObjectReader(io.BytesIO(data)).read_header()
+
+
+def measure(name: str, objects: List[StexObject], dump: Callable[[StexObject], bytes], load: Callable[[bytes], object]):
+    begin = time.perf_counter()
+    data = [dump(obj) for obj in objects]
+    dump_time = time.perf_counter() - begin
+    begin = time.perf_counter()
+    for d in data:
+        load(d)
+    load_time = time.perf_counter() - begin
+    size = sum(map(len, data))
+    print(f'{name:>8}: {size / 1024:10.1f} KiB  dump {dump_time:7.3f}s  load {load_time:7.3f}s')
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__, formatter_class=argparse.RawDescriptionHelpFormatter)
+    parser.add_argument('--root', type=Path, help='Workspace to compile.')
+    parser.add_argument('--synthetic', type=int, default=500, help='Number of synthetic objects.')
+    args = parser.parse_args()
+    if args.root:
+        objects = compile_workspace(args.root)
+    else:
+        objects = synthetic_objects(args.synthetic)
+    print(f'{len(objects)} objects')
+    measure('pickle', objects, pickle.dumps, pickle.loads)
+    measure('binary', objects, dump_binary, load_binary)
+    measure('header', objects, dump_binary, load_header)
+
+
+if __name__ == '__main__':
+    main()
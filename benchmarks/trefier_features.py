@@ -0,0 +1,105 @@
+""" Measures the feature models of the trefier on the smglom corpus.
+
+Usage:
+    python -m benchmarks.trefier_features [--data DIR] [--cache FILE] [--limit FILES] [--repeat N]
+
+The corpus is downloaded to the data directory and cached the same way the training does.
+Every model is fitted, fit-transformed and used to transform the corpus.
+The results are compared with the dictionary based computation used by the tests,
+which is also timed, so that the speedup of the vectorized implementation is shown.
+The benchmark fails if the results differ from the reference.
+"""
+import argparse
+import time
+from pathlib import Path
+
+import numpy as np
+
+from stexls.trefier.training.datasets import smglom
+from stexls.trefier.training.features.chisquare import ChiSquareModel
+from stexls.trefier.training.features.keyphraseness import KeyphrasenessModel
+from stexls.trefier.training.features.tfidf import TfIdfModel
+from tests.test_features import (reference_chisquare, reference_keyphraseness,
+                                 reference_tfidf)
+
+
+def measure(function, repeat: int):
+    ' Returns the result and the fastest time of `repeat` calls. '
+    best = float('inf')
+    for _ in range(repeat):
+        begin = time.perf_counter()
+        result = function()
+        best = min(best, time.perf_counter() - begin)
+    return result, best
+
+
+def max_difference(expected, actual) -> float:
+    return max(
+        (float(np.nanmax(np.abs(np.asarray(a, dtype=np.float64) - e), initial=0)) for e, a in zip(expected, actual)),
+        default=0)
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__, formatter_class=argparse.RawDescriptionHelpFormatter)
+    parser.add_argument('--data', type=Path, default=Path('data'), help='Directory the smglom repositories are stored in.')
+    parser.add_argument('--cache', type=Path, default=Path('data/smglom.bin'), help='Cache of the parsed corpus.')
+    parser.add_argument('--limit', type=int, help='Maximum number of files used.')
+    parser.add_argument('--repeat', type=int, default=3, help='Number of measurements, of which the fastest is shown.')
+    parser.add_argument('--no-reference', action='store_true', help='Don\'t time the dictionary based computation.')
+    parser.add_argument('--tolerance', type=float, default=1e-6, help='Maximum difference to the reference.')
+    args = parser.parse_args()
+    x, y = smglom.load_and_cache(cache=args.cache, download_dir=args.data)
+    x = x[:args.limit]
+    y = y[:args.limit]
+    print(f'{len(x)} files, {sum(map(len, x))} tokens')
+    # transform() uses models fitted on the second half of the files to transform the first half
+    half = len(x) // 2
+    cases = {
+        'tfidf': (
+            TfIdfModel,
+            lambda model: model.fit(x[half:]),
+            lambda model: model.fit_transform(x),
+            lambda model: model.transform(x[:half]),
+            lambda: reference_tfidf(x, x, 1, True),
+            lambda: reference_tfidf(x[half:], x[:half], 1, False)),
+        'keyphraseness': (
+            KeyphrasenessModel,
+            lambda model: model.fit(x[half:], y[half:]),
+            lambda model: model.fit_transform(x, y),
+            lambda model: model.transform(x[:half]),
+            lambda: reference_keyphraseness(x, y, x, y, True),
+            lambda: reference_keyphraseness(x[half:], y[half:], x[:half], y[:half], False)),
+        'chisquare': (
+            ChiSquareModel,
+            lambda model: model.fit(x[half:]),
+            lambda model: model.fit_transform(x),
+            lambda model: model.transform(x[:half]),
+            lambda: reference_chisquare(x, x, 1, True),
+            lambda: reference_chisquare(x[half:], x[:half], 1, False)),
+    }
+    failed = []
+    for name, (cls, fit, fit_transform, transform, reference_fit_transform, reference_transform) in cases.items():
+        model = cls()
+        _, fit_time = measure(lambda: fit(model), args.repeat)
+        transformed, transform_time = measure(lambda: transform(model), args.repeat)
+        fit_transformed, fit_transform_time = measure(lambda: fit_transform(model), args.repeat)
+        print(f'{name:>13}: fit {fit_time:7.3f}s  fit_transform {fit_transform_time:7.3f}s'
+              f'  transform {transform_time:7.3f}s')
+        if args.no_reference:
+            continue
+        expected_fit_transform, reference_fit_transform_time = measure(reference_fit_transform, 1)
+        expected_transform, reference_transform_time = measure(reference_transform, 1)
+        difference = max(
+            max_difference(expected_fit_transform, fit_transformed),
+            max_difference(expected_transform, transformed))
+        print(f'{"reference":>13}: fit_transform {reference_fit_transform_time:7.3f}s'
+              f'  transform {reference_transform_time:7.3f}s'
+              f'  max difference {difference:.2e}')
+        if difference > args.tolerance:
+            failed.append(name)
+    if failed:
+        raise SystemExit(f'Results differ from the reference: {", ".join(failed)}')
+
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,99 @@
+""" Compares the keras and the numpy inference runtime of the trefier.
+
+Usage:
+    python -m benchmarks.trefier_inference [--model MODEL] [--root WORKSPACE] [--synthetic PARAGRAPHS] [--repeat N]
+
+Every runtime is measured in a new process: The time to load the model, the peak memory
+of the process after loading and the time to tag the files. Afterwards the tags of both
+runtimes are compared. If the model was not exported yet, a temporary exported copy is used.
+"""
+import argparse
+import multiprocessing
+import resource
+import shutil
+import tempfile
+import time
+from pathlib import Path
+from typing import List, Tuple
+from zipfile import ZipFile
+
+from stexls.latex.parser import LatexParser
+
+from .latex_parser import synthetic_module
+
+
+def measure(runtime: str, model_path: Path, files: List[Tuple[Path, str]], repeat: int) -> dict:
+    ' Loads the model with the runtime and tags the files `repeat` times. '
+    begin = time.perf_counter()
+    from stexls.trefier.models.seq2seq import Seq2SeqModel
+    model = Seq2SeqModel.load(model_path, runtime=runtime)
+    load_time = time.perf_counter() - begin
+    # Kilobytes on linux
+    memory = resource.getrusage(resource.RUSAGE_SELF).ru_maxrss / 1024
+    parsers = []
+    for file, content in files:
+        parser = LatexParser(file)
+        parser.parse(content)
+        parsers.append(parser)
+    best = float('inf')
+    for _ in range(repeat):
+        begin = time.perf_counter()
+        predictions = model.predict(*parsers)
+        best = min(best, time.perf_counter() - begin)
+    return {
+        'load': load_time,
+        'memory': memory,
+        'predict': best,
+        'labels': [[tag.label for tag in tags] for tags in predictions],
+    }
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__, formatter_class=argparse.RawDescriptionHelpFormatter)
+    parser.add_argument('--model', type=Path, help='Trefier model. Defaults to the model used by the language server.')
+    parser.add_argument('--root', type=Path, help='Workspace to tag.')
+    parser.add_argument('--synthetic', type=int, default=50, help='Number of paragraphs of the synthetic module.')
+    parser.add_argument('--repeat', type=int, default=3, help='Number of measurements, of which the fastest is shown.')
+    args = parser.parse_args()
+    if args.model is None:
+        from stexls.lsp.server import _get_default_trefier_model_path
+        args.model = _get_default_trefier_model_path()
+    if args.root:
+        from stexls.util.workspace import Workspace
+        files = [(file, file.read_text(errors='ignore')) for file in sorted(Workspace(args.root).files)]
+    else:
+        files = [(Path(tempfile.gettempdir()) / 'module.tex', synthetic_module(args.synthetic))]
+    with tempfile.TemporaryDirectory() as tmpdir:
+        model_path = args.model
+        with ZipFile(model_path) as package:
+            exported = 'inference.npz' in package.namelist()
+        if not exported:
+            model_path = Path(tmpdir) / args.model.name
+            shutil.copy(args.model, model_path)
+            from stexls.trefier.cli import trefier_export
+            trefier_export(model_path)
+        # Every runtime gets a clean process, so that the memory is not shared
+        context = multiprocessing.get_context('spawn')
+        results = {}
+        for runtime in ('keras', 'numpy'):
+            with context.Pool(1) as pool:
+                results[runtime] = pool.apply(measure, (runtime, model_path, files, args.repeat))
+    num_tokens = sum(map(len, results['keras']['labels']))
+    print(f'{len(files)} files, {num_tokens} tokens')
+    for runtime, result in results.items():
+        print(f'{runtime:>6}: load {result["load"]:6.2f}s  peak memory {result["memory"]:7.1f} MiB'
+              f'  predict {result["predict"]:6.3f}s')
+    differences = [
+        abs(a - b)
+        for keras_labels, numpy_labels in zip(results['keras']['labels'], results['numpy']['labels'])
+        for a, b in zip(keras_labels, numpy_labels)
+    ]
+    agreement = sum(
+        round(a) == round(b)
+        for keras_labels, numpy_labels in zip(results['keras']['labels'], results['numpy']['labels'])
+        for a, b in zip(keras_labels, numpy_labels))
+    print(f'Tag agreement: {agreement}/{len(differences)}, max label difference {max(differences, default=0):.2e}')
+
+
+if __name__ == '__main__':
+    main()
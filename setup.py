@@ -29,6 +29,9 @@ setuptools.setup(
         'nltk',
         'tensorflow'
     ],
+    extras_require={
+        'fast-json': ['orjson'],
+    },
     package_data={
         'stexls': ['*.model']
     }
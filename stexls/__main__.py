@@ -9,8 +9,10 @@ from pathlib import Path
 
 import pkg_resources
 
+from .latex.parser import PARSER_BACKENDS
 from .linter.cli import linter
 from .lsp.cli import lsp
+from .stex.storage import OBJECT_STORAGE_BACKENDS
 from .vscode import DiagnosticSeverity
 
 log = logging.getLogger(__name__)
@@ -53,6 +55,12 @@ if __name__ == '__main__':
     linter_cmd.add_argument(
         '--verbose', '-v', action='store_true',
         help='If enabled, instead of only printing errors, this will print all infos about each input file.')
+    linter_cmd.add_argument(
+        '--object-storage', choices=OBJECT_STORAGE_BACKENDS, default='directory',
+        help='How compiled objects are stored: One file per object or a single packed file.')
+    linter_cmd.add_argument(
+        '--parser-backend', choices=PARSER_BACKENDS, default='antlr',
+        help='Which latex parser to use: The generated ANTLR parser or the faster handwritten one.')
 
     lsp_cmd = subparsers.add_parser(
         'lsp', help='Start the language server protocol.')
@@ -65,6 +73,40 @@ if __name__ == '__main__':
     lsp_cmd.add_argument(
         '--logfile', '-L',  type=Path, help='Logfile name.', default=Path('stexls.log')),
 
+    trefier_cache_cmd = subparsers.add_parser(
+        'trefier-cache', help='Precomputes the trefier tags of all files in the workspace using all cores.')
+    trefier_cache_cmd.add_argument(
+        '--root', type=Path, help='Root directory of the workspace.')
+    trefier_cache_cmd.add_argument(
+        '--model', type=Path, help='Path to the trefier model. Defaults to the model used by the language server.')
+    trefier_cache_cmd.add_argument(
+        '--num-jobs', '-j', type=int, default=0, help='Number of worker processes. Defaults to the number of cpus.')
+    trefier_cache_cmd.add_argument(
+        '--batch-size', type=int, default=16, help='Number of files a worker tags at once.')
+    trefier_cache_cmd.add_argument(
+        '--file-size-limit-kb', type=int, default=50, help='Files larger than this are not tagged. 0 to tag all files.')
+    trefier_cache_cmd.add_argument(
+        '--ignorefile', type=Path,
+        help='Path to the ignorefile. If not set, then ".stexlsignore" will be used.')
+    trefier_cache_cmd.add_argument(
+        '--parser-backend', choices=PARSER_BACKENDS, default='antlr',
+        help='Which latex parser to use: The generated ANTLR parser or the faster handwritten one.')
+    trefier_cache_cmd.add_argument(
+        '--show-progress', '-p', action='store_true',
+        help='Enables printing of a progress bar to stderr.')
+    trefier_cache_cmd.add_argument(
+        '--loglevel', '-l', choices=['error', 'warning', 'info', 'debug'], default='error', help='Logger loglevel.')
+    trefier_cache_cmd.add_argument(
+        '--logfile', '-L', type=Path, help='Path to a logfile.', default=Path('stexls.log'))
+
+    trefier_export_cmd = subparsers.add_parser(
+        'trefier-export', help='Exports the trefier model, so that it can be run without tensorflow.')
+    trefier_export_cmd.add_argument(
+        '--model', type=Path, help='Path to the trefier model. Defaults to the model used by the language server.')
+    trefier_export_cmd.add_argument(
+        '--dtype', choices=['float32', 'float16'], default='float32',
+        help='Data type of the exported weights. float16 halves the size of the weights.')
+
     test_model = subparsers.add_parser(
         'verify-model', help='Verifies that the trefier model is available. Should print a summary if OK.')
 
@@ -77,6 +119,12 @@ if __name__ == '__main__':
             server, task = await lsp(**args)
             await task
         asyncio.run(await_lsp())
+    elif cmd == 'trefier-cache':
+        from .trefier.cli import trefier_cache
+        trefier_cache(**args)
+    elif cmd == 'trefier-export':
+        from .trefier.cli import trefier_export
+        trefier_export(**args)
     elif cmd == 'verify-model':
         from stexls.lsp.server import _get_default_trefier_model_path
         model_path = _get_default_trefier_model_path()
@@ -0,0 +1,172 @@
+""" Conversion of outgoing messages into json.
+
+Messages contain objects like diagnostics and ranges, which json can't encode by itself.
+Instead of a generic fallback, which has to find out how to serialize an object
+every time it encounters one, a serializer is compiled once for every class and kept in a registry.
+The registry is used by the fastest available json backend to encode messages.
+`to_json_tree` converts objects into trees of only dicts, lists and json primitives,
+for backends that can't serialize other objects.
+"""
+from __future__ import annotations
+
+import json
+from enum import Enum
+from typing import Any, Callable, Dict, List, Optional, Set
+
+__all__ = ['JSON_BACKENDS', 'register_serializer', 'serialize', 'to_json_tree', 'JsonEncoder']
+
+# Names of the supported json encoders, fastest first. "json" is always available.
+JSON_BACKENDS: List[str] = ['orjson', 'ujson', 'json']
+
+# Types that are encoded as they are
+_JSON_TYPES = frozenset((str, int, float, bool, type(None)))
+
+# Serializer of each class, which converts an instance into json values and other serializable objects
+_serializers: Dict[type, Callable[[Any], Any]] = {}
+
+# Classes whose serializers only return dicts, lists and json primitives
+_plain: Set[type] = set()
+
+
+def register_serializer(cls: type, serializer: Callable[[Any], Any], plain: bool = False):
+    ''' Registers how instances of a class are serialized.
+    Parameters:
+        cls: The class. Subclasses are not affected.
+        serializer: Converts an instance into json values. The returned values
+            may contain other objects, which are serialized as well.
+        plain: True if the serializer only returns dicts, lists and json primitives,
+            so that it's results don't need to be inspected.
+    '''
+    _serializers[cls] = serializer
+    if plain:
+        _plain.add(cls)
+    else:
+        _plain.discard(cls)
+
+
+def _compile(cls: type) -> Callable[[Any], Any]:
+    ''' Creates and registers the serializer of a class that was not registered.
+    Objects are serialized using their "to_json" or "serialize" methods if they have one,
+    else their attributes are serialized. '''
+    if issubclass(cls, Enum):
+        to_json = getattr(cls, 'to_json', None)
+        register_serializer(cls, to_json if callable(to_json) else _enum_value)
+    elif issubclass(cls, bool):
+        register_serializer(cls, bool, plain=True)
+    elif issubclass(cls, (str, int, float)):
+        register_serializer(cls, next(base for base in (str, int, float) if issubclass(cls, base)), plain=True)
+    elif issubclass(cls, dict):
+        register_serializer(cls, dict)
+    elif issubclass(cls, (list, tuple, set, frozenset)):
+        register_serializer(cls, list)
+    else:
+        method = getattr(cls, 'to_json', None)
+        if not callable(method):
+            method = getattr(cls, 'serialize', None)
+        if callable(method):
+            def serializer(obj, method=method):
+                try:
+                    return method(obj)
+                except Exception:
+                    # Objects whose method fails are serialized by their attributes instead
+                    return _attributes(obj)
+            register_serializer(cls, serializer)
+        else:
+            register_serializer(cls, _attributes)
+    return _serializers[cls]
+
+
+def _enum_value(obj: Enum) -> Any:
+    return obj.value
+
+
+def _attributes(obj: Any) -> dict:
+    try:
+        return dict(vars(obj))
+    except TypeError:
+        raise TypeError(f'Object of type {type(obj).__name__} is not JSON serializable') from None
+
+
+def serialize(obj: Any) -> Any:
+    ''' Serializes a single object, which is not a json value, using the registered serializer of it's class.
+    Can be used as the "default" argument of json encoders, which serialize the returned values.
+    Parameters:
+        obj: Object to serialize.
+    Returns:
+        Json values, which may contain other objects.
+    '''
+    serializer = _serializers.get(type(obj))
+    if serializer is None:
+        serializer = _compile(type(obj))
+    return serializer(obj)
+
+
+def to_json_tree(obj: Any) -> Any:
+    ''' Converts an object into a tree of dicts, lists and json primitives.
+    Parameters:
+        obj: Object to convert.
+    Returns:
+        Json tree.
+    Raises:
+        TypeError: If the object contains values which can't be serialized.
+    '''
+    cls = type(obj)
+    if cls in _JSON_TYPES:
+        return obj
+    if cls is dict:
+        return {key: to_json_tree(value) for key, value in obj.items()}
+    if cls is list or cls is tuple:
+        return [to_json_tree(value) for value in obj]
+    serialized = serialize(obj)
+    if cls in _plain:
+        return serialized
+    return to_json_tree(serialized)
+
+
+class JsonEncoder:
+    ' Encodes objects as json with one of the JSON_BACKENDS. '
+
+    def __init__(self, backend: Optional[str] = None):
+        ''' Initializes the encoder.
+        Parameters:
+            backend: One of JSON_BACKENDS. The fastest installed backend is used if None.
+        Raises:
+            ValueError: If the backend is not supported.
+            ImportError: If the backend is not installed.
+        '''
+        if backend is None:
+            for backend in JSON_BACKENDS:
+                try:
+                    self._dumps = JsonEncoder._load(backend)
+                    break
+                except ImportError:
+                    continue
+        else:
+            self._dumps = JsonEncoder._load(backend)
+        self.backend: str = backend
+
+    @staticmethod
+    def _load(backend: str) -> Callable[[Any], bytes]:
+        ' Returns a function that encodes an object as utf-8 json. '
+        if backend == 'orjson':
+            import orjson
+            return lambda obj: orjson.dumps(obj, default=serialize, option=orjson.OPT_NON_STR_KEYS)
+        if backend == 'ujson':
+            import ujson
+            return lambda obj: ujson.dumps(to_json_tree(obj), escape_forward_slashes=False).encode('utf-8')
+        if backend == 'json':
+            return lambda obj: json.dumps(obj, default=serialize).encode('utf-8')
+        raise ValueError(f'Unsupported json backend: {backend!r}')
+
+    def encode(self, obj: Any, charset: str = 'utf-8') -> bytes:
+        ''' Serializes an object.
+        Parameters:
+            obj: Object to serialize.
+            charset: Encoding of the returned json.
+        Returns:
+            The encoded json.
+        '''
+        content = self._dumps(obj)
+        if charset.lower().replace('_', '-') not in ('utf-8', 'utf8'):
+            content = content.decode('utf-8').encode(charset)
+        return content
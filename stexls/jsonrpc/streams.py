@@ -1,7 +1,9 @@
 import asyncio
 import json
 import re
-from typing import Any, Dict
+from typing import Any, Dict, Optional
+
+from .serialization import JsonEncoder
 
 __all__ = ['JsonStream']
 
@@ -19,7 +21,8 @@ class JsonStream:
             encoding: str = 'utf-8',
             charset: str = None,
             newline: str = '\r\n',
-            with_content_type: bool = False):
+            with_content_type: bool = False,
+            json_backend: Optional[str] = None):
         """ Initializes the json stream with underlying stream reader and writer.
 
         Args:
@@ -29,6 +32,7 @@ class JsonStream:
             charset: Encoding to use for body content. Same as encoding if None.
             newline: Which character should be used to represent newlines.
             with_content_type: Serialize with Content-Type header
+            json_backend: Which of the JSON_BACKENDS encodes written objects. The fastest installed one if None.
         """
         self.reader = reader
         self.writer = writer
@@ -36,23 +40,14 @@ class JsonStream:
         self.charset = charset or encoding
         self.newline = newline.encode(charset or encoding)
         self.with_content_type = with_content_type
+        self.encoder = JsonEncoder(json_backend)
 
     def close(self):
         self.writer.close()
 
     def write_json(self, json_object: Any):
         ' Serializes the object with json and writes it to the underlying stream writer. '
-        def serializer(child):
-            try:
-                if hasattr(child, 'to_json') and callable(child.to_json):
-                    return child.to_json()
-                elif hasattr(child, 'serialize') and callable(child.serialize):
-                    return child.serialize()
-            except Exception:
-                pass
-            return dict(child.__dict__.items())
-        serialized = json.dumps(json_object, default=serializer)
-        content = serialized.encode(self.charset)
+        content = self.encoder.encode(json_object, self.charset)
         length_header = f'Content-Length: {len(content)}'.encode(self.encoding)
         if self.with_content_type:
             type_header = f'Content-Type: application/json; charset={self.charset}'.encode(
@@ -0,0 +1,604 @@
+''' Hand-written backend of the latex parser.
+
+Creates the same syntax tree as the ANTLR generated parser, which
+is described by the grammars in `stexls/latex/grammar`, without the
+overhead of the ANTLR runtime.
+
+The lexer follows the rules of `LatexLexer.g4`:
+The longest token wins, ties are broken by the order of the rules and
+unclosed math environments end the input.
+The parser is a recursive descent parser for `LatexParser.g4`.
+Only optional arguments are ambiguous: A "[" after the arguments of an environment
+is the begin of an optional argument if it can be parsed as one and else text.
+Inside of optional arguments every alternative is tried in the order
+of the grammar, until the argument list can be closed.
+'''
+from __future__ import annotations
+
+import bisect
+import re
+from pathlib import Path
+from typing import Dict, Iterator, List, Optional, Tuple
+
+from stexls.vscode import Location, Position
+
+from .parser import (Environment, InlineEnvironment, LatexException,
+                     LatexParser, MathToken, Node, OArgument,
+                     SyntaxErrorException, Token)
+
+__all__ = ['tokenize', 'parse_text']
+
+# Token types. Punctuation tokens use the character as their type.
+TEXT = 'TEXT'
+MATH = 'MATH'
+BEGIN = 'BEGIN'
+END = 'END'
+NAME = 'NAME'
+EOF = 'EOF'
+
+# Tokens that are matched by the "text" parser rule
+_TEXT_TYPES = frozenset((TEXT, '[', ']', '=', ','))
+_PUNCTUATION = frozenset('{}[]=,')
+_WHITESPACE = frozenset(' \t\r\n')
+
+_TEXT = re.compile(r'[^$\[{%}\]\\,=]+')
+_WS = re.compile(r'[ \t\r\n]+')
+_INLINE_MATH = re.compile(r'\$(?:\\.|[^\\$])*\$', re.DOTALL)
+_DISPLAY_MATH = re.compile(r'\$\$(?:\\.|[^\\$]|\$(?!\$))*\$\$', re.DOTALL)
+_PARENTHESIS_MATH = re.compile(r'\\\((?:\\[^)]|[^\\])*\\\)')
+_BRACKET_MATH = re.compile(r'\\\[(?:\\[^\]]|[^\\])*\\\]')
+_MATH_ENV_BEGIN = re.compile(
+    r'\\begin[ \t\r\n]*\{[ \t\r\n]*'
+    r'(math|displaymath|align|flalign|flmath|equation|verbatim|lstlisting)'
+    r'[ \t\r\n]*(\*[ \t\r\n]*)?\}')
+_NAME = re.compile(r'[a-zA-Z_]+\*?')
+_VERBATIM = re.compile(r'(?:newenvironment|verbatim|newcommand|lstinline|verb|visible)\*?')
+_VERBATIM_ENV = re.compile(r'\\[a-zA-Z0-9_]+')
+
+# Patterns that end a math environment: Dict[Tuple[EnvName, Starred], Pattern]
+_math_env_ends: Dict[Tuple[str, bool], re.Pattern] = {}
+
+
+def _find_math_env_end(text: str, begin: int) -> int:
+    ' Returns the end of the math environment that begins at `begin` or -1 if there is none. '
+    match = _MATH_ENV_BEGIN.match(text, begin)
+    if match is None:
+        return -1
+    key = (match.group(1), match.group(2) is not None)
+    pattern = _math_env_ends.get(key)
+    if pattern is None:
+        pattern = _math_env_ends[key] = re.compile(
+            r'\\end[ \t\r\n]*\{[ \t\r\n]*' + key[0] + r'[ \t\r\n]*' + (r'\*[ \t\r\n]*' if key[1] else '') + r'\}')
+    end = pattern.search(text, match.end())
+    return -1 if end is None else end.end()
+
+
+def _find_verbatim_arg_end(text: str, begin: int) -> int:
+    """ Returns the end of the verbatim argument that begins with a bracket at `begin` or -1 if it isn't closed.
+
+    The lexer rules of the arguments are non-greedy loops over nested arguments or any character.
+    Every way to match the argument is simulated in the order the ANTLR lexer tries them:
+    The argument ends at the first possible closing bracket, except if a way that matched nested
+    arguments before, ends later.
+    """
+    # Each way is the stack of brackets that close the currently open arguments
+    ways: List[Tuple[str, ...]] = [('}' if text[begin] == '{' else ']',)]
+    end = -1
+    for i in range(begin + 1, len(text)):
+        char = text[i]
+        reached: List[Tuple[str, ...]] = []
+        found = set()
+        for way in ways:
+            successors = []
+            if char == way[-1]:
+                if len(way) == 1:
+                    # Ways with a lower priority are not followed after an argument ended
+                    end = i + 1
+                    break
+                successors.append(way[:-1])
+            if char == '{':
+                successors.append(way + ('}',))
+            elif char == '[':
+                successors.append(way + (']',))
+            successors.append(way)
+            for successor in successors:
+                if successor not in found:
+                    found.add(successor)
+                    reached.append(successor)
+        if not reached:
+            break
+        ways = reached
+    return end
+
+
+def tokenize(text: str) -> Tuple[List[str], List[int], List[int]]:
+    """ Splits the text into the tokens of the latex grammar.
+
+    Args:
+        text (str): Text to tokenize.
+
+    Returns:
+        Tuple[List[str], List[int], List[int]]: The type, begin offset and end offset of each token.
+            The lists end with EOF tokens.
+    """
+    types: List[str] = []
+    begins: List[int] = []
+    ends: List[int] = []
+    n = len(text)
+    i = 0
+    while i < n:
+        char = text[i]
+        if char in _PUNCTUATION:
+            types.append(char)
+            begins.append(i)
+            ends.append(i + 1)
+            i += 1
+        elif char == '\\':
+            following = text[i + 1:i + 2]
+            if following == '(' or following == '[':
+                # Unclosed math ends the input
+                match = (_PARENTHESIS_MATH if following == '(' else _BRACKET_MATH).match(text, i)
+                if match is None:
+                    break
+                types.append(MATH)
+                begins.append(i)
+                ends.append(match.end())
+                i = match.end()
+                continue
+            if following == 'b':
+                end = _find_math_env_end(text, i)
+                if end >= 0:
+                    types.append(MATH)
+                    begins.append(i)
+                    ends.append(end)
+                    i = end
+                    continue
+            i += 1
+            if i >= n:
+                break
+            name = _NAME.match(text, i)
+            verbatim = _VERBATIM.match(text, i)
+            if verbatim is not None and (name is None or verbatim.end() >= name.end()):
+                i = _skip_verbatim(text, verbatim.end(), types, begins, ends)
+                continue
+            if name is None:
+                # Escaped character
+                types.append(TEXT)
+                begins.append(i)
+                ends.append(i + 1)
+                i += 1
+                continue
+            end = name.end()
+            if end - i == 5 and text.startswith('begin', i):
+                types.append(BEGIN)
+            elif end - i == 3 and text.startswith('end', i):
+                types.append(END)
+            else:
+                types.append(NAME)
+            begins.append(i)
+            ends.append(end)
+            i = end
+        elif char == '$':
+            match = (_DISPLAY_MATH if text.startswith('$$', i) else _INLINE_MATH).match(text, i)
+            if match is None:
+                break
+            types.append(MATH)
+            begins.append(i)
+            ends.append(match.end())
+            i = match.end()
+        elif char == '%':
+            end = text.find('\n', i)
+            i = n if end < 0 else end
+        else:
+            end = _TEXT.match(text, i).end()
+            if char in _WHITESPACE and _WS.match(text, i).end() == end:
+                i = end
+                continue
+            types.append(TEXT)
+            begins.append(i)
+            ends.append(end)
+            i = end
+    # The parser looks ahead at most 4 tokens
+    for _ in range(4):
+        types.append(EOF)
+        begins.append(n)
+        ends.append(n)
+    return types, begins, ends
+
+
+def _skip_verbatim(text: str, i: int, types: List[str], begins: List[int], ends: List[int]) -> int:
+    ''' Skips the arguments of a verbatim command like "\\verb" or "\\newcommand", which ends before `i`.
+
+    Returns:
+        int: Offset of the first character after the arguments.
+    '''
+    n = len(text)
+    delimiter = text[i] if i < n else ''
+    if delimiter and delimiter in '!-|+':
+        end = text.find(delimiter, i + 1)
+        if end >= 0:
+            types.append(TEXT)
+            begins.append(i)
+            ends.append(end + 1)
+            return end + 1
+    elif delimiter == '<':
+        end = text.find('>', i + 1)
+        if end >= 0:
+            return end + 1
+    while i < n:
+        char = text[i]
+        if char == '\\':
+            match = _VERBATIM_ENV.match(text, i)
+            if match is None:
+                break
+            i = match.end()
+        elif char == '{' or char == '[':
+            end = _find_verbatim_arg_end(text, i)
+            if end < 0:
+                break
+            if char == '{':
+                types.append(TEXT)
+                begins.append(i)
+                ends.append(end)
+            i = end
+        else:
+            break
+    return i
+
+
+# Parse of an optional argument: Index after the closing bracket and it's arguments.
+# Each argument consists of the index of it's name or -1, the index of it's first token,
+# it's value or None and the index after it's last token.
+# A value consists of the index of it's first token, the index after it's last token and
+# the parsed arguments of inline environments.
+_OArg = Tuple[int, List[Tuple[int, int, Optional[tuple], int]]]
+
+
+class _Parser:
+    ' Parses a text into the nodes of a latex parser. '
+
+    def __init__(
+            self,
+            parser: LatexParser,
+            text: str,
+            offset: int,
+            environments: Optional[List[Environment]]):
+        self.parser = parser
+        self.text = text
+        self.offset = offset
+        self.environments = [] if environments is None else environments
+        self.syntax_errors: List[Tuple[Location, Exception]] = []
+        self.types, self.begins, self.ends = tokenize(text)
+        # Same as the counters of the ANTLR listener
+        self._argument_depth = 0
+        self._hidden_depth = 0
+        # End index of the bodies that were parsed without creating nodes, -1 if they can't be parsed
+        self._skipped: Dict[int, int] = {}
+        # Preferred parse of each optional argument after an environment
+        self._oargs: Dict[int, Optional[_OArg]] = {}
+        self._line_begins: Optional[List[int]] = None
+
+    def parse(self) -> Node:
+        ' Parses the text and returns the root node. '
+        if self.types[0] == EOF:
+            raise LatexException('Invalid context encountered during parsing of latex file.')
+        last = self.types.index(EOF) - 1
+        root = Node(self.parser, self.begins[0] + self.offset, self.ends[last] + self.offset)
+        self._bodies(0, root, EOF)
+        return root
+
+    def _error(self, index: int, message: str):
+        ' Adds a syntax error at the token with the index like the error listener of the ANTLR parser. '
+        if self._line_begins is None:
+            self._line_begins = [0]
+            self._line_begins.extend(m.end() for m in re.finditer('\n', self.text))
+        begin = self.begins[index]
+        line = bisect.bisect_right(self._line_begins, begin)
+        position = Position(line, begin - self._line_begins[line - 1])
+        location = Location(Path(self.parser.file).absolute().as_uri(), position)
+        self.syntax_errors.append((location, SyntaxErrorException(message)))
+
+    def _lexeme(self, index: int) -> str:
+        if self.types[index] == EOF:
+            return '<EOF>'
+        return self.text[self.begins[index]:self.ends[index]]
+
+    def _keep_text(self) -> bool:
+        return self.parser.keep_tree or self._argument_depth > 0
+
+    def _bodies(self, i: int, parent: Node, closing: str) -> Tuple[int, int]:
+        """ Parses bodies until the closing token.
+
+        Returns:
+            Tuple[int, int]: Index of the closing token or EOF and the number of bodies.
+        """
+        types = self.types
+        count = 0
+        while True:
+            t = types[i]
+            if t == closing or t == EOF:
+                return i, count
+            if t == '}' or t == END:
+                self._error(i, f"extraneous input '{self._lexeme(i)}'")
+                i += 1
+            else:
+                i = self._body(i, parent)
+                count += 1
+
+    def _body(self, i: int, parent: Node) -> int:
+        ' Parses the body beginning at token i and returns the index of the next token. '
+        t = self.types[i]
+        if t in _TEXT_TYPES or t == MATH:
+            if self._keep_text():
+                begin, end = self.begins[i], self.ends[i]
+                token_type = MathToken if t == MATH else Token
+                parent.add(token_type(
+                    self.parser, begin + self.offset, end + self.offset, lexeme=self.text[begin:end]))
+            return i + 1
+        if t == '{':
+            return self._group(i, parent)
+        if t == BEGIN:
+            return self._environment(i, parent)
+        return self._inline_environment(i, parent)
+
+    def _close(self, i: int, node: Node) -> int:
+        ' Ends the node at the closing brace i. Returns the index after it. '
+        if self.types[i] == '}':
+            node.end = self.ends[i] + self.offset
+            return i + 1
+        self._error(i, f"missing '}}' at '{self._lexeme(i)}'")
+        node.end = self.ends[i - 1] + self.offset
+        return i
+
+    def _group(self, i: int, parent: Node) -> int:
+        node = Node(self.parser, self.begins[i] + self.offset, 0)
+        j, count = self._bodies(i + 1, node, '}')
+        j = self._close(j, node)
+        if count:
+            parent.add(node)
+        return j
+
+    def _rarg(self, i: int, env: Environment) -> int:
+        # Only the rargs of inline environments are also children
+        is_child = isinstance(env, InlineEnvironment)
+        self._argument_depth += 1
+        self._hidden_depth += not is_child
+        node = Node(self.parser, self.begins[i] + self.offset, 0)
+        j, _ = self._bodies(i + 1, node, '}')
+        j = self._close(j, node)
+        self._argument_depth -= 1
+        self._hidden_depth -= not is_child
+        if env.name is None:
+            env.add_name(node)
+        else:
+            env.add_rarg(node)
+        return j
+
+    def _args(self, i: int, env: Environment) -> int:
+        ' Parses the arguments of an environment that is not part of an optional argument itself. '
+        types = self.types
+        while True:
+            t = types[i]
+            if t == '{':
+                i = self._rarg(i, env)
+            elif t == '[':
+                oarg = self._find_oarg(i)
+                if oarg is None:
+                    return i
+                self._oarg(oarg, env)
+                i = oarg[0]
+            else:
+                return i
+
+    def _environment(self, i: int, parent: Node) -> int:
+        types, offset = self.types, self.offset
+        env = Environment(self.parser, self.begins[i] + offset, 0)
+        if not self._hidden_depth:
+            self.environments.append(env)
+        j = self._args(i + 1, env)
+        if j == i + 1:
+            self._error(j, f"mismatched input '{self._lexeme(j)}' expecting {{'{{', '['}}")
+        env.end = self.ends[j - 1] + offset
+        j, _ = self._bodies(j, env, END)
+        if types[j] != END:
+            self._error(j, f"missing '\\end' at '{self._lexeme(j)}'")
+            self.syntax_errors.append((env.location, LatexException(f'Environment not closed: {env}')))
+            return j
+        if types[j + 1] != '{' or types[j + 2] != TEXT or types[j + 3] != '}':
+            self._error(j + 1, f"mismatched input '{self._lexeme(j + 1)}' expecting '{{'")
+            env.end = self.ends[j] + offset
+            parent.add(env)
+            return j + 1
+        env.end = self.ends[j + 3] + offset
+        # Environments without arguments have no name, but a syntax error was already added for them
+        expected_env_name = None if env.name is None else env.env_name
+        actual_env_name = self.text[self.begins[j + 2]:self.ends[j + 2]].strip()
+        if expected_env_name is not None and expected_env_name != actual_env_name:
+            env_end = Environment(self.parser, self.begins[j] + offset, env.end)
+            location_str = env.location.range.start.translate(1, 1).format()
+            end_location_str = env_end.location.range.start.translate(1, 1).format()
+            error = LatexException(
+                f'Environment unbalanced:'
+                f' Expected {expected_env_name} entered ({location_str}) found {actual_env_name} ({end_location_str})')
+            self.syntax_errors.append((env.location, error))
+        parent.add(env)
+        return j + 4
+
+    def _inline_environment(self, i: int, parent: Node, args: Optional[list] = None) -> int:
+        ''' Parses an inline environment.
+        The arguments of environments that are the value of an optional argument are given in `args`.
+        '''
+        begin, end = self.begins[i] + self.offset, self.ends[i] + self.offset
+        env = InlineEnvironment(self.parser, begin, end)
+        env.add_name(Token(self.parser, begin, end, lexeme=self.text[self.begins[i]:self.ends[i]]))
+        if not self._hidden_depth:
+            self.environments.append(env)
+        if args is None:
+            j = self._args(i + 1, env)
+        else:
+            j = i + 1
+            for arg in args:
+                if arg[0] == '{':
+                    j = self._rarg(arg[1], env)
+                else:
+                    self._oarg(arg[2], env)
+                    j = arg[2][0]
+        env.end = self.ends[j - 1] + self.offset
+        parent.add(env)
+        return j
+
+    def _oarg(self, oarg: _OArg, env: Environment):
+        ' Creates the nodes of a parsed optional argument and adds them to the environment. '
+        begins, ends, offset = self.begins, self.ends, self.offset
+        self._argument_depth += 1
+        self._hidden_depth += 1
+        for name, begin, value, end in oarg[1]:
+            node = OArgument(self.parser, begins[begin] + offset, ends[end - 1] + offset)
+            if name >= 0:
+                node.add_name(Node(self.parser, begins[name] + offset, ends[name + 1] + offset))
+            if value is not None:
+                value_begin, value_end, args = value
+                value_node = Node(self.parser, begins[value_begin] + offset, ends[value_end - 1] + offset)
+                if args is None:
+                    self._body(value_begin, value_node)
+                else:
+                    self._inline_environment(value_begin, value_node, args)
+                node.add_value(value_node)
+            env.add_oarg(node)
+        self._argument_depth -= 1
+        self._hidden_depth -= 1
+
+    def _find_oarg(self, i: int) -> Optional[_OArg]:
+        ' Returns the preferred parse of the optional argument beginning at i or None if it is text. '
+        if i not in self._oargs:
+            self._oargs[i] = next(self._oarg_parses(i), None)
+        return self._oargs[i]
+
+    def _oarg_parses(self, i: int) -> Iterator[_OArg]:
+        ' Yields every parse of the optional argument beginning at i, in the order of the grammar. '
+        types = self.types
+        parses = [self._argument_parses(i + 1)]
+        arguments: list = []
+        while parses:
+            try:
+                j, argument = next(parses[-1])
+            except StopIteration:
+                parses.pop()
+                continue
+            del arguments[len(parses) - 1:]
+            arguments.append(argument)
+            if types[j] == ',':
+                parses.append(self._argument_parses(j + 1))
+            elif types[j] == ']':
+                yield j + 1, list(arguments)
+
+    def _argument_parses(self, i: int) -> Iterator[Tuple[int, tuple]]:
+        if self.types[i] == TEXT and self.types[i + 1] == '=':
+            for j, value in self._value_parses(i + 2):
+                yield j, (i, i, value, j)
+            yield i + 2, (i, i, None, i + 2)
+        else:
+            for j, value in self._value_parses(i):
+                yield j, (-1, i, value, j)
+
+    def _value_parses(self, i: int) -> Iterator[Tuple[int, tuple]]:
+        if self.types[i] == NAME:
+            for j, args in self._value_args_parses(i + 1):
+                yield j, (i, j, args)
+        else:
+            j = self._skip_body(i)
+            if j >= 0:
+                yield j, (i, j, None)
+
+    def _value_args_parses(self, i: int) -> Iterator[Tuple[int, list]]:
+        ''' Yields the arguments of an inline environment that is the value of an optional argument.
+        It's arguments must end where the optional argument continues.
+        '''
+        t = self.types[i]
+        if t == '{':
+            j = self._skip_group(i)
+            if j >= 0:
+                for end, args in self._value_args_parses(j):
+                    yield end, [('{', i)] + args
+        elif t == '[':
+            for oarg in self._oarg_parses(i):
+                for end, args in self._value_args_parses(oarg[0]):
+                    yield end, [('[', i, oarg)] + args
+        else:
+            yield i, []
+
+    def _skip_body(self, i: int) -> int:
+        ' Returns the index after the body beginning at i or -1 if it can\'t be parsed. '
+        t = self.types[i]
+        if t in _TEXT_TYPES or t == MATH:
+            return i + 1
+        if t == '{':
+            return self._skip_group(i)
+        if t == BEGIN:
+            return self._skip_environment(i)
+        if t == NAME:
+            return self._skip_args(i + 1)
+        return -1
+
+    def _skip_group(self, i: int) -> int:
+        end = self._skipped.get(i)
+        if end is None:
+            j = i + 1
+            while j >= 0 and self.types[j] != '}':
+                j = self._skip_body(j)
+            end = self._skipped[i] = -1 if j < 0 else j + 1
+        return end
+
+    def _skip_args(self, i: int) -> int:
+        types = self.types
+        while i >= 0:
+            t = types[i]
+            if t == '{':
+                i = self._skip_group(i)
+            elif t == '[':
+                oarg = self._find_oarg(i)
+                if oarg is None:
+                    break
+                i = oarg[0]
+            else:
+                break
+        return i
+
+    def _skip_environment(self, i: int) -> int:
+        end = self._skipped.get(i)
+        if end is None:
+            types = self.types
+            end = -1
+            j = self._skip_args(i + 1)
+            if j > i + 1:
+                while j >= 0 and types[j] != END:
+                    j = self._skip_body(j)
+                if j >= 0 and types[j + 1] == '{' and types[j + 2] == TEXT and types[j + 3] == '}':
+                    end = j + 4
+            self._skipped[i] = end
+        return end
+
+
+def parse_text(
+        parser: LatexParser,
+        text: str,
+        offset: int = 0,
+        environments: Optional[List[Environment]] = None) -> Tuple[Node, List[Tuple[Location, Exception]]]:
+    """ Parses text, which is located at `offset` inside the source of the parser.
+
+    Args:
+        parser (LatexParser): Parser the created nodes belong to.
+        text (str): Text to parse.
+        offset (int, optional): Offset of the text in the source. Defaults to 0.
+        environments (List[Environment], optional): Environments that are not part of an argument are added to this.
+
+    Returns:
+        Tuple[Node, List[Tuple[Location, Exception]]]: The root node of the text and the syntax errors
+            that occured while parsing it.
+
+    Raises:
+        LatexException: If the text contains no tokens.
+    """
+    fast_parser = _Parser(parser, text, offset, environments)
+    root = fast_parser.parse()
+    return root, fast_parser.syntax_errors
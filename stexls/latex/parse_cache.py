@@ -0,0 +1,89 @@
+''' Cache of parsed latex files, which allows the compiler and the tokenizer to share syntax trees. '''
+from __future__ import annotations
+
+from collections import OrderedDict
+from pathlib import Path
+from typing import Optional, Union
+
+from .parser import LatexParser
+
+__all__ = ['ParseCache']
+
+
+class ParseCache:
+    ''' Keeps the most recently parsed file versions.
+
+    Only one version is kept for each file: Adding a parser for a file replaces the previous one.
+    Cached parsers are only used for content equal to their source. Parsers that are reparsed after an edit
+    therefore stay cached for the edited content.
+    '''
+
+    def __init__(self, max_files: int = 32):
+        """ Initializes an empty cache.
+
+        Args:
+            max_files (int, optional): Maximum number of cached files. The least recently used files are removed first.
+                Defaults to 32.
+        """
+        self.max_files = max_files
+        self._parsers: OrderedDict[Path, LatexParser] = OrderedDict()
+
+    def __getstate__(self):
+        # Syntax trees are not sent to worker processes
+        return {'max_files': self.max_files, '_parsers': OrderedDict()}
+
+    def __len__(self) -> int:
+        return len(self._parsers)
+
+    def get(self, file: Path, content: str, keep_tree: bool = True) -> Optional[LatexParser]:
+        """ Returns the parser of the file if it parsed the content.
+
+        Args:
+            file (Path): Absolute path to the file.
+            content (str): Content of the file.
+            keep_tree (bool, optional): Whether only parsers that kept the whole syntax tree are returned.
+                Defaults to True.
+
+        Returns:
+            Optional[LatexParser]: The cached parser. None if no parser of that content is cached.
+        """
+        parser = self._parsers.get(file)
+        if parser is None or parser.source != content or (keep_tree and not parser.keep_tree):
+            return None
+        self._parsers.move_to_end(file)
+        return parser
+
+    def add(self, parser: LatexParser):
+        ' Caches a parsed parser. '
+        if not parser.parsed or parser.source is None:
+            raise ValueError(f'Parser of "{parser.file}" is not parsed.')
+        self._parsers[parser.file] = parser
+        self._parsers.move_to_end(parser.file)
+        while len(self._parsers) > self.max_files:
+            self._parsers.popitem(last=False)
+
+    def discard(self, file: Path):
+        ' Removes the parser of the file from the cache. '
+        self._parsers.pop(file, None)
+
+    def parse(self, file: Union[str, Path], content: Optional[str] = None, backend: str = 'antlr') -> LatexParser:
+        """ Returns the cached parser for the content of the file or parses it and caches the result.
+        The returned parser keeps the whole syntax tree.
+
+        Args:
+            file (Union[str, Path]): Path to the file.
+            content (Optional[str], optional): Content of the file. Read from disk if None.
+            backend (str, optional): Backend used if the file needs to be parsed. Defaults to 'antlr'.
+
+        Returns:
+            LatexParser: Parser of the content.
+        """
+        file = Path(file).absolute()
+        if content is None:
+            content = file.read_text(encoding='utf-8')
+        parser = self.get(file, content)
+        if parser is None:
+            parser = LatexParser(file, backend=backend)
+            parser.parse(content)
+            self.add(parser)
+        return parser
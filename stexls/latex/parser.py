@@ -8,6 +8,7 @@ from typing import (Callable, Dict, Iterator, List, Optional, Pattern, Tuple,
 
 import antlr4
 from antlr4.error.ErrorListener import ErrorListener
+from stexls.util.line_index import LineIndex
 from stexls.util.unwrap import unwrap
 from stexls.vscode import Location, Position, Range
 
@@ -17,7 +18,13 @@ from .grammar.out.LatexParserListener import \
     LatexParserListener as _LatexParserListener
 
 __all__ = ['LatexParser', 'InlineEnvironment', 'Environment',
-           'Token', 'MathToken', 'Node', 'SyntaxErrorException', 'LatexException']
+           'Token', 'MathToken', 'Node', 'SyntaxErrorException', 'LatexException',
+           'PARSER_BACKENDS']
+
+
+# Implementations of the latex grammar a LatexParser can use:
+# "antlr" uses the parser generated from the grammar files and "fast" the handwritten one in fast_parser.py.
+PARSER_BACKENDS: List[str] = ['antlr', 'fast']
 
 
 class SyntaxErrorException(Exception):
@@ -28,11 +35,11 @@ class LatexException(Exception):
     pass
 
 
-def _get_ctx_range(ctx):
+def _get_ctx_range(ctx, offset: int = 0):
     if not ctx.start or not ctx.stop:
         raise LatexException(
             'Invalid context encountered during parsing of latex file.')
-    return ctx.start.start, ctx.stop.stop + 1
+    return ctx.start.start + offset, ctx.stop.stop + 1 + offset
 
 
 class Node:
@@ -69,9 +76,7 @@ class Node:
         if not self._parent or (isinstance(self, Environment) and (not filter or filter.match(self.env_name))):
             return Location(
                 Path(self.parser.file).as_uri(),
-                Range(
-                    self.parser.offset_to_position(self.begin),
-                    self.parser.offset_to_position(self.end)))
+                self.parser.line_index.range(self.begin, self.end))
         return self._parent.get_scope(filter)
 
     @property
@@ -93,18 +98,14 @@ class Node:
     @property
     def range(self) -> Range:
         " Converts the begin and end offsets to a vscode.Range "
-        begin = self.parser.offset_to_position(self.begin)
-        end = self.parser.offset_to_position(self.end)
-        return Range(begin, end)
+        return self.parser.line_index.range(self.begin, self.end)
 
     @property
     def content_range(self) -> Range:
         " Range of the children of this node. Range of self if there are no children. "
         if not self.children:
             return self.range
-        begin = self.parser.offset_to_position(self.children[0].begin)
-        end = self.parser.offset_to_position(self.children[-1].end)
-        return Range(begin, end)
+        return self.parser.line_index.range(self.children[0].begin, self.children[-1].end)
 
     @property
     def text(self) -> str:
@@ -152,9 +153,27 @@ class Node:
         for child in self.children:
             yield from child.finditer(env_pattern)
 
+    @property
+    def parts(self) -> Iterator[Node]:
+        ' Iterates through all nodes directly owned by this node: The children and node metadata. '
+        yield from self.children
+
+    def shift(self, delta: int):
+        ' Moves this node and all nodes owned by it by `delta` characters. '
+        visited = set()
+        stack: List[Node] = [self]
+        while stack:
+            node = stack.pop()
+            if id(node) in visited:
+                continue
+            visited.add(id(node))
+            node.begin += delta
+            node.end += delta
+            stack.extend(node.parts)
+
     @classmethod
-    def from_ctx(cls, ctx: antlr4.ParserRuleContext, parser, **kwargs):
-        range = _get_ctx_range(ctx)
+    def from_ctx(cls, ctx: antlr4.ParserRuleContext, parser, offset: int = 0, **kwargs):
+        range = _get_ctx_range(ctx, offset)
         return cls(parser, *range, **kwargs)
 
     def __repr__(self):
@@ -196,6 +215,14 @@ class OArgument(Node):
     def tokens(self):
         yield from ()
 
+    @property
+    def parts(self) -> Iterator[Node]:
+        yield from self.children
+        if self.name is not None:
+            yield self.name
+        if self.value is not None:
+            yield self.value
+
     def add_value(self, value: Node):
         if self.value is not None:
             raise ValueError('OArgument already has a value assigned.')
@@ -263,6 +290,14 @@ class Environment(Node):
             if oarg.name is not None
         }
 
+    @property
+    def parts(self) -> Iterator[Node]:
+        yield from self.children
+        if self.name is not None:
+            yield self.name
+        yield from self.oargs
+        yield from self.rargs
+
     def add_oarg(self, oarg: OArgument):
         ' Registers an OArg. '
         oarg.parent = self
@@ -330,8 +365,36 @@ class InlineEnvironment(Environment):
         self.children.append(rarg)
 
 
+def _token_begin(node: Node) -> int:
+    ' Offset of the first token of a node. Environments begin after the escape character. '
+    if isinstance(node, Environment) and node.parser.source[node.begin - 1:node.begin] == '\\':
+        return node.begin - 1
+    return node.begin
+
+
+def _is_body_container(node: Node) -> bool:
+    ''' Returns True if the children of the node are a list of bodies, that are not part of the arguments of an environment.
+    This is the case for the root, environments and curly braces outside of arguments.
+    '''
+    if isinstance(node, (Token, OArgument, InlineEnvironment)):
+        return False
+    while node.parent is not None:
+        parent = node.parent
+        if isinstance(parent, (OArgument, InlineEnvironment)):
+            return False
+        if isinstance(parent, Environment) and (node is parent.name or node in parent.rargs):
+            return False
+        node = parent
+    return True
+
+
 class LatexParser:
-    def __init__(self, file: Union[str, Path], encoding: str = 'utf-8'):
+    def __init__(
+            self,
+            file: Union[str, Path],
+            encoding: str = 'utf-8',
+            keep_tree: bool = True,
+            backend: str = 'antlr'):
         """ Reads and parses the given file using latex syntax.
 
         Loads the given file and stores the text in self.source.
@@ -342,12 +405,28 @@ class LatexParser:
         Args:
             file (Union[str, Path]): Path to a file.
             encoding (str): Encoding of the file. Defaults to 'utf-8'.
+            keep_tree (bool): If False, text and math outside of environment arguments are
+                not added to the syntax tree. Such a tree only contains what is needed to parse the stex environments,
+                but it can't be tokenized or reparsed. Defaults to True.
+            backend (str): One of PARSER_BACKENDS. Both backends create the same syntax tree. Defaults to 'antlr'.
+
+        Raises:
+            ValueError: If the backend is unknown.
         """
+        if backend not in PARSER_BACKENDS:
+            raise ValueError(f'Unknown parser backend "{backend}": Expected one of {PARSER_BACKENDS}')
         self.file: Path = Path(file).absolute()
         self.encoding: str = encoding
+        self.keep_tree = keep_tree
+        self.backend = backend
         self.source: Optional[str] = None
+        # Index of the lines of the source, used to convert offsets to positions
+        self.line_index: Optional[LineIndex] = None
         self.root: Optional[Node] = None
         self.syntax_errors: List[Tuple[Location, Exception]] = []
+        # Environments that are not part of an argument, in the order they begin.
+        # These are the environments `walk` visits. Not updated by `reparse`.
+        self.environments: List[Environment] = []
         self.parsed = False
 
     def parse(self, content: Optional[str] = None) -> Node:
@@ -365,12 +444,48 @@ class LatexParser:
                 self.source = fd.read()
         else:
             self.source = content
-        self._line_lengths = [
-            len(line) + 1
-            for line
-            in self.source.split('\n')
-        ]
-        input_stream = antlr4.InputStream(self.source)
+        self.line_index = LineIndex(self.source)
+        environments: List[Environment] = []
+        self.root, syntax_errors = self._parse_text(self.source, environments=environments)
+        self.syntax_errors.extend(syntax_errors)
+        # Environments that were not closed because of syntax errors are not part of the tree
+        self.environments = [env for env in environments if self._is_in_tree(env)]
+        return self.root
+
+    def _is_in_tree(self, node: Node) -> bool:
+        ' Returns True if the node is the root or one of it\'s descendants. '
+        while node.parent is not None:
+            node = node.parent
+        return node is self.root
+
+    def _parse_text(
+            self,
+            text: str,
+            offset: int = 0,
+            environments: List[Environment] = None) -> Tuple[Node, List[Tuple[Location, Exception]]]:
+        """ Parses text, which is located at `offset` inside the source.
+
+        Args:
+            text (str): Text to parse.
+            offset (int, optional): Offset of the text in the source. Defaults to 0.
+            environments (List[Environment], optional): Environments that are not part of an argument are added to this.
+
+        Returns:
+            Tuple[Node, List[Tuple[Location, Exception]]]: The root node of the text and the syntax errors
+                that occured while parsing it.
+        """
+        if self.backend == 'fast':
+            from .fast_parser import parse_text
+            return parse_text(self, text, offset, environments)
+        return self._parse_text_antlr(text, offset, environments)
+
+    def _parse_text_antlr(
+            self,
+            text: str,
+            offset: int = 0,
+            environments: List[Environment] = None) -> Tuple[Node, List[Tuple[Location, Exception]]]:
+        ' Parses text like _parse_text using the ANTLR generated parser. '
+        input_stream = antlr4.InputStream(text)
         lexer = _LatexLexer(input_stream)
         lexer.removeErrorListeners()
         stream = antlr4.CommonTokenStream(lexer)
@@ -378,13 +493,95 @@ class LatexParser:
         parser.removeErrorListeners()
         error_listener = _SyntaxErrorErrorListener(self.file)
         parser.addErrorListener(error_listener)
-        listener = Listener(self)
+        syntax_errors: List[Tuple[Location, Exception]] = []
+        listener = Listener(self, offset, syntax_errors, environments)
         walker = antlr4.ParseTreeWalker()
         parse_tree = parser.main()
         walker.walk(listener, parse_tree)
-        self.syntax_errors.extend(error_listener.syntax_errors)
-        self.root = listener.stack[0]
-        return self.root
+        return listener.stack[0], error_listener.syntax_errors + syntax_errors
+
+    def reparse(self, content: str, begin: int, old_end: int, new_end: int) -> Optional[Tuple[List[Node], List[Node]]]:
+        """ Updates the syntax tree after the source was edited, by parsing only
+        the smallest sequence of nodes that contains the edit.
+
+        The text between `begin` and `old_end` of the previous source was replaced,
+        which now is located between `begin` and `new_end` in `content`.
+
+        The edit is only applied if the file was parsed without syntax errors, if the edit does not
+        touch the first or last token of the sequence and if the edited sequence parses without syntax errors
+        to nodes which begin and end like the old ones. In that case parsing the whole file would yield the same syntax tree.
+
+        Args:
+            content (str): The edited source.
+            begin (int): Offset of the first edited character.
+            old_end (int): End offset of the edit in the previous source.
+            new_end (int): End offset of the edit in `content`.
+
+        Returns:
+            Optional[Tuple[List[Node], List[Node]]]: The nodes that were replaced and the nodes they were replaced with.
+                None if the edit can't be applied and the file must be parsed again.
+        """
+        if self.root is None or self.syntax_errors or not self.keep_tree:
+            return None
+        delta = new_end - old_end
+        # Nodes which contain a list of bodies, from the innermost to the outermost
+        containers: List[Node] = []
+        node: Optional[Node] = self.root
+        while node is not None:
+            if node.begin <= begin and old_end <= node.end and _is_body_container(node):
+                containers.insert(0, node)
+            node = next(
+                (part for part in node.parts if part.begin <= begin and old_end <= part.end),
+                None)
+        # The sequences of nodes that contain the edit, from the shortest to the longest
+        sequences: List[Tuple[Node, int, int, int, int]] = []
+        for container in containers:
+            children = container.children
+            # The sequence begins with the last child that begins before the edit
+            # and ends with the first child that ends after the edit
+            first = next((i for i in reversed(range(len(children))) if _token_begin(children[i]) < begin), None)
+            last = next((i for i in range(len(children)) if old_end < children[i].end), None)
+            if first is None or last is None or last < first:
+                continue
+            start = _token_begin(children[first])
+            stop = children[last].end
+            if stop - start > len(content) // 4:
+                # Parsing the whole file is not much slower
+                break
+            sequences.append((container, first, last, start, stop))
+        if not sequences:
+            return None
+        old_source, old_line_index = self.source, self.line_index
+        self.source = content
+        self.line_index = LineIndex(content)
+        for container, first, last, start, stop in sequences:
+            children = container.children
+            old_nodes = children[first:last + 1]
+            root, syntax_errors = self._parse_text(content[start:stop + delta], start)
+            new_nodes = root.children
+            if (syntax_errors
+                    or not new_nodes
+                    or type(new_nodes[0]) is not type(old_nodes[0])
+                    or new_nodes[0].begin != old_nodes[0].begin
+                    or type(new_nodes[-1]) is not type(old_nodes[-1])
+                    or new_nodes[-1].end != stop + delta):
+                continue
+            # Move everything behind the old nodes and extend the nodes that contain them
+            child: Node = old_nodes[-1]
+            parent: Optional[Node] = container
+            while parent is not None:
+                parent.end += delta
+                for part in parent.parts:
+                    if part is not child and part.begin >= stop:
+                        part.shift(delta)
+                child, parent = parent, parent.parent
+            # Replace the old nodes
+            children[first:last + 1] = new_nodes
+            for new in new_nodes:
+                new._parent = container
+            return old_nodes, new_nodes
+        self.source, self.line_index = old_source, old_line_index
+        return None
 
     @staticmethod
     def from_source(source: str) -> LatexParser:
@@ -406,6 +603,7 @@ class LatexParser:
 
     def offset_to_position(self, offset: int) -> Position:
         """ Converts offset to tuple of line and character.
+        The character is counted in UTF-16 code units, see `LineIndex`.
 
         Args:
             offset (int): 0-indexed offset character in the file.
@@ -413,24 +611,19 @@ class LatexParser:
         Returns:
             Position: Equivalent position.
         """
-        i = 0
-        for i, line_len in enumerate(self._line_lengths):
-            if offset < line_len:
-                break
-            offset -= line_len
-        return Position(i, offset)
+        return self.line_index.offset_to_position(offset)
 
     def position_to_offset(self, line: int, character: int) -> int:
         """ Converts 0-indexed line and 0-indexed character to an offset.
 
         Args:
             line (int): 0-indexed line or Position.
-            character (int): 0-indexed character of that line.
+            character (int): 0-indexed character of that line in UTF-16 code units.
 
         Returns:
             int: 0-indexed offset of that line and character.
         """
-        return sum(self._line_lengths[:line]) + character
+        return self.line_index.position_to_offset(line, character)
 
     def get_text_by_offset(self, begin: int, end: int) -> str:
         """ Gets the text between begin and end offset.
@@ -445,7 +638,7 @@ class LatexParser:
         assert self.source is not None, '"source" must not be None'
         return self.source[begin:end]
 
-    def walk(self, enter: Callable[[Environment], None], exit: Callable[[Environment], None] = None):
+    def walk(self, enter: Callable[[Environment], None], exit: Callable[[Environment], None] = None, root: Node = None):
         """ Walks through environments, calling enter() and exit() on each.
 
         Args:
@@ -453,24 +646,23 @@ class LatexParser:
             exit (Callable[[Environment], None], optional):
                 Called when all children of a previously entered environment have been visited.
                 Defaults to None.
+            root (Node, optional): Node to start walking from. Defaults to the root of the file.
         """
-        stack = [self.root]
-        visited = []
+        start = self.root if root is None else root
+        if start is None:
+            raise RuntimeError('"current" is None')
+        # Stack of nodes and whether the node is exited or entered when it is popped
+        stack: List[Tuple[Node, bool]] = [(start, False)]
         while stack:
-            current = stack.pop()
+            current, exiting = stack.pop()
+            if exiting:
+                if exit is not None:
+                    exit(current)
+                continue
             if isinstance(current, Environment):
-                if current in visited:
-                    if exit is not None:
-                        exit(current)
-                else:
-                    enter(current)
-                    stack.append(current)
-                    stack.extend(reversed(current.children))
-                    visited.append(current)
-            elif current is not None:
-                stack.extend(current.children)
-            else:
-                raise RuntimeError('"current" is None')
+                enter(current)
+                stack.append((current, True))
+            stack.extend((child, False) for child in reversed(current.children))
 
 
 class _SyntaxErrorErrorListener(ErrorListener):
@@ -496,28 +688,57 @@ class _SyntaxErrorErrorListener(ErrorListener):
 class Listener(_LatexParserListener):
     ' Implements the antlr4 methods for parsing a latex file. '
 
-    def __init__(self, parser: LatexParser):
+    def __init__(
+            self,
+            parser: LatexParser,
+            offset: int = 0,
+            syntax_errors: List[Tuple[Location, Exception]] = None,
+            environments: List[Environment] = None):
+        """ Initializes the listener.
+
+        Args:
+            parser (LatexParser): Parser the created nodes belong to.
+            offset (int, optional): Offset of the parsed text inside the parser's source. Defaults to 0.
+            syntax_errors (List[Tuple[Location, Exception]], optional): List errors are added to.
+                Defaults to the syntax errors of the parser.
+            environments (List[Environment], optional): Environments that are not part of an argument are added to this.
+        """
         super().__init__()
         self.parser = parser
+        self.offset = offset
+        self.syntax_errors = parser.syntax_errors if syntax_errors is None else syntax_errors
+        self.environments = [] if environments is None else environments
         self.stack: List[Node] = []
+        # Number of arguments the current context is part of.
+        # Text outside of arguments is only added to the syntax tree if the parser keeps the whole tree.
+        self._argument_depth = 0
+        # Number of arguments the current context is part of, that are not children of their environment.
+        self._hidden_depth = 0
+        # For each entered rarg: Whether the rarg is a child of it's environment
+        self._rarg_is_child: List[bool] = []
+
+    def _keep_text(self) -> bool:
+        return self.parser.keep_tree or self._argument_depth > 0
 
     def enterMain(self, ctx: _LatexParser.MainContext):
-        self.stack.append(Node.from_ctx(ctx, self.parser))
+        self.stack.append(Node.from_ctx(ctx, self.parser, self.offset))
 
     def exitMain(self, ctx: _LatexParser.MainContext):
         if len(self.stack) != 1:
             env = self.stack.pop()
             error = LatexException(f'Environment not closed: {env}')
-            self.parser.syntax_errors.append((env.location, error))
+            self.syntax_errors.append((env.location, error))
 
     def exitMath(self, ctx: _LatexParser.MathContext):
+        if not self._keep_text():
+            return
         lexeme = str(ctx.MATH_ENV())
-        node = MathToken.from_ctx(ctx, self.parser, lexeme=lexeme)
+        node = MathToken.from_ctx(ctx, self.parser, self.offset, lexeme=lexeme)
         self.stack[-1].add(node)
 
     def enterBody(self, ctx: _LatexParser.BodyContext):
         if ctx.body():
-            node = Node.from_ctx(ctx, self.parser)
+            node = Node.from_ctx(ctx, self.parser, self.offset)
             self.stack.append(node)
 
     def exitBody(self, ctx: _LatexParser.BodyContext):
@@ -526,14 +747,16 @@ class Listener(_LatexParserListener):
             self.stack[-1].add(body)
 
     def enterEnvBegin(self, ctx: _LatexParser.EnvBeginContext):
-        env = Environment.from_ctx(ctx, self.parser)
+        env = Environment.from_ctx(ctx, self.parser, self.offset)
+        if not self._hidden_depth:
+            self.environments.append(env)
         self.stack.append(env)
 
     def exitEnvEnd(self, ctx: _LatexParser.EnvEndContext):
         env: Node = self.stack.pop()
         assert isinstance(
             env, Environment), "Expected Environment on top of stack."
-        env_end = Environment.from_ctx(ctx, self.parser)
+        env_end = Environment.from_ctx(ctx, self.parser, self.offset)
         env.end = env_end.end
         expected_env_name = env.env_name
         actual_env_name = str(ctx.TEXT()).strip()
@@ -544,18 +767,20 @@ class Listener(_LatexParserListener):
             error = LatexException(
                 f'Environment unbalanced:'
                 f' Expected {expected_env_name} entered ({location_str}) found {actual_env_name} ({end_location_str})')
-            self.parser.syntax_errors.append((env.location, error))
+            self.syntax_errors.append((env.location, error))
         self.stack[-1].add(env)
 
     def enterInlineEnv(self, ctx: _LatexParser.InlineEnvContext):
-        env = InlineEnvironment.from_ctx(ctx, self.parser)
+        env = InlineEnvironment.from_ctx(ctx, self.parser, self.offset)
         env_name_ctx = ctx.INLINE_ENV_NAME()
         env_name_range = (
-            env_name_ctx.getSymbol().start,
-            env_name_ctx.getSymbol().stop + 1
+            env_name_ctx.getSymbol().start + self.offset,
+            env_name_ctx.getSymbol().stop + 1 + self.offset
         )
         token = Token(self.parser, *env_name_range, lexeme=str(env_name_ctx))
         env.add_name(token)
+        if not self._hidden_depth:
+            self.environments.append(env)
         self.stack.append(env)
 
     def exitInlineEnv(self, ctx: _LatexParser.InlineEnvContext):
@@ -563,14 +788,23 @@ class Listener(_LatexParserListener):
         self.stack[-1].add(env)
 
     def exitText(self, ctx: _LatexParser.TextContext):
-        token = Token.from_ctx(ctx, self.parser, lexeme=ctx.getText())
+        if not self._keep_text():
+            return
+        token = Token.from_ctx(ctx, self.parser, self.offset, lexeme=ctx.getText())
         self.stack[-1].add(token)
 
     def enterRarg(self, ctx: _LatexParser.RargContext):
-        node = Node.from_ctx(ctx, self.parser)
+        # Only the rargs of inline environments are also children
+        is_child = isinstance(self.stack[-1], InlineEnvironment)
+        self._rarg_is_child.append(is_child)
+        self._argument_depth += 1
+        self._hidden_depth += not is_child
+        node = Node.from_ctx(ctx, self.parser, self.offset)
         self.stack.append(node)
 
     def exitRarg(self, ctx: _LatexParser.RargContext):
+        self._argument_depth -= 1
+        self._hidden_depth -= not self._rarg_is_child.pop()
         rarg = self.stack.pop()
         env: Node = self.stack[-1]
         assert isinstance(
@@ -581,10 +815,14 @@ class Listener(_LatexParserListener):
             env.add_rarg(rarg)
 
     def enterArgument(self, ctx: _LatexParser.ArgumentContext):
-        node = OArgument.from_ctx(ctx, self.parser)
+        self._argument_depth += 1
+        self._hidden_depth += 1
+        node = OArgument.from_ctx(ctx, self.parser, self.offset)
         self.stack.append(node)
 
     def exitArgument(self, ctx: _LatexParser.ArgumentContext):
+        self._argument_depth -= 1
+        self._hidden_depth -= 1
         node = self.stack.pop()
         assert isinstance(
             node, OArgument), "Expected Optional Argument on top of stack."
@@ -594,7 +832,7 @@ class Listener(_LatexParserListener):
         top.add_oarg(node)
 
     def enterArgumentName(self, ctx: _LatexParser.ArgumentNameContext):
-        node = Node.from_ctx(ctx, self.parser)
+        node = Node.from_ctx(ctx, self.parser, self.offset)
         self.stack.append(node)
 
     def exitArgumentName(self, ctx: _LatexParser.ArgumentNameContext):
@@ -605,7 +843,7 @@ class Listener(_LatexParserListener):
         oarg.add_name(name)
 
     def enterArgumentValue(self, ctx: _LatexParser.ArgumentValueContext):
-        node = Node.from_ctx(ctx, self.parser)
+        node = Node.from_ctx(ctx, self.parser, self.offset)
         self.stack.append(node)
 
     def exitArgumentValue(self, ctx: _LatexParser.ArgumentValueContext):
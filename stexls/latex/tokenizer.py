@@ -81,13 +81,8 @@ class LatexTokenizer:
                     lexeme = word.group()
                     if self.lower:
                         lexeme = lexeme.lower()
-                    offsetted_token = parser.Token(
-                        token.parser,
-                        token.begin + begin,
-                        token.begin + end,
-                        lexeme)
                     yield LatexToken(
-                        offsetted_token.range,
+                        token.parser.line_index.range(token.begin + begin, token.begin + end),
                         lexeme,
                         token.envs)
 
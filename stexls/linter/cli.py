@@ -22,7 +22,9 @@ async def linter(
         loglevel: str,
         logfile: Path,
         verbose: bool,
-        ignorefile: Optional[Union[str, Path, PathLike]] = None):
+        ignorefile: Optional[Union[str, Path, PathLike]] = None,
+        object_storage: str = 'directory',
+        parser_backend: str = 'antlr'):
     """ Run the language server in linter mode.
 
         In this mode only diagnostics and progress are printed to stdout.
@@ -39,6 +41,10 @@ async def linter(
         logfile: File to which logs will be logged.
         ignorefile (str | Path, optional): Path to the ignorefile.
             If None, `root/.stexlsignore` will be used.
+        object_storage (str, optional): Backend used to store compiled objects.
+            Either "directory" or "packed".
+        parser_backend (str, optional): Backend used to parse latex files.
+            Either "antlr" or "fast".
 
     Returns:
         Awaitable task.
@@ -83,7 +89,9 @@ async def linter(
 
     linter = Linter(
         workspace=workspace,
-        outdir=outdir)
+        outdir=outdir,
+        object_storage=object_storage,
+        parser_backend=parser_backend)
 
     if tagfile:
         log.debug('Creating tagfile at "%s"', root / tagfile)
@@ -106,4 +114,6 @@ async def linter(
                 format_string=format, diagnosticlevel=diagnosticlevel)
             buffer.extend(messages)
 
+    linter.close()
+
     print('\n'.join(buffer))
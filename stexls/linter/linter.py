@@ -1,13 +1,24 @@
+import functools
 import logging
 import re
-from multiprocessing import Pool
+import threading
+import multiprocessing
+from multiprocessing.pool import Pool
 from pathlib import Path
-from typing import Dict, Iterable, List, Optional, Set
+from typing import Callable, Dict, Iterator, List, Optional, Set, Tuple
 
-from ..stex.compiler import Compiler, StexObject
+from ..latex.parse_cache import ParseCache
+from ..latex.parser import LatexParser
+from ..stex.compiler import (CompiledDocument, Compiler, LazyStexObject,
+                              StexObject)
+from ..stex.dependency_index import DependencyIndex
 from ..stex.diagnostics import Diagnostic, DiagnosticSeverity
 from ..stex.linker import Linker
+from ..stex.reference_index import ReferenceIndex
+from ..stex.storage import open_object_storage
 from ..trefier.models.seq2seq import Seq2SeqModel
+from ..trefier.models.tags import Tag
+from ..trefier.tag_cache import TagCache
 from ..util.workspace import Workspace
 from ..vscode import Location, Position
 
@@ -71,17 +82,92 @@ class LintingResult:
         pass
 
 
+# Compiler used by the processes of the worker pool
+_worker_compiler: Optional[Compiler] = None
+
+
+def _initialize_worker(compiler: Compiler):
+    ' Initializer of the worker processes: The compiler is sent only once to each worker. '
+    global _worker_compiler
+    # Syntax trees of workers can't be shared, so they don't need to be kept
+    compiler.parse_cache = None
+    _worker_compiler = compiler
+
+
+def _compile_chunk(chunk: List[Tuple[Path, Optional[str], Optional[float]]]) -> List[Optional[StexObject]]:
+    ' Compiles or loads the files of a chunk inside a worker process. '
+    return [
+        _worker_compiler.compile_or_load_from_file(file, content, time_modified)
+        for file, content, time_modified in chunk
+    ]
+
+
+def _make_balanced_chunks(
+        items: List[Tuple[Path, Optional[str], Optional[float]]],
+        num_chunks: int) -> List[List[Tuple[Path, Optional[str], Optional[float]]]]:
+    """ Splits the compilation arguments into chunks of roughly the same total file size.
+
+    The largest files are distributed first, so that the long running chunks
+    are started early and don't delay the end of the compilation.
+
+    Args:
+        items: Arguments for `Compiler.compile_or_load_from_file`.
+        num_chunks: Number of chunks to create.
+
+    Returns:
+        List of non-empty chunks.
+    """
+    def size_of(item: Tuple[Path, Optional[str], Optional[float]]) -> int:
+        file, content, _ = item
+        if content is not None:
+            return len(content)
+        try:
+            return file.stat().st_size
+        except OSError:
+            return 0
+    sized = sorted(((size_of(item), item) for item in items), key=lambda x: x[0], reverse=True)
+    chunks: List[List[Tuple[Path, Optional[str], Optional[float]]]] = [[] for _ in range(max(1, num_chunks))]
+    sizes = [0] * len(chunks)
+    for size, item in sized:
+        # Add to the currently smallest chunk
+        index = sizes.index(min(sizes))
+        chunks[index].append(item)
+        # Count every file with at least 1KB, because each file has some constant overhead
+        sizes[index] += max(size, 1024)
+    return [chunk for chunk in chunks if chunk]
+
+
+def _synchronized(method):
+    ' Decorates methods of the linter, which compile, link or tag files, so that only one thread runs them at a time. '
+    @functools.wraps(method)
+    def wrapper(self, *args, **kwargs):
+        with self.lock:
+            return method(self, *args, **kwargs)
+    return wrapper
+
+
 class Linter:
     def __init__(self,
                  workspace: Workspace,
                  outdir: Path = None,
                  trefier_file_size_limit_kb: int = 50,
-                 linter_file_size_limit_kb: int = 100):
+                 linter_file_size_limit_kb: int = 100,
+                 object_storage: str = 'directory',
+                 parser_backend: str = 'antlr',
+                 tag_cache: Optional[TagCache] = None,
+                 keep_trees: bool = False):
         """ Initializes a linter object.
 
         Parameters:
             workspace: Workspace this linter works on.
             outdir: Output directory to where the compiler will store it's output at.
+            object_storage: Name of the backend used to store compiled objects inside outdir.
+                "directory" stores one file per object, "packed" appends all objects to a single pack file.
+            parser_backend: Name of the backend used to parse latex files.
+                "antlr" uses the generated parser, "fast" the handwritten one.
+            tag_cache: Optional cache of the tags the trefier predicted for previous versions of files.
+            keep_trees: Whether the whole syntax trees of recently compiled files are kept, so that the trefier
+                does not need to parse them again. Otherwise only the reduced trees the compiler needs are created.
             max_trefier_file_size_kb: The maximum file size (Kilo Byte) the trefier will accept as input.
                 If the file is larger, then no tags will be made.
             max_lint_file_size_kb: The maximum file size (Kilo Byte) the linter will accept as input.
@@ -90,25 +176,98 @@ class Linter:
         """
         self.workspace = workspace
         self.outdir = outdir or (Path.cwd() / 'objects')
-        self.compiler = Compiler(self.workspace.root, self.outdir)
-        self.linker = Linker(self.outdir)
+        # Parsed versions of recently compiled files, which the trefier reuses
+        self.parse_cache: Optional[ParseCache] = ParseCache() if keep_trees else None
+        self.tag_cache = tag_cache
+        self.compiler = Compiler(
+            self.workspace.root,
+            self.outdir,
+            storage=open_object_storage(self.outdir, object_storage),
+            parser_backend=parser_backend,
+            parse_cache=self.parse_cache)
+        self.linker = Linker(
+            self.outdir,
+            storage=open_object_storage(
+                self.outdir, object_storage, name='linked', extension='.stexlink'))
         # The objectbuffer stores all compiled objects
         self.unlinked_object_buffer: Dict[Path, StexObject] = dict()
         # The linked object buffer bufferes all linked objects
         self.linked_object_buffer: Dict[Path, StexObject] = dict()
+        # Index of which buffered objects depend on which files
+        self.dependency_index = DependencyIndex()
+        # Index of the references of buffered objects
+        self.reference_index = ReferenceIndex()
+        # Compilation state of buffered files, used to compile them incrementally
+        self._documents: Dict[Path, CompiledDocument] = dict()
         # Maximum file size that the trefier is applied to
         self.trefier_file_size_limit_kb = trefier_file_size_limit_kb
         # Maximum file size the linter is allowed to lint
         self.linter_file_size_limit_kb = linter_file_size_limit_kb
+        # Worker pool used to compile multiple files at once. Created when needed.
+        self._pool: Optional[Pool] = None
+        self._pool_size: int = 0
+        # The language server compiles the workspace and lints files in executor threads at the same time.
+        # The lock must be held while files are compiled, linked or tagged.
+        self.lock = threading.RLock()
+        # Requests read the buffers and indices on the event loop while they are changed by executor threads.
+        # This lock is only held while they are read or changed, never while compiling, linking or tagging.
+        self.index_lock = threading.RLock()
+
+    def _get_pool(self, num_jobs: int) -> Pool:
+        ' Returns the worker pool, which is created and kept alive until `close` is called. '
+        if self._pool is not None and self._pool_size != num_jobs:
+            self._pool.terminate()
+            self._pool = None
+        if self._pool is None:
+            log.debug('Creating worker pool with %i processes', num_jobs)
+            # The pool is created from an executor thread, while other threads may hold locks.
+            # Forked workers would inherit those locks, so the workers are spawned instead.
+            self._pool = multiprocessing.get_context('spawn').Pool(
+                num_jobs, initializer=_initialize_worker, initargs=(self.compiler,))
+            self._pool_size = num_jobs
+        return self._pool
+
+    def close(self):
+        ' Shuts down the worker pool and flushes the object storages. '
+        if self._pool is not None:
+            self._pool.close()
+            self._pool.join()
+            self._pool = None
+        self.compiler.storage.flush()
+        if self.linker.storage is not None:
+            self.linker.storage.flush()
+        if self.tag_cache is not None:
+            self.tag_cache.storage.flush()
+
+    def check_version(self, version: str) -> bool:
+        """ Deletes everything the linter persisted if it was persisted by an older version.
+
+        Args:
+            version (str): Current version.
+
+        Returns:
+            bool: True if the persisted objects, links and tags were deleted.
+        """
+        if not self.compiler.check_version(version):
+            return False
+        if self.linker.storage is not None:
+            self.linker.storage.clear()
+        self.linker.cache = {True: dict(), False: dict()}
+        self.linker.linked_interfaces.clear()
+        if self.tag_cache is not None:
+            self.tag_cache.storage.clear()
+        return True
 
     def get_files_that_require_recompilation(self) -> Dict[Path, Optional[str]]:
         ' Filters out the files that need recompilation and returns them together with their buffered content. '
         files = dict()
         for file in self.workspace.files:
-            if self.compiler.recompilation_required(file, self.workspace.get_time_buffer_modified(file)):
-                files[file] = self.workspace.read_buffer(file)
+            content = self.workspace.read_buffer(file)
+            if self.compiler.recompilation_required(file, self.workspace.get_time_buffer_modified(file), content):
+                files[file] = content
         return files
 
+    @_synchronized
     def get_objectfile(self, file: Path) -> Optional[StexObject]:
         """ Retrieves the object of `file`.
 
@@ -119,27 +278,60 @@ class Linter:
         that automatically reads buffered content and time buffer
         time modified.
 
+        Buffered files are compiled incrementally.
+
         Returns:
             Optional[StexObject]: The objectfile for `file`. None if an error occured.
         """
+        content = self.workspace.read_buffer(file)
+        time_modified = self.workspace.get_time_buffer_modified(file)
+        if content is None:
+            # The buffer was closed
+            self._documents.pop(file, None)
+        else:
+            try:
+                document = self._documents.get(file)
+                if document is not None and document.content == content and document.stored:
+                    return document.object
+                if document is not None or self.compiler.recompilation_required(file, time_modified, content):
+                    # Objects of buffers are only stored once they are saved
+                    document = self.compiler.compile_incremental(
+                        file, content, document, dryrun=not self.workspace.is_saved(file))
+                    self._documents[file] = document
+                    return document.object
+            except FileNotFoundError:
+                self._documents.pop(file, None)
+                return None
         return self.compiler.compile_or_load_from_file(
             file,
-            content=self.workspace.read_buffer(file),
-            time_modified=self.workspace.get_time_buffer_modified(file)
+            content=content,
+            time_modified=time_modified
         )
 
-    def compile_workspace(self, limit: int = 10000, num_jobs: int = 1) -> List[Path]:
+    def compile_workspace(
+            self,
+            limit: int = 10000,
+            num_jobs: int = 1,
+            progress: Callable[[int, int], None] = None,
+            chunks_per_job: int = 8) -> List[Path]:
         ''' Compiles or loads all files in the workspace.
 
         The objects will be buffered and will be later used to
         create diagnostics that otherwise can not be created
         because some files have not been compield and buffered yet.
 
+        Objects are buffered as soon as they are compiled. If multiple jobs are used,
+        the files are compiled by a pool of processes, which is kept alive
+        for the next call.
+
         Args:
             limit (int, optional): Maximum number of files that are compiled.
                 If set to 0, then no files are compiled, while -1 removes the limit.
                 Defaults to 10000.
             num_jobs (int, optional): Number of processes to use for multiprocessing. Defaults to 1.
+            progress (Callable[[int, int], None], optional): Called with the number of files
+                processed so far and the total number of files every time files finished compiling.
+            chunks_per_job (int, optional): Number of chunks of roughly equal total file size each process receives.
 
         Returns:
             List[Path]: Paths to files with objects in the workspace.
@@ -147,23 +339,51 @@ class Linter:
         files = list(self.workspace.files)
         if limit >= 0:
             files = files[:limit]
-        content = list(map(self.workspace.read_buffer, files))
-        time_modified = list(
-            map(self.workspace.get_time_buffer_modified, files))
-        args = zip(files, content, time_modified)
-        if num_jobs > 1:
-            with Pool(num_jobs) as pool:
-                it: Iterable[Optional[StexObject]] = pool.starmap(
-                    self.compiler.compile_or_load_from_file, args)
+        args = [
+            (file, self.workspace.read_buffer(file),
+             self.workspace.get_time_buffer_modified(file))
+            for file in files
+        ]
+        total = len(args)
+        if num_jobs > 1 and total > 1:
+            pool = self._get_pool(num_jobs)
+            chunks = _make_balanced_chunks(args, num_jobs * chunks_per_job)
+            it: Iterator[List[Optional[StexObject]]] = pool.imap_unordered(
+                _compile_chunk, chunks)
         else:
-            it = map(
-                lambda x: self.compiler.compile_or_load_from_file(*x), args)
+            it = (
+                [self._compile_or_load_from_file(*arg)]
+                for arg in args
+            )
         paths = []
-        for obj in filter(None, it):
-            paths.append(obj.file)
-            self.unlinked_object_buffer[obj.file] = obj
+        done = 0
+        for results in it:
+            done += len(results)
+            # The lock is only held while the results are buffered, so that files can be linted in between
+            with self.lock:
+                for obj in filter(None, results):
+                    if isinstance(obj, LazyStexObject):
+                        # Lazy objects loaded by workers share the storage of this process
+                        obj.storage = self.compiler.storage
+                    paths.append(obj.file)
+                    # The results were compiled from the buffers at the start of the call.
+                    # Objects the linter compiled from a newer buffer in the meantime are kept.
+                    buffered = self.unlinked_object_buffer.get(obj.file)
+                    if obj.file in self._documents or (
+                            buffered is not None and buffered.creation_time > obj.creation_time):
+                        continue
+                    self._buffer_unlinked(obj)
+            if progress is not None:
+                progress(done, total)
         return paths
 
+    @_synchronized
+    def _compile_or_load_from_file(
+            self, file: Path, content: Optional[str], time_modified: Optional[float]) -> Optional[StexObject]:
+        ' Compiles a file in this process. The compiler shares the parse cache with the linter. '
+        return self.compiler.compile_or_load_from_file(file, content, time_modified)
+
+    @_synchronized
     def compile_related(self, file: Path) -> Dict[Path, StexObject]:
         ''' Compiles all dependencies of the file, the file itself and updates the buffer.
 
@@ -184,33 +404,71 @@ class Linter:
             # TODO: Only load files that are not already in self._object_buffer
             obj = self.get_objectfile(file)
             if obj is None:
+                if not file.is_file():
+                    self.remove_object(file)
                 continue
             visited[file] = obj
-            self.unlinked_object_buffer[file] = obj
-            for dep in obj.dependencies:
-                if dep.file_hint in visited or dep.file_hint in queue:
+            self._buffer_unlinked(obj)
+            # Only the header is required to find the dependencies
+            for dependency_file in obj.get_header().dependency_files:
+                if dependency_file in visited or dependency_file in queue:
                     continue
-                queue.add(dep.file_hint)
+                queue.add(dependency_file)
         return visited
 
+    def _buffer_unlinked(self, obj: StexObject):
+        ' Buffers the unlinked object and updates the indices. '
+        with self.index_lock:
+            self.unlinked_object_buffer[obj.file] = obj
+            self.dependency_index.update(obj)
+            self.reference_index.add_unlinked(obj)
+
     def lint(self, file: Path, model: Optional[Seq2SeqModel] = None) -> LintingResult:
         ''' Lint a file.
 
         Parameters:
             file (Path): The file to lint.
+            model (Optional[Seq2SeqModel]): Trefier used to add tags to the file.
 
         Returns:
             LintingResult: The result of the linting process.
         '''
-        if file.is_file():
+        result, = self.lint_files([file], model)
+        return result
+
+    @_synchronized
+    def lint_files(self, files: List[Path], model: Optional[Seq2SeqModel] = None) -> List[LintingResult]:
+        ''' Lint multiple files.
+
+        All files that are tagged by the trefier are tagged by a single prediction of the model,
+        so that the model can process them in batches instead of one by one.
+
+        Parameters:
+            files (List[Path]): The files to lint.
+            model (Optional[Seq2SeqModel]): Trefier used to add tags to the files.
+
+        Returns:
+            List[LintingResult]: The results of the linting processes in the same order as the files.
+        '''
+        results: Dict[Path, LintingResult] = {}
+        linked: Dict[Path, StexObject] = {}
+        tagged_files: List[Path] = []
+        for file in files:
+            if file in results or file in linked:
+                # Lint files listed multiple times only once
+                continue
+            if not file.is_file():
+                results[file] = LintingResult(self.unlinked_object_buffer.get(file, StexObject(file)))
+                continue
             size = file.stat().st_size // 1024
             if self.linter_file_size_limit_kb > 0 and self.linter_file_size_limit_kb < size:
                 # Guard linting too large files
                 log.warning(
                     'Skipping linting of large file of size %iKB: %s', size, str(file))
-                return LintingResult(self.unlinked_object_buffer.get(file, StexObject(file)))
+                results[file] = LintingResult(self.unlinked_object_buffer.get(file, StexObject(file)))
+                continue
             objects: Dict[Path, StexObject] = self.compile_related(file=file)
-            ln = self.linker.link(file, objects, self.compiler)
+            linked[file] = self.linker.link(file, objects, self.compiler)
             if model is None:
                 pass
             elif self.trefier_file_size_limit_kb > 0 and self.trefier_file_size_limit_kb < size:
@@ -218,48 +476,91 @@ class Linter:
                 log.warning(
                     'Rejecting to use trefier on large file of size %iKB: "%s"', size, str(file))
             else:
-                log.debug('Adding trefier tags for file: %s', file)
-                tags, = model.predict(file)
-                env_pattern = re.compile(
-                    r'[ma]*(Tr|tr|D|d|Dr|dr)ef[ivx]+s?\*?|gimport\*?|(import|use)(mh)?module\*?|(sym|var)def\*?|sym[ivx]+\*?|[tv]assign|libinput|\$')
-                for tag in tags:
-                    if not isinstance(tag.label, float) or not 0 <= tag.label <= 1:
-                        loc = Location(file.as_uri(), tag.token.range)
-                        log.warning('Encountered invalid tag value "%s" at %s:%s',
-                                    tag.label, file.as_uri(), tag.token.range)
-                        continue
-                    if round(tag.label) and not any(map(env_pattern.fullmatch, tag.token.envs)):
-                        loc = Location(file.as_uri(), tag.token.range)
-                        log.debug('Tagging %s with %s',
-                                  loc.format_link(), tag.label)
-                        ln.diagnostics.trefier_tag(
-                            tag.token.range, tag.token.lexeme, tag.label)
-            self.linked_object_buffer[file] = ln
+                tagged_files.append(file)
+        if model is not None and tagged_files:
+            log.debug('Adding trefier tags for %i files', len(tagged_files))
+            # The compiler cached the parsers of the content it compiled, unless the objects were loaded from storage
+            latex_parsers = [
+                self._parse(file, self.workspace.read_file(file))
+                for file in tagged_files
+            ]
+            if self.tag_cache is None:
+                predictions = model.predict(*latex_parsers)
+            else:
+                predictions = self.tag_cache.predict(model, *latex_parsers)
+            for file, tags in zip(tagged_files, predictions):
+                self._add_trefier_tags(linked[file], tags)
+        for file, ln in linked.items():
             self.linker.validate_object_references(ln)
-        return LintingResult(ln)
+            # Build the index for position queries now, instead of during the first request
+            ln.get_range_index()
+            # The object is complete before requests can see it
+            with self.index_lock:
+                self.linked_object_buffer[file] = ln
+                self.dependency_index.update_references(ln)
+                self.reference_index.add_linked(ln)
+            results[file] = LintingResult(ln)
+        return [results[file] for file in files]
+
+    def _parse(self, file: Path, content: Optional[str]) -> LatexParser:
+        ' Parses the content of the file with the whole syntax tree, reusing the cached parser if possible. '
+        if self.parse_cache is not None:
+            return self.parse_cache.parse(file, content, backend=self.compiler.parser_backend)
+        parser = LatexParser(file, backend=self.compiler.parser_backend)
+        parser.parse(content)
+        return parser
+
+    def _add_trefier_tags(self, ln: StexObject, tags: List[Tag]):
+        ''' Adds the positive tags predicted by the trefier as diagnostics to the linked object.
+
+        Parameters:
+            ln (StexObject): Linked object of the tagged file.
+            tags (List[Tag]): Tags the trefier predicted for the tokens of the file.
+        '''
+        env_pattern = re.compile(
+            r'[ma]*(Tr|tr|D|d|Dr|dr)ef[ivx]+s?\*?|gimport\*?|(import|use)(mh)?module\*?|(sym|var)def\*?|sym[ivx]+\*?|[tv]assign|libinput|\$')
+        for tag in tags:
+            if not isinstance(tag.label, float) or not 0 <= tag.label <= 1:
+                log.warning('Encountered invalid tag value "%s" at %s:%s',
+                            tag.label, ln.file.as_uri(), tag.token.range)
+                continue
+            if round(tag.label) and not any(map(env_pattern.fullmatch, tag.token.envs)):
+                loc = Location(ln.file.as_uri(), tag.token.range)
+                log.debug('Tagging %s with %s',
+                          loc.format_link(), tag.label)
+                ln.diagnostics.trefier_tag(
+                    tag.token.range, tag.token.lexeme, tag.label)
+
+    @_synchronized
+    def remove_object(self, file: Path):
+        """ Removes the buffered objects of a file, e.g. after the file was deleted.
 
-    def find_users_of_file(self, file: Path) -> Set[Path]:
+        Args:
+            file (Path): Path to file.
+        """
+        with self.index_lock:
+            self.unlinked_object_buffer.pop(file, None)
+            self.linked_object_buffer.pop(file, None)
+            self.dependency_index.remove(file)
+            self.reference_index.remove(file)
+        self._documents.pop(file, None)
+        if self.parse_cache is not None:
+            self.parse_cache.discard(file)
+        if self.tag_cache is not None:
+            self.tag_cache.remove(file)
+
+    def find_users_of_file(self, file: Path, transitive: bool = False) -> Set[Path]:
         """ Find all files that use symbols in from `file`.
 
         Args:
             file (Path): Path to file.
+            transitive (bool, optional): If True, the users of the users are also included. Defaults to False.
 
         Returns:
             Set[Path]: A set of paths that contain objects that reference `file`.
         """
-        dependent_files_set = set()
-        for obj in self.unlinked_object_buffer.values():
-            if file in obj.related_files:
-                dependent_files_set.add(obj.file)
-            elif obj.file in self.linked_object_buffer:
-                obj = self.linked_object_buffer[obj.file]
-                for ref in obj.references:
-                    if any(resolved.location.path == file for resolved in ref.resolved_symbols):
-                        dependent_files_set.add(obj.file)
-                        break
-        if file in dependent_files_set:
-            dependent_files_set.remove(file)
-        return dependent_files_set
+        with self.index_lock:
+            return self.dependency_index.find_dependents(file, transitive)
 
     def definitions(self, file: Path, position: Position) -> List[Location]:
         """ Get list of definition locations for all symbols under the position.
@@ -271,7 +572,8 @@ class Linter:
         Returns:
             List[Location]: List of locations to where any symbols under the cursor are defined at.
         """
-        obj = self.linked_object_buffer.get(file)
+        with self.index_lock:
+            obj = self.linked_object_buffer.get(file)
         if not obj:
             return []
         return [symbol.location for symbol in obj.get_definitions_at(position)]
@@ -286,20 +588,20 @@ class Linter:
         Returns:
             List[Location]: List of locations where references to the
                 symbol under the cursor are located.
+                References in files that were compiled but not linted yet
+                are found by the name they use, if they import the files of the symbols.
         """
-        obj = self.linked_object_buffer.get(file)
-        if not obj:
-            return []
-        definition_locations = set(
-            definition.location for definition in obj.get_definitions_at(position))
-
-        references: List[Location] = []
-        for obj in self.linked_object_buffer.values():
-            for ref in obj.references:
-                for refsymb in ref.resolved_symbols:
-                    if refsymb.location in definition_locations:
-                        references.append(
-                            Location(obj.file.as_uri(), ref.range))
-                        break
-
+        # Called on the event loop: Only the index lock is taken, which is never held while files are linted
+        with self.index_lock:
+            obj = self.linked_object_buffer.get(file)
+            if not obj:
+                return []
+            definitions = obj.get_definitions_at(position)
+            definition_locations = set(
+                definition.location for definition in definitions)
+            # Only files that import the files of the definitions are able to reference them
+            files = set(location.path for location in definition_locations)
+            for definition_file in list(files):
+                files.update(self.dependency_index.find_dependents(definition_file, transitive=True))
+            references = self.reference_index.find_references(definitions, files)
         return references + list(definition_locations)
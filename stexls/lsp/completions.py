@@ -7,6 +7,7 @@ import stexls.vscode as vscode
 from stexls.stex.compiler import StexObject
 from stexls.stex.linker import Linker
 from stexls.stex.symbols import DefSymbol, Symbol
+from stexls.util.line_index import LineIndex
 
 __all__ = ['CompletionEngine']
 
@@ -56,7 +57,8 @@ class CompletionEngine:
             if lines is None:
                 lines = file.read_text().split('\n')
             line = lines[position.line]
-            context = line[:position.character]
+            # The character of the position is counted in UTF-16 code units
+            context = line[:LineIndex(line).position_to_offset(0, position.character)]
         except:
             log.exception('Failed to obtain completion context.')
             return []
@@ -321,5 +323,5 @@ class CompletionEngine:
     def _make_completion_item(self, old_text: str, new_text: str, kind: vscode.CompletionItemKind, position: vscode.Position):
         assert new_text.startswith(old_text)
         range = vscode.Range(position.translate(
-            characters=-len(old_text)), position)
+            characters=-(len(old_text.encode('utf-16-le')) // 2)), position)
         return vscode.CompletionItem(new_text, kind=kind, textEdit=vscode.TextEdit(range, new_text))
@@ -1,5 +1,6 @@
 import asyncio
 import datetime
+import functools
 import logging
 import sys
 import time
@@ -17,8 +18,11 @@ from .. import vscode
 from ..jsonrpc.dispatcher import Dispatcher
 from ..jsonrpc.exceptions import InvalidRequestException
 from ..jsonrpc.hooks import alias, method, notification, request
+from ..latex.parser import PARSER_BACKENDS
 from ..linter.linter import Linter
+from ..stex.storage import PackedObjectStorage
 from ..trefier.models.seq2seq import Seq2SeqModel
+from ..trefier.tag_cache import TagCache
 from ..util.workspace import Workspace
 from .completions import CompletionEngine
 from .exceptions import ServerNotInitializedException
@@ -48,9 +52,18 @@ class InitializationOptions:
     trefier_download_link: str = ''
     trefier_file_size_limit_kb: int = 50
     linter_file_size_limit_kb: int = 100
+    object_storage: Literal['directory', 'packed'] = 'directory'
+    parser_backend: Literal['antlr', 'fast'] = 'antlr'
+    trefier_batch_size: int = 16
 
     @staticmethod
     def from_json(obj: dict):
+        parser_backend = obj.get('parserBackend', 'antlr')
+        if parser_backend not in PARSER_BACKENDS:
+            log.warning(
+                'Unknown parser backend "%s": Expected one of %s. Falling back to "antlr".',
+                parser_backend, PARSER_BACKENDS)
+            parser_backend = 'antlr'
         return InitializationOptions(
             compile_workspace_on_startup_file_limit=int(
                 obj["compileWorkspaceOnStartupFileLimit"]),
@@ -64,6 +77,9 @@ class InitializationOptions:
                 obj.get('trefierFileSizeLimitKB', 50)),
             linter_file_size_limit_kb=int(
                 obj.get('linterFileSizeLimitKB', 100)),
+            object_storage=obj.get('objectStorage', 'directory'),
+            parser_backend=parser_backend,
+            trefier_batch_size=int(obj.get('trefierBatchSize', 16)),
         )
 
 
@@ -75,6 +91,7 @@ class Server(Dispatcher):
             connection: Inherited from Dispatcher. This argument is automatically provided by the class' initialization method.
         """
         super().__init__(connection=connection)
+        vscode.register_serializers()
         # Version
         try:
             self.version: Optional[str] = str(
@@ -177,17 +194,29 @@ class Server(Dispatcher):
         outdir = self.root_directory / '.stexls' / 'objects'
         self.workspace = Workspace(
             self.root_directory, ignorefile=Path('.stexlsignore'))
+        tag_cache = None
         if self.initialization_options.enable_trefier != 'disabled':
             await self.load_trefier_model()
+            tag_cache = TagCache(PackedObjectStorage(
+                self.root_directory / '.stexls' / 'tags', name='tags'))
+            if self.trefier_model is not None:
+                # Pos tags don't depend on the model and are kept when the model is updated
+                self.trefier_model.pos_tag_model.storage = PackedObjectStorage(
+                    self.root_directory / '.stexls' / 'tags', name='pos')
         self.linter = Linter(
             workspace=self.workspace,
             outdir=outdir,
             trefier_file_size_limit_kb=(
                 self.initialization_options.trefier_file_size_limit_kb),
             linter_file_size_limit_kb=(
-                self.initialization_options.linter_file_size_limit_kb))
-        if self.version is not None:
-            self.linter.compiler.check_version(self.version)
+                self.initialization_options.linter_file_size_limit_kb),
+            object_storage=self.initialization_options.object_storage,
+            parser_backend=self.initialization_options.parser_backend,
+            tag_cache=tag_cache,
+            keep_trees=self.initialization_options.enable_trefier != 'disabled')
+        if self.version is not None and self.linter.check_version(self.version):
+            if self.trefier_model is not None and self.trefier_model.pos_tag_model.storage is not None:
+                self.trefier_model.pos_tag_model.storage.clear()
         self.completion_engine = CompletionEngine(self.linter.linker)
         self.scheduler = LintingScheduler(
             server=self,
@@ -195,7 +224,8 @@ class Server(Dispatcher):
             linter=self.linter,
             workspace=self.workspace,
             trefier=self.trefier_model,
-            enable_trefier=self.initialization_options.enable_trefier)
+            enable_trefier=self.initialization_options.enable_trefier,
+            trefier_batch_size=self.initialization_options.trefier_batch_size)
         self.state = ServerState.INITIALIZED
         return {
             'capabilities': {
@@ -287,14 +317,33 @@ class Server(Dispatcher):
                         f'than your limit ({limit_is}). You can increase it '
                         'or disable it in settings UI under "stexls: Compile Workspace On Startup File Limit"')
                 )
+            num_compiled_files = num_files if limit_is < 0 else min(
+                limit_is, num_files)
             async with ProgressBar(
                     server=self,
-                    title=f'Compiling {num_files} files',
+                    title=f'Compiling {num_compiled_files} files',
                     cancellable=False,
+                    total=num_compiled_files,
                     enabled=self.work_done_progress_capability) as progress_bar:
                 await progress_bar.begin()
-                compiled_files = self.linter.compile_workspace(
-                    limit_is, self.initialization_options.num_jobs)
+                loop = asyncio.get_running_loop()
+                last_update_time = [0.0]
+
+                def report_progress(done: int, total: int):
+                    # Called from the executor thread, limit the number of updates sent to the client
+                    if done < total and time.time() - last_update_time[0] < 0.5:
+                        return
+                    last_update_time[0] = time.time()
+                    asyncio.run_coroutine_threadsafe(
+                        progress_bar.update(done, f'{done}/{total} files'), loop)
+                # Compile in an executor so that the server keeps responding while objects arrive
+                compiled_files = await loop.run_in_executor(
+                    None,
+                    functools.partial(
+                        self.linter.compile_workspace,
+                        limit_is,
+                        self.initialization_options.num_jobs,
+                        progress=report_progress))
                 # Sort the file in ascending order -> Add the newest file list -> Will be the file first linted.
                 sorted_compiled_files = sorted(
                     compiled_files, key=self.workspace.get_time_modified)
@@ -309,6 +358,8 @@ class Server(Dispatcher):
     @method
     def shutdown(self):
         log.info('Shutting down server...')
+        if self.linter is not None:
+            self.linter.close()
         # TODO: Do stuff on shutdown?
 
     @method
@@ -447,7 +498,8 @@ class Server(Dispatcher):
             textDocument: vscode.TextDocumentIdentifier,
             text: Union[str, vscode.Undefined] = vscode.undefined):
         self.protect_from_uninit_and_shutdown()
-        if unwrap(self.workspace).is_open(textDocument.path):
+        if unwrap(self.workspace).save_file(
+                textDocument.path, text if isinstance(text, str) else None):
             log.info('didSave: %s', textDocument.uri)
             if not unwrap(self.scheduler).schedule(textDocument.path, prio='high'):
                 return
@@ -618,13 +670,31 @@ class LintingScheduler:
         workspace: Workspace,
         trefier: Optional[Seq2SeqModel],
         enable_trefier: Literal['disabled', 'enabled', 'full'],
+        trefier_batch_size: int = 16,
+        trefier_batch_window: float = 0.05,
     ) -> None:
+        """ Creates a scheduler, that lints queued files in the background.
+
+        Args:
+            server (Server): Server the diagnostics are published to.
+            delay (float): Seconds to wait after the last scheduling request before linting starts.
+            linter (Linter): Linter used.
+            workspace (Workspace): Workspace of the linted files.
+            trefier (Optional[Seq2SeqModel]): Trefier model or None if not available.
+            enable_trefier (Literal['disabled', 'enabled', 'full']): Whether only high priority
+                files ('enabled') or all files ('full') are tagged by the trefier.
+            trefier_batch_size (int, optional): Maximum number of files tagged by the trefier together. Defaults to 16.
+            trefier_batch_window (float, optional): Seconds to wait for more files to tag, before
+                a batch that is not full is tagged. Defaults to 0.05.
+        """
         self.delay = delay
         self.server = server
         self.linter = linter
         self.workspace = workspace
         self.trefier = trefier
         self.enable_trefier = enable_trefier
+        self.trefier_batch_size = trefier_batch_size
+        self.trefier_batch_window = trefier_batch_window
         self.lint_queue_high: List[Path] = []
         self.lint_queue_low: List[Path] = []
         self.task: Optional[Cancelable] = None
@@ -641,9 +711,12 @@ class LintingScheduler:
         """
         if not self.lint_queue_high:
             return False
+        if self.trefier is not None:
+            await self._handle_trefier_batch()
+            return True
         file = self.lint_queue_high.pop()
         log.debug('Linting high prio: %s', file)
-        await self.lint(file, trefier=self.trefier)
+        await self.lint(file, trefier=None)
         return True
 
     async def _handle_low_priority(self) -> bool:
@@ -656,15 +729,40 @@ class LintingScheduler:
         """
         if not self.lint_queue_low:
             return False
+        if self.trefier is not None and self.enable_trefier == 'full':
+            # Enable trefier, if "full" mode
+            await self._handle_trefier_batch()
+            return True
         file = self.lint_queue_low.pop()
         log.debug('Linting low prio: %s', file)
-        trefier = None
-        if self.enable_trefier == 'full':
-            # Enable trefier, if "full" mode
-            trefier = self.trefier
-        await self.lint(file, trefier=trefier)
+        await self.lint(file, trefier=None)
         return True
 
+    async def _handle_trefier_batch(self):
+        """ Lint a batch of queued files, that are tagged by the trefier.
+
+        High priority files are batched on their own, so that they are not delayed
+        by low priority files, which are only batched in "full" mode.
+        If the queue of the batch has fewer files than fit into a batch,
+        waits a short time for more files to be queued first.
+        """
+        if self.trefier_batch_window > 0 and len(self._trefier_batch_queue()) < self.trefier_batch_size:
+            await asyncio.sleep(self.trefier_batch_window)
+        queue = self._trefier_batch_queue()
+        files: List[Path] = []
+        while queue and len(files) < self.trefier_batch_size:
+            files.append(queue.pop())
+        if not files:
+            return
+        log.debug('Linting batch of %i files with trefier: %s', len(files), files)
+        await self.lint(*files, trefier=self.trefier)
+
+    def _trefier_batch_queue(self) -> List[Path]:
+        ' Returns the queue the next trefier batch is taken from. '
+        if self.lint_queue_high or self.enable_trefier != 'full':
+            return self.lint_queue_high
+        return self.lint_queue_low
+
     async def _handle_unbuffered(self, files: List[Path]) -> bool:
         """ Search for a file that is not buffered by the linter and buffer it.
 
@@ -674,16 +772,17 @@ class LintingScheduler:
         Returns:
             bool: True if a file was buffered. False otherwise.
         """
-        unbuffered_files = filter(
-            lambda file: file not in self.linter.unlinked_object_buffer,
-            files)
-        unbuffered_file = next(unbuffered_files, None)
+        with self.linter.index_lock:
+            unbuffered_files = filter(
+                lambda file: file not in self.linter.unlinked_object_buffer,
+                files)
+            unbuffered_file = next(unbuffered_files, None)
         if not unbuffered_file:
             return False
         # If there is a file that is not buffered,
         # Compile it and buffer the result.
         log.debug('Lint unbuffered object: %s', unbuffered_file)
-        await self.lint(unbuffered_file, None)
+        await self.lint(unbuffered_file, trefier=None)
         return True
 
     async def loop(self):
@@ -753,19 +852,20 @@ class LintingScheduler:
             log.debug('Scheduler loop exited in %s seconds',
                       round(time.time() - begin))
 
-    async def lint(self, file: Path, trefier: Optional[Seq2SeqModel]):
+    async def lint(self, *files: Path, trefier: Optional[Seq2SeqModel]):
         # Running the linting in a thread makes everything take a bit longer than
         # running it directly, but without it, we would be unable to handle other requests
         # during linting.
-        log.debug('Scheduler linting "%s" in using trefier (%s)',
-                  str(file), trefier)
+        log.debug('Scheduler linting %s using trefier (%s)',
+                  list(map(str, files)), trefier)
         loop = asyncio.get_event_loop()
-        result = await loop.run_in_executor(None, self.linter.lint, file, trefier)
-        log.debug('Finished linting file "%s"', file)
-        self.server.workspace_symbols.remove(file)
-        self.server.workspace_symbols.add(result.object)
-        self.server.publish_diagnostics(
-            uri=file.as_uri(), diagnostics=result.diagnostics)
+        results = await loop.run_in_executor(None, self.linter.lint_files, list(files), trefier)
+        for file, result in zip(files, results):
+            log.debug('Finished linting file "%s"', file)
+            self.server.workspace_symbols.remove(file)
+            self.server.workspace_symbols.add(result.object)
+            self.server.publish_diagnostics(
+                uri=file.as_uri(), diagnostics=result.diagnostics)
 
     def schedule(
         self,
@@ -15,30 +15,51 @@ using the linker from the linker module and then the linter from the linter pack
 """
 from __future__ import annotations
 
+import copy
 import datetime
-import difflib
 import functools
+import io
 import logging
-import pickle
+import struct
 from hashlib import sha1
 from pathlib import Path
 from time import time
-from typing import Dict, Iterable, List, Optional, Set, Tuple, Union
+from typing import (BinaryIO, Dict, Iterable, List, Optional, Set, Tuple,
+                    Union)
 
 from packaging.version import parse as parse_version
 
 from .. import vscode
+from ..latex.parse_cache import ParseCache
 from . import exceptions, parser, references, symbols, util
 from .dependency import Dependency
 from .diagnostics import Diagnostics
+from .range_index import RangeIndex
 from .reference_type import ReferenceType
+from .similarity_index import SimilarityIndex
+from .storage import DirectoryObjectStorage, ObjectStorage
 
 log = logging.getLogger(__name__)
 
+# Version of the compiler and the objects it produces.
+# Objects created by a different version are always recompiled.
+COMPILER_VERSION = '4'
+
+# Enum members in the order they are encoded in objectfiles
+_MODULE_TYPES: List[symbols.ModuleType] = list(symbols.ModuleType)
+_DEF_TYPES: List[symbols.DefType] = list(symbols.DefType)
+
 
 __all__ = [
     'Compiler',
     'StexObject',
+    'SourceStamp',
+    'CompiledDocument',
+    'DependencyInfo',
+    'ObjectHeader',
+    'LazyStexObject',
+    'StexObjectWriter',
+    'StexObjectReader',
     'ObjectfileNotFoundError',
     'ObjectfileIsCorruptedError'
 ]
@@ -77,6 +98,9 @@ class StexObject:
         self.references: List[references.Reference] = list()
         # Handler for diagnostics
         self.diagnostics: Diagnostics = Diagnostics()
+        # Index of the symbols located in this file and the references by their range.
+        # Built the first time it is required and reset if symbols or references are moved.
+        self.range_index: Optional[RangeIndex[Union[symbols.Symbol, references.Reference]]] = None
         # Stores creation time
         self.creation_time = time()
 
@@ -89,53 +113,53 @@ class StexObject:
         Returns:
             List[symbols.Symbol]: Breadcrumbs list of increasingly smaller namespaces that the input `position` is located inside of.
         """
-        uri = self.file.as_uri()
-        breadcrumbs: List[symbols.Symbol] = []
-        for symbol in self.symbol_table.flat():
-            if symbol.location.uri != uri:
-                continue
-            if symbol.location.range.contains(position):
-                breadcrumbs.append(symbol)
-            elif breadcrumbs:
-                # Because the flat symbols are continuous in space, we know
-                # that if we were able to add a symbol prevously in the condition above,
-                # then the breadcrumbs list is not empty.
-                # It follows that now, because we were not able to add this symbol,
-                # we will never find a symbol again that can be added to the list.
-                break
-        return breadcrumbs
+        # Symbols are returned in preorder: Each symbol is inside the previous one
+        return [
+            item for item in self.get_range_index().query(position)
+            if isinstance(item, symbols.Symbol)
+        ]
 
     def get_definitions_at(self, position: vscode.Position) -> List[symbols.Symbol]:
         ' Queries symbol definitions at the given @position. '
         definitions: List[symbols.Symbol] = []
-        # First step: Gather the symbol definitions which are directly positioned under the cursor
-        for symbol in self.symbol_table.flat():
-            # same file check
-            if symbol.location.path != self.file:
-                continue
-            # ignore non-module and non-def symbols (e.g. scopes)
-            if not isinstance(symbol, (symbols.ModuleSymbol, symbols.DefSymbol)):
-                continue
-            # Add the symbol if the symbol is positioned under cursor
-            if symbol.location.range.contains(position):
-                definitions.append(symbol)
-        # Step 2: Resolve the references under the cursor
         # Buffer for the smallest reference under the cursor in case there are multiple references at the current position
         minimal_reference_range_buffer = None
-        for ref in self.references:
-            # check that the reference is positioned under cursor
-            if ref.range.contains(position):
-                # buffer the reference if nothing buffered yet
-                if not minimal_reference_range_buffer:
-                    minimal_reference_range_buffer = ref
-                # if already one added: Select the smaller one
-                elif ref.range.length < minimal_reference_range_buffer.range.length:
-                    minimal_reference_range_buffer = ref
+        # The index contains only symbols of this file and the symbols are returned before the references
+        for item in self.get_range_index().query(position):
+            if isinstance(item, references.Reference):
+                # buffer the reference if nothing buffered yet or select the smaller one
+                if (not minimal_reference_range_buffer
+                        or item.range.length < minimal_reference_range_buffer.range.length):
+                    minimal_reference_range_buffer = item
+            # ignore non-module and non-def symbols (e.g. scopes)
+            elif isinstance(item, (symbols.ModuleSymbol, symbols.DefSymbol)):
+                definitions.append(item)
+        # Resolve the reference under the cursor
         if minimal_reference_range_buffer:
             # Get the definition the smallest reference points to
             definitions.extend(minimal_reference_range_buffer.resolved_symbols)
         return definitions
 
+    def get_range_index(self) -> RangeIndex[Union[symbols.Symbol, references.Reference]]:
+        """ Gets the index of the symbols located in this file and all references by their range.
+
+        The symbols are indexed in preorder and followed by the references in the order of `references`.
+
+        Returns:
+            RangeIndex: The index. It is built if it doesn't exist yet.
+        """
+        if self.range_index is None:
+            uri = self.file.as_uri()
+            items: List[Union[symbols.Symbol, references.Reference]] = [
+                symbol for symbol in self.symbol_table.flat()
+                if symbol.location.uri == uri
+            ]
+            ranges = [item.location.range for item in items]
+            items.extend(self.references)
+            ranges.extend(ref.range for ref in self.references)
+            self.range_index = RangeIndex(items, ranges)
+        return self.range_index
+
     def is_source_modified(self, time_modified: float = None) -> bool:
         ''' Checks if the source was modified.
 
@@ -149,40 +173,123 @@ class StexObject:
             return True
         return not self.file.is_file() or self.file.lstat().st_mtime > self.creation_time
 
+    def get_header(self) -> ObjectHeader:
+        ' Creates the header that summarizes the dependencies and public modules of this object. '
+        return ObjectHeader.from_object(self)
+
+    def clone(self) -> StexObject:
+        """ Creates a copy of this object that can be modified without modifying this object.
+
+        Symbols, dependencies, references and diagnostics are copied and all links between
+        them point to the copies. Locations and ranges are immutable and shared.
+
+        Returns:
+            StexObject: The copy.
+        """
+        cpy = StexObject.__new__(StexObject)
+        cpy.file = self.file
+        cpy.creation_time = self.creation_time
+        # Map of id(original symbol) to copied symbol
+        copied_symbols: Dict[int, symbols.Symbol] = {}
+
+        def copy_symbol(symbol: symbols.Symbol, parent: Optional[symbols.Symbol]) -> symbols.Symbol:
+            symbol_cpy = copy.copy(symbol)
+            copied_symbols[id(symbol)] = symbol_cpy
+            symbol_cpy.parent = parent
+            symbol_cpy.children = {
+                name: [copy_symbol(child, symbol_cpy) for child in alts]
+                for name, alts in symbol.children.items()
+            }
+            if isinstance(symbol_cpy, symbols.DefSymbol):
+                symbol_cpy.noverbs = set(symbol_cpy.noverbs)
+            return symbol_cpy
+        cpy.symbol_table = copy_symbol(self.symbol_table, None)
+
+        def get_symbol(symbol: symbols.Symbol) -> symbols.Symbol:
+            return copied_symbols.get(id(symbol), symbol)
+        copied_dependencies: Dict[int, Dependency] = {}
+        cpy.dependencies = []
+        for dep in self.dependencies:
+            dep_cpy = copy.copy(dep)
+            dep_cpy.scope = get_symbol(dep.scope)
+            copied_dependencies[id(dep)] = dep_cpy
+            cpy.dependencies.append(dep_cpy)
+        copied_references: Dict[int, references.Reference] = {}
+        cpy.references = []
+        for ref in self.references:
+            ref_cpy = copy.copy(ref)
+            ref_cpy.scope = get_symbol(ref.scope)
+            ref_cpy.resolved_symbols = list(map(get_symbol, ref.resolved_symbols))
+            copied_references[id(ref)] = ref_cpy
+            cpy.references.append(ref_cpy)
+        for ref_cpy in cpy.references:
+            if ref_cpy.parent is not None:
+                ref_cpy.parent = copied_references.get(
+                    id(ref_cpy.parent), copied_dependencies.get(id(ref_cpy.parent), ref_cpy.parent))
+        cpy.diagnostics = Diagnostics()
+        for diagnostic in self.diagnostics:
+            diagnostic_cpy = copy.copy(diagnostic)
+            diagnostic_cpy.tags = list(diagnostic.tags)
+            diagnostic_cpy.relatedInformation = list(map(copy.copy, diagnostic.relatedInformation))
+            cpy.diagnostics.diagnostics.append(diagnostic_cpy)
+        # The index references the original symbols
+        cpy.range_index = None
+        return cpy
+
     @property
     def related_files(self) -> Iterable[Path]:
         ' Iterable of all files that are somehow referenced inside this object. '
         for dep in self.dependencies:
             yield dep.file_hint
+        # Most symbols are located in the same few files: Convert every uri only once
+        uris: Set[str] = set()
+        for symbol in self.symbol_table.flat():
+            if symbol.location.uri not in uris:
+                uris.add(symbol.location.uri)
+                yield symbol.location.path
+
+    def create_similar_symbols_index(self) -> SimilarityIndex[symbols.Symbol]:
+        """ Creates an index of all symbols by their qualified name, used to find similar symbols.
+
+        The index is not updated if symbols are added afterwards.
+
+        Returns:
+            SimilarityIndex: Index of the symbols by their "?" separated qualified name.
+        """
+        index: SimilarityIndex[symbols.Symbol] = SimilarityIndex()
         for symbol in self.symbol_table.flat():
-            yield symbol.location.path
+            index.add('?'.join(symbol.qualified), symbol)
+        return index
 
     def find_similar_symbols(
             self,
             scope: symbols.Symbol,
             qualified: Iterable[str],
-            ref_type: ReferenceType) -> Dict[str, Set[Tuple[Optional[ReferenceType], vscode.Location]]]:
+            ref_type: ReferenceType,
+            index: Optional[SimilarityIndex[symbols.Symbol]] = None) -> Dict[str, Set[Tuple[Optional[ReferenceType], vscode.Location]]]:
         ''' Find simlar symbols with reference to a qualified name and an expected symbol type.
 
         Parameters:
             qualified: Qualified identifier of the input symbol.
             ref_type: Expected type of symbol the id should resolve into
+            index: Index created by `create_similar_symbols_index`, that can be reused for multiple queries.
+                If not provided, a new one is created.
 
         Returns:
             Dict[str, Set[symbols.Symbol]]: Dictionary of similar names and the symbols with that name.
         '''
-        names: Dict[str, Set[Tuple[Optional[ReferenceType], vscode.Location]]] = {}
+        if index is None:
+            index = self.create_similar_symbols_index()
+        qualified = tuple(qualified)
 
-        def f(symbol: symbols.Symbol):
+        def accept(symbol: symbols.Symbol) -> bool:
             # Match similar symbol if reference type is the same
             # But also if the name is an exact match.
-            if (ref_type.contains_any_of(symbol.reference_type)
-                    or symbol.name == tuple(qualified)[-1]):
-                names.setdefault('?'.join(symbol.qualified),
-                                 set()).add((symbol.reference_type, symbol.location))
-        self.symbol_table.traverse(lambda s: f(s))
-        close_matches = difflib.get_close_matches('?'.join(qualified), names)
-        return {match: names.get(match, set()) for match in close_matches}
+            return ref_type.contains_any_of(symbol.reference_type) or symbol.name == qualified[-1]
+        return {
+            match: {(symbol.reference_type, symbol.location) for symbol in matched_symbols}
+            for match, matched_symbols in index.find_similar('?'.join(qualified), accept)
+        }
 
     def format(self) -> str:
         ' Simple formatter for debugging, that prints out all information in this object. '
@@ -261,6 +368,829 @@ class StexObject:
         return reference
 
 
+class DependencyInfo:
+    ' Information about a dependency, that is available without loading the symbol table. '
+
+    def __init__(
+            self,
+            module_name: str,
+            module_type_hint: symbols.ModuleType,
+            file_hint: Path,
+            export: bool,
+            scope_name: str):
+        """ Initializes the dependency information.
+
+        Parameters:
+            module_name: Name of the imported module.
+            module_type_hint: Type of the imported module.
+            file_hint: File the module is expected to be located in.
+            export: Whether the dependency is exported to files that import the scope.
+            scope_name: Name of the symbol the module is imported into.
+        """
+        self.module_name = module_name
+        self.module_type_hint = module_type_hint
+        self.file_hint = file_hint
+        self.export = export
+        self.scope_name = scope_name
+
+    def __repr__(self):
+        return f'[DependencyInfo module={self.module_name} file={self.file_hint} export={self.export}]'
+
+
+class ObjectHeader:
+    """ The header of an object contains everything required to traverse the import graph.
+
+    It is stored at the beginning of the objectfile and can be read without reading the rest of the object.
+    """
+
+    def __init__(
+            self,
+            file: Path,
+            creation_time: float,
+            dependencies: List[DependencyInfo],
+            modules: List[str],
+            interface_digest: str):
+        """ Initializes a header.
+
+        Parameters:
+            file: The file which was compiled.
+            creation_time: Time at which the object was created.
+            dependencies: Dependencies of the object.
+            modules: Names of the public modules defined in the file.
+            interface_digest: Digest of everything other files are able to import from this file.
+        """
+        self.file = file
+        self.creation_time = creation_time
+        self.dependencies = dependencies
+        self.modules = modules
+        self.interface_digest = interface_digest
+
+    @property
+    def dependency_files(self) -> Set[Path]:
+        ' Set of files this object depends on. '
+        return {dep.file_hint for dep in self.dependencies}
+
+    @staticmethod
+    def from_object(obj: StexObject) -> ObjectHeader:
+        ' Creates the header for an object. '
+        digest = sha1()
+        modules: List[str] = []
+        for symbol in obj.symbol_table.flat():
+            if symbol.access_modifier != symbols.AccessModifier.PUBLIC:
+                continue
+            if isinstance(symbol, symbols.ModuleSymbol):
+                modules.append(symbol.name)
+            elif not isinstance(symbol, symbols.DefSymbol):
+                continue
+            # Locations are part of the interface, because imported symbols keep them
+            start, end = symbol.location.range.start, symbol.location.range.end
+            digest.update('\0'.join((
+                *symbol.qualified,
+                symbol.reference_type.name,
+                f'{start.line}:{start.character}:{end.line}:{end.character}',
+                str(getattr(symbol, 'noverb', '')),
+                *sorted(getattr(symbol, 'noverbs', ())))).encode())
+            digest.update(b'\1')
+        dependencies = []
+        for dep in obj.dependencies:
+            dependencies.append(DependencyInfo(
+                dep.module_name, dep.module_type_hint, dep.file_hint, dep.export, dep.scope.name))
+            if dep.export:
+                digest.update('\0'.join((dep.module_name, dep.file_hint.as_posix())).encode())
+                digest.update(b'\2')
+        return ObjectHeader(obj.file, obj.creation_time, dependencies, modules, digest.hexdigest())
+
+
+class _LazyAttribute:
+    ' Attribute of `LazyStexObject`, which loads the body of the object when accessed for the first time. '
+
+    def __set_name__(self, owner, name: str):
+        self.name = name
+
+    def __get__(self, obj: Optional[LazyStexObject], owner=None):
+        if obj is None:
+            return self
+        obj.load_body()
+        # After loading, the value is stored in the instance dict which takes precedence over this descriptor
+        return obj.__dict__[self.name]
+
+
+class LazyStexObject(StexObject):
+    """ Object of which only the header is loaded.
+
+    The symbol table, dependencies, references, diagnostics and range index are read
+    from the storage the first time one of them is accessed.
+    """
+    symbol_table = _LazyAttribute()
+    dependencies = _LazyAttribute()
+    references = _LazyAttribute()
+    diagnostics = _LazyAttribute()
+    range_index = _LazyAttribute()
+
+    def __init__(self, header: ObjectHeader, storage: ObjectStorage, key: str):
+        """ Initializes the lazy object.
+
+        Parameters:
+            header: The header of the object.
+            storage: Storage the object is stored in.
+            key: Key of the object inside the storage.
+        """
+        self.header = header
+        self.file = header.file
+        self.creation_time = header.creation_time
+        self.storage = storage
+        self.key = key
+
+    @property
+    def is_body_loaded(self) -> bool:
+        ' Returns True if the symbol table, dependencies, references and diagnostics are loaded. '
+        return 'symbol_table' in self.__dict__
+
+    def load_body(self):
+        ''' Loads the body of the object from storage if not already loaded.
+
+        Raises:
+            ObjectfileNotFoundError: If the object was removed from the storage.
+            ObjectfileIsCorruptedError: If the stored object can not be deserialized.
+        '''
+        if self.is_body_loaded:
+            return
+        data = self.storage.read(self.key)
+        if data is None:
+            raise ObjectfileNotFoundError(self.file)
+        try:
+            _, offset = SourceStamp.loads(data)
+            fd = io.BytesIO(data)
+            fd.seek(offset)
+            body = StexObjectReader(fd).read()
+        except Exception as err:
+            raise ObjectfileIsCorruptedError(self.file) from err
+        if body.file != self.file:
+            raise ObjectfileIsCorruptedError(self.file)
+        for name in ('symbol_table', 'dependencies', 'references', 'diagnostics', 'range_index'):
+            self.__dict__.setdefault(name, getattr(body, name))
+
+    def get_header(self) -> ObjectHeader:
+        return self.header
+
+
+class StexObjectWriter:
+    """ Writes objects in the binary objectfile format.
+
+    Layout (little endian):
+        MAGIC, u16 format version
+        Sections: u8 tag, u32 length, payload
+
+    The header section is always first and self-contained, so that it can be read
+    without reading the rest of the object. It is followed by the string section.
+    All names, uris and paths of the body are stored once inside it
+    and are referenced by index by the other sections. Symbols are stored as a flat array in
+    preorder with the index of their parent, so that dependencies, references and other
+    symbols are able to reference them by index. The last section stores the range index
+    of the object, so that it doesn't need to be built again after loading.
+    """
+    MAGIC = b'STEXOBJ\0'
+    VERSION = 3
+    PREAMBLE = struct.Struct('<8sH')
+    SECTION = struct.Struct('<BI')
+    # Section tags
+    HEADER = 1
+    STRINGS = 2
+    NAMES = 3
+    SYMBOLS = 4
+    DEPENDENCIES = 5
+    REFERENCES = 6
+    DIAGNOSTICS = 7
+    RANGE_INDEX = 8
+    # creation time, interface digest, number of dependencies, number of modules
+    HEADER_FIELDS = struct.Struct('<d20sII')
+    # module type, export
+    DEPENDENCY_INFO = struct.Struct('<BB')
+    # Symbol kinds
+    ROOT_SYMBOL = 0
+    MODULE_SYMBOL = 1
+    DEF_SYMBOL = 2
+    BINDING_SYMBOL = 3
+    SCOPE_SYMBOL = 4
+    # Fixed size records
+    # kind, parent, name, uri, start line, start character, end line, end character, access modifier, subtype, flag, extra
+    SYMBOL = struct.Struct('<BiIIIIIIBBBI')
+    # start line, start character, end line, end character, scope, module name, module type, file hint, export, disable redundant import diagnostic
+    DEPENDENCY = struct.Struct('<IIIIIIBIBB')
+    # start line, start character, end line, end character, scope, name, reference type, parent kind, parent index, number of resolved symbols
+    REFERENCE = struct.Struct('<IIIIIIIBiI')
+    # start line, start character, end line, end character, message, severity, code kind, code, source kind, source, number of tags, number of related information
+    DIAGNOSTIC = struct.Struct('<IIIIIBBiBIBH')
+    # uri, start line, start character, end line, end character, message
+    RELATED_INFORMATION = struct.Struct('<IIIIII')
+    # Kinds of reference parents and diagnostic codes
+    NONE = 0
+    REFERENCE_PARENT = 1
+    DEPENDENCY_PARENT = 2
+    INT_VALUE = 1
+    STR_VALUE = 2
+
+    def __init__(self, fd: BinaryIO):
+        """ Initializes a writer.
+
+        Parameters:
+            fd: Binary stream the objects are written to.
+        """
+        self.fd = fd
+        self._strings: Dict[str, int] = {}
+        self._names: Dict[Tuple[str, ...], int] = {}
+
+    def _string(self, s: str) -> int:
+        ' Interns the string and returns it\'s index. '
+        index = self._strings.get(s)
+        if index is None:
+            if '\0' in s:
+                raise ValueError(f'Unable to serialize string containing null characters: {s!r}')
+            index = self._strings[s] = len(self._strings)
+        return index
+
+    def _name(self, name: Iterable[str]) -> int:
+        ' Interns a list of strings and returns it\'s index. '
+        name = tuple(self._string(s) for s in name)
+        index = self._names.get(name)
+        if index is None:
+            index = self._names[name] = len(self._names)
+        return index
+
+    @staticmethod
+    def _pack_string(s: str) -> bytes:
+        ' Packs a length prefixed string, used by the header, which does not use the string table. '
+        data = s.encode()
+        return struct.pack('<I', len(data)) + data
+
+    def write_header(self, header: ObjectHeader):
+        ''' Writes the preamble and header section of an object.
+
+        Parameters:
+            header: Header of the object.
+        '''
+        payload = bytearray(self.HEADER_FIELDS.pack(
+            header.creation_time, bytes.fromhex(header.interface_digest),
+            len(header.dependencies), len(header.modules)))
+        payload.extend(self._pack_string(header.file.as_posix()))
+        for dep in header.dependencies:
+            payload.extend(self.DEPENDENCY_INFO.pack(
+                _MODULE_TYPES.index(dep.module_type_hint), int(dep.export)))
+            payload.extend(self._pack_string(dep.module_name))
+            payload.extend(self._pack_string(dep.file_hint.as_posix()))
+            payload.extend(self._pack_string(dep.scope_name))
+        for module in header.modules:
+            payload.extend(self._pack_string(module))
+        self.fd.write(self.PREAMBLE.pack(self.MAGIC, self.VERSION))
+        self._write_section(self.HEADER, payload)
+
+    def _write_section(self, tag: int, payload: bytes):
+        self.fd.write(self.SECTION.pack(tag, len(payload)))
+        self.fd.write(payload)
+
+    def write(self, obj: StexObject):
+        ''' Serializes the object and writes it to the stream.
+
+        Raises:
+            ValueError: If the object contains information that can't be serialized.
+        '''
+        self._strings.clear()
+        self._names.clear()
+        symbol_index: Dict[int, int] = {}
+        symbol_records = bytearray()
+
+        def enter(symbol: symbols.Symbol):
+            subtype = flag = extra = 0
+            if isinstance(symbol, symbols.RootSymbol):
+                kind = self.ROOT_SYMBOL
+            elif isinstance(symbol, symbols.ModuleSymbol):
+                kind = self.MODULE_SYMBOL
+                subtype = _MODULE_TYPES.index(symbol.module_type)
+            elif isinstance(symbol, symbols.DefSymbol):
+                kind = self.DEF_SYMBOL
+                subtype = _DEF_TYPES.index(symbol.def_type)
+                flag = int(symbol.noverb)
+                extra = self._name(sorted(symbol.noverbs))
+            elif isinstance(symbol, symbols.BindingSymbol):
+                kind = self.BINDING_SYMBOL
+                extra = self._string(symbol.lang)
+            elif isinstance(symbol, symbols.ScopeSymbol):
+                kind = self.SCOPE_SYMBOL
+                extra = self._string(symbol.uuid)
+            else:
+                raise ValueError(f'Unable to serialize symbol of type {type(symbol)}')
+            parent = -1 if symbol.parent is None else symbol_index[id(symbol.parent)]
+            symbol_index[id(symbol)] = len(symbol_index)
+            start, end = symbol.location.range.start, symbol.location.range.end
+            symbol_records.extend(self.SYMBOL.pack(
+                kind, parent, self._string(symbol.name), self._string(symbol.location.uri),
+                start.line, start.character, end.line, end.character,
+                symbol.access_modifier.value, subtype, flag, extra))
+        obj.symbol_table.traverse(enter)
+
+        def scope_of(symbol: symbols.Symbol) -> int:
+            index = symbol_index.get(id(symbol))
+            if index is None:
+                raise ValueError(f'Scope is not part of the symbol table: {symbol}')
+            return index
+
+        dependency_index: Dict[int, int] = {}
+        dependency_records = bytearray()
+        for dep in obj.dependencies:
+            dependency_index[id(dep)] = len(dependency_index)
+            dependency_records.extend(self.DEPENDENCY.pack(
+                dep.range.start.line, dep.range.start.character, dep.range.end.line, dep.range.end.character,
+                scope_of(dep.scope), self._string(dep.module_name), _MODULE_TYPES.index(dep.module_type_hint),
+                self._string(dep.file_hint.as_posix()), int(dep.export), int(dep.disable_redundant_import_diagnostic)))
+
+        reference_index = {id(ref): i for i, ref in enumerate(obj.references)}
+        reference_records = bytearray()
+        resolved: List[int] = []
+        for ref in obj.references:
+            parent_kind, parent = self.NONE, -1
+            if ref.parent is not None:
+                if id(ref.parent) in reference_index:
+                    parent_kind, parent = self.REFERENCE_PARENT, reference_index[id(ref.parent)]
+                elif id(ref.parent) in dependency_index:
+                    parent_kind, parent = self.DEPENDENCY_PARENT, dependency_index[id(ref.parent)]
+                else:
+                    raise ValueError(f'Parent of reference not part of the object: {ref}')
+            reference_records.extend(self.REFERENCE.pack(
+                ref.range.start.line, ref.range.start.character, ref.range.end.line, ref.range.end.character,
+                scope_of(ref.scope), self._name(ref.name), ref.reference_type.value,
+                parent_kind, parent, len(ref.resolved_symbols)))
+            resolved.extend(map(scope_of, ref.resolved_symbols))
+        reference_records.extend(struct.pack(f'<{len(resolved)}I', *resolved))
+
+        diagnostic_records = bytearray()
+        for diagnostic in obj.diagnostics:
+            code_kind, code = self.NONE, 0
+            if isinstance(diagnostic.code, int):
+                code_kind, code = self.INT_VALUE, diagnostic.code
+            elif isinstance(diagnostic.code, str):
+                code_kind, code = self.STR_VALUE, self._string(diagnostic.code)
+            source_kind, source = self.NONE, 0
+            if isinstance(diagnostic.source, str):
+                source_kind, source = self.STR_VALUE, self._string(diagnostic.source)
+            diagnostic_records.extend(self.DIAGNOSTIC.pack(
+                diagnostic.range.start.line, diagnostic.range.start.character,
+                diagnostic.range.end.line, diagnostic.range.end.character,
+                self._string(diagnostic.message), diagnostic.severity.value,
+                code_kind, code, source_kind, source,
+                len(diagnostic.tags), len(diagnostic.relatedInformation)))
+            diagnostic_records.extend(bytes(tag.value for tag in diagnostic.tags))
+            for info in diagnostic.relatedInformation:
+                info_range = info.location.range
+                diagnostic_records.extend(self.RELATED_INFORMATION.pack(
+                    self._string(info.location.uri),
+                    info_range.start.line, info_range.start.character,
+                    info_range.end.line, info_range.end.character,
+                    self._string(info.message)))
+
+        # Items of the range index: Symbols by their index, references by their negative index minus one
+        range_index = obj.get_range_index()
+        range_items = []
+        for item in range_index.items:
+            if isinstance(item, references.Reference):
+                if id(item) not in reference_index:
+                    raise ValueError(f'Range index references unknown reference: {item}')
+                range_items.append(-reference_index[id(item)] - 1)
+            else:
+                range_items.append(scope_of(item))
+        range_index_records = struct.pack(f'<I{len(range_items)}i', len(range_items), *range_items)
+
+        file = self._string(obj.file.as_posix())
+        # Null separated list of strings
+        strings = '\0'.join(self._strings).encode()
+        names = bytearray(struct.pack('<I', len(self._names)))
+        for name in self._names:
+            names.extend(struct.pack(f'<H{len(name)}I', len(name), *name))
+        self.write_header(ObjectHeader.from_object(obj))
+        self._write_section(self.STRINGS, struct.pack('<IId', len(self._strings), file, obj.creation_time) + strings)
+        self._write_section(self.NAMES, names)
+        self._write_section(self.SYMBOLS, symbol_records)
+        self._write_section(self.DEPENDENCIES, dependency_records)
+        self._write_section(self.REFERENCES, struct.pack('<I', len(obj.references)) + reference_records)
+        self._write_section(self.DIAGNOSTICS, struct.pack('<I', len(obj.diagnostics.diagnostics)) + diagnostic_records)
+        self._write_section(self.RANGE_INDEX, range_index_records + range_index.to_bytes())
+
+
+class StexObjectReader:
+    ' Reads objects written by `StexObjectWriter`. '
+
+    def __init__(self, fd: BinaryIO):
+        """ Initializes a reader.
+
+        Parameters:
+            fd: Binary stream positioned at the beginning of an object.
+        """
+        self.fd = fd
+
+    def _read_exactly(self, size: int) -> bytes:
+        data = self.fd.read(size)
+        if len(data) != size:
+            raise ValueError('Unexpected end of objectfile.')
+        return data
+
+    def _read_section(self, tag: int) -> bytes:
+        actual_tag, length = StexObjectWriter.SECTION.unpack(
+            self._read_exactly(StexObjectWriter.SECTION.size))
+        if actual_tag != tag:
+            raise ValueError(f'Expected section {tag} but found {actual_tag}.')
+        return self._read_exactly(length)
+
+    def read_header(self) -> ObjectHeader:
+        ''' Reads only the header of the next object.
+
+        After the header was read, the stream is positioned at the beginning of the body,
+        which can be read using `read_body`.
+
+        Raises:
+            ValueError: If the stream does not contain a valid object.
+        '''
+        W = StexObjectWriter
+        magic, version = W.PREAMBLE.unpack(self._read_exactly(W.PREAMBLE.size))
+        if magic != W.MAGIC:
+            raise ValueError('Invalid objectfile header.')
+        if version != W.VERSION:
+            raise ValueError(f'Unsupported objectfile version: {version}')
+        data = self._read_section(W.HEADER)
+        creation_time, digest, num_dependencies, num_modules = W.HEADER_FIELDS.unpack_from(data)
+        offset = W.HEADER_FIELDS.size
+
+        def unpack_string() -> str:
+            nonlocal offset
+            length, = struct.unpack_from('<I', data, offset)
+            offset += 4 + length
+            return data[offset - length:offset].decode()
+        file = Path(unpack_string())
+        dependencies = []
+        for _ in range(num_dependencies):
+            module_type, export = W.DEPENDENCY_INFO.unpack_from(data, offset)
+            offset += W.DEPENDENCY_INFO.size
+            dependencies.append(DependencyInfo(
+                module_name=unpack_string(),
+                module_type_hint=_MODULE_TYPES[module_type],
+                file_hint=Path(unpack_string()),
+                export=bool(export),
+                scope_name=unpack_string()))
+        modules = [unpack_string() for _ in range(num_modules)]
+        return ObjectHeader(file, creation_time, dependencies, modules, digest.hex())
+
+    def read(self) -> StexObject:
+        ''' Reads the next object from the stream.
+
+        Raises:
+            ValueError: If the stream does not contain a valid object.
+        '''
+        return self.read_body(self.read_header())
+
+    def read_body(self, header: ObjectHeader) -> StexObject:
+        ''' Reads the rest of an object after it's header was read using `read_header`.
+
+        Parameters:
+            header: The header that was read.
+
+        Raises:
+            ValueError: If the stream does not contain a valid object.
+        '''
+        W = StexObjectWriter
+        data = self._read_section(W.STRINGS)
+        num_strings, file, creation_time = struct.unpack_from('<IId', data)
+        strings = data[struct.calcsize('<IId'):].decode().split('\0') if num_strings else []
+        if len(strings) != num_strings:
+            raise ValueError('Corrupted string table.')
+
+        data = self._read_section(W.NAMES)
+        names: List[Tuple[str, ...]] = []
+        offset = 4
+        for _ in range(struct.unpack_from('<I', data)[0]):
+            length, = struct.unpack_from('<H', data, offset)
+            offset += 2
+            names.append(tuple(
+                strings[i] for i in struct.unpack_from(f'<{length}I', data, offset)))
+            offset += 4 * length
+
+        obj: StexObject = StexObject.__new__(StexObject)
+        obj.file = Path(strings[file])
+        obj.creation_time = creation_time
+        if obj.file != header.file:
+            raise ValueError('Header does not belong to the object.')
+
+        Position = vscode.Position
+        Range = vscode.Range
+
+        def make_location(uri: str, sl: int, sc: int, el: int, ec: int) -> vscode.Location:
+            # Bypass the constructor because the uri was already validated when the object was written
+            location = vscode.Location.__new__(vscode.Location)
+            location.uri = uri
+            location.range = Range(Position(sl, sc), Position(el, ec))
+            return location
+
+        table: List[symbols.Symbol] = []
+        for kind, parent, name, uri, sl, sc, el, ec, access, subtype, flag, extra in W.SYMBOL.iter_unpack(
+                self._read_section(W.SYMBOLS)):
+            location = make_location(strings[uri], sl, sc, el, ec)
+            name = strings[name]
+            symbol: symbols.Symbol
+            if kind == W.ROOT_SYMBOL:
+                symbol = symbols.RootSymbol(location)
+            elif kind == W.MODULE_SYMBOL:
+                symbol = symbols.ModuleSymbol(_MODULE_TYPES[subtype], location, name)
+            elif kind == W.DEF_SYMBOL:
+                symbol = symbols.DefSymbol(
+                    _DEF_TYPES[subtype], location, name, bool(flag), set(names[extra]))
+            elif kind == W.BINDING_SYMBOL:
+                symbol = symbols.BindingSymbol(location, name, strings[extra])
+            elif kind == W.SCOPE_SYMBOL:
+                # Bypass the constructor, because the name already contains a unique id
+                symbol = symbols.ScopeSymbol.__new__(symbols.ScopeSymbol)
+                symbols.Symbol.__init__(symbol, location, name)
+                symbol.uuid = strings[extra]
+            else:
+                raise ValueError(f'Unknown symbol kind: {kind}')
+            symbol.access_modifier = symbols.AccessModifier(access)
+            if parent >= 0:
+                parent_symbol = table[parent]
+                symbol.parent = parent_symbol
+                parent_symbol.children.setdefault(name, []).append(symbol)
+            table.append(symbol)
+        if not table or not isinstance(table[0], symbols.RootSymbol):
+            raise ValueError('Objectfile without symbol table root.')
+        obj.symbol_table = table[0]
+
+        obj.dependencies = [
+            Dependency(
+                range=Range(Position(sl, sc), Position(el, ec)),
+                scope=table[scope],
+                module_name=strings[module_name],
+                module_type_hint=_MODULE_TYPES[module_type],
+                file_hint=Path(strings[file_hint]),
+                export=bool(export),
+                disable_redundant_import_diagnostic=bool(disable))
+            for sl, sc, el, ec, scope, module_name, module_type, file_hint, export, disable
+            in W.DEPENDENCY.iter_unpack(self._read_section(W.DEPENDENCIES))
+        ]
+
+        data = self._read_section(W.REFERENCES)
+        num_references, = struct.unpack_from('<I', data)
+        end_of_records = 4 + num_references * W.REFERENCE.size
+        resolved = struct.unpack_from(f'<{(len(data) - end_of_records) // 4}I', data, end_of_records)
+        resolved_offset = 0
+        obj.references = []
+        for sl, sc, el, ec, scope, name, reference_type, parent_kind, parent, num_resolved in W.REFERENCE.iter_unpack(
+                data[4:end_of_records]):
+            ref = references.Reference(
+                Range(Position(sl, sc), Position(el, ec)), table[scope], names[name], ReferenceType(reference_type))
+            if parent_kind == W.REFERENCE_PARENT:
+                ref.parent = obj.references[parent]
+            elif parent_kind == W.DEPENDENCY_PARENT:
+                ref.parent = obj.dependencies[parent]
+            if num_resolved:
+                ref.resolved_symbols = [
+                    table[i] for i in resolved[resolved_offset:resolved_offset + num_resolved]]
+                resolved_offset += num_resolved
+            obj.references.append(ref)
+
+        data = self._read_section(W.DIAGNOSTICS)
+        obj.diagnostics = Diagnostics()
+        offset = 4
+        for _ in range(struct.unpack_from('<I', data)[0]):
+            (sl, sc, el, ec, message, severity, code_kind, code,
+             source_kind, source, num_tags, num_related) = W.DIAGNOSTIC.unpack_from(data, offset)
+            offset += W.DIAGNOSTIC.size
+            tags = [vscode.DiagnosticTag(tag) for tag in data[offset:offset + num_tags]]
+            offset += num_tags
+            related = []
+            for _ in range(num_related):
+                uri, isl, isc, iel, iec, info_message = W.RELATED_INFORMATION.unpack_from(data, offset)
+                offset += W.RELATED_INFORMATION.size
+                related.append(vscode.DiagnosticRelatedInformation(
+                    make_location(strings[uri], isl, isc, iel, iec), strings[info_message]))
+            obj.diagnostics.diagnostics.append(vscode.Diagnostic(
+                range=Range(Position(sl, sc), Position(el, ec)),
+                message=strings[message],
+                severity=vscode.DiagnosticSeverity(severity),
+                code=(
+                    code if code_kind == W.INT_VALUE
+                    else strings[code] if code_kind == W.STR_VALUE
+                    else vscode.undefined),
+                source=strings[source] if source_kind == W.STR_VALUE else vscode.undefined,
+                tags=tags,
+                relatedInformation=related))
+
+        data = self._read_section(W.RANGE_INDEX)
+        num_items, = struct.unpack_from('<I', data)
+        range_items = [
+            obj.references[-i - 1] if i < 0 else table[i]
+            for i in struct.unpack_from(f'<{num_items}i', data, 4)
+        ]
+        obj.range_index = RangeIndex.from_bytes(range_items, data[4 + 4 * num_items:])
+        return obj
+
+
+class CompiledDocument:
+    """ Keeps the state of a compiled buffer, which is required to compile it again incrementally
+    after it was edited.
+    """
+
+    def __init__(
+            self,
+            content: str,
+            intermediate_parser: parser.IntermediateParser,
+            contexts: Dict[parser.IntermediateParseTree, symbols.Symbol],
+            obj: StexObject):
+        """ Initializes the document.
+
+        Parameters:
+            content: The content that was compiled.
+            intermediate_parser: The parser used to parse the content.
+            contexts: The symbols created by parse trees, that contain the symbols created by their child parse trees.
+            obj: The compiled object.
+        """
+        self.content = content
+        self.intermediate_parser = intermediate_parser
+        self.contexts = contexts
+        self.object = obj
+        # True if the object of the current content was written to the storage
+        self.stored = False
+
+    def get_context(self, tree: Optional[parser.IntermediateParseTree]) -> symbols.Symbol:
+        ' Returns the symbol that children of the parse tree are added to. '
+        while tree is not None:
+            context = self.contexts.get(tree)
+            if context is not None:
+                return context
+            tree = tree.parent
+        return self.object.symbol_table
+
+
+def _find_edit(old: str, new: str) -> Tuple[int, int, int]:
+    """ Finds the region in which two strings differ.
+
+    Returns:
+        Tuple of the begin offset, the end offset in the old string and the end offset in the new string.
+    """
+    # Binary search for the length of the common prefix and suffix, comparing slices is fast
+    limit = min(len(old), len(new))
+    low, high = 0, limit
+    while low < high:
+        mid = (low + high + 1) // 2
+        if old[:mid] == new[:mid]:
+            low = mid
+        else:
+            high = mid - 1
+    begin = low
+    low, high = 0, limit - begin
+    while low < high:
+        mid = (low + high + 1) // 2
+        if old[len(old) - mid:] == new[len(new) - mid:]:
+            low = mid
+        else:
+            high = mid - 1
+    return begin, len(old) - low, len(new) - low
+
+
+class _PositionShift:
+    ' Moves positions behind an edit to where they are after the edit. '
+
+    def __init__(self, old_end: vscode.Position, new_end: vscode.Position):
+        """ Initializes the shift.
+
+        Parameters:
+            old_end: End of the edited region before the edit.
+            new_end: End of the edited region after the edit.
+        """
+        self.old_end = old_end
+        self.new_end = new_end
+
+    def position(self, position: vscode.Position) -> vscode.Position:
+        if position.line == self.old_end.line and position.character >= self.old_end.character:
+            return vscode.Position(
+                self.new_end.line, self.new_end.character + position.character - self.old_end.character)
+        if position.line > self.old_end.line:
+            return vscode.Position(position.line + self.new_end.line - self.old_end.line, position.character)
+        return position
+
+    def range(self, range: vscode.Range) -> vscode.Range:
+        start, end = self.position(range.start), self.position(range.end)
+        if start is range.start and end is range.end:
+            return range
+        return vscode.Range(start, end)
+
+    def location(self, location: vscode.Location, uri: str) -> vscode.Location:
+        if location.uri != uri:
+            return location
+        range = self.range(location.range)
+        if range is location.range:
+            return location
+        return vscode.Location(location.uri, range)
+
+
+def _move_parse_tree(tree: parser.IntermediateParseTree, shift: _PositionShift, uri: str):
+    ' Moves the location of a parse tree and the ranges of it\'s tokens. '
+    # Tokens can be referenced by multiple attributes, but must only be moved once
+    moved: Set[int] = set()
+
+    def move(value):
+        if isinstance(value, parser.TokenWithLocation):
+            if id(value) not in moved:
+                moved.add(id(value))
+                value.range = shift.range(value.range)
+        elif isinstance(value, (list, tuple)):
+            for item in value:
+                move(item)
+        elif isinstance(value, dict):
+            for item in value.values():
+                move(item)
+        elif isinstance(value, parser._NoverbHandler):
+            move(value.unnamed)
+            move(value.named)
+    tree.location = shift.location(tree.location, uri)
+    for name, value in vars(tree).items():
+        if name not in ('location', 'parent', 'children'):
+            move(value)
+
+
+class SourceStamp:
+    """ Identifies the content of the source file an object was compiled from.
+
+    The stamp is stored in front of every serialized object. It contains
+    the digest of the compiled content, the size and time modified of the
+    source file at the time of compilation and the version of the compiler.
+    """
+    MAGIC = b'STXS'
+    FORMAT = struct.Struct('<4sHqd20s')
+
+    def __init__(self, digest: bytes, size: int, time_modified: Optional[float], version: str):
+        """ Initializes a stamp.
+
+        Parameters:
+            digest: sha1 digest of the compiled content.
+            size: Size of the compiled content in bytes.
+            time_modified: Time modified of the source file if the content was read from disk.
+                None if the content was provided by a buffer.
+            version: Version of the compiler that produced the object.
+        """
+        self.digest = digest
+        self.size = size
+        self.time_modified = time_modified
+        self.version = version
+
+    @staticmethod
+    def from_content(content: Union[str, bytes], version: str, time_modified: Optional[float] = None) -> SourceStamp:
+        ' Creates a stamp for the given content. '
+        if isinstance(content, str):
+            content = content.encode()
+        return SourceStamp(sha1(content).digest(), len(content), time_modified, version)
+
+    @staticmethod
+    def from_file(file: Path, version: str) -> SourceStamp:
+        ' Creates a stamp for the content of the file on disk. '
+        stat = file.stat()
+        stamp = SourceStamp.from_content(file.read_bytes(), version, stat.st_mtime)
+        stamp.size = stat.st_size
+        return stamp
+
+    def matches_stat(self, file: Path) -> bool:
+        ' Returns True if size and time modified of the file equal the values recorded in this stamp. '
+        if self.time_modified is None:
+            return False
+        stat = file.stat()
+        return stat.st_size == self.size and stat.st_mtime == self.time_modified
+
+    def dumps(self) -> bytes:
+        ' Serializes this stamp. '
+        version = self.version.encode()
+        return self.FORMAT.pack(
+            self.MAGIC,
+            len(version),
+            self.size,
+            -1 if self.time_modified is None else self.time_modified,
+            self.digest) + version
+
+    @staticmethod
+    def loads(data: bytes) -> Tuple[SourceStamp, int]:
+        """ Deserializes a stamp from the beginning of data.
+
+        Returns:
+            The stamp and the number of bytes it occupied.
+
+        Raises:
+            ValueError: If data does not begin with a stamp.
+        """
+        if len(data) < SourceStamp.FORMAT.size:
+            raise ValueError('Not enough data for a source stamp.')
+        magic, version_length, size, time_modified, digest = SourceStamp.FORMAT.unpack_from(data)
+        if magic != SourceStamp.MAGIC:
+            raise ValueError('Data does not begin with a source stamp.')
+        end = SourceStamp.FORMAT.size + version_length
+        if len(data) < end:
+            raise ValueError('Not enough data for a source stamp.')
+        version = bytes(data[SourceStamp.FORMAT.size:end]).decode()
+        return SourceStamp(digest, size, None if time_modified < 0 else time_modified, version), end
+
+
 class Compiler:
     """ This is the compiler class that mirrors a gcc command.
 
@@ -268,16 +1198,39 @@ class Compiler:
     Important is the -c flag, as linking is seperate in our case.
     """
 
-    def __init__(self, root: Path, outdir: Path):
+    # Number of bytes read when only the header of an object is required.
+    # Headers larger than this are read with an additional read.
+    HEADER_READ_SIZE = 4096
+
+    # Parse trees that only create references and diagnostics and can therefore be compiled again in isolation.
+    _INCREMENTAL_PARSE_TREES = (parser.TrefiIntermediateParseTree, parser.TassignIntermediateParseTree)
+
+    def __init__(
+            self,
+            root: Path,
+            outdir: Path,
+            storage: ObjectStorage = None,
+            parser_backend: str = 'antlr',
+            parse_cache: ParseCache = None):
         """ Creates a new compiler
 
         Parameters:
             root: Path to root directory.
             outdir: Directory into which compiled objects will be stored.
+            storage: Storage the compiled objects are written to.
+                By default every object is stored in a separate file inside outdir.
+            parser_backend: Backend used to parse latex files. One of `stexls.latex.parser.PARSER_BACKENDS`.
+            parse_cache: If given, the latex parsers of compiled files are added to it with their whole syntax tree,
+                so that they don't need to be parsed again to be tokenized.
         """
         self.root_dir = root.expanduser().resolve().absolute()
         self.outdir = outdir.expanduser().resolve().absolute()
         self.objectfile_extension = '.stexobj'
+        self.storage = storage or DirectoryObjectStorage(
+            self.outdir, self.objectfile_extension)
+        self.parser_backend = parser_backend
+        self.parse_cache = parse_cache
+        self.version = COMPILER_VERSION
 
     def check_version(self, version: str):
         """ Checks expected vs actual version in the objectfile cache.
@@ -309,27 +1262,7 @@ class Compiler:
             log.info(
                 'Deleting compiled object cache because of version check: %s', self.outdir)
             try:
-                files = set(
-                    objectfile
-                    for objectfile
-                    in self.outdir.glob('*/*' + self.objectfile_extension)
-                    if objectfile.is_file()
-                )
-                for objectfile in files:
-                    log.debug('UNLINK "%s"', str(objectfile))
-                    objectfile.unlink()
-                directories = set(
-                    objectfile.parent
-                    for objectfile in files
-                )
-                for directory in directories:
-                    if directory.is_dir() and next(directory.iterdir(), None) is None:
-                        log.debug('RMDIR "%s"', str(directory))
-                        try:
-                            directory.rmdir()
-                        except OSError:
-                            log.exception(
-                                'Failed to remove supposedly empty objectfile cache directory: %s', str(directory))
+                self.storage.clear()
                 if not versionfile.parent.is_dir():
                     versionfile.parent.mkdir(parents=True)
                 versionfile.write_text(version)
@@ -338,23 +1271,56 @@ class Compiler:
                     'An unexpected OSError was raised while handling files. This can be ignored.')
         return delete_all
 
-    def get_objectfile_path(self, file: Path) -> Path:
-        ''' Gets the correct path the objectfile for the input file should be stored at.
+    def get_objectfile_key(self, file: Path) -> str:
+        ' Gets the key under which the object for the input file is stored. '
+        return file.as_posix()
+
+    def load_header(self, file: Path) -> ObjectHeader:
+        ''' Loads only the header of the cached objectfile for <file>.
+
+        Only the beginning of the stored object is read.
 
         Parameters:
-            file: Path to sourcefile.
+            file: Path to source file.
 
         Returns:
-            Path to the objectfile.
+            The header of the precompiled object.
+
+        Raises:
+            ObjectfileNotFoundError If the objectfile does not exist.
+            ObjectfileIsCorruptedError: If the header can not be deserialized.
         '''
-        sha = sha1(file.parent.as_posix().encode()).hexdigest()
-        return self.outdir / sha / (file.name + self.objectfile_extension)
+        key = self.get_objectfile_key(file)
+        size = SourceStamp.FORMAT.size + 256 + self.HEADER_READ_SIZE
+        data = self.storage.read(key, size)
+        if data is None:
+            raise ObjectfileNotFoundError(file)
+        try:
+            _, offset = SourceStamp.loads(data)
+            preamble_end = offset + StexObjectWriter.PREAMBLE.size + StexObjectWriter.SECTION.size
+            if len(data) >= preamble_end:
+                _, header_length = StexObjectWriter.SECTION.unpack_from(
+                    data, preamble_end - StexObjectWriter.SECTION.size)
+                if len(data) == size and preamble_end + header_length > size:
+                    # The header is larger than expected: Read all of it
+                    data = self.storage.read(key, preamble_end + header_length)
+            fd = io.BytesIO(data)
+            fd.seek(offset)
+            header = StexObjectReader(fd).read_header()
+        except Exception as err:
+            raise ObjectfileIsCorruptedError(file) from err
+        if header.file.expanduser().resolve().absolute() != file.expanduser().resolve().absolute():
+            raise ObjectfileIsCorruptedError(file)
+        return header
 
-    def load_from_objectfile(self, file: Path) -> StexObject:
+    def load_from_objectfile(self, file: Path, lazy: bool = False) -> StexObject:
         ''' Loads the cached objectfile for <file> if it exists.
 
         Parameters:
             file: Path to source file.
+            lazy: If True, only the header is loaded and the rest of the object
+                is loaded when the symbol table, dependencies, references or diagnostics are accessed.
+                Objects used to link are modified and must not be loaded lazily.
 
         Returns:
             The precompiled objectfile.
@@ -363,35 +1329,90 @@ class Compiler:
             ObjectfileNotFoundError If the objectfile does not exist.
             ObjectfileIsCorruptedError: If the loaded object file can not be deserialized.
         '''
-        objectfile = self.get_objectfile_path(file)
-        if not objectfile.is_file():
+        if lazy:
+            return LazyStexObject(
+                self.load_header(file), self.storage, self.get_objectfile_key(file))
+        data = self.storage.read(self.get_objectfile_key(file))
+        if data is None:
             raise ObjectfileNotFoundError(file)
-        with open(objectfile, 'rb') as fd:
-            obj = pickle.load(fd)
-            if not isinstance(obj, StexObject) or obj.file.expanduser().resolve().absolute() != file.expanduser().resolve().absolute():
-                raise ObjectfileIsCorruptedError(file)
-            return obj
+        try:
+            _, offset = SourceStamp.loads(data)
+            fd = io.BytesIO(data)
+            fd.seek(offset)
+            obj = StexObjectReader(fd).read()
+        except Exception as err:
+            raise ObjectfileIsCorruptedError(file) from err
+        if not isinstance(obj, StexObject) or obj.file.expanduser().resolve().absolute() != file.expanduser().resolve().absolute():
+            raise ObjectfileIsCorruptedError(file)
+        return obj
+
+    def load_stamp(self, file: Path) -> Optional[SourceStamp]:
+        ''' Loads only the stamp of the stored object of the file.
+
+        Parameters:
+            file: Path to source file.
 
-    def recompilation_required(self, file: Path, time_modified: float = None):
+        Returns:
+            The stamp or None if the file has no valid object stored.
+        '''
+        data = self.storage.read(
+            self.get_objectfile_key(file), SourceStamp.FORMAT.size + 256)
+        if data is None:
+            return None
+        try:
+            stamp, _ = SourceStamp.loads(data)
+            return stamp
+        except (ValueError, UnicodeDecodeError):
+            return None
+
+    def recompilation_required(self, file: Path, time_modified: float = None, content: str = None):
         ''' Tests if compilation required by checking if the objectfile is up to date.
 
+        The content that was used to compile the stored object is compared by digest.
+        If the file was compiled from disk and size and time modified did not change since,
+        the file is assumed to be unchanged without computing it's digest.
+        If the digest of the file on disk matches, but size or time modified don't (e.g. after touch or checkout),
+        the stored stamp is updated.
+
         Parameters:
             file: Valid path to a source file.
             time_modified: Some external time of last modification that overrides the objectfile's time. (Range of time.time())
+                Only used if content is not given.
+            content: Buffered content of the file. If given, this is compared instead of the file on disk.
 
         Returns:
-            Returns true if the file wasnt compiled yet or if the objectfile is older than the last edit to the file.
+            Returns true if the file wasnt compiled yet or if the content changed since the object was compiled.
         '''
-        objectfile = self.get_objectfile_path(file)
-        if not objectfile.is_file():
+        stamp = self.load_stamp(file)
+        if stamp is None or stamp.version != self.version:
             return True
-        time_compiled = objectfile.lstat().st_mtime
-        if time_modified and time_compiled < time_modified:
-            return True
-        if time_compiled < file.lstat().st_mtime:
+        if content is not None:
+            return SourceStamp.from_content(content, self.version).digest != stamp.digest
+        if time_modified:
+            time_compiled = self.storage.time_written(
+                self.get_objectfile_key(file))
+            if time_compiled is None or time_compiled < time_modified:
+                return True
+        if stamp.matches_stat(file):
+            return False
+        current = SourceStamp.from_file(file, self.version)
+        if current.digest != stamp.digest:
             return True
+        self._update_stamp(file, current)
         return False
 
+    def _update_stamp(self, file: Path, stamp: SourceStamp):
+        ' Replaces the stamp of the stored object without recompiling. '
+        key = self.get_objectfile_key(file)
+        try:
+            data = self.storage.read(key)
+            if data is None:
+                return
+            _, offset = SourceStamp.loads(data)
+            self.storage.write(key, stamp.dumps() + data[offset:])
+        except Exception:
+            log.exception('Failed to update stamp of "%s"', file)
+
     def compile(
             self,
             file: Union[str, Path],
@@ -416,31 +1437,207 @@ class Compiler:
         file = file.expanduser().resolve().absolute()
         if not file.is_file():
             raise FileNotFoundError(file)
-        objectfile = self.get_objectfile_path(file)
-        objectdir = objectfile.parent
-        objectdir.mkdir(parents=True, exist_ok=True)
+        if content is None:
+            stamp = SourceStamp.from_file(file, self.version)
+        else:
+            stamp = SourceStamp.from_content(content, self.version)
+        # Cached parsers keep the whole tree, which the tokenizer requires
+        object = self._compile_document(file, content, keep_tree=self.parse_cache is not None).object
+        if not dryrun:
+            self._store(file, stamp, object)
+        return object
+
+    def _compile_document(self, file: Path, content: Optional[str], keep_tree: bool) -> CompiledDocument:
+        ''' Parses and compiles the file without storing the result.
+        The latex syntax tree is only kept complete if `keep_tree` is True, which is required to patch the document.
+        Parsers with complete trees are added to the parse cache.
+        '''
         object = StexObject(file)
         intermed_parser = parser.IntermediateParser(file)
-        intermed_parser.parse(content)
+        intermed_parser.parse(content, keep_tree=keep_tree, backend=self.parser_backend)
+        latex_parser = intermed_parser.latex_parser
+        if keep_tree and self.parse_cache is not None and latex_parser is not None and latex_parser.root is not None:
+            self.parse_cache.add(latex_parser)
         for loc, errors in intermed_parser.errors.items():
             for err in errors:
                 object.diagnostics.parser_exception(loc.range, err)
+        contexts: Dict[parser.IntermediateParseTree, symbols.Symbol] = {}
         for root in intermed_parser.roots:
             context: List[Tuple[Optional[parser.IntermediateParseTree], symbols.Symbol]] = [
                 (None, object.symbol_table)]
-            enter = functools.partial(self._compile_enter, object, context)
+            enter = functools.partial(self._compile_enter, object, context, contexts=contexts)
             exit = functools.partial(self._compile_exit, object, context)
             root.traverse(enter, exit)
+        if content is None and latex_parser is not None:
+            content = latex_parser.source
+        return CompiledDocument(content or '', intermed_parser, contexts, object)
+
+    def _store(self, file: Path, stamp: SourceStamp, object: StexObject):
+        ' Writes the object to the storage. '
         try:
-            if not dryrun:
-                with open(objectfile, 'wb') as fd:
-                    pickle.dump(object, fd)
+            fd = io.BytesIO()
+            fd.write(stamp.dumps())
+            StexObjectWriter(fd).write(object)
+            self.storage.write(
+                self.get_objectfile_key(file), fd.getvalue())
         except Exception:
             # ignore errors if objectfile can't be written to disk
             # and continue as usual
             log.exception(
-                'Failed to write object "%s" to "%s".', file, objectfile)
-        return object
+                'Failed to write object "%s" to "%s".', file, self.outdir)
+
+    def compile_incremental(
+            self,
+            file: Path,
+            content: str,
+            document: Optional[CompiledDocument] = None,
+            dryrun: bool = False) -> CompiledDocument:
+        """ Compiles the buffered content of a file and reuses the previous compilation of the buffer if possible.
+
+        If the edit since the previous compilation is located inside an environment that only contains
+        references (like trefis), only that environment is parsed again and the references and diagnostics
+        inside of it are replaced in the previous object. Everything behind the edit is moved.
+        All other edits compile the whole content again.
+
+        Parameters:
+            file: Path to sourcefile.
+            content: Buffered content of the file.
+            document: The document returned by the previous call for this file.
+            dryrun: Do not store the object after compiling. Editors change buffers with every keystroke,
+                which is why only saved buffers should be stored. Objects of unchanged documents are stored only once.
+
+        Returns:
+            The compiled document. The object of the document is the compiled object.
+
+        Raises:
+            FileNotFoundError: If the source file is not a file.
+        """
+        file = Path(file).expanduser().resolve().absolute()
+        if not file.is_file():
+            raise FileNotFoundError(file)
+        updated = None
+        if document is not None and document.object.file == file:
+            try:
+                updated = self._patch_document(document, content)
+            except Exception:
+                log.exception('Incremental compilation of "%s" failed.', file)
+                updated = None
+        if updated is None:
+            updated = self._compile_document(file, content, keep_tree=True)
+        else:
+            log.debug('Compiled "%s" incrementally.', file)
+        if not dryrun and not updated.stored:
+            self._store(file, SourceStamp.from_content(content, self.version), updated.object)
+            updated.stored = True
+        return updated
+
+    def _is_incremental_tree(self, tree: parser.IntermediateParseTree) -> bool:
+        if isinstance(tree, parser.TrefiIntermediateParseTree) and tree.drefi:
+            # drefi creates symbols
+            return False
+        return isinstance(tree, self._INCREMENTAL_PARSE_TREES)
+
+    def _patch_document(self, document: CompiledDocument, content: str) -> Optional[CompiledDocument]:
+        ''' Applies the edit between the document's content and the new content to the document.
+
+        The document and its object are not changed, the parse trees of the document are reused.
+
+        Returns:
+            The updated document or None if the edit can't be applied incrementally.
+        '''
+        if content == document.content:
+            return document
+        intermed_parser = document.intermediate_parser
+        latex_parser = intermed_parser.latex_parser
+        if latex_parser is None or latex_parser.root is None:
+            return None
+        begin, old_end, new_end = _find_edit(document.content, content)
+        old_line_index = latex_parser.line_index
+        replaced = latex_parser.reparse(content, begin, old_end, new_end)
+        if replaced is None:
+            return None
+        old_nodes, new_nodes = replaced
+        old_start = old_line_index.offset_to_position(min(node.begin for node in old_nodes))
+        old_stop = old_line_index.offset_to_position(old_nodes[-1].end)
+        old_trees = intermed_parser.remove_nodes(old_nodes)
+        if not all(map(self._is_incremental_tree, old_trees)):
+            return None
+        # The object of the document may be buffered and indexed by the linter, so the patch is applied to a copy
+        obj = document.object.clone()
+        originals: List[symbols.Symbol] = []
+        document.object.symbol_table.traverse(originals.append)
+        copies: List[symbols.Symbol] = []
+        obj.symbol_table.traverse(copies.append)
+        copied_symbols = dict(zip(map(id, originals), copies))
+        patched = CompiledDocument(
+            content,
+            intermed_parser,
+            {tree: copied_symbols[id(symbol)] for tree, symbol in document.contexts.items()},
+            obj)
+        uri = obj.file.as_uri()
+        shift = _PositionShift(old_stop, latex_parser.offset_to_position(new_nodes[-1].end))
+        # Move the remaining parse trees before the new ones are added, which already have the new locations
+        for root in intermed_parser.roots:
+            root.traverse(lambda tree: _move_parse_tree(tree, shift, uri))
+        # Find the parse tree the nodes are located in
+        parent_tree = None
+        node = new_nodes[0].parent
+        while node is not None and parent_tree is None:
+            parent_tree = intermed_parser.environment_trees.get(node)
+            node = node.parent
+        errors: Dict[vscode.Location, List[Exception]] = {}
+        new_trees = intermed_parser.parse_nodes(new_nodes, parent_tree, errors)
+        new_trees_flat: List[parser.IntermediateParseTree] = []
+        for root in new_trees:
+            root.traverse(new_trees_flat.append)
+        if not all(map(self._is_incremental_tree, new_trees_flat)):
+            return None
+
+        def inside(range: vscode.Range) -> bool:
+            ' Returns True if the range is inside the replaced nodes. '
+            return (
+                (old_start.line, old_start.character) <= (range.start.line, range.start.character)
+                and (range.end.line, range.end.character) <= (old_stop.line, old_stop.character))
+
+        # Remove the references and diagnostics of the replaced nodes and move everything else
+        references_index = next((i for i, ref in enumerate(obj.references) if inside(ref.range)), None)
+        obj.references = [ref for ref in obj.references if not inside(ref.range)]
+        for ref in obj.references:
+            ref.range = shift.range(ref.range)
+        diagnostics_index = next(
+            (i for i, diagnostic in enumerate(obj.diagnostics.diagnostics) if inside(diagnostic.range)), None)
+        obj.diagnostics.diagnostics = [
+            diagnostic for diagnostic in obj.diagnostics.diagnostics if not inside(diagnostic.range)]
+        for diagnostic in obj.diagnostics.diagnostics:
+            diagnostic.range = shift.range(diagnostic.range)
+            for info in diagnostic.relatedInformation:
+                info.location = shift.location(info.location, uri)
+        for dep in obj.dependencies:
+            dep.range = shift.range(dep.range)
+
+        def move_symbol(symbol: symbols.Symbol):
+            symbol.location = shift.location(symbol.location, uri)
+        obj.symbol_table.traverse(move_symbol)
+
+        # Compile the new nodes into a separate object and insert the results where the old ones were
+        patch = StexObject(obj.file)
+        for loc, errs in errors.items():
+            for err in errs:
+                patch.diagnostics.parser_exception(loc.range, err)
+        context: List[Tuple[Optional[parser.IntermediateParseTree], symbols.Symbol]] = [
+            (None, patched.get_context(parent_tree))]
+        for root in new_trees:
+            root.traverse(
+                functools.partial(self._compile_enter, patch, context),
+                functools.partial(self._compile_exit, patch, context))
+        if references_index is None:
+            references_index = len(obj.references)
+        obj.references[references_index:references_index] = patch.references
+        if diagnostics_index is None:
+            diagnostics_index = len(obj.diagnostics.diagnostics)
+        obj.diagnostics.diagnostics[diagnostics_index:diagnostics_index] = patch.diagnostics.diagnostics
+        obj.creation_time = time()
+        return patched
 
     def compile_or_load_from_file(
         self,
@@ -467,16 +1664,17 @@ class Compiler:
         Returns:
             Optional[StexObject]: Compiled object. If an error occured
                 it is ignored and None is returned.
+                Objects that are loaded instead of compiled are loaded lazily.
         """
         try:
-            if self.recompilation_required(file, time_modified):
+            if self.recompilation_required(file, time_modified, content):
                 return self.compile(file, content)
         except FileNotFoundError:
             # Return None because load_from_objectfile will
             # fail with ObjectfileNotFound
             return None
         try:
-            return self.load_from_objectfile(file)
+            return self.load_from_objectfile(file, lazy=True)
         except (FileNotFoundError, ObjectfileIsCorruptedError):
             # Ignore file not foud and corrupt error.
             pass
@@ -951,7 +2149,12 @@ class Compiler:
 
         return module
 
-    def _compile_enter(self, obj: StexObject, context: List[Tuple[parser.IntermediateParseTree, symbols.Symbol]], tree: parser.IntermediateParseTree):
+    def _compile_enter(
+            self,
+            obj: StexObject,
+            context: List[Tuple[parser.IntermediateParseTree, symbols.Symbol]],
+            tree: parser.IntermediateParseTree,
+            contexts: Dict[parser.IntermediateParseTree, symbols.Symbol] = None):
         """ This manages the enter operation of the intermediate parse tree into relevant environemnts.
 
         Each relevant intermediate environment is compiled here and compile operations of environments that are in \\begin{} & \\end{}
@@ -1000,6 +2203,8 @@ class Compiler:
                 tree.location.range, err, vscode.DiagnosticSeverity.Error)
         if next_context:
             context.append((tree, next_context))
+            if contexts is not None:
+                contexts[tree] = next_context
 
     def _compile_exit(self, obj: StexObject, context: List[Tuple[parser.IntermediateParseTree, symbols.Symbol]], tree: parser.IntermediateParseTree):
         """ This manages the symbol table context structurehere. """
@@ -0,0 +1,144 @@
+""" This module contains an index of which files depend on which other files.
+
+The index is updated every time an object is compiled, linked or removed
+and answers which files use a given file or import a given module,
+without looking at every object.
+"""
+from pathlib import Path
+from typing import Dict, Iterable, Set
+
+from .compiler import LazyStexObject, StexObject
+
+__all__ = ['DependencyIndex']
+
+
+class DependencyIndex:
+    """ Reverse dependency graph of the compiled objects.
+
+    A file depends on another file if it imports a module from it (known after compiling)
+    or if one of it's references resolves to a symbol located in it (known after linking).
+    """
+
+    def __init__(self):
+        # Files each file imports modules from: Dict[File, Set[ImportedFile]]
+        self._imported_files: Dict[Path, Set[Path]] = dict()
+        # Modules each file imports: Dict[File, Set[ModuleName]]
+        self._imported_modules: Dict[Path, Set[str]] = dict()
+        # Files each linked file references symbols from: Dict[File, Set[ReferencedFile]]
+        self._referenced_files: Dict[Path, Set[Path]] = dict()
+        # Reverse edges of both, imports and references: Dict[File, Dict[Dependent, NumberOfEdges]]
+        self._dependents: Dict[Path, Dict[Path, int]] = dict()
+        # Reverse edges of module imports: Dict[ModuleName, Set[ImportingFile]]
+        self._importers: Dict[str, Set[Path]] = dict()
+
+    def update(self, obj: StexObject):
+        ''' Updates the imports of the file of an unlinked object.
+
+        Only the header of lazy objects is used.
+
+        Parameters:
+            obj: The object that was compiled or loaded.
+        '''
+        if isinstance(obj, LazyStexObject):
+            dependencies: Iterable = obj.get_header().dependencies
+        else:
+            dependencies = obj.dependencies
+        files = set()
+        modules = set()
+        for dep in dependencies:
+            files.add(dep.file_hint)
+            modules.add(dep.module_name)
+        self._replace_edges(self._imported_files, obj.file, files)
+        for module in self._imported_modules.pop(obj.file, ()):
+            importers = self._importers[module]
+            importers.discard(obj.file)
+            if not importers:
+                del self._importers[module]
+        self._imported_modules[obj.file] = modules
+        for module in modules:
+            self._importers.setdefault(module, set()).add(obj.file)
+
+    def update_references(self, linked: StexObject):
+        ''' Updates the files the references of a linked object resolve to.
+
+        Parameters:
+            linked: The object after it's references were resolved.
+        '''
+        uris: Set[str] = set()
+        files: Set[Path] = set()
+        for ref in linked.references:
+            for symbol in ref.resolved_symbols:
+                if symbol.location.uri not in uris:
+                    uris.add(symbol.location.uri)
+                    files.add(symbol.location.path)
+        self._replace_edges(self._referenced_files, linked.file, files)
+
+    def remove(self, file: Path):
+        ''' Removes everything known about the file, except for the files that depend on it.
+
+        Parameters:
+            file: The file which no longer has an object.
+        '''
+        self._replace_edges(self._imported_files, file, set())
+        self._replace_edges(self._referenced_files, file, set())
+        self._imported_files.pop(file)
+        self._referenced_files.pop(file)
+        for module in self._imported_modules.pop(file, ()):
+            importers = self._importers[module]
+            importers.discard(file)
+            if not importers:
+                del self._importers[module]
+
+    def find_dependents(self, file: Path, transitive: bool = False) -> Set[Path]:
+        ''' Finds the files that import from or reference symbols in the file.
+
+        Parameters:
+            file: The file.
+            transitive: If True, the files that depend on the dependents are also included.
+
+        Returns:
+            The files that depend on the file, without the file itself.
+        '''
+        if not transitive:
+            dependents = set(self._dependents.get(file, ()))
+        else:
+            dependents = set()
+            queue = [file]
+            while queue:
+                for dependent in self._dependents.get(queue.pop(), ()):
+                    if dependent not in dependents:
+                        dependents.add(dependent)
+                        queue.append(dependent)
+        dependents.discard(file)
+        return dependents
+
+    def find_importers(self, module: str, transitive: bool = False) -> Set[Path]:
+        ''' Finds the files that import a module.
+
+        Parameters:
+            module: Name of the module.
+            transitive: If True, the files that depend on the importers are also included.
+
+        Returns:
+            The files that import the module.
+        '''
+        importers = set(self._importers.get(module, ()))
+        if transitive:
+            for importer in list(importers):
+                importers.update(self.find_dependents(importer, transitive=True))
+        return importers
+
+    def _replace_edges(self, edges: Dict[Path, Set[Path]], file: Path, targets: Set[Path]):
+        ' Replaces the edges of one kind from the file and updates the reverse edges. '
+        previous = edges.get(file, set())
+        for target in previous - targets:
+            dependents = self._dependents[target]
+            dependents[file] -= 1
+            if not dependents[file]:
+                del dependents[file]
+                if not dependents:
+                    del self._dependents[target]
+        for target in targets - previous:
+            dependents = self._dependents.setdefault(target, {})
+            dependents[file] = dependents.get(file, 0) + 1
+        edges[file] = targets
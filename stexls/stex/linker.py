@@ -3,6 +3,8 @@
 The idea here is that it mirrors the "ln" command for c++.
 The ln command takes a list of c++ objects and resolves the symbol references inside them.
 """
+import io
+import struct
 from pathlib import Path
 from time import time
 from typing import Dict, Iterable, List, Optional, Tuple, Union
@@ -12,8 +14,10 @@ from stexls.stex.references import Reference
 
 from .. import vscode
 from . import exceptions, symbols
-from .compiler import (Compiler, Dependency, ObjectfileIsCorruptedError,
-                       ObjectfileNotFoundError, StexObject)
+from .compiler import (COMPILER_VERSION, Compiler, Dependency,
+                       ObjectfileIsCorruptedError, ObjectfileNotFoundError,
+                       StexObject, StexObjectReader, StexObjectWriter)
+from .storage import ObjectStorage
 
 __all__ = ['Linker']
 
@@ -31,7 +35,18 @@ class Linker:
     A "ln dep1.o dep2.o main.o -o a.out" command is the same as "aout = Linker(...).link(main.tex)"
     """
 
-    def __init__(self, compiler_outdir: Union[str, Path]):
+    # Header of persisted links: Compiler version and time linked
+    LINK_HEADER = struct.Struct('<8sd')
+
+    def __init__(self, compiler_outdir: Union[str, Path], storage: ObjectStorage = None):
+        """ Creates a new linker.
+
+        Parameters:
+            compiler_outdir: Directory in which the compiler stores the compiled objects.
+            storage: Storage the linked modules are persisted in, so that they can be reused after a restart.
+                The storage must not be shared with the compiler's objects.
+                By default, linked modules are only cached in memory.
+        """
         # Directory in which the compiler stores the compiled objects
         self.outdir = Path(compiler_outdir)
         # Dict[usemodule_on_stack?, [File, [ModuleName, (TimeModified, StexObject)]]]
@@ -40,6 +55,13 @@ class Linker:
         # and will always be linked again.
         self.cache: Dict[Optional[bool], Dict[Path, Dict[str, Tuple[float, StexObject]]]] = {
             True: dict(), False: dict()}
+        # Storage into which the cache is written through
+        self.storage = storage
+        # Interface digests of the compiled objects each cached module was linked from,
+        # by the same keys as the cache. Links loaded from the storage have none.
+        self.linked_interfaces: Dict[Tuple[bool, Path, str], Dict[Path, str]] = {}
+        # Interface digest of each file by the creation time of the object it was computed from
+        self._interface_digests: Dict[Path, Tuple[float, str]] = {}
 
     def link_dependency(self, obj: StexObject, dependency: Dependency, imported: StexObject):
         ''' Links the module specified in `dependency` from `imported` with `obj` at the scope declared in the
@@ -94,11 +116,14 @@ class Linker:
                          Tuple[StexObject, Dependency]] = None,
             _toplevel_module: str = None,
             _usemodule_on_stack: bool = False) -> StexObject:
-        # load the objectfile
-        # The object must be loaded from file because a deep copy (especially of the dependencies) is required
+        # A deep copy of the object (especially of the dependencies) is required, because linking modifies it.
+        # Objects that are not provided are loaded from the objectfile.
         # load_from_objectfile can raise FileNotFound but this should have been caught even before attempting to link the object
         path = Path(file)
-        obj = compiler.load_from_objectfile(path)
+        if path in objects:
+            obj = objects[path].clone()
+        else:
+            obj = compiler.load_from_objectfile(path)
         obj.creation_time = time()
         # initialize the stack if not already initialized
         _stack = {} if _stack is None else _stack
@@ -150,6 +175,11 @@ class Linker:
                         _usemodule_on_stack=update_usemodule_on_stack)
                     self._store_linked_in_cache(
                         update_usemodule_on_stack, dep.file_hint, dep.module_name, imported)
+                    self.linked_interfaces[(update_usemodule_on_stack, dep.file_hint, dep.module_name)] = {
+                        related: self._get_interface_digest(objects[related])
+                        for related in {dep.file_hint, *imported.related_files}
+                        if related in objects
+                    }
                 except (ObjectfileNotFoundError, ObjectfileIsCorruptedError):
                     log.exception('Failed to link dependency: %s', path)
                     continue
@@ -171,13 +201,21 @@ class Linker:
         except ObjectfileNotFoundError:
             # Module not cached -> Linking required
             return True
-        if file in compiled_objects and mtime < compiled_objects[file].creation_time:
+        interfaces = self.linked_interfaces.get((usemodule_on_stack, file, module_name), {})
+
+        def interface_changed(path: Path) -> bool:
+            ' Returns True if the file was recompiled after linking and the recompiled object exports something else. '
+            if path not in compiled_objects or compiled_objects[path].creation_time <= mtime:
+                return False
+            digest = interfaces.get(path)
+            return digest is None or digest != self._get_interface_digest(compiled_objects[path])
+        if interface_changed(file):
             # The sourcefile has been recompiled for some reason
             return True
         try:
             # Check whether any file referenced by a dependency or symbol is newer than this link
             for path in set(obj.related_files):
-                if path in compiled_objects and mtime < compiled_objects[path].creation_time:
+                if interface_changed(path):
                     # The object of a dependency has been recompiled
                     return True
             return False
@@ -185,19 +223,68 @@ class Linker:
             log.exception('Failed relink check')
         return True
 
+    def _get_interface_digest(self, obj: StexObject) -> str:
+        ' Returns the interface digest of the object\'s header, which is only computed once for every compiled version. '
+        cached = self._interface_digests.get(obj.file)
+        if cached is None or cached[0] != obj.creation_time:
+            cached = (obj.creation_time, obj.get_header().interface_digest)
+            self._interface_digests[obj.file] = cached
+        return cached[1]
+
     def _load_linked_from_cache(self, usemodule_on_stack: bool, file: Path, module: str) -> Tuple[float, StexObject]:
-        ' Return the tuple of (timestamp added, stexobj) from cache or raises ObjectfileNotFound if not cached. '
-        context = self.cache.get(usemodule_on_stack, {})
+        """ Return the tuple of (timestamp added, stexobj) from cache or raises ObjectfileNotFound if not cached.
+
+        Links that are not in memory are loaded from the storage if possible.
+        """
+        context = self.cache.setdefault(usemodule_on_stack, {})
         modules = context.get(file, {})
         linked = modules.get(module)
         if linked is None:
-            raise ObjectfileNotFoundError(file)
+            linked = self._load_linked_from_storage(usemodule_on_stack, file, module)
+            context.setdefault(file, {})[module] = linked
         return linked
 
     def _store_linked_in_cache(self, usemodule_on_stack: bool, file: Path, module: str, obj: StexObject):
         ' Store an obj in cache. '
+        linked = (time(), obj)
         self.cache[usemodule_on_stack].setdefault(
-            file, {})[module] = (time(), obj)
+            file, {})[module] = linked
+        if self.storage is None:
+            return
+        try:
+            fd = io.BytesIO()
+            fd.write(self.LINK_HEADER.pack(COMPILER_VERSION.encode(), linked[0]))
+            StexObjectWriter(fd).write(obj)
+            self.storage.write(
+                self._get_storage_key(usemodule_on_stack, file, module), fd.getvalue())
+        except Exception:
+            # The link is still cached in memory
+            log.exception('Failed to persist link of module "%s" in "%s".', module, file)
+
+    def _load_linked_from_storage(self, usemodule_on_stack: bool, file: Path, module: str) -> Tuple[float, StexObject]:
+        ' Loads a persisted link or raises ObjectfileNotFound if it was not persisted by the current compiler version. '
+        if self.storage is None:
+            raise ObjectfileNotFoundError(file)
+        data = self.storage.read(self._get_storage_key(usemodule_on_stack, file, module))
+        if data is None:
+            raise ObjectfileNotFoundError(file)
+        try:
+            version, time_linked = self.LINK_HEADER.unpack_from(data)
+            if version.rstrip(b'\0').decode() != COMPILER_VERSION:
+                raise ObjectfileNotFoundError(file)
+            fd = io.BytesIO(data)
+            fd.seek(self.LINK_HEADER.size)
+            obj = StexObjectReader(fd).read()
+        except ObjectfileNotFoundError:
+            raise
+        except Exception as err:
+            log.warning('Failed to load persisted link of module "%s" in "%s": %s', module, file, err)
+            raise ObjectfileNotFoundError(file) from err
+        return time_linked, obj
+
+    def _get_storage_key(self, usemodule_on_stack: bool, file: Path, module: str) -> str:
+        ' Gets the key under which the link of the module is persisted. '
+        return f'{file.as_posix()}#{module}#{int(usemodule_on_stack)}'
 
     def validate_object_references(self, linked: StexObject):
         ''' Validate the references inside an object.
@@ -207,6 +294,10 @@ class Linker:
         Parameters:
             linked: The object that needs validation
         '''
+        # The symbol table doesn't change anymore: Share the visible symbols of each scope between the references
+        lookup_table = symbols.SymbolLookupTable()
+        # Index for "did you mean" suggestions, created for the first undefined reference
+        similar_symbols_index = None
         for ref in linked.references:
             # Check if parent constraint is met
             if isinstance(ref.parent, Dependency):
@@ -222,11 +313,13 @@ class Linker:
 
             refname = "?".join(ref.name)
             # TODO: Does using ref.reference_type to specify the expected type restrict too much?
-            resolved: Iterable[symbols.Symbol] = ref.scope.lookup(
-                ref.name, ref.reference_type)
+            resolved: Iterable[symbols.Symbol] = lookup_table.lookup(
+                ref.scope, ref.name, ref.reference_type)
             if not resolved:
+                if similar_symbols_index is None:
+                    similar_symbols_index = linked.create_similar_symbols_index()
                 similar_symbols = linked.find_similar_symbols(
-                    ref.scope, ref.name, ref.reference_type)
+                    ref.scope, ref.name, ref.reference_type, similar_symbols_index)
                 linked.diagnostics.undefined_symbol(
                     ref.range, refname, ref.reference_type, similar_symbols)
             for symbol in resolved:
@@ -9,8 +9,8 @@ from __future__ import annotations
 
 import re
 from pathlib import Path
-from typing import (Any, Callable, Collection, Dict, List, Optional, Sequence,
-                    Set, Tuple, Union)
+from typing import (Any, Callable, Dict, List, Optional, Sequence, Set,
+                    Tuple, Union)
 
 from .. import vscode
 from ..latex import parser
@@ -170,6 +170,9 @@ class TokenWithLocation:
 class IntermediateParser:
     " An object contains information about symbols, locations, imports of an stex source file. "
 
+    # Constructors of the parse tree types with a pattern that matches an environment name: Dict[EnvName, Constructors]
+    _constructors_by_env_name: Dict[str, Tuple[Callable[[parser.Environment], Any], ...]] = {}
+
     def __init__(self, path: Path):
         ' Creates an empty container without actually parsing the file. '
         # Path to the source file
@@ -178,41 +181,171 @@ class IntermediateParser:
         self.roots: List[IntermediateParseTree] = []
         # Buffer for exceptions raised during parsing
         self.errors: Dict[vscode.Location, List[Exception]] = {}
+        # The latex parser used to parse the file
+        self.latex_parser: Optional[parser.LatexParser] = None
+        # Parse trees created from latex environments
+        self.environment_trees: Dict[parser.Environment, IntermediateParseTree] = {}
 
-    def parse(self, content: str = None) -> IntermediateParser:
+    def parse(self, content: str = None, keep_tree: bool = False, backend: str = 'antlr') -> IntermediateParser:
         ''' Parse the file from the in the constructor given path.
 
         Parameters:
             content: Currently buffered content of the file that is supposed to be parsed.
+            keep_tree: Whether the latex parser keeps the text outside of environment arguments.
+                Only required if the latex syntax tree is reparsed or tokenized later.
+            backend: Backend of the latex parser. One of `parser.PARSER_BACKENDS`.
 
         Returns:
             self
         '''
         if self.roots:
             raise ValueError('File already parsed.')
-        subclass_constructors: Tuple[Callable[[parser.Environment], Any], ...] = tuple(
-            getattr(cls, 'from_environment')
-            for cls
-            in IntermediateParseTree.__subclasses__()
-            if hasattr(cls, 'from_environment')
-        )
         try:
-            latex_parser = parser.LatexParser(self.path)
-            latex_parser.parse(content)
-            stack: List[Tuple[Optional[parser.Environment], Callable]] = [
-                (None, self.roots.append)]
-            latex_parser.walk(
-                lambda env: self._enter(env, stack, subclass_constructors),
-                lambda env: self._exit(env, stack))
+            self.latex_parser = parser.LatexParser(self.path, keep_tree=keep_tree, backend=backend)
+            self.latex_parser.parse(content)
+            # The environments are listed in the order they are entered, so parents come before their children
+            for env in self.latex_parser.environments:
+                self._enter_environment(env)
         except (exceptions.CompilerError, parser.LatexException, UnicodeError, FileNotFoundError) as ex:
             self.errors.setdefault(self.default_location, []).append(ex)
         return self
 
+    def parse_nodes(
+            self,
+            nodes: List[parser.Node],
+            parent: Optional[IntermediateParseTree],
+            errors: Dict[vscode.Location, List[Exception]]) -> List[IntermediateParseTree]:
+        """ Creates the parse trees of nodes that were added to the latex syntax tree after the file was parsed.
+
+        Args:
+            nodes (List[parser.Node]): The new nodes.
+            parent (Optional[IntermediateParseTree]): The parse tree the nodes are located in. None if they are not inside any.
+            errors (Dict[vscode.Location, List[Exception]]): Errors that occur are added to this.
+
+        Returns:
+            List[IntermediateParseTree]: The parse trees that were added to `parent` or the roots.
+        """
+        trees: List[IntermediateParseTree] = []
+
+        def add_child(tree: IntermediateParseTree):
+            if parent is None:
+                self.roots.append(tree)
+            else:
+                parent.add_child(tree)
+            trees.append(tree)
+        stack: List[Tuple[Optional[parser.Environment], Callable]] = [(None, add_child)]
+        assert self.latex_parser is not None
+        for node in nodes:
+            self.latex_parser.walk(
+                lambda env: self._enter(env, stack, errors),
+                lambda env: self._exit(env, stack),
+                root=node)
+        return trees
+
+    def remove_nodes(self, nodes: List[parser.Node]) -> List[IntermediateParseTree]:
+        """ Removes the parse trees of the environments inside the given nodes.
+
+        Args:
+            nodes (List[parser.Node]): Nodes that were removed from the latex syntax tree.
+
+        Returns:
+            List[IntermediateParseTree]: The removed parse trees.
+        """
+        removed: List[IntermediateParseTree] = []
+
+        def remove(env: parser.Environment):
+            tree = self.environment_trees.pop(env, None)
+            if tree is None:
+                return
+            removed.append(tree)
+            if tree.parent is not None:
+                if tree in tree.parent.children:
+                    tree.parent.children.remove(tree)
+            elif tree in self.roots:
+                self.roots.remove(tree)
+        assert self.latex_parser is not None
+        for node in nodes:
+            self.latex_parser.walk(remove, root=node)
+        return removed
+
+    @classmethod
+    def _get_parse_tree_constructors(cls, env_name: str) -> Tuple[Callable[[parser.Environment], Any], ...]:
+        """ Returns the `from_environment` constructors of the parse tree types responsible for an environment name.
+
+        The constructors of types with a `PATTERN` that doesn't match the name would return None anyway and are left out.
+        The constructors are looked up once for each environment name.
+
+        Args:
+            env_name (str): Name of the environment.
+
+        Returns:
+            Tuple[Callable[[parser.Environment], Any], ...]: The constructors in the order they are tried out.
+        """
+        constructors = cls._constructors_by_env_name.get(env_name)
+        if constructors is None:
+            constructors = tuple(
+                getattr(subclass, 'from_environment')
+                for subclass
+                in IntermediateParseTree.__subclasses__()
+                if hasattr(subclass, 'from_environment')
+                and (not hasattr(subclass, 'PATTERN') or subclass.PATTERN.fullmatch(env_name))
+            )
+            cls._constructors_by_env_name[env_name] = constructors
+        return constructors
+
+    def _create_tree(
+            self,
+            env: parser.Environment,
+            errors: Dict[vscode.Location, List[Exception]] = None) -> Optional[IntermediateParseTree]:
+        """ Creates the parse tree of an environment.
+
+        Args:
+            env (parser.Environment): The environment.
+            errors (Dict[vscode.Location, List[Exception]], optional): Errors are added to this. Defaults to the errors of this parser.
+
+        Returns:
+            Optional[IntermediateParseTree]: The parse tree of the first constructor that does not return None.
+                None if the environment has no inpact on the final symbol structure and can be ignored or if
+                the responsible constructor raised an error.
+        """
+        try:
+            for from_environment in self._get_parse_tree_constructors(env.env_name):
+                tree: Optional[IntermediateParseTree] = from_environment(env)
+                if tree:
+                    self.environment_trees[env] = tree
+                    return tree
+        except exceptions.CompilerError as e:
+            # Reached if there exists a constructor that is responsible,
+            # but the construction of the parse tree could not be completed
+            if errors is None:
+                errors = self.errors
+            errors.setdefault(env.location, []).append(e)
+        return None
+
+    def _enter_environment(self, env: parser.Environment):
+        """ Creates the parse tree of an environment and adds it to the parse tree of the closest
+        parent environment that has one. The parent's parse tree must already have been created.
+
+        Args:
+            env (parser.Environment): The environment.
+        """
+        tree = self._create_tree(env)
+        if tree is None:
+            return
+        node = env.parent
+        while node is not None:
+            parent = self.environment_trees.get(node)
+            if parent is not None:
+                parent.add_child(tree)
+                return
+            node = node.parent
+        self.roots.append(tree)
+
     def _enter(
             self,
             env: parser.Environment,
             stack_of_add_child_operations: List[Tuple[Optional[parser.Environment], Callable]],
-            parse_tree_constructors: Collection[Callable[[parser.Environment], Any]]):
+            errors: Dict[vscode.Location, List[Exception]] = None):
         """ Handles entering an environment while walking through the from the parser generated syntax tree.
 
         Args:
@@ -220,37 +353,15 @@ class IntermediateParser:
             stack_of_add_child_operations (List[Tuple[Optional[parser.Environment], Callable]]): A stack that keeps track of
                 which environments are currently entered.
                 The top if this stack will be used to add the current environment to after it is parased.
-            parse_tree_constructors (Collection[Callable[[parser.Environment], Any]]): A collection of constructors
-                that generate a IntermediateParseTree subclass instance.
-                The first constructor that does not return None will be accepted the correct parsing of the given environment.
+            errors (Dict[vscode.Location, List[Exception]], optional): Errors are added to this. Defaults to the errors of this parser.
         """
-        try:
-            tree: Optional[IntermediateParseTree] = next(
-                filter(
-                    # Remove all constructors that returned None because it decided that the parsing of the environment is not it's job.
-                    None,
-                    # Try out all constructors on the current environment
-                    map(
-                        lambda from_environment: from_environment(env),
-                        parse_tree_constructors)
-                    # Return default None if there is no from_environment method
-                    # that is responsible for the parsing of this environment
-                    # This means that it is some other environment
-                    # that has no inpact on the final symbol structure and can be ignored.
-                ), None)
-            if tree:
-                # Get the top stack operation and add this tree as a child
-                if stack_of_add_child_operations[-1]:
-                    stack_of_add_child_operations[-1][1](tree)
-                # Add this parse tree's add_child operation to the top
-                stack_of_add_child_operations.append((env, tree.add_child))
-                return
-            # If this is reached, then the environment will be ignored because it does not have a
-            # valid constructor
-        except exceptions.CompilerError as e:
-            # Reached if there exists a constructor that is responsible,
-            # but the construction of the parse tree could not be completed
-            self.errors.setdefault(env.location, []).append(e)
+        tree = self._create_tree(env, errors)
+        if tree:
+            # Get the top stack operation and add this tree as a child
+            if stack_of_add_child_operations[-1]:
+                stack_of_add_child_operations[-1][1](tree)
+            # Add this parse tree's add_child operation to the top
+            stack_of_add_child_operations.append((env, tree.add_child))
 
     def _exit(self, env, stack_of_add_child_operations: List[Tuple[Optional[parser.Environment], Callable]]):
         if stack_of_add_child_operations[-1][0] == env:
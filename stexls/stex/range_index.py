@@ -0,0 +1,165 @@
+""" This module contains an index of ranges, that finds all ranges containing a position.
+
+The index is a centered interval tree stored in flat arrays,
+so that it can be serialized as is and does not need to be built again after loading.
+"""
+from __future__ import annotations
+
+import struct
+from array import array
+from typing import Generic, List, Sequence, TypeVar
+
+from .. import vscode
+
+__all__ = ['RangeIndex']
+
+
+T = TypeVar('T')
+
+
+def _key(position: vscode.Position) -> int:
+    ' Converts a position to an integer, that is ordered like the position. '
+    return (position.line << 32) | position.character
+
+
+class RangeIndex(Generic[T]):
+    """ Static interval tree over the ranges of a list of items.
+
+    Every node of the tree has a center. The ranges containing the center are stored in the node twice,
+    once sorted by their begin and once sorted by their end. Ranges that end before the center are
+    stored in the left subtree and ranges that begin after it in the right subtree.
+    A point query visits one node per level and only reads ranges that contain the point,
+    which takes O(log n + k) for k results.
+    """
+    # Number of items, number of nodes
+    COUNTS = struct.Struct('<II')
+
+    def __init__(self, items: Sequence[T], ranges: Sequence[vscode.Range]):
+        """ Builds the index.
+
+        Parameters:
+            items: The indexed items.
+            ranges: The range of each item.
+        """
+        assert len(items) == len(ranges)
+        self.items: List[T] = list(items)
+        # Range of each item as begin and end keys
+        self._begins = array('q', (_key(range.start) for range in ranges))
+        self._ends = array('q', (_key(range.end) for range in ranges))
+        # Nodes: center, index of left and right child (-1 if none), offset and number of ranges in _by_begin and _by_end
+        self._centers = array('q')
+        self._lefts = array('i')
+        self._rights = array('i')
+        self._offsets = array('I')
+        self._counts = array('I')
+        # Item indices of each node, sorted by begin ascending and by end descending
+        self._by_begin = array('I')
+        self._by_end = array('I')
+        if self.items:
+            self._build(list(range(len(self.items))))
+
+    def _build(self, indices: List[int]) -> int:
+        ' Builds the subtree of the item indices and returns the index of it\'s root node. '
+        endpoints = sorted(self._begins[i] for i in indices)
+        center = endpoints[len(endpoints) // 2]
+        left = [i for i in indices if self._ends[i] < center]
+        right = [i for i in indices if self._begins[i] > center]
+        overlapping = [i for i in indices if self._begins[i] <= center <= self._ends[i]]
+        node = len(self._centers)
+        self._centers.append(center)
+        self._lefts.append(-1)
+        self._rights.append(-1)
+        self._offsets.append(len(self._by_begin))
+        self._counts.append(len(overlapping))
+        self._by_begin.extend(sorted(overlapping, key=lambda i: self._begins[i]))
+        self._by_end.extend(sorted(overlapping, key=lambda i: -self._ends[i]))
+        if left:
+            self._lefts[node] = self._build(left)
+        if right:
+            self._rights[node] = self._build(right)
+        return node
+
+    def query(self, position: vscode.Position) -> List[T]:
+        ''' Finds all items with a range that contains the position.
+
+        Parameters:
+            position: The position.
+
+        Returns:
+            The items in the order they were given to the constructor.
+        '''
+        key = _key(position)
+        found: List[int] = []
+        node = 0 if self._centers else -1
+        while node >= 0:
+            offset, count = self._offsets[node], self._counts[node]
+            center = self._centers[node]
+            if key < center:
+                # All ranges of the node end at or after the center: They contain the key if they begin before it
+                for i in self._by_begin[offset:offset + count]:
+                    if self._begins[i] > key:
+                        break
+                    found.append(i)
+                node = self._lefts[node]
+            elif key > center:
+                for i in self._by_end[offset:offset + count]:
+                    if self._ends[i] < key:
+                        break
+                    found.append(i)
+                node = self._rights[node]
+            else:
+                found.extend(self._by_begin[offset:offset + count])
+                break
+        return [self.items[i] for i in sorted(found)]
+
+    def __len__(self) -> int:
+        return len(self.items)
+
+    def to_bytes(self) -> bytes:
+        ' Serializes the tree without the items. '
+        return b''.join((
+            self.COUNTS.pack(len(self.items), len(self._centers)),
+            self._begins.tobytes(), self._ends.tobytes(),
+            self._centers.tobytes(), self._lefts.tobytes(), self._rights.tobytes(),
+            self._offsets.tobytes(), self._counts.tobytes(),
+            self._by_begin.tobytes(), self._by_end.tobytes(),
+        ))
+
+    @classmethod
+    def from_bytes(cls, items: Sequence[T], data: bytes) -> RangeIndex[T]:
+        ''' Restores an index serialized with `to_bytes`.
+
+        Parameters:
+            items: The items in the same order as when the index was built.
+            data: The serialized tree.
+
+        Raises:
+            ValueError: If the data is corrupted or does not match the items.
+        '''
+        num_items, num_nodes = cls.COUNTS.unpack_from(data)
+        if num_items != len(items):
+            raise ValueError('Range index does not match the items.')
+        index: RangeIndex[T] = cls.__new__(cls)
+        index.items = list(items)
+        offset = cls.COUNTS.size
+
+        def read(typecode: str, length: int) -> array:
+            nonlocal offset
+            values = array(typecode)
+            size = values.itemsize * length
+            if offset + size > len(data):
+                raise ValueError('Unexpected end of range index.')
+            values.frombytes(data[offset:offset + size])
+            offset += size
+            return values
+        index._begins = read('q', num_items)
+        index._ends = read('q', num_items)
+        index._centers = read('q', num_nodes)
+        index._lefts = read('i', num_nodes)
+        index._rights = read('i', num_nodes)
+        index._offsets = read('I', num_nodes)
+        index._counts = read('I', num_nodes)
+        num_stored = sum(index._counts)
+        index._by_begin = read('I', num_stored)
+        index._by_end = read('I', num_stored)
+        return index
@@ -0,0 +1,162 @@
+""" This module contains an inverted index from symbol definitions to the references that resolve to them.
+
+References of linked objects are indexed by the location of the symbols they resolved to.
+References of objects that were compiled but not linked yet, are indexed by name and
+matched against the name under which the symbol is usually referenced.
+The body of unlinked objects is only loaded if the object's file is able to reference the queried symbols,
+so a query costs time linear in the number of unlinked files that import the files of the symbols.
+"""
+from pathlib import Path
+from typing import Dict, Iterable, List, Optional, Set, Tuple
+
+from .. import vscode
+from . import symbols
+from .compiler import StexObject
+from .references import Reference
+
+__all__ = ['ReferenceIndex']
+
+
+class ReferenceIndex:
+    ' Index of the references of all buffered objects. '
+
+    def __init__(self):
+        # Resolved references: Dict[DefinitionLocation, Dict[File, List[ReferenceRange]]]
+        self._resolved: Dict[vscode.Location, Dict[Path, List[vscode.Range]]] = dict()
+        # Definitions the references of each linked file resolved to: Dict[File, Set[DefinitionLocation]]
+        self._resolved_definitions: Dict[Path, Set[vscode.Location]] = dict()
+        # References of unlinked objects: Dict[Name, Dict[File, List[Reference]]]
+        self._unresolved: Dict[Tuple[str, ...], Dict[Path, List[Reference]]] = dict()
+        # Names of the unresolved references of each file: Dict[File, Set[Name]]
+        self._unresolved_names: Dict[Path, Set[Tuple[str, ...]]] = dict()
+        # Creation time of the last unlinked object of each file
+        self._creation_times: Dict[Path, float] = dict()
+        # Unlinked objects that are indexed when the index is queried the next time
+        self._pending: Dict[Path, StexObject] = dict()
+
+    def add_unlinked(self, obj: StexObject):
+        ''' Indexes the references of an object that was compiled or loaded.
+
+        If the object was already added before, nothing changes.
+        Otherwise all references of the file are replaced by the unresolved references of the object.
+        The object's references are read the next time the index is queried,
+        so that the body of lazy objects is only loaded if required.
+
+        Parameters:
+            obj: The unlinked object.
+        '''
+        if self._creation_times.get(obj.file) == obj.creation_time:
+            return
+        self._creation_times[obj.file] = obj.creation_time
+        self._remove_resolved(obj.file)
+        self._remove_unresolved(obj.file)
+        self._pending[obj.file] = obj
+
+    def add_linked(self, linked: StexObject):
+        ''' Replaces the references of the file with the resolved references of a linked object.
+
+        Parameters:
+            linked: Object after `Linker.validate_object_references` resolved it's references.
+        '''
+        self._pending.pop(linked.file, None)
+        self._remove_resolved(linked.file)
+        self._remove_unresolved(linked.file)
+        definitions = self._resolved_definitions.setdefault(linked.file, set())
+        for ref in linked.references:
+            for symbol in ref.resolved_symbols:
+                definitions.add(symbol.location)
+                self._resolved.setdefault(
+                    symbol.location, {}).setdefault(linked.file, []).append(ref.range)
+
+    def remove(self, file: Path):
+        ''' Removes all references of the file.
+
+        Parameters:
+            file: File without object.
+        '''
+        self._pending.pop(file, None)
+        self._creation_times.pop(file, None)
+        self._remove_resolved(file)
+        self._remove_unresolved(file)
+
+    def find_references(
+            self,
+            definitions: Iterable[symbols.Symbol],
+            files: Optional[Set[Path]] = None) -> List[vscode.Location]:
+        ''' Finds the locations of all references to any of the symbols.
+
+        Parameters:
+            definitions: The referenced symbols.
+            files: Files which are able to reference the symbols, usually the files of the symbols
+                and the files that import them. References of unlinked objects are only searched in these files.
+                If None, the references of all unlinked objects are searched.
+
+        Returns:
+            List of locations of references. Every reference is included only once.
+        '''
+        self._index_pending(files)
+        found: Set[Tuple[Path, vscode.Range]] = set()
+        locations: List[vscode.Location] = []
+
+        def add(file: Path, range: vscode.Range):
+            if (file, range) not in found:
+                found.add((file, range))
+                locations.append(vscode.Location(file.as_uri(), range))
+        for symbol in definitions:
+            for file, ranges in self._resolved.get(symbol.location, {}).items():
+                for range in ranges:
+                    add(file, range)
+            for file, refs in self._unresolved.get(self._get_reference_name(symbol), {}).items():
+                if files is not None and file not in files:
+                    # References of the same name, which resolve to a symbol of another module
+                    continue
+                for ref in refs:
+                    if symbol.reference_type in ref.reference_type:
+                        add(file, ref.range)
+        return locations
+
+    @staticmethod
+    def _get_reference_name(symbol: symbols.Symbol) -> Tuple[str, ...]:
+        ''' Gets the name references usually use to reference the symbol.
+        The name of a module is referenced directly, other symbols by the name of the module or binding they are defined in
+        followed by the name of the symbol.
+        '''
+        if not isinstance(symbol, symbols.ModuleSymbol):
+            parent = symbol.parent
+            while parent is not None and not isinstance(parent, (symbols.ModuleSymbol, symbols.BindingSymbol)):
+                parent = parent.parent
+            if parent is not None:
+                return (parent.name, symbol.name)
+        return (symbol.name,)
+
+    def _index_pending(self, files: Optional[Set[Path]] = None):
+        ''' Indexes the references of pending unlinked objects by their name.
+
+        Parameters:
+            files: Only the pending objects of these files are indexed, if given.
+        '''
+        if files is None:
+            pending = list(self._pending)
+        else:
+            pending = [file for file in files if file in self._pending]
+        for file in pending:
+            obj = self._pending.pop(file)
+            names = self._unresolved_names.setdefault(file, set())
+            for ref in obj.references:
+                name = ref.name[-2:]
+                names.add(name)
+                self._unresolved.setdefault(name, {}).setdefault(file, []).append(ref)
+
+    def _remove_resolved(self, file: Path):
+        for location in self._resolved_definitions.pop(file, ()):
+            files = self._resolved[location]
+            del files[file]
+            if not files:
+                del self._resolved[location]
+
+    def _remove_unresolved(self, file: Path):
+        for name in self._unresolved_names.pop(file, ()):
+            files = self._unresolved[name]
+            del files[file]
+            if not files:
+                del self._unresolved[name]
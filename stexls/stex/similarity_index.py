@@ -0,0 +1,197 @@
+""" This module contains an index that suggests names similar to misspelled names.
+
+Names are indexed by their trigrams. Instead of comparing a misspelled name with every known name,
+only the names that share the most trigrams relative to their length are compared using the same
+similarity measure as `difflib.get_close_matches`.
+
+Short names may be similar without sharing a single trigram, e.g. "sat" and "set".
+They are therefore compared with every name of a length that can be similar enough.
+Queries for short names give the same result as `difflib.get_close_matches`,
+queries for longer names miss only names that share few trigrams with them.
+"""
+import difflib
+import heapq
+import itertools
+from collections import Counter
+from typing import (Callable, Dict, Generic, Iterator, List, Optional, Set,
+                    Tuple, TypeVar)
+
+__all__ = ['SimilarityIndex']
+
+
+T = TypeVar('T')
+
+# Names up to this length are always compared with every name of a similar length
+SHORT_NAME_LENGTH = 4
+
+
+def _trigrams(name: str) -> Set[str]:
+    ' Returns the trigrams of the name padded with one null character on both sides. '
+    padded = f'\0{name}\0'
+    return {padded[i:i + 3] for i in range(len(padded) - 2)}
+
+
+class SimilarityIndex(Generic[T]):
+    ' Maps names to values and finds the values of names similar to a given name. '
+
+    def __init__(self, max_candidates: int = 32):
+        """ Initializes an empty index.
+
+        Parameters:
+            max_candidates: Number of names sharing the most trigrams with the queried name,
+                which are compared to it.
+        """
+        self.max_candidates = max_candidates
+        # Values of each name
+        self._values: Dict[str, List[T]] = {}
+        # Names with each trigram
+        self._names: Dict[str, Set[str]] = {}
+        # Names with each length
+        self._lengths: Dict[int, Set[str]] = {}
+        # Number of times each character occurs in the names of each length: Dict[(Char, Length), Dict[Name, Count]]
+        self._chars: Dict[Tuple[str, int], Dict[str, int]] = {}
+
+    def add(self, name: str, value: T):
+        ''' Adds a value under the name.
+
+        Parameters:
+            name: The name.
+            value: A value of the name. A name can have multiple values.
+        '''
+        values = self._values.get(name)
+        if values is None:
+            values = self._values[name] = []
+            for trigram in _trigrams(name):
+                self._names.setdefault(trigram, set()).add(name)
+            self._lengths.setdefault(len(name), set()).add(name)
+            for char, count in Counter(name).items():
+                self._chars.setdefault((char, len(name)), {})[name] = count
+        values.append(value)
+
+    def remove(self, name: str, value: T):
+        ''' Removes a value previously added under the name.
+
+        Raises:
+            ValueError: If the value wasn't added under the name.
+        '''
+        values = self._values.get(name)
+        if values is None:
+            raise ValueError(f'Name not indexed: {name}')
+        values.remove(value)
+        if not values:
+            del self._values[name]
+            for trigram in _trigrams(name):
+                names = self._names[trigram]
+                names.discard(name)
+                if not names:
+                    del self._names[trigram]
+            names = self._lengths[len(name)]
+            names.discard(name)
+            if not names:
+                del self._lengths[len(name)]
+            for char in set(name):
+                counts = self._chars[char, len(name)]
+                del counts[name]
+                if not counts:
+                    del self._chars[char, len(name)]
+
+    def __len__(self) -> int:
+        return len(self._values)
+
+    def find_similar(
+            self,
+            name: str,
+            accept: Optional[Callable[[T], bool]] = None,
+            n: int = 3,
+            cutoff: float = 0.6) -> List[Tuple[str, List[T]]]:
+        ''' Finds names similar to the name.
+
+        Parameters:
+            name: The name to find similar names for.
+            accept: Optional filter for the values. Names without accepted values are ignored.
+            n: Maximum number of similar names.
+            cutoff: Minimum similarity in [0, 1] of similar names.
+
+        Returns:
+            List of similar names with their accepted values, beginning with the most similar name.
+        '''
+        matcher = difflib.SequenceMatcher()
+        matcher.set_seq2(name)
+        scored: List[Tuple[float, str]] = []
+        accepted_values: Dict[str, List[T]] = {}
+
+        def compare(other: str) -> bool:
+            ' Scores the other name if it is accepted. Returns False if it can not be similar enough. '
+            values = self._values[other]
+            if accept is not None:
+                values = list(filter(accept, values))
+                if not values:
+                    return False
+            accepted_values[other] = values
+            # Same checks as difflib.get_close_matches
+            matcher.set_seq1(other)
+            if matcher.real_quick_ratio() < cutoff or matcher.quick_ratio() < cutoff:
+                return False
+            ratio = matcher.ratio()
+            if ratio >= cutoff:
+                scored.append((ratio, other))
+            return True
+
+        if len(name) <= SHORT_NAME_LENGTH:
+            # Similar names may share no trigram: Compare with every name that has enough characters in common
+            for other in self._common_characters(name, cutoff):
+                compare(other)
+        else:
+            # Short names may share no trigram with the name
+            for other in self._common_characters(name, cutoff, SHORT_NAME_LENGTH):
+                compare(other)
+            shared = Counter(itertools.chain.from_iterable(
+                self._names.get(trigram, ()) for trigram in _trigrams(name)))
+            compared = 0
+            for other in self._order_candidates(name, shared):
+                if compared >= self.max_candidates:
+                    break
+                if len(other) > SHORT_NAME_LENGTH:
+                    compare(other)
+                    compared += 1
+        return [(other, accepted_values[other]) for _, other in heapq.nlargest(n, scored)]
+
+    def _common_characters(self, name: str, cutoff: float, max_length: Optional[int] = None) -> Iterator[str]:
+        ''' Yields the names that have enough characters in common with the name to be similar enough.
+        Same as `real_quick_ratio` and `quick_ratio`, but only the names with common characters are looked at.
+        If `max_length` is given, only names up to that length are yielded.
+        '''
+        counts = Counter(name)
+        for length, names in self._lengths.items():
+            if max_length is not None and length > max_length:
+                continue
+            total = len(name) + length
+            if total == 0 or cutoff <= 0:
+                yield from names
+                continue
+            if 2.0 * min(len(name), length) / total < cutoff:
+                continue
+            common: Dict[str, int] = {}
+            for char, count in counts.items():
+                for other, other_count in self._chars.get((char, length), {}).items():
+                    common[other] = common.get(other, 0) + min(count, other_count)
+            for other, matches in common.items():
+                if 2.0 * matches / total >= cutoff:
+                    yield other
+
+    def _order_candidates(self, name: str, shared: Dict[str, int]) -> Iterator[str]:
+        ''' Orders the names by the fraction of their trigrams shared with the name and then alphabetically.
+        Only the names likely to be compared are sorted, unless many of them are not accepted.
+        '''
+        scores = {other: 2 * count / (len(name) + len(other)) for other, count in shared.items()}
+
+        def order(names: List[Tuple[str, float]]) -> Iterator[str]:
+            names.sort(key=lambda item: (-item[1], item[0]))
+            return (other for other, _ in names)
+        limit = 4 * self.max_candidates
+        if len(scores) <= limit:
+            yield from order(list(scores.items()))
+            return
+        threshold = heapq.nlargest(limit, scores.values())[-1]
+        yield from order([item for item in scores.items() if item[1] >= threshold])
+        yield from order([item for item in scores.items() if item[1] < threshold])
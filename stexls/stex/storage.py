@@ -0,0 +1,617 @@
+""" This module contains the storage backends the compiler uses to persist compiled objects.
+
+A storage maps a key (usually the posix path of the source file an object was compiled from)
+to a chunk of serialized bytes. Serialization itself is done by the compiler, a storage
+only has to remember the bytes and the time at which they were written.
+
+Two backends are available:
+
+`DirectoryObjectStorage` stores every object in it's own file inside
+`<outdir>/<sha1(parent)>/<name><extension>`. This is the layout the compiler always used.
+The parent of the keys is written to a `.parent` file in each directory, so that the keys can be listed.
+
+`PackedObjectStorage` appends all objects to a single pack file inside the outdir.
+An offset index is kept in memory and written to disk next to the pack, the pack itself
+is read through a memory map. Superseded records are reclaimed by compacting the pack
+into a new file, which atomically replaces the old one. Multiple processes may share the
+same pack, writes are serialized with an advisory file lock.
+"""
+from __future__ import annotations
+
+import json
+import logging
+import mmap
+import os
+import struct
+import tempfile
+import threading
+import uuid
+import zlib
+from hashlib import sha1
+from pathlib import Path, PurePosixPath
+from time import time
+from typing import Dict, Iterator, List, Optional, Tuple
+
+try:
+    import fcntl
+except ImportError:  # pragma: no cover
+    fcntl = None
+
+log = logging.getLogger(__name__)
+
+__all__ = [
+    'ObjectStorage',
+    'DirectoryObjectStorage',
+    'PackedObjectStorage',
+    'open_object_storage',
+    'OBJECT_STORAGE_BACKENDS',
+]
+
+
+class ObjectStorage:
+    ' Interface for key to bytes storages used to persist compiled objects. '
+
+    def read(self, key: str, size: Optional[int] = None) -> Optional[bytes]:
+        ''' Reads the data stored for the key.
+
+        Parameters:
+            key: Key of the data.
+            size: If given, at most this many bytes from the beginning of the data are read.
+
+        Returns:
+            The stored bytes or None if nothing is stored for the key.
+        '''
+        raise NotImplementedError()
+
+    def write(self, key: str, data: bytes):
+        ''' Stores the data under the key, replacing previously stored data.
+
+        Parameters:
+            key: Key of the data.
+            data: Bytes to store.
+        '''
+        raise NotImplementedError()
+
+    def remove(self, key: str) -> bool:
+        ''' Removes the data stored for the key.
+
+        Returns:
+            True if something was removed.
+        '''
+        raise NotImplementedError()
+
+    def time_written(self, key: str) -> Optional[float]:
+        ''' Returns the time at which the data of the key was last written or None if not stored. (Range of time.time()) '''
+        raise NotImplementedError()
+
+    def keys(self) -> Iterator[str]:
+        ' Iterates over all stored keys. '
+        raise NotImplementedError()
+
+    def clear(self):
+        ' Removes everything from the storage. '
+        raise NotImplementedError()
+
+    def flush(self):
+        ' Persists buffered information. '
+        pass
+
+    def close(self):
+        ' Flushes and releases all resources held by the storage. '
+        self.flush()
+
+    def __contains__(self, key: str) -> bool:
+        return self.time_written(key) is not None
+
+
+class DirectoryObjectStorage(ObjectStorage):
+    ' Stores every object in a separate file: `<outdir>/<sha1(parent)>/<name><extension>`. '
+    # Name of the file inside each directory, which contains the parent of the keys stored in the directory
+    PARENT_FILE = '.parent'
+
+    def __init__(self, outdir: Path, extension: str = '.stexobj'):
+        """ Creates a directory storage.
+
+        Parameters:
+            outdir: Directory into which the object files will be written.
+            extension: Extension appended to the name of the key.
+        """
+        self.outdir = Path(outdir)
+        self.extension = extension
+
+    def get_path(self, key: str) -> Path:
+        ''' Gets the path at which the data for the key is stored.
+
+        Parameters:
+            key: Posix path of the source file.
+
+        Returns:
+            Path to the objectfile.
+        '''
+        path = PurePosixPath(key)
+        sha = sha1(path.parent.as_posix().encode()).hexdigest()
+        return self.outdir / sha / (path.name + self.extension)
+
+    def read(self, key: str, size: Optional[int] = None) -> Optional[bytes]:
+        try:
+            with open(self.get_path(key), 'rb') as fd:
+                return fd.read(-1 if size is None else size)
+        except (FileNotFoundError, IsADirectoryError):
+            return None
+
+    def write(self, key: str, data: bytes):
+        path = self.get_path(key)
+        path.parent.mkdir(parents=True, exist_ok=True)
+        parent_file = path.parent / self.PARENT_FILE
+        if not parent_file.is_file():
+            parent_file.write_text(PurePosixPath(key).parent.as_posix())
+        # Write to a temporary file first, so that readers never see partially written objects
+        fd, tmp = tempfile.mkstemp(dir=path.parent, prefix='.', suffix='.tmp')
+        try:
+            with os.fdopen(fd, 'wb') as f:
+                f.write(data)
+            os.replace(tmp, path)
+        except BaseException:
+            try:
+                os.unlink(tmp)
+            except OSError:
+                pass
+            raise
+
+    def remove(self, key: str) -> bool:
+        try:
+            self.get_path(key).unlink()
+            return True
+        except FileNotFoundError:
+            return False
+
+    def time_written(self, key: str) -> Optional[float]:
+        try:
+            return self.get_path(key).lstat().st_mtime
+        except FileNotFoundError:
+            return None
+
+    def keys(self) -> Iterator[str]:
+        # Directories written by older versions have no parent file: Their keys can't be recovered
+        for parent_file in self.outdir.glob('*/' + self.PARENT_FILE):
+            try:
+                parent = PurePosixPath(parent_file.read_text())
+            except OSError:
+                continue
+            for objectfile in parent_file.parent.glob('*' + self.extension):
+                yield (parent / objectfile.name[:-len(self.extension)]).as_posix()
+
+    def clear(self):
+        files = set(
+            objectfile
+            for objectfile
+            in self.outdir.glob('*/*' + self.extension)
+            if objectfile.is_file()
+        )
+        for objectfile in files:
+            log.debug('UNLINK "%s"', str(objectfile))
+            objectfile.unlink()
+        directories = set(
+            objectfile.parent
+            for objectfile in files
+        )
+        for directory in directories:
+            if directory.is_dir() and all(path.name == self.PARENT_FILE for path in directory.iterdir()):
+                log.debug('RMDIR "%s"', str(directory))
+                try:
+                    if (directory / self.PARENT_FILE).is_file():
+                        (directory / self.PARENT_FILE).unlink()
+                    directory.rmdir()
+                except OSError:
+                    log.exception(
+                        'Failed to remove supposedly empty objectfile cache directory: %s', str(directory))
+
+
+class _FileLock:
+    ' Advisory inter-process lock using flock() on a separate lockfile. '
+
+    def __init__(self, path: Path):
+        self.path = path
+        self._fd: Optional[int] = None
+        self._depth = 0
+
+    def __enter__(self):
+        if self._depth == 0:
+            self._fd = os.open(self.path, os.O_RDWR | os.O_CREAT, 0o644)
+            if fcntl is not None:
+                fcntl.flock(self._fd, fcntl.LOCK_EX)
+        self._depth += 1
+        return self
+
+    def __exit__(self, *args):
+        self._depth -= 1
+        if self._depth == 0 and self._fd is not None:
+            try:
+                if fcntl is not None:
+                    fcntl.flock(self._fd, fcntl.LOCK_UN)
+            finally:
+                os.close(self._fd)
+                self._fd = None
+
+
+class PackedObjectStorage(ObjectStorage):
+    """ Stores all objects in a single append-only pack file.
+
+    Layout of the pack file:
+        Header: MAGIC + 16 byte generation id
+        Records: RECORD_HEADER + utf-8 key + data
+
+    A record header contains the flags (tombstone or not), length of key and data,
+    the time the record was written and a crc32 of key and data. Records which are
+    incomplete or fail the checksum mark the end of the pack. Newer records of the same
+    key supersede older ones.
+
+    The offset index is kept in memory and is persisted as json next to the pack file.
+    The persisted index is only a hint: Records appended after the index was written
+    are recovered by scanning the tail of the pack. Compaction writes a new pack
+    with a new generation id, which invalidates all indices of the old generation.
+    """
+    MAGIC = b'STEXPAK1'
+    HEADER = struct.Struct('<8s16s')
+    RECORD_MAGIC = b'SR'
+    RECORD_HEADER = struct.Struct('<2sBIIdI')
+    TOMBSTONE = 1
+
+    def __init__(
+            self,
+            outdir: Path,
+            name: str = 'objects',
+            compaction_min_garbage_bytes: int = 4 * 1024 * 1024,
+            compaction_garbage_ratio: float = 0.5,
+            index_flush_interval: int = 128):
+        """ Opens or creates a pack inside outdir.
+
+        Parameters:
+            outdir: Directory of the pack.
+            name: Name of the pack. The files <name>.pack, <name>.idx and <name>.lock will be created.
+            compaction_min_garbage_bytes: Number of unreachable bytes in the pack required before compaction is considered.
+            compaction_garbage_ratio: Compaction is done when the unreachable bytes make up more than this ratio of the pack.
+            index_flush_interval: The index is persisted after this many writes or when flush() is called.
+        """
+        self.outdir = Path(outdir)
+        self.name = name
+        self.pack_path = self.outdir / (name + '.pack')
+        self.index_path = self.outdir / (name + '.idx')
+        self.lock_path = self.outdir / (name + '.lock')
+        self.compaction_min_garbage_bytes = compaction_min_garbage_bytes
+        self.compaction_garbage_ratio = compaction_garbage_ratio
+        self.index_flush_interval = index_flush_interval
+        self._reset()
+
+    def _reset(self):
+        # Map of key to (offset of data, length of data, time written)
+        self._index: Dict[str, Tuple[int, int, float]] = {}
+        # Generation id of the currently opened pack
+        self._generation: Optional[bytes] = None
+        # Offset up to which the pack was scanned
+        self._scanned = 0
+        # Number of bytes in the pack which belong to superseded or removed records
+        self._garbage = 0
+        # Number of writes since the index was last persisted
+        self._unflushed = 0
+        self._fd: Optional[int] = None
+        self._inode: Optional[int] = None
+        self._mmap: Optional[mmap.mmap] = None
+        # The file lock serializes writers of different processes,
+        # the mutex serializes threads of this process.
+        self._lock = _FileLock(self.lock_path)
+        self._mutex = threading.RLock()
+
+    def __getstate__(self):
+        # File descriptors and maps can't be shared with other processes:
+        # The receiving process opens the pack by itself.
+        return {
+            'outdir': self.outdir,
+            'name': self.name,
+            'pack_path': self.pack_path,
+            'index_path': self.index_path,
+            'lock_path': self.lock_path,
+            'compaction_min_garbage_bytes': self.compaction_min_garbage_bytes,
+            'compaction_garbage_ratio': self.compaction_garbage_ratio,
+            'index_flush_interval': self.index_flush_interval,
+        }
+
+    def __setstate__(self, state):
+        self.__dict__.update(state)
+        self._reset()
+
+    def _close_handles(self):
+        if self._mmap is not None:
+            self._mmap.close()
+            self._mmap = None
+        if self._fd is not None:
+            os.close(self._fd)
+            self._fd = None
+        self._inode = None
+
+    def _create(self):
+        ' Atomically creates a new empty pack with a new generation. Requires the lock. '
+        fd, tmp = tempfile.mkstemp(dir=self.outdir, prefix='.' + self.name, suffix='.tmp')
+        with os.fdopen(fd, 'wb') as f:
+            f.write(self.HEADER.pack(self.MAGIC, uuid.uuid4().bytes))
+            f.flush()
+            os.fsync(f.fileno())
+        os.replace(tmp, self.pack_path)
+
+    def _open(self):
+        ' Makes sure the newest pack is opened and all records in it are indexed. '
+        try:
+            inode = os.stat(self.pack_path).st_ino
+        except FileNotFoundError:
+            self.outdir.mkdir(parents=True, exist_ok=True)
+            with self._lock:
+                if not self.pack_path.is_file():
+                    self._create()
+            inode = os.stat(self.pack_path).st_ino
+        if inode != self._inode:
+            # Opened for the first time or replaced by a compaction
+            self._close_handles()
+            self._index.clear()
+            self._garbage = 0
+            self._scanned = 0
+            self._unflushed = 0
+            self._fd = os.open(self.pack_path, os.O_RDWR)
+            self._inode = os.fstat(self._fd).st_ino
+            header = os.pread(self._fd, self.HEADER.size, 0)
+            if len(header) != self.HEADER.size or self.HEADER.unpack(header)[0] != self.MAGIC:
+                log.warning('Invalid object pack header, recreating: %s', self.pack_path)
+                with self._lock:
+                    self._create()
+                self._close_handles()
+                return self._open()
+            self._generation = self.HEADER.unpack(header)[1]
+            self._scanned = self.HEADER.size
+            self._load_index()
+        self._scan()
+
+    def _map(self, size: int) -> mmap.mmap:
+        ' Returns a map of the pack that is at least `size` bytes large. '
+        if self._mmap is None or len(self._mmap) < size:
+            if self._mmap is not None:
+                self._mmap.close()
+            self._mmap = mmap.mmap(self._fd, os.fstat(self._fd).st_size, access=mmap.ACCESS_READ)
+        return self._mmap
+
+    def _load_index(self):
+        ' Loads the persisted index of the current generation if it exists. '
+        try:
+            with open(self.index_path, 'r') as fd:
+                index = json.load(fd)
+            if index['generation'] != self._generation.hex():
+                return
+            size = os.fstat(self._fd).st_size
+            if index['scanned'] > size:
+                return
+            self._index = {
+                key: (offset, length, written)
+                for key, (offset, length, written)
+                in index['entries'].items()
+            }
+            self._garbage = index['garbage']
+            self._scanned = index['scanned']
+        except (FileNotFoundError, ValueError, KeyError, TypeError):
+            pass
+
+    def _scan(self) -> int:
+        ''' Indexes records appended to the pack since the last scan.
+
+        Returns:
+            Offset at which the last valid record ends.
+        '''
+        size = os.fstat(self._fd).st_size
+        if size <= self._scanned:
+            return self._scanned
+        mm = self._map(size)
+        offset = self._scanned
+        while offset + self.RECORD_HEADER.size <= size:
+            magic, flags, key_length, data_length, written, crc = self.RECORD_HEADER.unpack_from(
+                mm, offset)
+            begin = offset + self.RECORD_HEADER.size
+            end = begin + key_length + data_length
+            if magic != self.RECORD_MAGIC or end > size:
+                break
+            if zlib.crc32(mm[begin:end]) != crc:
+                break
+            key = mm[begin:begin+key_length].decode()
+            previous = self._index.pop(key, None)
+            if previous is not None:
+                self._garbage += previous[1] + len(key.encode()) + self.RECORD_HEADER.size
+            if flags & self.TOMBSTONE:
+                self._garbage += end - offset
+            else:
+                self._index[key] = (begin + key_length, data_length, written)
+            offset = end
+        self._scanned = offset
+        return offset
+
+    def _append(self, key: str, data: bytes, flags: int = 0):
+        ' Appends a record for key. '
+        self.outdir.mkdir(parents=True, exist_ok=True)
+        with self._lock:
+            self._open()
+            end = self._scan()
+            if os.fstat(self._fd).st_size > end:
+                # Remove partially written records left behind by crashed writers
+                log.warning('Truncating corrupted tail of object pack: %s', self.pack_path)
+                if self._mmap is not None:
+                    self._mmap.close()
+                    self._mmap = None
+                os.ftruncate(self._fd, end)
+            bkey = key.encode()
+            written = time()
+            record = self.RECORD_HEADER.pack(
+                self.RECORD_MAGIC, flags, len(bkey), len(data), written, zlib.crc32(bkey + data)) + bkey + data
+            view = memoryview(record)
+            offset = end
+            while view:
+                n = os.pwrite(self._fd, view, offset)
+                view = view[n:]
+                offset += n
+            self._scan()
+            self._unflushed += 1
+            if self._unflushed >= self.index_flush_interval:
+                self._write_index()
+            if self._compaction_required():
+                self.compact()
+
+    def _write_index(self):
+        ' Atomically persists the current index. Requires the lock. '
+        index = {
+            'generation': self._generation.hex(),
+            'scanned': self._scanned,
+            'garbage': self._garbage,
+            'entries': self._index,
+        }
+        fd, tmp = tempfile.mkstemp(dir=self.outdir, prefix='.' + self.name, suffix='.tmp')
+        try:
+            with os.fdopen(fd, 'w') as f:
+                json.dump(index, f)
+            os.replace(tmp, self.index_path)
+            self._unflushed = 0
+        except BaseException:
+            try:
+                os.unlink(tmp)
+            except OSError:
+                pass
+            raise
+
+    def _compaction_required(self) -> bool:
+        if self._garbage < self.compaction_min_garbage_bytes:
+            return False
+        return self._garbage > self.compaction_garbage_ratio * self._scanned
+
+    def compact(self):
+        ''' Rewrites the pack so that it only contains the newest record of every key.
+
+        The new pack replaces the old one atomically. Readers in other
+        processes notice the replacement the next time they access the storage.
+        '''
+        with self._mutex, self._lock:
+            self._open()
+            mm = self._map(self._scanned) if self._scanned > self.HEADER.size else None
+            generation = uuid.uuid4().bytes
+            fd, tmp = tempfile.mkstemp(dir=self.outdir, prefix='.' + self.name, suffix='.tmp')
+            index: Dict[str, Tuple[int, int, float]] = {}
+            try:
+                with os.fdopen(fd, 'wb') as f:
+                    f.write(self.HEADER.pack(self.MAGIC, generation))
+                    offset = self.HEADER.size
+                    for key, (data_offset, length, written) in sorted(self._index.items(), key=lambda x: x[1][0]):
+                        bkey = key.encode()
+                        data = mm[data_offset:data_offset+length]
+                        f.write(self.RECORD_HEADER.pack(
+                            self.RECORD_MAGIC, 0, len(bkey), length, written, zlib.crc32(bkey + data)))
+                        f.write(bkey)
+                        f.write(data)
+                        offset += self.RECORD_HEADER.size + len(bkey)
+                        index[key] = (offset, length, written)
+                        offset += length
+                    f.flush()
+                    os.fsync(f.fileno())
+                os.replace(tmp, self.pack_path)
+            except BaseException:
+                try:
+                    os.unlink(tmp)
+                except OSError:
+                    pass
+                raise
+            log.debug('Compacted object pack "%s": %i bytes freed', self.pack_path, self._garbage)
+            self._close_handles()
+            self._fd = os.open(self.pack_path, os.O_RDWR)
+            self._inode = os.fstat(self._fd).st_ino
+            self._generation = generation
+            self._index = index
+            self._scanned = offset
+            self._garbage = 0
+            self._write_index()
+
+    def read(self, key: str, size: Optional[int] = None) -> Optional[bytes]:
+        with self._mutex:
+            self._open()
+            entry = self._index.get(key)
+            if entry is None:
+                return None
+            offset, length, _ = entry
+            if size is not None:
+                length = min(length, size)
+            return self._map(offset + length)[offset:offset+length]
+
+    def write(self, key: str, data: bytes):
+        with self._mutex:
+            self._append(key, data)
+
+    def remove(self, key: str) -> bool:
+        with self._mutex:
+            self._open()
+            if key not in self._index:
+                return False
+            self._append(key, b'', flags=self.TOMBSTONE)
+            return True
+
+    def time_written(self, key: str) -> Optional[float]:
+        with self._mutex:
+            self._open()
+            entry = self._index.get(key)
+            return None if entry is None else entry[2]
+
+    def keys(self) -> Iterator[str]:
+        with self._mutex:
+            self._open()
+            return iter(list(self._index))
+
+    def clear(self):
+        with self._mutex:
+            self.outdir.mkdir(parents=True, exist_ok=True)
+            with self._lock:
+                self._close_handles()
+                self._create()
+                self._open()
+                self._write_index()
+
+    def flush(self):
+        with self._mutex:
+            if self._fd is None or not self._unflushed:
+                return
+            with self._lock:
+                self._open()
+                self._write_index()
+
+    def close(self):
+        with self._mutex:
+            self.flush()
+            self._close_handles()
+
+
+# Names of the available storage backends
+OBJECT_STORAGE_BACKENDS: List[str] = ['directory', 'packed']
+
+
+def open_object_storage(
+        outdir: Path,
+        backend: str = 'directory',
+        name: str = 'objects',
+        extension: str = '.stexobj') -> ObjectStorage:
+    ''' Creates the object storage for the given backend name.
+
+    Parameters:
+        outdir: Directory the storage uses.
+        backend: One of OBJECT_STORAGE_BACKENDS.
+        name: Name of the pack if the packed backend is used.
+        extension: Extension of objectfiles if the directory backend is used.
+
+    Returns:
+        The storage.
+
+    Raises:
+        ValueError: If the backend is unknown.
+    '''
+    if backend == 'directory':
+        return DirectoryObjectStorage(outdir, extension)
+    if backend == 'packed':
+        return PackedObjectStorage(outdir, name=name)
+    raise ValueError(f'Unknown object storage backend: {backend!r}')
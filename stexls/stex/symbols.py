@@ -22,6 +22,7 @@ __all__ = [
     'DefSymbol',
     'RootSymbol',
     'ScopeSymbol',
+    'SymbolLookupTable',
 ]
 
 
@@ -218,7 +219,8 @@ class Symbol:
         return False
 
     def shallow_copy(self) -> Symbol:
-        ' Creates a shallow copy of this symbol and it\'s parameterization. Does not create a copy of the symbol table! '
+        ''' Creates a shallow copy of this symbol and it's parameterization. Does not create a copy of the symbol table!
+        Locations are immutable and shared with the copy. '''
         raise NotImplementedError
 
     @property
@@ -438,7 +440,7 @@ class ModuleSymbol(Symbol):
         raise ValueError(self.module_type)
 
     def shallow_copy(self) -> ModuleSymbol:
-        cpy = ModuleSymbol(self.module_type, self.location.copy(), self.name)
+        cpy = ModuleSymbol(self.module_type, self.location, self.name)
         cpy.access_modifier = self.access_modifier
         return cpy
 
@@ -490,7 +492,7 @@ class DefSymbol(Symbol):
     def shallow_copy(self) -> DefSymbol:
         return DefSymbol(
             self.def_type,
-            self.location.copy(),
+            self.location,
             self.name,
             self.noverb,
             self.noverbs.copy(),
@@ -510,7 +512,7 @@ class BindingSymbol(Symbol):
         return self
 
     def shallow_copy(self) -> BindingSymbol:
-        cpy = BindingSymbol(self.location.copy(), self.name, self.lang)
+        cpy = BindingSymbol(self.location, self.name, self.lang)
         cpy.access_modifier = self.access_modifier
         return cpy
 
@@ -533,7 +535,7 @@ class RootSymbol(Symbol):
         return ()
 
     def shallow_copy(self):
-        return RootSymbol(self.location.copy())
+        return RootSymbol(self.location)
 
 
 class ScopeSymbol(Symbol):
@@ -562,6 +564,88 @@ class ScopeSymbol(Symbol):
         return f'[{self.access_modifier.name} Scope "{self.name}" at {self.location.range.start.format()}]'
 
     def shallow_copy(self) -> ScopeSymbol:
-        cpy = ScopeSymbol(self.location.copy(), name=self.name)
+        cpy = ScopeSymbol(self.location, name=self.name)
         cpy.access_modifier = self.access_modifier
         return cpy
+
+
+class SymbolLookupTable:
+    """ Answers `Symbol.lookup` queries of many scopes of the same symbol table.
+
+    For every scope the symbols visible from it are collected once by name from the scope and it's parents,
+    together with the module or binding they must be located in if they are outside of the lookup bounds.
+    Then every lookup starts with a single dictionary lookup instead of searching and filtering
+    the children of every parent.
+    The tables of a scope are created when it is looked up the first time and are not updated
+    if symbols are added to the symbol table afterwards.
+    """
+
+    def __init__(self, allow_lookup_through_module: bool = False):
+        """ Initializes empty tables.
+
+        Parameters:
+            allow_lookup_through_module: Same as in `Symbol.lookup`.
+        """
+        self.allow_lookup_through_module = allow_lookup_through_module
+        # Visible symbols of each scope: Dict[Scope, Dict[Name, List[Tuple[Symbol, Bound]]]]
+        # If the bound is not None, only the bound and it's children are visible through the symbol.
+        self._tables: Dict[Symbol, Dict[str, List[Tuple[Symbol, Optional[Symbol]]]]] = {}
+
+    def lookup(
+            self,
+            scope: Symbol,
+            identifier: Union[str, List[str], Tuple[str, ...]],
+            accepted_ref_type: Optional[ReferenceType] = None) -> List[Symbol]:
+        """ Looks up the identifier from the scope.
+
+        Parameters:
+            scope: The symbol `Symbol.lookup` would be called on.
+            identifier: Symbol identifier.
+            accepted_ref_type: Optional reference type. Others will be filtered out.
+
+        Returns:
+            The same symbols in the same order as `scope.lookup(identifier, accepted_ref_type)`.
+        """
+        if isinstance(identifier, str):
+            identifier = (identifier,)
+        identifier = tuple(identifier)
+        if not identifier:
+            return scope.lookup(
+                identifier, accepted_ref_type, allow_lookup_through_module=self.allow_lookup_through_module)
+        resolved: List[Symbol] = []
+        for child, bound in self._get_table(scope).get(identifier[0], ()):
+            for symbol in child.find(identifier[1:]):
+                if accepted_ref_type and symbol.reference_type not in accepted_ref_type:
+                    continue
+                if bound is not None and symbol is not bound and not bound.is_parent_of(symbol):
+                    continue
+                resolved.append(symbol)
+        return resolved
+
+    def _get_table(self, scope: Symbol) -> Dict[str, List[Tuple[Symbol, Optional[Symbol]]]]:
+        ' Gets the symbols visible from the scope by their name. '
+        table = self._tables.get(scope)
+        if table is not None:
+            return table
+        if scope.parent is not None and (
+                self.allow_lookup_through_module
+                or not isinstance(scope, (ModuleSymbol, BindingSymbol))):
+            # The parent is inside the bounds of the lookup: Everything visible from the parent is visible from the scope
+            parent_table = self._get_table(scope.parent)
+            table = dict(parent_table)
+            for name, children in scope.children.items():
+                table[name] = [(child, None) for child in children] + parent_table.get(name, [])
+        else:
+            # The scope is the outermost bound: Parents are only allowed to find symbols through the path to the scope
+            table = {
+                name: [(child, None) for child in children]
+                for name, children in scope.children.items()
+            }
+            below, parent = scope, scope.parent
+            while parent is not None:
+                if any(child is below for child in parent.children.get(below.name, ())):
+                    table.setdefault(below.name, []).append(
+                        (below, None if below is scope else scope))
+                below, parent = parent, parent.parent
+        self._tables[scope] = table
+        return table
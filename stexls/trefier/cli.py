@@ -0,0 +1,128 @@
+import logging
+import os
+from multiprocessing import Pool
+from pathlib import Path
+from typing import List, Optional
+
+from tqdm import tqdm
+
+from ..latex.parser import LatexParser
+from ..stex.storage import PackedObjectStorage
+from ..util.workspace import Workspace
+from .tag_cache import TagCache
+
+log = logging.getLogger(__name__)
+
+# State of the worker processes, created once by the initializer
+_worker_model = None
+_worker_cache: Optional[TagCache] = None
+_worker_parser_backend: str = 'antlr'
+
+
+def _initialize_worker(model_path: Path, tags_dir: Path, parser_backend: str):
+    ' Initializer of the worker processes: Every worker loads the model only once. '
+    global _worker_model, _worker_cache, _worker_parser_backend
+    from .models.seq2seq import Seq2SeqModel
+    _worker_model = Seq2SeqModel.load(model_path)
+    _worker_model.pos_tag_model.storage = PackedObjectStorage(tags_dir, name='pos')
+    _worker_cache = TagCache(PackedObjectStorage(tags_dir, name='tags'))
+    _worker_parser_backend = parser_backend
+
+
+def _tag_chunk(files: List[Path]) -> int:
+    ' Tags the files of a chunk inside a worker process. Returns the number of tagged files. '
+    parsers: List[LatexParser] = []
+    for file in files:
+        parser = LatexParser(file, backend=_worker_parser_backend)
+        try:
+            parser.parse()
+        except Exception:
+            log.exception('Failed to parse file: %s', file)
+            continue
+        parsers.append(parser)
+    if parsers:
+        _worker_cache.predict(_worker_model, *parsers)
+        _worker_cache.storage.flush()
+        _worker_model.pos_tag_model.storage.flush()
+    return len(parsers)
+
+
+def trefier_cache(
+        root: Optional[Path],
+        model: Optional[Path] = None,
+        num_jobs: int = 0,
+        batch_size: int = 16,
+        file_size_limit_kb: int = 50,
+        ignorefile: Optional[Path] = None,
+        parser_backend: str = 'antlr',
+        show_progress: bool = False,
+        loglevel: str = 'error',
+        logfile: Path = Path('stexls.log')):
+    """ Precomputes the trefier tags of all files in the workspace.
+
+    The tags are stored in `<root>/.stexls/tags`, where the language server
+    finds them the next time it tags the files.
+
+    Parameters:
+        root: Root of the workspace.
+        model: Path to the trefier model. If None, the model the language server uses is used.
+        num_jobs: Number of worker processes. Every worker loads it's own model. If 0, one worker per cpu is used.
+        batch_size: Number of files a worker tags at once.
+        file_size_limit_kb: Files larger than this are not tagged, like in the language server. 0 to tag all files.
+        ignorefile: Path to the ignorefile. If None, `root/.stexlsignore` will be used.
+        parser_backend: Backend used to parse latex files. Either "antlr" or "fast".
+        show_progress: Enables a progress bar being printed to stderr.
+        loglevel: Loglevel. Choices are critical, error, warning, info and debug.
+        logfile: File to which logs will be logged.
+    """
+    root = (root or Path.cwd()).expanduser().resolve().absolute()
+    stexls_home = root / '.stexls'
+    stexls_home.mkdir(exist_ok=True)
+    if not logfile.expanduser().is_absolute():
+        logfile = stexls_home / logfile
+    logging.basicConfig(
+        filename=logfile,
+        level=getattr(logging, loglevel.upper()))
+    if model is None:
+        from ..lsp.server import _get_default_trefier_model_path
+        model = _get_default_trefier_model_path()
+    workspace = Workspace(
+        root,
+        ignorefile=(
+            Path(ignorefile)
+            if ignorefile and Path(ignorefile).is_file()
+            else Path(root) / '.stexlsignore'
+        ))
+    files = [
+        file for file in sorted(workspace.files)
+        if file_size_limit_kb <= 0 or file.stat().st_size // 1024 <= file_size_limit_kb
+    ]
+    chunks = [files[i:i + batch_size] for i in range(0, len(files), batch_size)]
+    num_jobs = min(num_jobs or os.cpu_count() or 1, max(1, len(chunks)))
+    log.info('Tagging %i files in %i chunks with %i workers', len(files), len(chunks), num_jobs)
+    initargs = (model.expanduser().absolute(), stexls_home / 'tags', parser_backend)
+    tagged = 0
+    with tqdm(total=len(files), disable=not show_progress, desc='Tagging') as progress:
+        with Pool(num_jobs, initializer=_initialize_worker, initargs=initargs) as pool:
+            for count, chunk in zip(pool.imap(_tag_chunk, chunks), chunks):
+                tagged += count
+                progress.update(len(chunk))
+    print(f'Cached the tags of {tagged} of {len(files)} files.')
+
+
+def trefier_export(model: Optional[Path] = None, dtype: str = 'float32'):
+    """ Exports the network of a trefier model for the numpy inference runtime.
+
+    The exported network is added to the model package. Afterwards the package is loaded
+    and run without tensorflow.
+
+    Parameters:
+        model: Path to the trefier model. If None, the model the language server uses is exported.
+        dtype: Data type the weights are stored with: "float32" or "float16".
+    """
+    from .models.seq2seq import Seq2SeqModel
+    if model is None:
+        from ..lsp.server import _get_default_trefier_model_path
+        model = _get_default_trefier_model_path()
+    Seq2SeqModel.load(model, runtime='keras').export(model, dtype=dtype)
+    print(f'Exported "{model}" for the numpy runtime with {dtype} weights.')
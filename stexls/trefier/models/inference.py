@@ -0,0 +1,231 @@
+''' Forward pass of trained trefier networks implemented with numpy.
+
+Loading and running a network with tensorflow takes seconds and hundreds of megabytes,
+which the language server would have to pay only to tag a few files.
+`InferenceModel.from_keras` exports the weights of a trained keras network,
+which can then be stored and run without tensorflow.
+
+Supported are networks that concatenate their inputs and then apply a stack of
+bidirectional GRU, dense and batch normalization layers. Noise and dropout layers
+are only active during training and are skipped.
+'''
+from __future__ import annotations
+
+import io
+import json
+from typing import Dict, List, Optional, Sequence, Union
+
+import numpy as np
+
+__all__ = ['InferenceModel', 'pad_sequences', 'INFERENCE_DTYPES']
+
+# Data types the weights can be stored with. The forward pass is always computed with float32.
+INFERENCE_DTYPES: List[str] = ['float32', 'float16']
+
+_ACTIVATIONS = {
+    'linear': lambda x: x,
+    'tanh': np.tanh,
+    'sigmoid': lambda x: 1 / (1 + np.exp(-x)),
+    'hard_sigmoid': lambda x: np.clip(0.2 * x + 0.5, 0, 1),
+    'relu': lambda x: np.maximum(x, 0),
+}
+
+# Layers that don't change their input during inference
+_SKIPPED_LAYERS = ('InputLayer', 'GaussianNoise', 'GaussianDropout', 'Dropout', 'Concatenate')
+
+
+def pad_sequences(sequences: Sequence[Sequence], dtype=np.float32) -> np.ndarray:
+    """ Pads sequences at the front with zeros to the length of the longest sequence.
+    Equivalent to keras' `pad_sequences` with default arguments.
+
+    Parameters:
+        sequences: Sequences of scalars or of arrays with equal shape.
+        dtype: Data type of the returned array.
+
+    Returns:
+        Array of shape (number of sequences, longest sequence, ...).
+    """
+    sequences = [np.asarray(sequence, dtype=dtype) for sequence in sequences]
+    maxlen = max((len(sequence) for sequence in sequences), default=0)
+    feature_shape = next((sequence.shape[1:] for sequence in sequences if len(sequence)), ())
+    padded = np.zeros((len(sequences), maxlen) + tuple(feature_shape), dtype=dtype)
+    for i, sequence in enumerate(sequences):
+        if len(sequence):
+            padded[i, maxlen - len(sequence):] = sequence
+    return padded
+
+
+def _gru(
+        inputs: np.ndarray,
+        kernel: np.ndarray,
+        recurrent_kernel: np.ndarray,
+        bias: np.ndarray,
+        activation: str,
+        recurrent_activation: str,
+        reset_after: bool,
+        reverse: bool) -> np.ndarray:
+    ' Runs a keras GRU layer with gates in the order update, reset, candidate over a batch of sequences. '
+    batch_size, length, _ = inputs.shape
+    units = recurrent_kernel.shape[0]
+    act = _ACTIVATIONS[activation]
+    recurrent_act = _ACTIVATIONS[recurrent_activation]
+    if reset_after:
+        input_bias, recurrent_bias = bias
+    else:
+        input_bias, recurrent_bias = bias, np.zeros_like(bias)
+    # The input projections of all timesteps are independent of the state
+    projected = inputs @ kernel + input_bias
+    state = np.zeros((batch_size, units), dtype=np.float32)
+    outputs = np.empty((batch_size, length, units), dtype=np.float32)
+    steps = range(length - 1, -1, -1) if reverse else range(length)
+    for t in steps:
+        x_z, x_r, x_h = np.split(projected[:, t], 3, axis=-1)
+        if reset_after:
+            h_z, h_r, h_h = np.split(state @ recurrent_kernel + recurrent_bias, 3, axis=-1)
+            z = recurrent_act(x_z + h_z)
+            r = recurrent_act(x_r + h_r)
+            candidate = act(x_h + r * h_h)
+        else:
+            z = recurrent_act(x_z + state @ recurrent_kernel[:, :units])
+            r = recurrent_act(x_r + state @ recurrent_kernel[:, units:2 * units])
+            candidate = act(x_h + (r * state) @ recurrent_kernel[:, 2 * units:])
+        state = z * state + (1 - z) * candidate
+        outputs[:, t] = state
+    return outputs
+
+
+class InferenceModel:
+    ''' Numpy implementation of the forward pass of an exported keras network. '''
+
+    def __init__(self, input_names: List[str], layers: List[dict], weights: Dict[str, np.ndarray]):
+        """ Initializes the network.
+
+        Parameters:
+            input_names: Names of the inputs in the order they are concatenated.
+            layers: Type and configuration of each layer.
+            weights: Weights of the layers. The weights of the i-th layer are prefixed with "i/".
+        """
+        self.input_names = input_names
+        self.layers = layers
+        self.weights = weights
+        # Weights may be stored with less precision, but are computed with float32
+        self._layer_weights: List[Dict[str, np.ndarray]] = [{} for _ in layers]
+        for name, weight in weights.items():
+            index, weight_name = name.split('/', 1)
+            self._layer_weights[int(index)][weight_name] = np.asarray(weight, dtype=np.float32)
+
+    @staticmethod
+    def from_keras(model, dtype: str = 'float32') -> InferenceModel:
+        """ Exports the weights of a keras network.
+        The inputs are concatenated in the order of the model's inputs.
+
+        Parameters:
+            model: The keras model.
+            dtype: Data type the weights are stored with. One of INFERENCE_DTYPES.
+
+        Returns:
+            Network that computes the same output as the keras model.
+
+        Raises:
+            ValueError: If the network contains unsupported layers.
+        """
+        if dtype not in INFERENCE_DTYPES:
+            raise ValueError(f'Unsupported weight data type: {dtype!r}')
+        layers: List[dict] = []
+        weights: Dict[str, np.ndarray] = {}
+
+        def add(layer_type: str, config: dict, **layer_weights: np.ndarray):
+            prefix = f'{len(layers)}/'
+            layers.append({'type': layer_type, **config})
+            for name, weight in layer_weights.items():
+                weights[prefix + name] = np.asarray(weight).astype(dtype)
+
+        for layer in model.layers:
+            layer_type = type(layer).__name__
+            if layer_type in _SKIPPED_LAYERS:
+                continue
+            if layer_type == 'Bidirectional' and type(layer.forward_layer).__name__ == 'GRU':
+                config = layer.forward_layer.get_config()
+                if layer.merge_mode != 'concat':
+                    raise ValueError(f'Unsupported merge mode of layer {layer.name}: {layer.merge_mode}')
+                forward_kernel, forward_recurrent, forward_bias = layer.forward_layer.get_weights()
+                backward_kernel, backward_recurrent, backward_bias = layer.backward_layer.get_weights()
+                gru_config = {
+                    'activation': config['activation'],
+                    'recurrent_activation': config['recurrent_activation'],
+                    'reset_after': bool(config.get('reset_after', False)),
+                }
+                add('bigru', gru_config,
+                    forward_kernel=forward_kernel,
+                    forward_recurrent_kernel=forward_recurrent,
+                    forward_bias=forward_bias,
+                    backward_kernel=backward_kernel,
+                    backward_recurrent_kernel=backward_recurrent,
+                    backward_bias=backward_bias)
+            elif layer_type == 'Dense':
+                kernel, bias = layer.get_weights()
+                add('dense', {'activation': layer.get_config()['activation']}, kernel=kernel, bias=bias)
+            elif layer_type == 'BatchNormalization':
+                gamma, beta, mean, variance = layer.get_weights()
+                add('batch_normalization', {'epsilon': float(layer.epsilon)},
+                    gamma=gamma, beta=beta, mean=mean, variance=variance)
+            else:
+                raise ValueError(f'Layer {layer.name} of type {layer_type} is not supported.')
+        return InferenceModel(list(model.input_names), layers, weights)
+
+    def predict(self, inputs: Dict[str, np.ndarray], batch_size: Optional[int] = None) -> np.ndarray:
+        """ Computes the output of the network. Same interface as keras' `Model.predict`.
+
+        Parameters:
+            inputs: Batch of each input by name.
+            batch_size: Ignored, the whole batch is computed at once.
+
+        Returns:
+            Output of the last layer.
+        """
+        net = np.concatenate(
+            [np.asarray(inputs[name], dtype=np.float32) for name in self.input_names], axis=-1)
+        for layer, w in zip(self.layers, self._layer_weights):
+            if layer['type'] == 'bigru':
+                forward, backward = (
+                    _gru(
+                        net,
+                        w[direction + '_kernel'],
+                        w[direction + '_recurrent_kernel'],
+                        w[direction + '_bias'],
+                        layer['activation'],
+                        layer['recurrent_activation'],
+                        layer['reset_after'],
+                        reverse=direction == 'backward')
+                    for direction in ('forward', 'backward'))
+                net = np.concatenate([forward, backward], axis=-1)
+            elif layer['type'] == 'dense':
+                net = _ACTIVATIONS[layer['activation']](net @ w['kernel'] + w['bias'])
+            elif layer['type'] == 'batch_normalization':
+                net = (net - w['mean']) / np.sqrt(w['variance'] + layer['epsilon']) * w['gamma'] + w['beta']
+            else:
+                raise ValueError(f'Unknown layer type: {layer["type"]}')
+        return net
+
+    def summary(self):
+        ' Prints the layers and the shapes of their weights. '
+        print('Inputs:', ', '.join(self.input_names))
+        for layer, weights in zip(self.layers, self._layer_weights):
+            shapes = ', '.join(f'{name}{tuple(weight.shape)}' for name, weight in weights.items())
+            print(f'{layer["type"]:<20} {shapes}')
+        print('Parameters:', sum(weight.size for weight in self.weights.values()))
+
+    def save(self, file: Union[str, io.BufferedIOBase]):
+        ' Stores the network as a numpy archive. '
+        np.savez_compressed(
+            file,
+            __config__=np.array(json.dumps({'input_names': self.input_names, 'layers': self.layers})),
+            **self.weights)
+
+    @staticmethod
+    def load(file: Union[str, io.BufferedIOBase]) -> InferenceModel:
+        ' Loads a network stored with `save`. '
+        with np.load(file, allow_pickle=False) as archive:
+            config = json.loads(str(archive['__config__']))
+            weights = {name: archive[name] for name in archive.files if name != '__config__'}
+        return InferenceModel(config['input_names'], config['layers'], weights)
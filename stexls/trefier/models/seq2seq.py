@@ -1,27 +1,26 @@
 import datetime
+import io
 import json
 import os
 import pickle
-from collections import Counter
+from hashlib import sha1
 from pathlib import Path
-from tempfile import NamedTemporaryFile
-from typing import Callable, List, Optional, Union
+from tempfile import NamedTemporaryFile, mkstemp
+from typing import Any, Callable, List, Literal, Optional, Union
 from zipfile import ZipFile
 
 import numpy as np
-import tensorflow as tf
-from sklearn.model_selection import train_test_split
 from stexls.latex.parser import LatexParser
-from stexls.latex.tokenizer import LatexTokenizer
+from stexls.latex.tokenizer import LatexToken, LatexTokenizer
 from stexls.trefier.training.datasets import smglom
+from stexls.trefier.training.feature_cache import FeatureCache
 from stexls.trefier.training.features.embedding import GloVe
 from stexls.trefier.training.features.keyphraseness import KeyphrasenessModel
 from stexls.trefier.training.features.pos import PosTagModel
 from stexls.trefier.training.features.tfidf import TfIdfModel
-from tensorflow.keras import callbacks, layers, models, regularizers
-from tensorflow.keras.preprocessing.sequence import pad_sequences
 
 from . import base, tags
+from .inference import InferenceModel, pad_sequences
 
 __all__ = ['Seq2SeqModel']
 
@@ -29,6 +28,36 @@ _VERSION_MAJOR = 1
 _VERSION_MINOR = 0
 
 
+def length_buckets(lengths: List[int], max_batch_size: int = 32, max_length_ratio: float = 1.5) -> List[List[int]]:
+    """ Groups sequences of similar length.
+
+    Empty sequences are not part of any bucket.
+
+    Parameters:
+        lengths: Length of each sequence.
+        max_batch_size: Maximum number of sequences in a bucket.
+        max_length_ratio: Maximum ratio between the longest and shortest sequence in a bucket.
+
+    Returns:
+        Buckets of indices into the lengths, sorted by sequence length.
+    """
+    buckets: List[List[int]] = []
+    for i in sorted(range(len(lengths)), key=lengths.__getitem__):
+        if not lengths[i]:
+            continue
+        if (not buckets
+                or len(buckets[-1]) >= max_batch_size
+                or lengths[i] > max_length_ratio * lengths[buckets[-1][0]]):
+            buckets.append([])
+        buckets[-1].append(i)
+    return buckets
+
+
+def random_seed() -> int:
+    ' Draws a seed for the split of the corpus. '
+    return int(np.random.randint(2 ** 31 - 1))
+
+
 class Seq2SeqModel(base.Model):
     def __init__(self):
         super().__init__(
@@ -36,11 +65,14 @@ class Seq2SeqModel(base.Model):
             class_names=['text', 'keyword'],
             version=f'{_VERSION_MAJOR}.{_VERSION_MINOR}'
         )
-        self.model: tf.keras.models.Sequential = None
+        # Keras model or the exported InferenceModel, which is run without tensorflow
+        self.model: Any = None
         self.tfidf_model: TfIdfModel = None
         self.keyphraseness_model: KeyphrasenessModel = None
         self.pos_tag_model: PosTagModel = None
         self.glove: GloVe = None
+        # Identifies the weights of a loaded model
+        self.fingerprint: Optional[str] = None
 
     def _create_data(
             self,
@@ -49,77 +81,73 @@ class Seq2SeqModel(base.Model):
             val_split: float,
             test_split: float,
             cache_dir: str = '.',
-            progress: Optional[Callable] = None):
-        print('Creating data...')
+            seed: Optional[int] = None,
+            num_jobs: Optional[int] = None,
+            progress: Optional[Callable] = None) -> FeatureCache:
+        """ Loads the smglom corpus and the features of it's documents.
+
+        The features are computed only once for every corpus and combination of settings
+        and then stored in a feature cache inside the cache directory.
+        The feature models of this model are replaced by the models the features were computed with.
+
+        Parameters:
+            download_dir: Directory the smglom repositories are downloaded to.
+            glove_n_components: Size of the glove embeddings.
+            val_split: Fraction of the documents used for validation.
+            test_split: Fraction of the documents used for testing.
+            cache_dir: Directory of the parsed corpus and the feature caches.
+            seed: Seed of the split into train, validation and test documents.
+                A random seed is used if None, so that every training uses a different split.
+                The features are only reused by trainings with the same seed.
+            num_jobs: Number of processes that parse files and compute features. Defaults to the number of cpus.
+            progress: Optional progress indicator callable.
+
+        Returns:
+            The feature cache with the train, validation and test documents.
+        """
+        from sklearn.model_selection import train_test_split
         x, y = smglom.load_and_cache(
             cache=Path(cache_dir) / 'smglom.bin',
             download_dir=download_dir,
-            progress=progress)
+            progress=progress,
+            num_jobs=num_jobs)
         print('Smglom loaded:', len(x), 'samples')
-        x_train, x_valtest, y_train, y_valtest = train_test_split(
-            x, y, test_size=val_split + test_split)
-        x_val, x_test, y_val, y_test = train_test_split(
-            x_valtest, y_valtest, test_size=test_split/(test_split + val_split))
-        print(
-            f'Train/val/test split: {len(x_train)}/{len(x_val)}/{len(x_test)}')
-        self.glove = GloVe(
-            n_components=glove_n_components,
-            oov_vector='random',
-            download_dir=cache_dir,
-            extract_dir=download_dir)
-        self.tfidf_model = TfIdfModel()
-        self.keyphraseness_model = KeyphrasenessModel()
-        self.pos_tag_model = PosTagModel()
-        token_train = pad_sequences(
-            self.glove.transform(x_train), dtype=np.float32)
-        token_val = pad_sequences(
-            self.glove.transform(x_val), dtype=np.float32)
-        token_test = pad_sequences(
-            self.glove.transform(x_test), dtype=np.float32)
-        tfidf_train = np.expand_dims(pad_sequences(
-            self.tfidf_model.fit_transform(x_train), dtype=np.float32), axis=-1)
-        tfidf_val = np.expand_dims(pad_sequences(
-            self.tfidf_model.transform(x_val), dtype=np.float32), axis=-1)
-        tfidf_test = np.expand_dims(pad_sequences(
-            self.tfidf_model.transform(x_test), dtype=np.float32), axis=-1)
-        keyphraseness_train = np.expand_dims(pad_sequences(
-            self.keyphraseness_model.fit_transform(x_train, y_train), dtype=np.float32), axis=-1)
-        keyphraseness_val = np.expand_dims(pad_sequences(
-            self.keyphraseness_model.transform(x_val), dtype=np.float32), axis=-1)
-        keyphraseness_test = np.expand_dims(pad_sequences(
-            self.keyphraseness_model.transform(x_test), dtype=np.float32), axis=-1)
-        pos_train = pad_sequences(
-            self.pos_tag_model.predict(x_train), dtype=np.float32)
-        pos_val = pad_sequences(
-            self.pos_tag_model.predict(x_val), dtype=np.float32)
-        pos_test = pad_sequences(
-            self.pos_tag_model.predict(x_test), dtype=np.float32)
-        y_train = np.expand_dims(pad_sequences(y_train), axis=-1)
-        y_val = np.expand_dims(pad_sequences(y_val), axis=-1)
-        y_test = np.expand_dims(pad_sequences(y_test), axis=-1)
-
-        x_train = {
-            'tokens': token_train,
-            'tfidf': tfidf_train,
-            'keyphraseness': keyphraseness_train,
-            'pos': pos_train,
-        }
-
-        x_val = {
-            'tokens': token_val,
-            'tfidf': tfidf_val,
-            'keyphraseness': keyphraseness_val,
-            'pos': pos_val,
-        }
-
-        x_test = {
-            'tokens': token_test,
-            'tfidf': tfidf_test,
-            'keyphraseness': keyphraseness_test,
-            'pos': pos_test,
-        }
-
-        return (x_train, y_train), (x_val, y_val), (x_test, y_test)
+        if seed is None:
+            seed = random_seed()
+        cache = FeatureCache(Path(cache_dir) / 'features', FeatureCache.make_key(
+            x, y,
+            glove_n_components=glove_n_components,
+            val_split=val_split,
+            test_split=test_split,
+            seed=seed))
+        if cache.exists:
+            print('Loading features from cache:', cache.directory)
+            self.glove, self.tfidf_model, self.keyphraseness_model, self.pos_tag_model = cache.load()
+        else:
+            x_train, x_valtest, y_train, y_valtest = train_test_split(
+                x, y, test_size=val_split + test_split, random_state=seed)
+            x_val, x_test, y_val, y_test = train_test_split(
+                x_valtest, y_valtest, test_size=test_split/(test_split + val_split), random_state=seed)
+            self.glove = GloVe(
+                n_components=glove_n_components,
+                oov_vector='random',
+                download_dir=cache_dir,
+                extract_dir=download_dir)
+            self.tfidf_model = TfIdfModel()
+            self.keyphraseness_model = KeyphrasenessModel()
+            self.pos_tag_model = PosTagModel()
+            print('Writing features to cache:', cache.directory)
+            cache.build(
+                {'train': (x_train, y_train), 'val': (x_val, y_val), 'test': (x_test, y_test)},
+                glove=self.glove,
+                tfidf_model=self.tfidf_model,
+                keyphraseness_model=self.keyphraseness_model,
+                pos_tag_model=self.pos_tag_model,
+                num_jobs=num_jobs,
+                progress=progress)
+        print(f'Train/val/test split: {cache.num_documents("train")}/'
+              f'{cache.num_documents("val")}/{cache.num_documents("test")}')
+        return cache
 
     def train(
             self,
@@ -135,8 +163,16 @@ class Seq2SeqModel(base.Model):
             val_split: float = 0.1,
             test_split: float = 0.2,
             l2: float = 0.01,
+            batch_size: int = 32,
+            seed: Optional[int] = None,
+            num_jobs: Optional[int] = None,
             progress: Optional[Callable] = None):
+        import tensorflow as tf
+        from tensorflow.keras import callbacks, layers, models, regularizers
 
+        if seed is None:
+            seed = random_seed()
+        print('Split seed:', seed)
         self.settings['seq2seq'] = {  # type: ignore
             'epochs': epochs,
             'optimizer': optimizer,
@@ -146,6 +182,8 @@ class Seq2SeqModel(base.Model):
             'val_split': val_split,
             'test_split': test_split,
             'l2': l2,
+            'batch_size': batch_size,
+            'seed': seed,
         }
 
         embedding_input = layers.Input(
@@ -188,32 +226,25 @@ class Seq2SeqModel(base.Model):
 
         self.model.summary()
 
-        (x_train, y_train), validation_data, (x_test, y_test) = self._create_data(
+        cache = self._create_data(
             download_dir=download_dir,
             glove_n_components=glove_n_components,
             val_split=val_split,
             test_split=test_split,
             cache_dir=cache_dir or '.',
+            seed=seed,
+            num_jobs=num_jobs,
             progress=progress)
 
-        class_count_counter = Counter(int(a) for b in y_train for a in b)
-        print("Training set class counts", class_count_counter)
+        class_counts = np.array(cache.class_counts('train'))
+        print("Training set class counts", dict(enumerate(class_counts.tolist())))
 
-        num_classes = max(class_count_counter.keys()) + 1
+        num_classes = len(class_counts)
         print('Num classes', num_classes)
 
-        class_counts = np.zeros(num_classes, dtype=int)
-        for cl, count in class_count_counter.items():
-            class_counts[cl] = count
-
         self.class_weights = -np.log(class_counts / np.sum(class_counts))
         print("Training class weights", self.class_weights)
 
-        sample_weights = np.array([
-            [self.class_weights[y2] for y2 in y1]
-            for y1 in y_train.squeeze()], dtype=float)
-        print('Training sample weights:', sample_weights.shape)
-
         cb = []
         if log_dir:
             tb = callbacks.TensorBoard(
@@ -222,22 +253,16 @@ class Seq2SeqModel(base.Model):
 
         try:
             self.fit_result = self.model.fit(
+                cache.dataset('train', batch_size, self.class_weights, shuffle=True),
                 epochs=epochs,
-                x=x_train,
-                y=y_train,
-                sample_weight=sample_weights,
-                validation_data=validation_data,
+                validation_data=cache.dataset('val', batch_size, self.class_weights),
                 callbacks=cb)
         except KeyboardInterrupt:
             print('Model fit() interrupted by user input.')
 
-        test_sample_weights = np.array([
-            [self.class_weights[y2] for y2 in y1]
-            for y1 in y_test.squeeze()], dtype=float)
-
         print('Evaluation of test samples')
         self.evaluation = self.model.evaluate(
-            x_test, y_test, sample_weight=test_sample_weights)
+            cache.dataset('test', batch_size, self.class_weights))
 
         if save_dir:
             os.makedirs(save_dir, exist_ok=True)
@@ -247,32 +272,67 @@ class Seq2SeqModel(base.Model):
             print('Saving model to', filepath)
             self.save(filepath)
 
-    def predict(self, *files: Union[str, Path, LatexParser]) -> List[List[tags.Tag]]:
-        documents = []
-        all_tokens = []
-        for tokenizer, file in zip(map(LatexTokenizer.from_file, files), files):
-            if tokenizer is None:
-                continue
-            tokens = list(tokenizer.tokens())
-            all_tokens.append(tokens)
-            lexemes = [t.lexeme for t in tokens]
-            documents.append(lexemes)
-        inputs = {
-            'tokens': pad_sequences(self.glove.transform(documents), dtype=np.float32),
-            'keyphraseness': np.expand_dims(pad_sequences(self.keyphraseness_model.transform(documents), dtype=np.float32), axis=-1),
-            'tfidf': np.expand_dims(pad_sequences(self.tfidf_model.transform(documents), dtype=np.float32), axis=-1),
-            'pos': pad_sequences(self.pos_tag_model.predict(documents), dtype=np.float32),
-        }
-        return [
-            [
-                tags.Tag(float(pred[0]), token)
-                for pred, token in zip(doc[-len(tokens):], tokens)
-            ]
-            for doc, tokens in zip(self.model.predict(inputs), all_tokens)
-        ]
+    def predict(
+            self,
+            *files: Union[str, Path, LatexParser],
+            max_batch_size: int = 32,
+            max_length_ratio: float = 1.5) -> List[List[tags.Tag]]:
+        """ Predicts the tags of the tokens of each file.
+
+        Files of similar token length are bucketed together and each bucket is predicted
+        with a single call of the keras model, so that sequences are only padded to the longest
+        sequence of their own bucket.
+
+        Parameters:
+            files: Files or parsers of the files to tag.
+            max_batch_size: Maximum number of files in a bucket.
+            max_length_ratio: Maximum ratio between the longest and shortest file in a bucket.
+
+        Returns:
+            List of tags for each file in the same order as the files.
+            Files that can not be tokenized have no tags.
+        """
+        all_tokens: List[List[LatexToken]] = []
+        for tokenizer in map(LatexTokenizer.from_file, files):
+            all_tokens.append([] if tokenizer is None else list(tokenizer.tokens()))
+        return self.predict_tokens(*all_tokens, max_batch_size=max_batch_size, max_length_ratio=max_length_ratio)
+
+    def predict_tokens(
+            self,
+            *documents: List[LatexToken],
+            max_batch_size: int = 32,
+            max_length_ratio: float = 1.5) -> List[List[tags.Tag]]:
+        """ Predicts the tags of tokenized documents.
+
+        Parameters:
+            documents: Tokens of each document.
+            max_batch_size: Maximum number of documents in a bucket.
+            max_length_ratio: Maximum ratio between the longest and shortest document in a bucket.
+
+        Returns:
+            List of tags for each document in the same order as the documents.
+        """
+        predictions: List[List[tags.Tag]] = [[] for _ in documents]
+        lengths = [len(tokens) for tokens in documents]
+        for bucket in length_buckets(lengths, max_batch_size, max_length_ratio):
+            lexemes = [[t.lexeme for t in documents[i]] for i in bucket]
+            inputs = {
+                'tokens': pad_sequences(self.glove.transform(lexemes), dtype=np.float32),
+                'keyphraseness': np.expand_dims(pad_sequences(self.keyphraseness_model.transform(lexemes), dtype=np.float32), axis=-1),
+                'tfidf': np.expand_dims(pad_sequences(self.tfidf_model.transform(lexemes), dtype=np.float32), axis=-1),
+                'pos': pad_sequences(self.pos_tag_model.predict(lexemes), dtype=np.float32),
+            }
+            for i, doc in zip(bucket, self.model.predict(inputs, batch_size=len(bucket))):
+                # Sequences are padded at the front
+                predictions[i] = [
+                    tags.Tag(float(pred[0]), token)
+                    for pred, token in zip(doc[-lengths[i]:], documents[i])
+                ]
+        return predictions
 
     def save(self, path):
         """ Saves the current state """
+        from tensorflow.keras import models
         with ZipFile(path, mode='w') as package:
             print('Creating zip package:', path)
             tmpfile = NamedTemporaryFile(suffix='.h5')
@@ -280,8 +340,8 @@ class Seq2SeqModel(base.Model):
             models.save_model(self.model, tmpfile.name)
             print('Adding', tmpfile.name, 'to package as model.h5')
             package.write(tmpfile.name, 'model.h5')
-            print('Adding glove.bin', len(pickle.dumps(self.glove)), 'bytes.')
-            package.writestr('glove.bin', pickle.dumps(self.glove))
+            print('Adding glove.bin and the embedding matrix glove.npy', self.glove.matrix.nbytes, 'bytes.')
+            self.glove.write(package)
             print('Adding tfidf_model.bin', len(
                 pickle.dumps(self.tfidf_model)), 'bytes.')
             package.writestr('tfidf_model.bin', pickle.dumps(self.tfidf_model))
@@ -298,25 +358,76 @@ class Seq2SeqModel(base.Model):
             package.writestr('settings.json', json.dumps(
                 self.settings, default=lambda x: x.__dict__))
 
+    def export(self, path, dtype: str = 'float32'):
+        """ Adds the network in the format of the numpy inference runtime to the package at path.
+        The package keeps the keras model, but loading it doesn't require tensorflow anymore.
+        The glove embeddings are rewritten as a matrix, which is memory mapped when the package is loaded.
+
+        Parameters:
+            path: Path of the package this model was loaded from.
+            dtype: Data type the weights are stored with. One of INFERENCE_DTYPES.
+        """
+        if isinstance(self.model, InferenceModel):
+            raise ValueError('Only keras models can be exported.')
+        buffer = io.BytesIO()
+        InferenceModel.from_keras(self.model, dtype=dtype).save(buffer)
+        path = Path(path)
+        fd, tmp = mkstemp(dir=path.parent, prefix='.' + path.name, suffix='.tmp')
+        os.close(fd)
+        try:
+            with ZipFile(path, 'r') as source, ZipFile(tmp, 'w') as package:
+                for info in source.infolist():
+                    if info.filename not in ('inference.npz', 'glove.bin', 'glove.npy'):
+                        package.writestr(info, source.read(info))
+                # Packages of older versions contain the embeddings pickled instead of as a mappable matrix
+                self.glove.write(package)
+                package.writestr('inference.npz', buffer.getvalue())
+            os.replace(tmp, path)
+        except BaseException:
+            os.unlink(tmp)
+            raise
+
     @staticmethod
-    def load(path) -> 'Seq2SeqModel':
+    def load(path, runtime: Literal['auto', 'keras', 'numpy'] = 'auto') -> 'Seq2SeqModel':
+        """ Loads the model from file
+
+        Parameters:
+            path: Path to the package.
+            runtime: Whether the network is run with keras or with the numpy inference runtime.
+                If "auto", the numpy runtime is used if the package was exported for it.
+
+        Returns:
+            The loaded model.
+        """
         self = Seq2SeqModel()
-        ' Loads the model from file '
         with ZipFile(path, 'r') as package:
             self.settings = json.loads(package.read('settings.json'))
+            # The checksums of the packaged files identify the model without reading all of it
+            self.fingerprint = sha1(json.dumps(sorted(
+                (info.filename, info.CRC, info.file_size) for info in package.infolist()
+            )).encode()).hexdigest()
             if self.settings['__class__'] != Seq2SeqModel.__name__:
                 raise ValueError(f'Expected {Seq2SeqModel.__name__}, '
                                  f'but found {self.settings["__class__"]}')
-            self.glove = pickle.loads(package.read('glove.bin'))
+            self.glove = GloVe.read(path, package)
             self.tfidf_model = pickle.loads(package.read('tfidf_model.bin'))
             self.keyphraseness_model = pickle.loads(
                 package.read('keyphraseness_model.bin'))
             self.pos_tag_model = pickle.loads(
                 package.read('pos_tag_model.bin'))
-            with NamedTemporaryFile() as ref:
-                ref.write(package.read('model.h5'))
-                ref.flush()
-                self.model = models.load_model(ref.name)
+            exported = 'inference.npz' in package.namelist()
+            if runtime == 'numpy' or (runtime == 'auto' and exported):
+                if not exported:
+                    raise ValueError(f'Model "{path}" was not exported for the numpy runtime.')
+                self.model = InferenceModel.load(io.BytesIO(package.read('inference.npz')))
+                # Tags of the two runtimes differ slightly
+                self.fingerprint += '-numpy'
+            else:
+                from tensorflow.keras import models
+                with NamedTemporaryFile() as ref:
+                    ref.write(package.read('model.h5'))
+                    ref.flush()
+                    self.model = models.load_model(ref.name)
             assert self.model is not None
         return self
 
@@ -334,8 +445,19 @@ if __name__ == '__main__':
                         help='Directory for tensorboard logs.')
     parser.add_argument('--cache_dir', '-c', default='/tmp/seq2seq/cache/',
                         help='Path to directory for cache files.')
+    parser.add_argument('--num_jobs', '-j', type=int,
+                        help='Number of processes that compute the features. Defaults to the number of cpus.')
+    parser.add_argument('--seed', type=int,
+                        help='Seed of the train, validation and test split. Random by default.')
 
-    def train(epochs: int, save_dir: str, download_dir: str, log_dir: str, cache_dir: str):
+    def train(
+            epochs: int,
+            save_dir: str,
+            download_dir: str,
+            log_dir: str,
+            cache_dir: str,
+            num_jobs: Optional[int],
+            seed: Optional[int]):
         self = Seq2SeqModel()
         self.train(
             epochs=epochs,
@@ -343,6 +465,8 @@ if __name__ == '__main__':
             log_dir=log_dir,
             save_dir=save_dir,
             cache_dir=cache_dir,
+            num_jobs=num_jobs,
+            seed=seed,
         )
 
     args = vars(parser.parse_args())
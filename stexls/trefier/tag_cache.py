@@ -0,0 +1,123 @@
+''' Persistent cache of the tags predicted by the trefier.
+
+The labels of each file are stored in an object storage under the path of the file,
+together with the hash of the file's lexemes. A file whose lexemes didn't change is not predicted again.
+
+The model computes document level features, like the tf-idf of tokens, and it's recurrent layers read
+the whole document in both directions. Changing a single token therefore changes the labels of all tokens,
+which is why a changed file is always predicted as a whole: The cached tags are the same as a fresh prediction.
+Only the newest tags of every file are kept, so that storages which support compaction don't grow with every edit.
+'''
+from __future__ import annotations
+
+import logging
+from array import array
+from hashlib import sha1
+from pathlib import Path
+from typing import List, Optional, Protocol, Tuple, Union
+
+from ..latex.parser import LatexParser
+from ..latex.tokenizer import LatexToken, LatexTokenizer
+from ..stex.storage import ObjectStorage
+from .models.tags import Tag
+
+log = logging.getLogger(__name__)
+
+__all__ = ['TagCache']
+
+
+class TokenModel(Protocol):
+    ' Models which can be used with the tag cache. '
+    # Identifies the trained weights of the model. Tags of different models are never mixed.
+    fingerprint: Optional[str]
+
+    def predict_tokens(self, *documents: List[LatexToken]) -> List[List[Tag]]:
+        ...
+
+
+class TagCache:
+    ' Predicts tags with a trefier model and remembers them for files that did not change. '
+
+    def __init__(self, storage: ObjectStorage):
+        """ Initializes the cache.
+
+        Args:
+            storage (ObjectStorage): Storage the labels of files are persisted in.
+        """
+        self.storage = storage
+        # Fingerprint of the model whose tags the storage contains
+        self._fingerprint: Optional[str] = None
+
+    def _use_model(self, fingerprint: str):
+        ' Removes the tags of other models from the storage, the first time a model is used. '
+        if self._fingerprint == fingerprint:
+            return
+        prefix = fingerprint + '/'
+        stale = [key for key in self.storage.keys() if not key.startswith(prefix)]
+        if stale:
+            log.info('Removing the tags of %i files tagged by other trefier models.', len(stale))
+            for key in stale:
+                self.storage.remove(key)
+        self._fingerprint = fingerprint
+
+    def _read(self, key: str, digest: bytes, length: int) -> Optional[List[float]]:
+        ' Reads the labels stored for the key, if they were predicted for the lexemes with the given digest. '
+        data = self.storage.read(key)
+        if data is None or data[:len(digest)] != digest:
+            return None
+        labels = array('f')
+        labels.frombytes(data[len(digest):])
+        if len(labels) != length:
+            return None
+        return labels.tolist()
+
+    def remove(self, file: Union[str, Path]):
+        """ Removes the tags of a file, e.g. after the file was deleted.
+
+        Args:
+            file (Union[str, Path]): Path to the file.
+        """
+        if self._fingerprint is not None:
+            self.storage.remove(self._fingerprint + '/' + Path(file).absolute().as_posix())
+
+    def predict(self, model: TokenModel, *files: Union[str, Path, LatexParser]) -> List[List[Tag]]:
+        """ Predicts the tags of the tokens of each file, reusing the tags of unchanged files.
+
+        Args:
+            model (TokenModel): Trefier model.
+            files (Union[str, Path, LatexParser]): Files or parsers of the files to tag.
+
+        Returns:
+            List[List[Tag]]: List of tags for each file in the same order as the files.
+        """
+        all_tokens: List[List[LatexToken]] = []
+        for tokenizer in map(LatexTokenizer.from_file, files):
+            all_tokens.append([] if tokenizer is None else list(tokenizer.tokens()))
+        fingerprint = model.fingerprint
+        if fingerprint is None:
+            # Tags of models that are not persisted can't be identified
+            return model.predict_tokens(*all_tokens)
+        self._use_model(fingerprint)
+        all_labels: List[Optional[List[float]]] = []
+        # Index, key and digest of the lexemes of each file that needs to be predicted
+        missing: List[Tuple[int, str, bytes]] = []
+        for index, (file, tokens) in enumerate(zip(files, all_tokens)):
+            path = file.file if isinstance(file, LatexParser) else Path(file).absolute()
+            key = fingerprint + '/' + path.as_posix()
+            digest = sha1('\0'.join(token.lexeme for token in tokens).encode()).digest()
+            labels = self._read(key, digest, len(tokens))
+            if labels is None:
+                missing.append((index, key, digest))
+            all_labels.append(labels)
+        log.debug('Tag cache: Predicting %i of %i files', len(missing), len(files))
+        if missing:
+            predictions = model.predict_tokens(*(all_tokens[index] for index, _, _ in missing))
+            for (index, key, digest), tags in zip(missing, predictions):
+                labels = [tag.label for tag in tags]
+                all_labels[index] = labels
+                # Replaces the tags of the previous version of the file
+                self.storage.write(key, digest + array('f', labels).tobytes())
+        return [
+            [Tag(label, token) for label, token in zip(labels, tokens)]
+            for labels, tokens in zip(all_labels, all_tokens)
+        ]
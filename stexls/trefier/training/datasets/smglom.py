@@ -4,9 +4,10 @@ import pickle
 import re
 import sys
 from enum import IntEnum
+from functools import partial
 from glob import glob
 from pathlib import Path
-from typing import Callable, Iterable, List, Sequence, Tuple, Union
+from typing import Callable, Iterable, List, Optional, Sequence, Tuple, Union
 
 from stexls.latex import tokenizer
 from stexls.util import download
@@ -58,7 +59,8 @@ def load(
         lang: str = 'en',
         binary: bool = True,
         progress: Callable = None,
-        limit: int = None) -> Tuple[List[List[str]], List[List[Label]]]:
+        limit: int = None,
+        num_jobs: Optional[int] = None) -> Tuple[List[List[str]], List[List[Label]]]:
     ''' Loads smglom repositories as dataset. Files that fail to parse
         or parse with no tokens are ignored.
     Parameters:
@@ -67,6 +69,7 @@ def load(
         binary: If True, uses binary labels [Text=0, Keyword=1] instead of [Text=0, Trefi=1, Defi=2].
         progress: Optional progress indicator callable.
         limit: Limit of the number of files being parsed.
+        num_jobs: Number of processes that parse files. Defaults to the number of cpus.
     Returns:
         Tuple of list of lists of lexemes and list of lists of integer labels.
     '''
@@ -80,18 +83,15 @@ def load(
     files = files[:limit or len(files)]
     x = []
     y = []
-    with mp.Pool() as pool:
+    with mp.Pool(num_jobs) as pool:
         print('Parsing', len(files), 'files.')
+        # Files are parsed and labeled by the workers, in the order of the files
+        it = pool.imap(partial(_load_file, binary=binary), files, chunksize=8)
         if progress:
-            it = progress(pool.imap_unordered(
-                tokenizer.LatexTokenizer.from_file, files))
-        else:
-            it = pool.map(tokenizer.LatexTokenizer.from_file, files)
-        for i, latex_tokens in filter(None, enumerate(it)):
-            tokens, labels = _parse_file(list(latex_tokens), binary)
+            it = progress(it)
+        for file, (tokens, labels) in zip(files, it):
             if not tokens:
-                print(
-                    'File', '"?"' if progress else files[i], 'failed to generate tokens.', file=sys.stderr)
+                print('File', file, 'failed to generate tokens.', file=sys.stderr)
             elif len(tokens) != len(labels):
                 raise RuntimeError('Unexpected lengths for tokens (%i) and labels (%i).' % (
                     len(tokens), len(labels)))
@@ -158,6 +158,14 @@ def maybe_download(download_dir: Union[str, Path], root_url: str = 'https://gl.m
     return paths
 
 
+def _load_file(file: str, binary: bool) -> Tuple[List[str], List[Label]]:
+    ' Parses a file and returns it\'s lexemes and labels. Both are empty if the file failed to parse. '
+    latex_tokens = tokenizer.LatexTokenizer.from_file(file)
+    if latex_tokens is None:
+        return [], []
+    return _parse_file(list(latex_tokens), binary)
+
+
 def _parse_file(tokens: List[tokenizer.LatexToken], binary: bool) -> Tuple[List[str], List[Label]]:
     ''' Parses a list of latex tokens into a tuple of lexemes and their labels
     Parameters:
@@ -0,0 +1,353 @@
+''' Sharded cache of the features the trefier network is trained with.
+
+Computing the glove embeddings, tf-idf, keyphraseness and part of speech tags of the
+smglom corpus takes longer than a short training run. `FeatureCache.build` computes them
+once using all cores and writes them as shards of `.npz` files into a directory named
+after the hash of the corpus and the feature settings, together with the fitted feature models.
+Every following training with the same corpus and settings only reads the shards,
+which `FeatureCache.dataset` streams into keras as a prefetching `tf.data` pipeline.
+'''
+from __future__ import annotations
+
+import json
+import os
+import pickle
+import shutil
+from hashlib import sha1
+from multiprocessing import Pool
+from pathlib import Path
+from typing import Callable, Dict, Iterator, List, Optional, Sequence, Tuple
+from zipfile import ZipFile
+
+import numpy as np
+
+from ..models.inference import pad_sequences
+from .features.embedding import GloVe
+from .features.keyphraseness import KeyphrasenessModel
+from .features.pos import PosTagModel
+from .features.tfidf import TfIdfModel
+
+__all__ = ['FeatureCache', 'corpus_hash', 'FEATURES', 'SPLITS']
+
+# Changes whenever the content of the shards changes
+_FEATURE_CACHE_VERSION = 1
+
+# Names of the inputs of the network, which are stored in every shard
+FEATURES = ('tokens', 'tfidf', 'keyphraseness', 'pos')
+
+# Names of the parts the corpus is split into
+SPLITS = ('train', 'val', 'test')
+
+# Feature models of the worker processes, created once by the initializer
+_worker_glove: Optional[GloVe] = None
+_worker_pos_tag_model: Optional[PosTagModel] = None
+
+
+def corpus_hash(x: Sequence[Sequence[str]], y: Sequence[Sequence[int]]) -> str:
+    ''' Hashes the lexemes and labels of all documents of a corpus.
+    Parameters:
+        x: Lexemes of each document.
+        y: Labels of each document.
+    Returns:
+        Hex digest of the corpus.
+    '''
+    digest = sha1()
+    for lexemes, labels in zip(x, y):
+        digest.update('\0'.join(lexemes).encode())
+        digest.update(b'\1')
+        digest.update(np.asarray(labels, dtype=np.int64).tobytes())
+        digest.update(b'\2')
+    digest.update(str(len(x)).encode())
+    return digest.hexdigest()
+
+
+def _flatten(documents: Sequence[np.ndarray], feature_shape: Tuple[int, ...], dtype) -> np.ndarray:
+    ' Concatenates the per token values of all documents into one array of shape (number of tokens, *feature_shape). '
+    return np.concatenate(
+        [np.asarray(document, dtype=dtype).reshape((len(document),) + feature_shape) for document in documents]
+        + [np.zeros((0,) + feature_shape, dtype=dtype)])
+
+
+def _initialize_worker(models_path: Path):
+    ' Initializer of the worker processes: Every worker maps the embeddings and loads the pos tagger only once. '
+    global _worker_glove, _worker_pos_tag_model
+    with ZipFile(models_path) as package:
+        _worker_glove = GloVe.read(models_path, package)
+        _worker_pos_tag_model = pickle.loads(package.read('pos_tag_model.bin'))
+
+
+def _write_shard(
+        path: Path,
+        lexemes: List[List[str]],
+        labels: List[List[int]],
+        tfidf: np.ndarray,
+        keyphraseness: np.ndarray) -> Tuple[str, int, int]:
+    """ Computes the embeddings and pos tags of the documents of a shard inside a worker process and writes the shard.
+
+    Parameters:
+        path: File the shard is written to.
+        lexemes: Lexemes of each document.
+        labels: Labels of each document.
+        tfidf: Tf-idf values of all tokens of the shard.
+        keyphraseness: Keyphraseness values of all tokens of the shard.
+
+    Returns:
+        Name of the written file, number of documents and number of tokens.
+    """
+    lengths = np.array([len(document) for document in lexemes], dtype=np.int64)
+    arrays = {
+        'lengths': lengths,
+        'lexemes': np.array([lexeme for document in lexemes for lexeme in document], dtype=str),
+        'labels': _flatten(labels, (), np.int8),
+        'tokens': _flatten(_worker_glove.transform(lexemes), (_worker_glove.embedding_size,), np.float32),
+        'tfidf': tfidf.reshape(-1, 1).astype(np.float32),
+        'keyphraseness': keyphraseness.reshape(-1, 1).astype(np.float32),
+        'pos': _flatten(
+            _worker_pos_tag_model.predict(lexemes), (_worker_pos_tag_model.num_categories,), np.float32),
+    }
+    for name, array in arrays.items():
+        if name != 'lengths' and len(array) != lengths.sum():
+            raise ValueError(f'Feature "{name}" of shard {path.name} has {len(array)} values '
+                             f'for {lengths.sum()} tokens.')
+    with open(path, 'wb') as file:
+        np.savez(file, **arrays)
+    return path.name, len(lengths), int(lengths.sum())
+
+
+def _write_shard_task(task: tuple) -> Tuple[str, int, int]:
+    ' Unpacks the arguments of `_write_shard` for `Pool.imap`. '
+    return _write_shard(*task)
+
+
+class FeatureCache:
+    ''' Directory of shards with the features of a corpus split into train, validation and test documents. '''
+
+    def __init__(self, root: Path, key: str):
+        ''' Initializes the cache. Nothing is read or written until `build` or `load` is called.
+        Parameters:
+            root: Directory in which the caches of all keys are stored.
+            key: Identifies the corpus and the feature settings. See `FeatureCache.make_key`.
+        '''
+        self.root = Path(root)
+        self.key = key
+        self.directory = self.root / key
+        # Contents of index.json, which is written last
+        self.index: Optional[dict] = None
+
+    @staticmethod
+    def make_key(x: Sequence[Sequence[str]], y: Sequence[Sequence[int]], **settings) -> str:
+        ''' Creates the key of a corpus and the settings that change the computed features.
+        Parameters:
+            x: Lexemes of each document.
+            y: Labels of each document.
+            settings: Json serializable settings, e.g. the number of glove components and the split.
+        Returns:
+            Hex digest that identifies the cache.
+        '''
+        return sha1(json.dumps({
+            'version': _FEATURE_CACHE_VERSION,
+            'corpus': corpus_hash(x, y),
+            'settings': settings,
+        }, sort_keys=True).encode()).hexdigest()
+
+    @property
+    def exists(self) -> bool:
+        ' Whether the cache was completely built. '
+        return (self.directory / 'index.json').is_file()
+
+    def load(self) -> Tuple[GloVe, TfIdfModel, KeyphrasenessModel, PosTagModel]:
+        ''' Reads the index of the shards and the feature models the shards were built with.
+        Returns:
+            The glove, tf-idf, keyphraseness and pos tag models.
+        '''
+        self.index = json.loads((self.directory / 'index.json').read_text())
+        path = self.directory / 'models.zip'
+        with ZipFile(path) as package:
+            return (
+                GloVe.read(path, package),
+                pickle.loads(package.read('tfidf_model.bin')),
+                pickle.loads(package.read('keyphraseness_model.bin')),
+                pickle.loads(package.read('pos_tag_model.bin')),
+            )
+
+    def build(
+            self,
+            splits: Dict[str, Tuple[List[List[str]], List[List[int]]]],
+            glove: GloVe,
+            tfidf_model: TfIdfModel,
+            keyphraseness_model: KeyphrasenessModel,
+            pos_tag_model: PosTagModel,
+            shard_size: int = 128,
+            num_jobs: Optional[int] = None,
+            progress: Optional[Callable] = None):
+        """ Fits the feature models to the train documents and writes the features of all documents.
+
+        Tf-idf and keyphraseness are computed in this process, because they depend on the whole corpus.
+        Embeddings and pos tags only depend on the document and are computed by worker processes,
+        which write one shard each.
+        The cache is built in a temporary directory, which is renamed once all shards are written.
+
+        Parameters:
+            splits: Lexemes and labels of the documents of each split. Must contain "train".
+            glove: Glove embeddings.
+            tfidf_model: Tf-idf model that is fitted to the train documents.
+            keyphraseness_model: Keyphraseness model that is fitted to the train documents.
+            pos_tag_model: Pos tagger.
+            shard_size: Number of documents in a shard.
+            num_jobs: Number of worker processes. Defaults to the number of cpus.
+            progress: Optional progress indicator wrapped around the written shards.
+        """
+        tmpdir = self.root / f'.{self.key}.tmp'
+        if tmpdir.exists():
+            shutil.rmtree(tmpdir)
+        tmpdir.mkdir(parents=True)
+        try:
+            models_path = tmpdir / 'models.zip'
+            features: Dict[str, Tuple[np.ndarray, np.ndarray]] = {}
+            # The models are fitted to the train split before the other splits are transformed
+            for split in sorted(splits, key=lambda split: split != 'train'):
+                x, y = splits[split]
+                if split == 'train':
+                    tfidf = tfidf_model.fit_transform(x)
+                    keyphraseness = keyphraseness_model.fit_transform(x, y)
+                else:
+                    tfidf = tfidf_model.transform(x)
+                    keyphraseness = keyphraseness_model.transform(x)
+                features[split] = (_flatten(tfidf, (), np.float32), _flatten(keyphraseness, (), np.float32))
+            with ZipFile(models_path, 'w') as package:
+                glove.write(package)
+                package.writestr('tfidf_model.bin', pickle.dumps(tfidf_model))
+                package.writestr('keyphraseness_model.bin', pickle.dumps(keyphraseness_model))
+                package.writestr('pos_tag_model.bin', pickle.dumps(pos_tag_model))
+            tasks = []
+            for split, (x, y) in splits.items():
+                tfidf, keyphraseness = features[split]
+                offset = 0
+                for begin in range(0, len(x), shard_size):
+                    end = min(begin + shard_size, len(x))
+                    num_tokens = sum(map(len, x[begin:end]))
+                    tasks.append((
+                        tmpdir / f'{split}-{begin // shard_size:05d}.npz',
+                        x[begin:end],
+                        y[begin:end],
+                        tfidf[offset:offset + num_tokens],
+                        keyphraseness[offset:offset + num_tokens]))
+                    offset += num_tokens
+            with Pool(num_jobs, initializer=_initialize_worker, initargs=(models_path,)) as pool:
+                it = pool.imap(_write_shard_task, tasks)
+                shards = list(progress(it) if progress else it)
+            index = {
+                'splits': {
+                    split: [
+                        {'file': file, 'documents': documents, 'tokens': tokens}
+                        for file, documents, tokens in shards
+                        if file.startswith(split + '-')
+                    ]
+                    for split in splits
+                },
+                'class_counts': {
+                    split: np.bincount(np.concatenate(
+                        [np.asarray(labels, dtype=np.int64) for labels in y] + [np.zeros(0, dtype=np.int64)])
+                    ).tolist()
+                    for split, (_, y) in splits.items()
+                },
+                'feature_sizes': {
+                    'tokens': glove.embedding_size,
+                    'tfidf': 1,
+                    'keyphraseness': 1,
+                    'pos': pos_tag_model.num_categories,
+                },
+            }
+            (tmpdir / 'index.json').write_text(json.dumps(index))
+            if self.directory.exists():
+                shutil.rmtree(self.directory)
+            os.replace(tmpdir, self.directory)
+        except BaseException:
+            shutil.rmtree(tmpdir, ignore_errors=True)
+            raise
+        self.index = index
+
+    def num_documents(self, split: str) -> int:
+        ' Number of documents of a split. '
+        return sum(shard['documents'] for shard in self.index['splits'][split])
+
+    def class_counts(self, split: str) -> List[int]:
+        ' Number of tokens of each label in a split. '
+        return self.index['class_counts'][split]
+
+    def batches(
+            self,
+            split: str,
+            batch_size: int = 32,
+            class_weights: Optional[np.ndarray] = None,
+            shuffle: bool = False,
+            seed: Optional[int] = None) -> Iterator[Tuple[Dict[str, np.ndarray], np.ndarray, np.ndarray]]:
+        """ Reads the batches of a split.
+
+        Batches are formed from documents of the same shard and padded at the front like `pad_sequences`.
+        Shuffling changes the order of the shards and of the documents inside the shards.
+
+        Parameters:
+            split: Split to read.
+            batch_size: Maximum number of documents in a batch.
+            class_weights: Weight of the tokens of each label. Every token has a weight of 1 if None.
+            shuffle: Whether to shuffle the documents.
+            seed: Seed of the shuffle.
+
+        Returns:
+            Iterator of the inputs, labels of shape (batch, length, 1) and temporal sample weights
+            of shape (batch, length) of each batch. Padding has the label 0 and is weighted like it.
+        """
+        rng = np.random.default_rng(seed)
+        shards = list(self.index['splits'][split])
+        if shuffle:
+            rng.shuffle(shards)
+        for shard in shards:
+            with np.load(self.directory / shard['file'], allow_pickle=False) as data:
+                arrays = {name: data[name] for name in ('lengths', 'labels') + FEATURES}
+            offsets = np.concatenate([[0], np.cumsum(arrays['lengths'])])
+            order = rng.permutation(len(arrays['lengths'])) if shuffle else np.arange(len(arrays['lengths']))
+            for begin in range(0, len(order), batch_size):
+                documents = [slice(offsets[i], offsets[i + 1]) for i in order[begin:begin + batch_size]]
+                inputs = {
+                    name: pad_sequences([arrays[name][document] for document in documents])
+                    for name in FEATURES
+                }
+                labels = pad_sequences([arrays['labels'][document] for document in documents])
+                if class_weights is None:
+                    weights = np.ones(labels.shape, dtype=np.float32)
+                else:
+                    weights = np.asarray(class_weights, dtype=np.float32)[labels.astype(np.intp)]
+                yield inputs, labels[..., np.newaxis], weights
+
+    def dataset(
+            self,
+            split: str,
+            batch_size: int = 32,
+            class_weights: Optional[np.ndarray] = None,
+            shuffle: bool = False):
+        """ Creates a `tf.data.Dataset` of the batches of a split, which is read in the background while training.
+        Every iteration of the dataset reads the shards again and, if shuffling, in a new order.
+
+        Parameters:
+            split: Split to read.
+            batch_size: Maximum number of documents in a batch.
+            class_weights: Weight of the tokens of each label.
+            shuffle: Whether to shuffle the documents every epoch.
+
+        Returns:
+            Dataset of (inputs, labels, sample weights) batches as returned by `batches`.
+        """
+        import tensorflow as tf
+        signature = (
+            {
+                name: tf.TensorSpec((None, None, size), tf.float32)
+                for name, size in self.index['feature_sizes'].items()
+            },
+            tf.TensorSpec((None, None, 1), tf.float32),
+            tf.TensorSpec((None, None), tf.float32),
+        )
+        return tf.data.Dataset.from_generator(
+            lambda: self.batches(split, batch_size, class_weights, shuffle),
+            output_signature=signature,
+        ).prefetch(tf.data.AUTOTUNE)
@@ -1,9 +1,10 @@
 from __future__ import annotations
 
-import collections
+from typing import Dict, Optional
 
 import numpy as np
-from scipy import stats
+
+from .vectorizer import CountVectorizer, normalize_documents, split_documents, token_values
 
 
 class ChiSquareModel:
@@ -16,14 +17,31 @@ class ChiSquareModel:
             X: List of documents of tokens
             norm_order: Normal order or None for no normalization.
         """
-        self.word_counts = None
+        self.vectorizer: Optional[CountVectorizer] = None
+        # Number of occurrences of each word index in the corpus
+        self.counts: Optional[np.ndarray] = None
         self.norm_order = norm_order
         if X is not None:
             self.fit(X)
 
+    def __setstate__(self, state):
+        if 'word_counts' in state:
+            # Pickled by an older version, which stored a counter of words
+            word_counts = state.pop('word_counts')
+            vectorizer = CountVectorizer()
+            vectorizer.fit_on_vocabulary(word_counts)
+            state['vectorizer'] = vectorizer
+            state['counts'] = np.array([0] + list(word_counts.values()), dtype=np.float64)
+        self.__dict__.update(state)
+
     @property
     def vocab(self):
-        return set(self.word_counts)
+        return set(self.vectorizer.word_index)
+
+    @property
+    def word_counts(self) -> Dict[str, int]:
+        ' Number of occurrences of each word in the corpus. '
+        return {word: int(self.counts[index]) for word, index in self.vectorizer.word_index.items()}
 
     def fit(self, X):
         """Fits the model to the dataset
@@ -32,8 +50,10 @@ class ChiSquareModel:
             X {list} -- List of documents of tokens
         """
         self._num_documents = len(X)
-        self.word_counts = collections.Counter(
-            word for doc in X for word in doc)
+        self.vectorizer = CountVectorizer()
+        self.vectorizer.fit_on_tokens(X)
+        words, _, _ = self.vectorizer.indices(X)
+        self.counts = np.bincount(words, minlength=self.vectorizer.vocab_size).astype(np.float64)
 
     def transform(self, X):
         """Transforms a list of documents to chi-sq values
@@ -44,31 +64,17 @@ class ChiSquareModel:
         Returns:
             list -- Chi-Square values for all tokens in all documents provided in X
         """
-
-        result = []
-        for doc in X:
-            transform = {}
-            for phrase, phrase_in_document in collections.Counter(doc).items():
-                all_other_phrases_in_document = len(doc) - phrase_in_document
-                phrase_in_other_documents = self.word_counts.get(phrase, 0)
-                all_other_phrases_in_all_other_documents = sum(
-                    self.word_counts.values()) - phrase_in_other_documents
-                if phrase_in_other_documents <= 0:
-                    value = 0
-                else:
-                    value = self._chisquare(
-                        phrase_in_document,
-                        all_other_phrases_in_document,
-                        phrase_in_other_documents,
-                        all_other_phrases_in_all_other_documents,
-                        self._num_documents)
-                transform[phrase] = value
-
-            vec = np.array([transform[word] for word in doc])
-            if self.norm_order is not None:
-                vec /= np.linalg.norm(vec, ord=self.norm_order)
-            result.append(vec)
-        return result
+        words, document_ids, lengths, phrase_in_document = self._count_phrases(X)
+        # Unknown words at index 0 never occur in other documents
+        phrase_in_other_documents = self.counts[words]
+        vec = self._chisquare(
+            phrase_in_document,
+            lengths[document_ids] - phrase_in_document,
+            phrase_in_other_documents,
+            self.counts.sum() - phrase_in_other_documents,
+            self._num_documents)
+        vec = normalize_documents(vec, document_ids, len(X), self.norm_order)
+        return split_documents(vec, lengths)
 
     def fit_transform(self, X):
         """Fits the model to X, then transforms all documents D_i as if D_i was not element of X during the fitting process
@@ -80,30 +86,15 @@ class ChiSquareModel:
             list -- Chi-Sq values for all tokens in all documents
         """
         self.fit(X)
-        result = []
-        for doc in X:
-            transform = {}
-            for phrase, phrase_in_document in collections.Counter(doc).items():
-                all_other_phrases_in_document = (len(doc) - phrase_in_document)
-                phrase_in_other_documents = self.word_counts[phrase] - \
-                    phrase_in_document
-                all_other_phrases_in_all_other_documents = sum(
-                    self.word_counts.values()) - len(doc)
-                if phrase_in_other_documents <= 0:
-                    value = 0
-                else:
-                    value = self._chisquare(
-                        phrase_in_document,
-                        all_other_phrases_in_document,
-                        phrase_in_other_documents,
-                        all_other_phrases_in_all_other_documents,
-                        self._num_documents - 1)
-                transform[phrase] = value
-            vec = np.array([transform[word] for word in doc])
-            if self.norm_order is not None:
-                vec /= np.linalg.norm(vec, ord=self.norm_order)
-            result.append(vec)
-        return result
+        words, document_ids, lengths, phrase_in_document = self._count_phrases(X)
+        vec = self._chisquare(
+            phrase_in_document,
+            lengths[document_ids] - phrase_in_document,
+            self.counts[words] - phrase_in_document,
+            self.counts.sum() - lengths[document_ids],
+            self._num_documents - 1)
+        vec = normalize_documents(vec, document_ids, len(X), self.norm_order)
+        return split_documents(vec, lengths)
 
     @staticmethod
     def test_transform():
@@ -116,18 +107,27 @@ class ChiSquareModel:
         assert all(np.abs(x1 - x2) < 1e-6 for x1, x2 in zip(t1, t2)
                    ), "transform() and fit_transform() result not equal."
 
+    def _count_phrases(self, X):
+        ''' Returns the word index, document and document lengths of all tokens
+            and the number of times the token's word occurs in it's document. '''
+        words, document_ids, lengths = self.vectorizer.indices(X)
+        counts = self.vectorizer.count_matrix(words, document_ids, len(X))
+        return words, document_ids, lengths, token_values(counts, document_ids, words)
+
     def _chisquare(
             self,
-            phrase_in_document: float,
-            all_other_phrases_in_document: float,
-            phrase_in_other_documents: float,
-            all_other_phrases_in_all_other_documents: float,
-            num_documents: float):
-        statistic, p_value = stats.chisquare([
-            phrase_in_document,
-            all_other_phrases_in_document,
-        ], [
-            phrase_in_other_documents / num_documents,
-            all_other_phrases_in_all_other_documents / num_documents
-        ])
-        return statistic
+            phrase_in_document: np.ndarray,
+            all_other_phrases_in_document: np.ndarray,
+            phrase_in_other_documents: np.ndarray,
+            all_other_phrases_in_all_other_documents: np.ndarray,
+            num_documents: float) -> np.ndarray:
+        ''' Computes the chi-square statistic of the observed counts of each token in it's document
+            against the expected counts from the other documents, like `scipy.stats.chisquare`.
+            Tokens of phrases that don't occur in other documents are 0. '''
+        with np.errstate(divide='ignore', invalid='ignore'):
+            expected_phrase = phrase_in_other_documents / num_documents
+            expected_other = all_other_phrases_in_all_other_documents / num_documents
+            statistic = (
+                (phrase_in_document - expected_phrase) ** 2 / expected_phrase
+                + (all_other_phrases_in_document - expected_other) ** 2 / expected_other)
+        return np.where(phrase_in_other_documents > 0, statistic, 0)
@@ -1,12 +1,55 @@
-from typing import Dict, Iterable, List, Literal, Optional
+from __future__ import annotations
+
+import io
+import pickle
+import struct
+import time
+from pathlib import Path
+from typing import Dict, Iterable, List, Literal, Optional, Union
+from zipfile import ZIP_STORED, ZipFile, ZipInfo
 
 import numpy as np
 from sklearn.decomposition import PCA
 from stexls.util import download
 
 
+def _map_array(path: Union[str, Path], package: ZipFile, name: str) -> np.ndarray:
+    ''' Memory maps an array stored uncompressed in the .npy format inside a zip file.
+    Compressed arrays are read into memory instead.
+    Parameters:
+        path: Path of the zip file.
+        package: The zip file opened for reading.
+        name: Name of the array inside the zip file.
+    Returns:
+        The read-only array.
+    '''
+    info = package.getinfo(name)
+    if info.compress_type != ZIP_STORED:
+        return np.load(io.BytesIO(package.read(name)))
+    with open(path, 'rb') as file:
+        # The data follows the local file header, whose extra field may differ from the central directory
+        file.seek(info.header_offset)
+        header = file.read(30)
+        name_length, extra_length = struct.unpack('<HH', header[26:30])
+        file.seek(info.header_offset + 30 + name_length + extra_length)
+        read_header = {
+            (1, 0): np.lib.format.read_array_header_1_0,
+            (2, 0): np.lib.format.read_array_header_2_0,
+        }.get(np.lib.format.read_magic(file))
+        if read_header is None:
+            return np.load(io.BytesIO(package.read(name)))
+        shape, fortran_order, dtype = read_header(file)
+        offset = file.tell()
+    return np.memmap(path, dtype=dtype, mode='r', shape=shape, offset=offset, order='F' if fortran_order else 'C')
+
+
 class GloVe:
-    ' Implements transformation of tokens to glove embedding vectors. '
+    ''' Implements transformation of tokens to glove embedding vectors.
+
+    The embeddings are stored as a single matrix with a row for each word of the vocabulary
+    and a last row for out of vocabulary words. The matrix is not pickled: `write` stores it
+    next to the pickled transform inside a model package, from which `read` memory maps it.
+    '''
 
     def __init__(
             self,
@@ -30,25 +73,81 @@ class GloVe:
         for path in files:
             if f'{source_dim}d' in path:
                 embeddings = GloVe.parse(path, limit=word_limit)
+                vectors = np.array(list(embeddings.values()))
                 if n_components and n_components < source_dim:
-                    reduced = PCA(n_components).fit_transform(
-                        np.array(list(embeddings.values())))
-                    self.embeddings = {
-                        word: vector
-                        for word, vector in zip(embeddings, reduced)
-                    }
-                else:
-                    self.embeddings = embeddings
-                self.vocab = list(self.embeddings)
-        matrix = np.array(list(self.embeddings.values()))
-        self.mean = matrix.mean()
-        self.std = matrix.std()
-        self.embedding_size = n_components or len(
-            list(self.embeddings.values())[0])
-        self.oov_vec = {
+                    vectors = PCA(n_components).fit_transform(vectors)
+                self.vocab = list(embeddings)
+        self.mean = vectors.mean()
+        self.std = vectors.std()
+        self.embedding_size = vectors.shape[1]
+        oov_vec = {
             'random': np.random.normal(self.mean, self.std, size=self.embedding_size),
             'zero': np.zeros(self.embedding_size),
         }.get(oov_vector) if isinstance(oov_vector, str) else None
+        self.has_oov = oov_vec is not None
+        self.matrix = GloVe._build_matrix(vectors, oov_vec, self.embedding_size)
+        self.index: Dict[str, int] = {word: i for i, word in enumerate(self.vocab)}
+
+    @staticmethod
+    def _build_matrix(vectors, oov_vec: Optional[np.ndarray], embedding_size: int) -> np.ndarray:
+        ' Stacks the vectors of the vocabulary and the oov vector into one float32 matrix. '
+        oov_row = np.zeros((1, embedding_size)) if oov_vec is None else np.reshape(oov_vec, (1, embedding_size))
+        return np.ascontiguousarray(np.vstack([np.reshape(vectors, (-1, embedding_size)), oov_row]), dtype=np.float32)
+
+    @property
+    def oov_vec(self) -> Optional[np.ndarray]:
+        ' Vector of out of vocabulary words or None if they are ignored. '
+        return self.matrix[-1] if self.has_oov else None
+
+    def __getstate__(self):
+        state = self.__dict__.copy()
+        # The matrix is stored separately, the index is rebuilt from the vocabulary
+        del state['matrix']
+        del state['index']
+        return state
+
+    def __setstate__(self, state):
+        if 'embeddings' in state:
+            # Pickled by an older version, which stored a dictionary of vectors
+            embeddings = state.pop('embeddings')
+            oov_vec = state.pop('oov_vec')
+            state['vocab'] = list(embeddings)
+            state['has_oov'] = oov_vec is not None
+            state['matrix'] = GloVe._build_matrix(
+                np.array(list(embeddings.values())), oov_vec, state['embedding_size'])
+        state.setdefault('matrix', None)
+        self.__dict__.update(state)
+        self.index = {word: i for i, word in enumerate(self.vocab)}
+
+    def write(self, package: ZipFile, name: str = 'glove'):
+        ''' Writes the transform to `<name>.bin` and the matrix uncompressed to `<name>.npy` inside the package.
+        Parameters:
+            package: Zip file opened for writing.
+            name: Name of the files in the package.
+        '''
+        package.writestr(name + '.bin', pickle.dumps(self))
+        info = ZipInfo(name + '.npy', date_time=time.localtime()[:6])
+        info.compress_type = ZIP_STORED
+        with package.open(info, 'w') as file:
+            np.save(file, np.asarray(self.matrix, dtype=np.float32))
+
+    @staticmethod
+    def read(path: Union[str, Path], package: ZipFile, name: str = 'glove') -> GloVe:
+        ''' Reads a transform written with `write`. The matrix is memory mapped from the package.
+        Transforms pickled by older versions, which include the embeddings, can be read as well.
+        Parameters:
+            path: Path of the package.
+            package: The package opened for reading.
+            name: Name of the files in the package.
+        Returns:
+            The transform.
+        '''
+        glove: GloVe = pickle.loads(package.read(name + '.bin'))
+        if name + '.npy' in package.namelist():
+            glove.matrix = _map_array(path, package, name + '.npy')
+        if glove.matrix is None:
+            raise ValueError(f'Matrix of glove transform "{name}" missing in package: {path}')
+        return glove
 
     def transform(self, x: Iterable[Iterable[str]]) -> List[np.ndarray]:
         ''' Transforms a list of lists of tokens to their respective GloVe embedding.
@@ -57,14 +156,14 @@ class GloVe:
         Returns:
             List of lists of the embeddings for those tokens.
         '''
-        return [
-            np.array([
-                self.embeddings.get(word, self.oov_vec)
-                for word in doc
-                if self.oov_vec is not None or word in self.embeddings
-            ])
-            for doc in x
-        ]
+        oov_row = len(self.vocab) if self.has_oov else None
+        documents = []
+        for doc in x:
+            rows = [self.index.get(word, oov_row) for word in doc]
+            if oov_row is None:
+                rows = [row for row in rows if row is not None]
+            documents.append(self.matrix[np.array(rows, dtype=np.intp)])
+        return documents
 
     @staticmethod
     def maybe_download_and_extract(download_dir: str, extract_dir: str = None):
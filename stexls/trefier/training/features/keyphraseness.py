@@ -1,4 +1,10 @@
-import collections
+from __future__ import annotations
+
+from typing import Dict, Optional
+
+import numpy as np
+
+from .vectorizer import CountVectorizer, split_documents, token_values
 
 __all__ = ['KeyphrasenessModel']
 
@@ -24,15 +30,47 @@ class KeyphrasenessModel:
             X {list} -- List of documents of tokens
             Y {list} -- List of documents of labels
         """
-        self.keyphraseness = None
-        self.dfs = None
-        self.kfs = None
+        self.vectorizer: Optional[CountVectorizer] = None
+        # Keyphraseness, document frequency and keyphrase frequency of each word index
+        self.values: Optional[np.ndarray] = None
+        self.df: Optional[np.ndarray] = None
+        self.kf: Optional[np.ndarray] = None
         if X and Y:
             self.fit(X, Y)
 
+    def __setstate__(self, state):
+        if 'keyphraseness' in state:
+            # Pickled by an older version, which stored dictionaries of words
+            keyphraseness = state.pop('keyphraseness')
+            dfs = state.pop('dfs')
+            kfs = state.pop('kfs')
+            vectorizer = CountVectorizer()
+            vectorizer.fit_on_vocabulary(dfs)
+            state['vectorizer'] = vectorizer
+            state['values'] = np.array([0] + [keyphraseness[word] for word in dfs], dtype=np.float64)
+            state['df'] = np.array([0] + list(dfs.values()), dtype=np.float64)
+            state['kf'] = np.array([0] + [kfs.get(word, 0) for word in dfs], dtype=np.float64)
+        self.__dict__.update(state)
+
     @property
     def vocab(self):
-        return set(self.dfs)
+        return set(self.vectorizer.word_index)
+
+    @property
+    def keyphraseness(self) -> Dict[str, float]:
+        ' Keyphraseness of each word. '
+        return {word: float(self.values[index]) for word, index in self.vectorizer.word_index.items()}
+
+    def _keywords(self, X, Y) -> np.ndarray:
+        ' Returns 1 for each token of all documents that is labeled as keyword and 0 for all other tokens. '
+        keywords = np.zeros(sum(map(len, X)))
+        offset = 0
+        for doc, labels in zip(X, Y):
+            # Like zip(), tokens without label are no keyword
+            labels = np.asarray(labels[:len(doc)])
+            keywords[offset:offset + len(labels)] = labels != 0
+            offset += len(doc)
+        return keywords
 
     def fit(self, X, Y):
         """Fits the model to the given database
@@ -41,17 +79,16 @@ class KeyphrasenessModel:
             X {list} -- List of documents of tokens
             Y {list} -- List of documents of labels
         """
-        self.keyphraseness = {}
-        self.dfs = collections.defaultdict(float)  # document frequency
-        self.kfs = collections.defaultdict(int)  # keyphrase frequency
-        for doc, labels in zip(X, Y):
-            for word in set(doc):
-                self.dfs[word] += 1
-            keywords = (word for word, label in zip(doc, labels) if label != 0)
-            for word, count in collections.Counter(keywords).items():
-                self.kfs[word] += count
-        for word in self.dfs:
-            self.keyphraseness[word] = self.kfs[word] / self.dfs[word]
+        self.vectorizer = CountVectorizer()
+        self.vectorizer.fit_on_tokens(X)
+        words, document_ids, _ = self.vectorizer.indices(X)
+        counts = self.vectorizer.count_matrix(words, document_ids, len(X))
+        # document frequency
+        self.df = np.asarray((counts > 0).sum(axis=0), dtype=np.float64).ravel()
+        # keyphrase frequency
+        self.kf = np.bincount(words, weights=self._keywords(X, Y), minlength=self.vectorizer.vocab_size)
+        self.values = np.zeros(self.vectorizer.vocab_size)
+        np.divide(self.kf, self.df, out=self.values, where=self.df > 0)
 
     def fit_transform(self, X, Y):
         """Fits the object and transforms all samples as if it was not included in the fitting process
@@ -65,16 +102,14 @@ class KeyphrasenessModel:
         """
 
         self.fit(X, Y)
-        result = []
-        for doc, labels in zip(X, Y):
-            keywords = collections.Counter(
-                word for word, label in zip(doc, labels) if label != 0)
-            result.append([
-                (self.kfs[word] - keywords.get(word, 0)) / (self.dfs[word] - 1)
-                if self.dfs[word] > 1 else 0
-                for word in doc
-            ])
-        return result
+        words, document_ids, lengths = self.vectorizer.indices(X)
+        keywords = self.vectorizer.count_matrix(words, document_ids, len(X), weights=self._keywords(X, Y))
+        # Keyphrase and document frequency of each token without it's own document
+        kfs = self.kf[words] - token_values(keywords, document_ids, words)
+        dfs = self.df[words] - 1
+        result = np.zeros(len(words))
+        np.divide(kfs, dfs, out=result, where=dfs > 0)
+        return split_documents(result, lengths)
 
     def transform(self, X):
         """Transforms a given list of documents according to the model
@@ -85,8 +120,6 @@ class KeyphrasenessModel:
         Returns:
             list -- Keyphraseness values for all tokens in all documents or 0 for unknown words
         """
-
-        return [
-            [self.keyphraseness.get(word, 0) for word in doc]
-            for doc in X
-        ]
+        words, _, lengths = self.vectorizer.indices(X)
+        # The keyphraseness of unknown words at index 0 is 0
+        return split_documents(self.values[words], lengths)
@@ -1,18 +1,76 @@
 from __future__ import annotations
 
-from typing import List
+import threading
+from collections import OrderedDict
+from hashlib import sha1
+from typing import Dict, List, Optional, Sequence, Tuple
 
 import nltk
 import numpy as np
 from sklearn.preprocessing import LabelEncoder, OneHotEncoder
 
-__all__ = ['PosTagModel']
+from stexls.stex.storage import ObjectStorage
+
+__all__ = ['PosTagModel', 'split_sentences']
+
+# Tokens after which a sentence ends
+SENTENCE_END_TOKENS = frozenset(('.', '!', '?'))
+
+# The perceptron tagger shared by all models, loaded on first use
+_tagger: Optional[nltk.tag.PerceptronTagger] = None
+_tagger_lock = threading.Lock()
+
+
+def _get_tagger() -> nltk.tag.PerceptronTagger:
+    ' Returns the shared tagger. Loading the tagger\'s weights takes a while, so they are only loaded once. '
+    global _tagger
+    with _tagger_lock:
+        if _tagger is None:
+            _tagger = nltk.tag.PerceptronTagger()
+        return _tagger
+
+
+def split_sentences(tokens: Sequence[str]) -> List[Tuple[int, int]]:
+    """ Splits a sequence of tokens into sentences.
+
+    A sentence ends after a sentence end token. Sentences are never cut anywhere else,
+    because the tagger uses the neighbouring words and tags of every token as context.
+
+    Parameters:
+        tokens: Sequence of tokens.
+
+    Returns:
+        Begin and end index of each sentence. The sentences cover all tokens.
+    """
+    sentences: List[Tuple[int, int]] = []
+    begin = 0
+    for i, token in enumerate(tokens):
+        if token in SENTENCE_END_TOKENS:
+            sentences.append((begin, i + 1))
+            begin = i + 1
+    if begin < len(tokens):
+        sentences.append((begin, len(tokens)))
+    return sentences
 
 
 class PosTagModel:
-    def __init__(self):
-        self.tagger = nltk.tag.PerceptronTagger()
-        categories = np.unique(list(self.tagger.tagdict.values()))
+    ''' One hot encodes the part of speech tags of tokens.
+
+    Every sentence is tagged on it's own and the tags of recently tagged sentences are kept,
+    so that only the changed sentences of an edited file are tagged again.
+    Tagging the whole sequence at once, as `nltk.pos_tag` does, lets the context of a token
+    reach over the end of its sentence. Tagging by sentence only changes the tags of some tokens
+    next to a sentence end, so the inputs of models trained with whole sequence tags change slightly.
+    The tags can optionally be persisted in an object storage under the hash of the sentence.
+    '''
+
+    def __init__(self, cache_size: int = 4096, storage: Optional[ObjectStorage] = None):
+        ''' Initializes the model.
+        Parameters:
+            cache_size: Number of sentences whose tags are kept in memory.
+            storage: Optional storage the tags of all sentences are persisted in.
+        '''
+        categories = np.unique(list(_get_tagger().tagdict.values()))
         tags = OneHotEncoder(
             sparse=False,
             categories='auto'
@@ -25,16 +83,79 @@ class PosTagModel:
             in zip(categories, tags)
         }
         self._UNK_tag = np.zeros(tags.shape[-1])
+        self._initialize_cache(cache_size, storage)
+
+    def _initialize_cache(self, cache_size: int, storage: Optional[ObjectStorage]):
+        self.cache_size = cache_size
+        self.storage = storage
+        # Row of each tag in the one hot matrix. The last row is the unknown tag.
+        self._rows: Dict[str, int] = {tag: i for i, tag in enumerate(self.tag_indices)}
+        self._one_hot = np.vstack(list(self.tag_indices.values()) + [self._UNK_tag])
+        # Rows of the tags of each recently tagged sentence, least recently used first
+        self._cache: OrderedDict[Tuple[str, ...], np.ndarray] = OrderedDict()
+        self._lock = threading.Lock()
+
+    @property
+    def tagger(self) -> nltk.tag.PerceptronTagger:
+        return _get_tagger()
 
     def predict(self, sequences: List[List[str]]) -> List[np.ndarray]:
-        return [
-            np.array([
-                self.tag_indices.get(tag, self._UNK_tag)
-                for token, tag
-                in nltk.pos_tag(seq)
-            ])
+        ''' Encodes the tags of all tokens of the sequences.
+        The uncached sentences of all sequences are tagged together.
+        Parameters:
+            sequences: Sequences of tokens.
+        Returns:
+            One hot encoded tag of each token for each sequence.
+        '''
+        sentences = [
+            [tuple(seq[begin:end]) for begin, end in split_sentences(seq)]
             for seq in sequences
         ]
+        with self._lock:
+            self._tag_missing([sentence for seq in sentences for sentence in seq])
+            rows = [
+                np.concatenate([self._lookup(sentence) for sentence in seq] + [np.zeros(0, dtype=np.intp)])
+                for seq in sentences
+            ]
+        return [self._one_hot[seq] for seq in rows]
+
+    def _lookup(self, sentence: Tuple[str, ...]) -> np.ndarray:
+        ' Returns the rows of the cached tags of a sentence and marks it as recently used. '
+        rows = self._cache[sentence]
+        self._cache.move_to_end(sentence)
+        return rows
+
+    def _tag_missing(self, sentences: List[Tuple[str, ...]]):
+        ' Tags the sentences that are not cached yet and adds them to the cache. '
+        missing: Dict[Tuple[str, ...], Optional[str]] = {}
+        for sentence in sentences:
+            if sentence in self._cache:
+                self._cache.move_to_end(sentence)
+            elif sentence not in missing:
+                missing[sentence] = None
+        if not missing:
+            return
+        if self.storage is not None:
+            for sentence in missing:
+                key = sha1('\0'.join(sentence).encode()).hexdigest()
+                missing[sentence] = key
+                data = self.storage.read(key)
+                if data is not None:
+                    self._add(sentence, data.decode().split(' '))
+            missing = {sentence: key for sentence, key in missing.items() if sentence not in self._cache}
+        untagged = list(missing)
+        for sentence, tagged in zip(untagged, self.tagger.tag_sents(list(sentence) for sentence in untagged)):
+            tags = [tag for _, tag in tagged]
+            self._add(sentence, tags)
+            if self.storage is not None:
+                self.storage.write(missing[sentence], ' '.join(tags).encode())
+        # All sentences of the current prediction have to stay cached until they are looked up
+        while len(self._cache) > max(self.cache_size, len(set(sentences))):
+            self._cache.popitem(last=False)
+
+    def _add(self, sentence: Tuple[str, ...], tags: List[str]):
+        unknown = len(self._rows)
+        self._cache[sentence] = np.array([self._rows.get(tag, unknown) for tag in tags], dtype=np.intp)
 
     @property
     def num_categories(self) -> int:
@@ -43,9 +164,9 @@ class PosTagModel:
     def __setstate__(self, state):
         # restore state
         self.tag_indices, self._UNK_tag = state
-        # create a new tagger
-        self.tagger = nltk.tag.PerceptronTagger()
+        # the shared tagger is loaded on first use and the cache starts empty
+        self._initialize_cache(4096, None)
 
     def __getstate__(self):
-        # do not store the tagger
+        # do not store the tagger or the cache
         return self.tag_indices, self._UNK_tag
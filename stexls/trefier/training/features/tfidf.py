@@ -1,10 +1,11 @@
 from __future__ import annotations
 
-import collections
 from typing import Dict, Optional
 
 import numpy as np
 
+from .vectorizer import CountVectorizer, normalize_documents, split_documents, token_values
+
 
 class TfIdfModel:
     def __init__(self, X=None, norm_order=1):
@@ -13,17 +14,41 @@ class TfIdfModel:
             X: List of lists of tokens.
             norm_order: Order to normalize with or None for no normalization.
         """
-        self.dfs: Optional[Dict[str, int]] = None
-        self.idfs: Optional[Dict[str, float]] = None
+        self.vectorizer: Optional[CountVectorizer] = None
+        # Document frequency and inverse document frequency of each word index
+        self.df: Optional[np.ndarray] = None
+        self.idf: Optional[np.ndarray] = None
         self._num_documents: Optional[int] = None
         self._epsilon: float = 1e-12
         self.norm_order: int = norm_order
         if X is not None:
             self.fit(X)
 
+    def __setstate__(self, state):
+        if 'dfs' in state:
+            # Pickled by an older version, which stored dictionaries of words
+            dfs = state.pop('dfs')
+            idfs = state.pop('idfs')
+            vectorizer = CountVectorizer()
+            vectorizer.fit_on_vocabulary(dfs)
+            state['vectorizer'] = vectorizer
+            state['df'] = np.array([0] + list(dfs.values()), dtype=np.float64)
+            state['idf'] = np.array([0] + [idfs[word] for word in dfs], dtype=np.float64)
+        self.__dict__.update(state)
+
     @property
     def vocab(self):
-        return set(self.dfs)
+        return set(self.vectorizer.word_index)
+
+    @property
+    def dfs(self) -> Dict[str, int]:
+        ' Document frequency of each word. '
+        return {word: int(self.df[index]) for word, index in self.vectorizer.word_index.items()}
+
+    @property
+    def idfs(self) -> Dict[str, float]:
+        ' Inverse document frequency of each word. '
+        return {word: float(self.idf[index]) for word, index in self.vectorizer.word_index.items()}
 
     def fit(self, X):
         """Fits the model
@@ -32,14 +57,16 @@ class TfIdfModel:
             X {list} -- List of documents of tokens
         """
         self._num_documents = len(X)
+        self.vectorizer = CountVectorizer()
+        self.vectorizer.fit_on_tokens(X)
+        words, document_ids, _ = self.vectorizer.indices(X)
+        counts = self.vectorizer.count_matrix(words, document_ids, len(X))
 
         # document frequencies: Number of documents a word appears in
-        self.dfs = dict(collections.Counter(
-            [word for doc in X for word in set(doc)]))
+        self.df = np.asarray((counts > 0).sum(axis=0), dtype=np.float64).ravel()
 
         # inverse document frequncies
-        self.idfs = {word: self._idf(self._num_documents, df)
-                     for word, df in self.dfs.items()}
+        self.idf = self._idf(self._num_documents, self.df)
 
     def fit_transform(self, X):
         """Fits and transforms a corpus.
@@ -61,31 +88,20 @@ class TfIdfModel:
         """
 
         self.fit(X)
-        result = []
-        for doc in X:
-            tfs = self._tf(doc)
-            vec = np.array([
-                tfs[word] * self._idf(self._num_documents -
-                                      1, self.dfs[word] - 1)
-                for word in doc
-            ])
-            if self.norm_order is not None:
-                vec /= np.linalg.norm(vec, ord=self.norm_order)
-            result.append(vec)
-        return result
+        words, document_ids, lengths = self.vectorizer.indices(X)
+        tfs = self._tf(words, document_ids, lengths)
+        # Without the document itself, every word of the document occurs in one document less
+        vec = tfs * self._idf(self._num_documents - 1, self.df[words] - 1)
+        vec = normalize_documents(vec, document_ids, len(X), self.norm_order)
+        return split_documents(vec, lengths)
 
     def transform(self, X):
-        result = []
-        for doc in X:
-            tfs = self._tf(doc)
-            vec = np.array([
-                tfs[word] * self.idfs.get(word, 0)
-                for word in doc
-            ])
-            if self.norm_order is not None:
-                vec /= np.linalg.norm(vec, ord=self.norm_order)
-            result.append(vec)
-        return result
+        words, document_ids, lengths = self.vectorizer.indices(X)
+        tfs = self._tf(words, document_ids, lengths)
+        # The idf of unknown words at index 0 is 0
+        vec = tfs * self.idf[words]
+        vec = normalize_documents(vec, document_ids, len(X), self.norm_order)
+        return split_documents(vec, lengths)
 
     @staticmethod
     def test_transform():
@@ -98,28 +114,31 @@ class TfIdfModel:
         assert all(np.abs(x1 - x2) < 1e-6 for x1, x2 in zip(t1, t2)
                    ), "transform() and fit_transform() result not equal."
 
-    def _idf(self, num_documents: int, document_frequency: int):
-        """Calculates the inverse-document-frequency value for phrase.
+    def _idf(self, num_documents: int, document_frequency: np.ndarray) -> np.ndarray:
+        """Calculates the inverse-document-frequency values for phrases.
 
         Arguments:
             num_documents {int} -- Number of documents in the corpus
-            document_frequency {int} -- Count of documents that use a phrase
+            document_frequency {np.ndarray} -- Count of documents that use each phrase
 
         Returns:
-            float -- Idf value for a phrase. Returns 0 if document_frequency is <=0
+            np.ndarray -- Idf value for each phrase. 0 where the document_frequency is <=0
         """
-        if document_frequency <= 0:
-            return 0
-        return np.log2(float(num_documents) / document_frequency)
+        idf = np.zeros(len(document_frequency))
+        used = document_frequency > 0
+        idf[used] = np.log2(float(num_documents) / document_frequency[used])
+        return idf
 
-    def _tf(self, doc):
-        """Calculates term frequency of all words in a document.
+    def _tf(self, words: np.ndarray, document_ids: np.ndarray, lengths: np.ndarray) -> np.ndarray:
+        """Calculates the term frequency of each token in it's document.
 
         Arguments:
-            doc: Document
+            words: Word index of each token
+            document_ids: Document of each token
+            lengths: Length of each document
 
         Returns:
-            Dict of term frequencies
+            Term frequency of each token
         """
-        doc_len = len(doc)
-        return {word: term_count / doc_len for word, term_count in collections.Counter(doc).items()}
+        counts = self.vectorizer.count_matrix(words, document_ids, len(lengths))
+        return token_values(counts, document_ids, words) / lengths[document_ids]
@@ -1,7 +1,10 @@
 from collections import Counter
-from typing import Dict, Iterable, List
+from typing import Dict, Iterable, List, Optional, Sequence, Tuple
 
-__all__ = ['CountVectorizer']
+import numpy as np
+from scipy import sparse
+
+__all__ = ['CountVectorizer', 'token_values', 'normalize_documents', 'split_documents']
 
 
 class CountVectorizer:
@@ -10,6 +13,11 @@ class CountVectorizer:
         self.word_index: Dict[str, int] = None
         self.vocab: Iterable[str] = None
 
+    @property
+    def vocab_size(self) -> int:
+        ' Number of indices including the index 0 of unknown words. '
+        return len(self.word_index) + 1
+
     def fit_on_tokens(self, documents: Iterable[Iterable[str]]):
         self.word_counts = Counter(a for b in documents for a in b)
         self.word_index = {
@@ -23,6 +31,12 @@ class CountVectorizer:
         }
         self.vocab = tuple(self.word_counts)
 
+    def fit_on_vocabulary(self, vocab: Iterable[str]):
+        ' Assigns indices to the words of the vocabulary in the order they are given, without counting them. '
+        self.vocab = tuple(vocab)
+        self.word_counts = None
+        self.word_index = {word: index + 1 for index, word in enumerate(self.vocab)}
+
     def transform(self, documents: Iterable[Iterable[str]]) -> List[List[int]]:
         return [
             [
@@ -48,3 +62,83 @@ class CountVectorizer:
     def fit_transform(self, documents: Iterable[Iterable[str]]) -> List[List[int]]:
         self.fit_on_tokens(documents)
         return self.transform(documents)
+
+    def indices(self, documents: Sequence[Sequence[str]]) -> Tuple[np.ndarray, np.ndarray, np.ndarray]:
+        """ Flattens the documents into arrays with one entry per token.
+
+        Arguments:
+            documents: List of documents of tokens.
+
+        Returns:
+            Index of the word of each token, 0 for unknown words,
+            the index of the document of each token and the length of each document.
+        """
+        lengths = np.fromiter(map(len, documents), dtype=np.intp, count=len(documents))
+        get = self.word_index.get
+        words = np.fromiter(
+            (get(word, 0) for doc in documents for word in doc), dtype=np.intp, count=int(lengths.sum()))
+        return words, np.repeat(np.arange(len(documents)), lengths), lengths
+
+    def count_matrix(
+            self,
+            words: np.ndarray,
+            document_ids: np.ndarray,
+            num_documents: int,
+            weights: Optional[np.ndarray] = None) -> sparse.csr_matrix:
+        """ Counts the words of each document.
+
+        Arguments:
+            words: Word index of each token.
+            document_ids: Document of each token.
+            num_documents: Number of documents.
+            weights: Optional weight of each token. Every token counts as 1 if None.
+
+        Returns:
+            Sparse matrix with the (weighted) count of each word (column) in each document (row).
+        """
+        if weights is None:
+            weights = np.ones(len(words))
+        return sparse.csr_matrix(
+            (weights, (document_ids, words)), shape=(num_documents, self.vocab_size), dtype=np.float64)
+
+
+def token_values(matrix: sparse.csr_matrix, document_ids: np.ndarray, words: np.ndarray) -> np.ndarray:
+    ' Returns the entry of the document and word of each token. '
+    if not len(words):
+        return np.zeros(0)
+    return np.asarray(matrix[document_ids, words]).ravel()
+
+
+def normalize_documents(
+        values: np.ndarray,
+        document_ids: np.ndarray,
+        num_documents: int,
+        order: Optional[float]) -> np.ndarray:
+    """ Divides the values of the tokens of each document by the norm of the document's values.
+
+    Arguments:
+        values: Value of each token.
+        document_ids: Document of each token.
+        num_documents: Number of documents.
+        order: Order of the norm, like `np.linalg.norm`. None for no normalization.
+
+    Returns:
+        The normalized values. Documents with a norm of 0 get nan values, like dividing by `np.linalg.norm` would.
+    """
+    if order is None:
+        return values
+    magnitudes = np.abs(values)
+    if order == np.inf:
+        norms = np.zeros(num_documents)
+        np.maximum.at(norms, document_ids, magnitudes)
+    else:
+        norms = np.bincount(document_ids, weights=magnitudes ** order, minlength=num_documents) ** (1 / order)
+    with np.errstate(divide='ignore', invalid='ignore'):
+        return values / norms[document_ids]
+
+
+def split_documents(values: np.ndarray, lengths: np.ndarray) -> List[np.ndarray]:
+    ' Splits the values of all tokens into one array for each document. '
+    if not len(lengths):
+        return []
+    return np.split(values, np.cumsum(lengths)[:-1])
@@ -0,0 +1,101 @@
+''' Conversion between offsets in a text and the line and character positions used by the language server protocol.
+
+The characters of positions are counted in UTF-16 code units, like the protocol requires.
+Characters outside of the basic multilingual plane, e.g. mathematical alphanumeric symbols like "𝔸",
+count as two code units, every other character counts as one.
+'''
+import re
+from bisect import bisect_left, bisect_right
+from itertools import accumulate
+from typing import Dict, List
+
+from ..vscode import Position, Range
+
+__all__ = ['LineIndex']
+
+# Characters that are encoded with two UTF-16 code units
+_SURROGATE_PAIR = re.compile('[\U00010000-\U0010FFFF]')
+
+
+class LineIndex:
+    ''' Index of the lines of a text.
+
+    Converts offsets to positions and positions to offsets in O(log n).
+    '''
+
+    def __init__(self, text: str):
+        """ Indexes the lines of the text. Lines are separated by "\\n".
+
+        Args:
+            text (str): The indexed text.
+        """
+        self.text = text
+        # Offset of the first character of each line
+        self.line_starts: List[int] = [0]
+        self.line_starts.extend(accumulate(len(line) + 1 for line in text.split('\n')[:-1]))
+        # For each line with characters that take two UTF-16 code units:
+        # The columns of the characters and the UTF-16 character after each of them
+        self._columns: Dict[int, List[int]] = {}
+        self._characters: Dict[int, List[int]] = {}
+        if not text.isascii():
+            for match in _SURROGATE_PAIR.finditer(text):
+                line = bisect_right(self.line_starts, match.start()) - 1
+                columns = self._columns.setdefault(line, [])
+                columns.append(match.start() - self.line_starts[line])
+                self._characters.setdefault(line, []).append(columns[-1] + len(columns) + 1)
+
+    @property
+    def line_count(self) -> int:
+        ' Number of lines. An empty text has one line. '
+        return len(self.line_starts)
+
+    def line(self, line: int) -> str:
+        ' Returns the line without it\'s line break. '
+        begin = self.line_starts[line]
+        end = self.line_starts[line + 1] - 1 if line + 1 < len(self.line_starts) else len(self.text)
+        return self.text[begin:end]
+
+    def offset_to_position(self, offset: int) -> Position:
+        """ Converts an offset to the position of the character at the offset.
+
+        Args:
+            offset (int): 0-indexed offset of a character in the text.
+
+        Returns:
+            Position: Equivalent position.
+        """
+        line = bisect_right(self.line_starts, offset) - 1
+        column = offset - self.line_starts[line]
+        columns = self._columns.get(line)
+        if columns is not None:
+            column += bisect_left(columns, column)
+        return Position(line, column)
+
+    def position_to_offset(self, line: int, character: int) -> int:
+        """ Converts a line and UTF-16 character to an offset.
+        Characters between the two code units of a character are moved behind the character.
+        Lines after the last line are moved to the end of the text.
+
+        Args:
+            line (int): 0-indexed line.
+            character (int): 0-indexed character of that line in UTF-16 code units.
+
+        Returns:
+            int: 0-indexed offset of that line and character.
+        """
+        if line >= len(self.line_starts):
+            return len(self.text)
+        characters = self._characters.get(line)
+        if characters is not None:
+            character -= bisect_right(characters, character)
+        return self.line_starts[line] + character
+
+    def range(self, begin: int, end: int) -> Range:
+        ' Converts the begin and end offsets to a range. '
+        return Range(self.offset_to_position(begin), self.offset_to_position(end))
+
+    def read(self, range: Range) -> str:
+        ' Returns the text inside the range. '
+        begin = self.position_to_offset(range.start.line, range.start.character)
+        end = self.position_to_offset(range.end.line, range.end.character)
+        return self.text[begin:end]
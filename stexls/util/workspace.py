@@ -6,6 +6,7 @@ from typing import Dict, Optional, Set, Union
 
 from .. import vscode
 from .ignorefile import IgnoreFile
+from .line_index import LineIndex
 
 log = logging.getLogger(__name__)
 
@@ -13,24 +14,43 @@ __all__ = ['Workspace']
 
 
 class TextDocument:
-    def __init__(self, path: Union[str, Path], version: int, text: str) -> None:
+    def __init__(self, path: Union[str, Path], version: int, text: str, saved_text: Optional[str] = None) -> None:
         """ Versioned text document being tracked because it's in the workspace.
 
         Args:
             path (Path): Path to the text document.
             version (int): Version number.
             text (str): Buffered contents of the file.
+            saved_text (Optional[str]): Contents of the file on disk. None if unknown.
         """
         self.path: Path = Path(path)
         self.version: int = version
         self.text: str = text
         self.time_modified: float = time.time()
+        self._line_index: Optional[LineIndex] = None
+        # Contents of the file on disk as of the last open or save event
+        self.saved_text: Optional[str] = saved_text
+        self.saved: bool = text == saved_text
+
+    @property
+    def line_index(self) -> LineIndex:
+        ' Index of the lines of the current text. Created when needed. '
+        if self._line_index is None:
+            self._line_index = LineIndex(self.text)
+        return self._line_index
 
     def update(self, version: int, text: str):
         ' Updates the version, text and time modified timestamp of this text document. '
         self.version = version
         self.text = text
         self.time_modified = time.time()
+        self._line_index = None
+        self.saved = text == self.saved_text
+
+    def save(self, text: Optional[str] = None):
+        ' Marks the text as the contents of the file on disk. If the saved text is given, it is used instead. '
+        self.saved_text = self.text if text is None else text
+        self.saved = self.text == self.saved_text
 
 
 class Workspace:
@@ -99,7 +119,11 @@ class Workspace:
             log.warning(
                 'Ignoring open file attempt of "%s" because it is not part of this workspace.', path)
             return False
-        self._open_files[path] = TextDocument(path, version, text)
+        try:
+            saved_text: Optional[str] = path.read_text()
+        except OSError:
+            saved_text = None
+        self._open_files[path] = TextDocument(path, version, text, saved_text)
         return True
 
     def update_file(self, path: Path, version: int, text: str) -> bool:
@@ -118,6 +142,23 @@ class Workspace:
         document.update(version, text)
         return True
 
+    def save_file(self, path: Path, text: Optional[str] = None) -> bool:
+        """ Marks the buffered content of an open file as saved to disk.
+
+        Parameters:
+            path: The saved file.
+            text: The saved content, if the client sent it.
+
+        Returns:
+            True if the file is open.
+        """
+        document = self._open_files.get(path)
+        if document is None:
+            log.warning('Unable to save file that has not been opened: "%s"', path)
+            return False
+        document.save(text)
+        return True
+
     def close_file(self, path: Path) -> bool:
         """ Removes an opened file from ram.
 
@@ -148,6 +189,14 @@ class Workspace:
             return document.text
         return None
 
+    def is_saved(self, path: Path) -> bool:
+        """ Returns True if the file is not open or if the buffered content is the same as the content on disk.
+
+        The content on disk is read when the file is opened and updated by `save_file`.
+        """
+        document = self._open_files.get(path)
+        return document is None or document.saved
+
     def read_file(self, path: Path) -> Optional[str]:
         """ Gets the most up to date content of the file @path.
 
@@ -184,10 +233,15 @@ class Workspace:
             Content of the location from ram if opened, from disk if not.
             None if any kind of error occurs.
         """
-        content = self.read_file(location.path)
-        if content is None:
-            return None
-        return location.read(content.split('\n'))
+        document = self._open_files.get(location.path)
+        if document is not None:
+            line_index = document.line_index
+        else:
+            content = self.read_file(location.path)
+            if content is None:
+                return None
+            line_index = LineIndex(content)
+        return line_index.read(location.range)
 
     @property
     def files(self) -> Set[Path]:
@@ -377,7 +377,11 @@ class Location:
             self.range = positionOrRange
 
     def copy(self) -> Location:
-        return Location(self.uri, self.range.copy())
+        # The uri was already validated when this location was created
+        cpy = Location.__new__(Location)
+        cpy.uri = self.uri
+        cpy.range = self.range.copy()
+        return cpy
 
     def __eq__(self, other):
         return isinstance(other, Location) and self.uri == other.uri and self.range == other.range
@@ -1063,3 +1067,37 @@ class ErrorCodes(SerializableEnum):
     InternalError: int = -32603
     ServerNotInitialized: int = -32002
     UnknownErrorCode: int = -32001
+
+
+# Classes whose to_json() only returns dicts, lists and json primitives
+_PLAIN_JSON_CLASSES = (
+    Position,
+    Range,
+    Location,
+    LocationLink,
+    TextDocumentIdentifier,
+    VersionedTextDocumentIdentifier,
+    DiagnosticRelatedInformation,
+    Diagnostic,
+    MessageActionItem,
+    TextDocumentItem,
+    CompletionContext,
+    TextEdit,
+    WorkDoneProgressBegin,
+    WorkDoneProgressReport,
+    WorkDoneProgressEnd,
+    DocumentSymbol,
+    SymbolInformation,
+    WorkspaceFolder,
+)
+
+
+def register_serializers():
+    ''' Registers the serializers of the classes of this module, so that outgoing messages
+    don't need to find out how to serialize them for every object. Called by the language server. '''
+    from .jsonrpc.serialization import register_serializer
+    for cls in _PLAIN_JSON_CLASSES:
+        register_serializer(cls, cls.to_json, plain=True)
+    for cls in list(globals().values()):
+        if isinstance(cls, type) and issubclass(cls, SerializableEnum) and cls is not SerializableEnum:
+            register_serializer(cls, cls.to_json)
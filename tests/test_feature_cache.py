@@ -0,0 +1,123 @@
+import random
+import tempfile
+from pathlib import Path
+from unittest import TestCase
+
+import numpy as np
+
+from stexls.trefier.training.feature_cache import FEATURES, FeatureCache
+from stexls.trefier.training.features.embedding import GloVe
+from stexls.trefier.training.features.keyphraseness import KeyphrasenessModel
+from stexls.trefier.training.features.tfidf import TfIdfModel
+
+
+class PosTagModel:
+    ' Tags every token with a one hot vector of it\'s length. '
+    num_categories = 4
+
+    def predict(self, sequences):
+        return [np.eye(self.num_categories)[[min(len(token), 3) for token in seq]] for seq in sequences]
+
+
+def glove() -> GloVe:
+    ' Creates embeddings for a small vocabulary, with zeros for out of vocabulary words. '
+    glove = GloVe.__new__(GloVe)
+    glove.__setstate__({
+        'embeddings': {'a': np.ones(3), 'bb': np.full(3, 2.0), 'ccc': np.full(3, 3.0)},
+        'oov_vec': np.zeros(3),
+        'embedding_size': 3,
+    })
+    return glove
+
+
+def corpus(num_documents: int, seed: int = 0):
+    rng = random.Random(seed)
+    vocab = ['a', 'bb', 'ccc', 'dddd', 'e']
+    x = [[rng.choice(vocab) for _ in range(rng.randint(1, 12))] for _ in range(num_documents)]
+    y = [[int(rng.random() < 0.3) for _ in doc] for doc in x]
+    return x, y
+
+
+class TestFeatureCache(TestCase):
+    def setUp(self):
+        self.tmpdir = tempfile.TemporaryDirectory()
+        self.root = Path(self.tmpdir.name)
+        self.x, self.y = corpus(30)
+        self.splits = {
+            'train': (self.x[:20], self.y[:20]),
+            'val': (self.x[20:25], self.y[20:25]),
+            'test': (self.x[25:], self.y[25:]),
+        }
+        self.key = FeatureCache.make_key(self.x, self.y, glove_n_components=3)
+
+    def tearDown(self):
+        self.tmpdir.cleanup()
+
+    def build(self) -> FeatureCache:
+        cache = FeatureCache(self.root, self.key)
+        cache.build(
+            self.splits, glove(), TfIdfModel(), KeyphrasenessModel(), PosTagModel(),
+            shard_size=4, num_jobs=2)
+        return cache
+
+    def test_key(self):
+        x, y = corpus(30)
+        self.assertEqual(self.key, FeatureCache.make_key(x, y, glove_n_components=3))
+        self.assertNotEqual(self.key, FeatureCache.make_key(x, y, glove_n_components=4))
+        y[0][0] = 1 - y[0][0]
+        self.assertNotEqual(self.key, FeatureCache.make_key(x, y, glove_n_components=3))
+
+    def test_build(self):
+        cache = FeatureCache(self.root, self.key)
+        self.assertFalse(cache.exists)
+        self.build()
+        self.assertTrue(cache.exists)
+        self.assertEqual([path.name for path in self.root.iterdir()], [self.key])
+        _, tfidf_model, keyphraseness_model, pos_tag_model = cache.load()
+        self.assertEqual(cache.num_documents('train'), 20)
+        self.assertEqual(cache.num_documents('val'), 5)
+        self.assertEqual(cache.num_documents('test'), 5)
+        self.assertEqual(len(cache.index['splits']['train']), 5)
+        labels = np.concatenate([np.array(labels) for labels in self.y[:20]])
+        self.assertEqual(cache.class_counts('train'), np.bincount(labels).tolist())
+        self.assertEqual(tfidf_model.vocab, {word for doc in self.x[:20] for word in doc})
+        self.assertEqual(pos_tag_model.num_categories, 4)
+
+    def test_batches(self):
+        cache = self.build()
+        val_x, val_y = self.splits['val']
+        batches = list(cache.batches('val', batch_size=3))
+        self.assertEqual([len(labels) for _, labels, _ in batches], [3, 1, 1])
+        inputs, labels, weights = batches[0]
+        self.assertEqual(set(inputs), set(FEATURES))
+        length = max(map(len, val_x[:3]))
+        self.assertEqual(inputs['tokens'].shape, (3, length, 3))
+        self.assertEqual(inputs['tfidf'].shape, (3, length, 1))
+        self.assertEqual(inputs['pos'].shape, (3, length, 4))
+        self.assertEqual(labels.shape, (3, length, 1))
+        np.testing.assert_array_equal(weights, np.ones((3, length)))
+        for i, (lexemes, y) in enumerate(zip(val_x[:3], val_y[:3])):
+            padding = length - len(lexemes)
+            # Padded at the front with the label 0
+            np.testing.assert_array_equal(labels[i, :padding, 0], 0)
+            np.testing.assert_array_equal(labels[i, padding:, 0], y)
+            np.testing.assert_array_equal(inputs['tokens'][i, padding:], glove().transform([lexemes])[0])
+        np.testing.assert_allclose(
+            inputs['keyphraseness'][0, length - len(val_x[0]):, 0],
+            KeyphrasenessModel(self.x[:20], self.y[:20]).transform([val_x[0]])[0], rtol=1e-6)
+
+    def test_class_weights_and_shuffle(self):
+        cache = self.build()
+        class_weights = np.array([0.5, 2.0])
+        batches = list(cache.batches('train', batch_size=4, class_weights=class_weights, shuffle=True, seed=1))
+        self.assertEqual(sum(len(labels) for _, labels, _ in batches), 20)
+        for _, labels, weights in batches:
+            # Padding is weighted like the label 0
+            np.testing.assert_array_equal(weights, class_weights[labels[..., 0].astype(int)])
+
+    def test_rebuild(self):
+        cache = self.build()
+        shards = sorted(path.name for path in cache.directory.iterdir())
+        cache = self.build()
+        self.assertEqual(sorted(path.name for path in cache.directory.iterdir()), shards)
+        self.assertEqual([path.name for path in self.root.iterdir()], [self.key])
@@ -0,0 +1,172 @@
+import collections
+import pickle
+import random
+from unittest import TestCase
+
+import numpy as np
+
+from stexls.trefier.training.features.chisquare import ChiSquareModel
+from stexls.trefier.training.features.keyphraseness import KeyphrasenessModel
+from stexls.trefier.training.features.tfidf import TfIdfModel
+
+
+def corpus(num_documents: int, vocab_size: int = 40, seed: int = 0):
+    ' Creates random documents of words and keyword labels. Some documents are empty. '
+    rng = random.Random(seed)
+    vocab = [f'w{i}' for i in range(vocab_size)]
+    X = [
+        [rng.choice(vocab[:rng.randint(1, vocab_size)]) for _ in range(rng.choice((0, 1, 5, 20, 50)))]
+        for _ in range(num_documents)
+    ]
+    Y = [[int(rng.random() < 0.3) for _ in doc] for doc in X]
+    return X, Y
+
+
+def normalize(vec, order):
+    if order is None:
+        return vec
+    with np.errstate(divide='ignore', invalid='ignore'):
+        return vec / np.linalg.norm(vec, ord=order)
+
+
+def reference_tfidf(train, test, order, leave_one_out):
+    ' The tf-idf computation of the dictionary based implementation. '
+    def idf(n, df):
+        return np.log2(float(n) / df) if df > 0 else 0
+    dfs = collections.Counter(word for doc in train for word in set(doc))
+    result = []
+    for doc in test:
+        tfs = {word: count / len(doc) for word, count in collections.Counter(doc).items()}
+        if leave_one_out:
+            vec = np.array([tfs[word] * idf(len(train) - 1, dfs[word] - 1) for word in doc])
+        else:
+            vec = np.array([tfs[word] * idf(len(train), dfs.get(word, 0)) for word in doc])
+        result.append(normalize(vec, order))
+    return result
+
+
+def reference_keyphraseness(train, labels, test, test_labels, leave_one_out):
+    ' The keyphraseness computation of the dictionary based implementation. '
+    dfs = collections.Counter(word for doc in train for word in set(doc))
+    kfs = collections.Counter(
+        word for doc, y in zip(train, labels) for word, label in zip(doc, y) if label != 0)
+    result = []
+    for doc, y in zip(test, test_labels):
+        if leave_one_out:
+            keywords = collections.Counter(word for word, label in zip(doc, y) if label != 0)
+            result.append(np.array([
+                (kfs[word] - keywords[word]) / (dfs[word] - 1) if dfs[word] > 1 else 0
+                for word in doc
+            ]))
+        else:
+            result.append(np.array([kfs[word] / dfs[word] if dfs[word] > 0 else 0 for word in doc]))
+    return result
+
+
+def reference_chisquare(train, test, order, leave_one_out):
+    ' The chi-square statistic of the dictionary based implementation. '
+    word_counts = collections.Counter(word for doc in train for word in doc)
+    total = sum(word_counts.values())
+    result = []
+    for doc in test:
+        values = {}
+        for phrase, a in collections.Counter(doc).items():
+            if leave_one_out:
+                c, d, n = word_counts[phrase] - a, total - len(doc), len(train) - 1
+            else:
+                c, d, n = word_counts.get(phrase, 0), total - word_counts.get(phrase, 0), len(train)
+            if c <= 0:
+                values[phrase] = 0
+            else:
+                observed = np.array([a, len(doc) - a], dtype=np.float64)
+                expected = np.array([c / n, d / n])
+                with np.errstate(divide='ignore', invalid='ignore'):
+                    values[phrase] = np.sum((observed - expected) ** 2 / expected)
+        result.append(normalize(np.array([values[word] for word in doc], dtype=np.float64), order))
+    return result
+
+
+class TestFeatures(TestCase):
+    def setUp(self):
+        self.X, self.Y = corpus(60)
+        self.test_X, self.test_Y = corpus(20, vocab_size=50, seed=1)
+
+    def assertDocumentsEqual(self, expected, actual):
+        self.assertEqual(len(expected), len(actual))
+        for e, a in zip(expected, actual):
+            np.testing.assert_allclose(np.asarray(a, dtype=np.float64), e, rtol=1e-9, atol=1e-12, equal_nan=True)
+
+    def test_tfidf(self):
+        for order in (None, 1, 2, np.inf):
+            with self.subTest(order=order):
+                model = TfIdfModel(norm_order=order)
+                self.assertDocumentsEqual(
+                    reference_tfidf(self.X, self.X, order, True), model.fit_transform(self.X))
+                self.assertDocumentsEqual(
+                    reference_tfidf(self.X, self.test_X, order, False), model.transform(self.test_X))
+
+    def test_keyphraseness(self):
+        model = KeyphrasenessModel()
+        self.assertDocumentsEqual(
+            reference_keyphraseness(self.X, self.Y, self.X, self.Y, True), model.fit_transform(self.X, self.Y))
+        self.assertDocumentsEqual(
+            reference_keyphraseness(self.X, self.Y, self.test_X, self.test_Y, False), model.transform(self.test_X))
+
+    def test_chisquare(self):
+        for order in (None, 1, 2):
+            with self.subTest(order=order):
+                model = ChiSquareModel(norm_order=order)
+                self.assertDocumentsEqual(
+                    reference_chisquare(self.X, self.X, order, True), model.fit_transform(self.X))
+                self.assertDocumentsEqual(
+                    reference_chisquare(self.X, self.test_X, order, False), model.transform(self.test_X))
+
+    def test_tfidf_fit_transform_equals_transform_without_document(self):
+        TfIdfModel.test_transform()
+
+    def test_empty(self):
+        self.assertEqual(TfIdfModel(self.X).transform([]), [])
+        self.assertEqual(len(ChiSquareModel(self.X).transform([[]])[0]), 0)
+        self.assertEqual(len(KeyphrasenessModel(self.X, self.Y).transform([[], ['unknown']])[1]), 1)
+
+    def test_pickle(self):
+        for model in (TfIdfModel(self.X), KeyphrasenessModel(self.X, self.Y), ChiSquareModel(self.X)):
+            with self.subTest(model=type(model).__name__):
+                loaded = pickle.loads(pickle.dumps(model))
+                self.assertDocumentsEqual(model.transform(self.test_X), loaded.transform(self.test_X))
+
+    def test_load_dictionary_state(self):
+        # State of models pickled before the vocabulary was shared
+        dfs = collections.Counter(word for doc in self.X for word in set(doc))
+        tfidf = TfIdfModel.__new__(TfIdfModel)
+        tfidf.__setstate__({
+            'dfs': dict(dfs),
+            'idfs': {word: np.log2(len(self.X) / df) for word, df in dfs.items()},
+            '_num_documents': len(self.X),
+            '_epsilon': 1e-12,
+            'norm_order': 1,
+        })
+        self.assertDocumentsEqual(reference_tfidf(self.X, self.test_X, 1, False), tfidf.transform(self.test_X))
+        self.assertEqual(tfidf.dfs, dict(dfs))
+
+        kfs = collections.defaultdict(int)
+        for doc, labels in zip(self.X, self.Y):
+            for word, label in zip(doc, labels):
+                kfs[word] += label != 0
+        keyphraseness = KeyphrasenessModel.__new__(KeyphrasenessModel)
+        keyphraseness.__setstate__({
+            'keyphraseness': {word: kfs[word] / df for word, df in dfs.items()},
+            'dfs': collections.defaultdict(float, dfs),
+            'kfs': kfs,
+        })
+        self.assertDocumentsEqual(
+            reference_keyphraseness(self.X, self.Y, self.test_X, self.test_Y, False),
+            keyphraseness.transform(self.test_X))
+
+        chisquare = ChiSquareModel.__new__(ChiSquareModel)
+        chisquare.__setstate__({
+            'word_counts': collections.Counter(word for doc in self.X for word in doc),
+            'norm_order': 1,
+            '_num_documents': len(self.X),
+        })
+        self.assertDocumentsEqual(reference_chisquare(self.X, self.test_X, 1, False), chisquare.transform(self.test_X))
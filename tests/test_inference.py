@@ -0,0 +1,145 @@
+import io
+from unittest import TestCase
+
+import numpy as np
+
+from stexls.trefier.models.inference import InferenceModel, _gru
+
+
+def sigmoid(x):
+    return 1 / (1 + np.exp(-x))
+
+
+def reference_gru(sequence, kernel, recurrent_kernel, bias, reset_after):
+    ' Runs a single sequence through a keras GRU with tanh and sigmoid activations, written out gate by gate. '
+    units = recurrent_kernel.shape[0]
+    W_z, W_r, W_h = kernel[:, :units], kernel[:, units:2 * units], kernel[:, 2 * units:]
+    U_z, U_r, U_h = recurrent_kernel[:, :units], recurrent_kernel[:, units:2 * units], recurrent_kernel[:, 2 * units:]
+    if reset_after:
+        input_bias, recurrent_bias = bias
+    else:
+        input_bias, recurrent_bias = bias, np.zeros_like(bias)
+    b_z, b_r, b_h = input_bias[:units], input_bias[units:2 * units], input_bias[2 * units:]
+    rb_z, rb_r, rb_h = recurrent_bias[:units], recurrent_bias[units:2 * units], recurrent_bias[2 * units:]
+    h = np.zeros(units)
+    outputs = []
+    for x in sequence:
+        z = sigmoid(x @ W_z + b_z + h @ U_z + rb_z)
+        r = sigmoid(x @ W_r + b_r + h @ U_r + rb_r)
+        if reset_after:
+            candidate = np.tanh(x @ W_h + b_h + r * (h @ U_h + rb_h))
+        else:
+            candidate = np.tanh(x @ W_h + b_h + (r * h) @ U_h)
+        h = z * h + (1 - z) * candidate
+        outputs.append(h)
+    return np.array(outputs).reshape(len(sequence), units)
+
+
+def random_gru_weights(rng, features, units, reset_after):
+    kernel = rng.normal(scale=0.5, size=(features, 3 * units)).astype(np.float32)
+    recurrent_kernel = rng.normal(scale=0.5, size=(units, 3 * units)).astype(np.float32)
+    bias_shape = (2, 3 * units) if reset_after else (3 * units,)
+    bias = rng.normal(scale=0.5, size=bias_shape).astype(np.float32)
+    return kernel, recurrent_kernel, bias
+
+
+def random_model(rng, reset_after, units=4, outputs=2):
+    ' Creates a network of a bidirectional GRU, dense and batch normalization layer over the inputs "a" and "b". '
+    weights = {}
+    for direction in ('forward', 'backward'):
+        kernel, recurrent_kernel, bias = random_gru_weights(rng, 3, units, reset_after)
+        weights[f'0/{direction}_kernel'] = kernel
+        weights[f'0/{direction}_recurrent_kernel'] = recurrent_kernel
+        weights[f'0/{direction}_bias'] = bias
+    weights['1/kernel'] = rng.normal(size=(2 * units, outputs)).astype(np.float32)
+    weights['1/bias'] = rng.normal(size=outputs).astype(np.float32)
+    weights['2/gamma'] = rng.normal(size=outputs).astype(np.float32)
+    weights['2/beta'] = rng.normal(size=outputs).astype(np.float32)
+    weights['2/mean'] = rng.normal(size=outputs).astype(np.float32)
+    weights['2/variance'] = rng.uniform(0.5, 2, size=outputs).astype(np.float32)
+    layers = [
+        {'type': 'bigru', 'activation': 'tanh', 'recurrent_activation': 'sigmoid', 'reset_after': reset_after},
+        {'type': 'dense', 'activation': 'sigmoid'},
+        {'type': 'batch_normalization', 'epsilon': 1e-3},
+    ]
+    return InferenceModel(['a', 'b'], layers, weights)
+
+
+def reference_predict(model: InferenceModel, inputs):
+    ' Computes the output of a network created by `random_model` one sequence at a time. '
+    w = model.weights
+    results = []
+    for sequence in np.concatenate([inputs['a'], inputs['b']], axis=-1).astype(np.float64):
+        def gru(direction, sequence):
+            return reference_gru(
+                sequence,
+                w[f'0/{direction}_kernel'],
+                w[f'0/{direction}_recurrent_kernel'],
+                w[f'0/{direction}_bias'],
+                model.layers[0]['reset_after'])
+        # The backward layer reads the sequence reversed and its outputs are reversed back
+        net = np.concatenate([gru('forward', sequence), gru('backward', sequence[::-1])[::-1]], axis=-1)
+        net = sigmoid(net @ w['1/kernel'] + w['1/bias'])
+        net = (net - w['2/mean']) / np.sqrt(w['2/variance'] + 1e-3) * w['2/gamma'] + w['2/beta']
+        results.append(net)
+    return np.array(results)
+
+
+class TestInferenceModel(TestCase):
+    def setUp(self):
+        self.rng = np.random.RandomState(0)
+        self.inputs = {
+            'a': self.rng.normal(size=(3, 6, 2)).astype(np.float32),
+            'b': self.rng.normal(size=(3, 6, 1)).astype(np.float32),
+        }
+
+    def test_gru(self):
+        inputs = self.rng.normal(size=(2, 5, 3)).astype(np.float32)
+        for reset_after in (False, True):
+            for reverse in (False, True):
+                with self.subTest(reset_after=reset_after, reverse=reverse):
+                    kernel, recurrent_kernel, bias = random_gru_weights(self.rng, 3, 4, reset_after)
+                    outputs = _gru(
+                        inputs, kernel, recurrent_kernel, bias, 'tanh', 'sigmoid', reset_after, reverse)
+                    step = -1 if reverse else 1
+                    expected = np.array([
+                        reference_gru(sequence[::step], kernel, recurrent_kernel, bias, reset_after)[::step]
+                        for sequence in inputs.astype(np.float64)
+                    ])
+                    self.assertEqual(outputs.shape, (2, 5, 4))
+                    np.testing.assert_allclose(outputs, expected, rtol=1e-4, atol=1e-5)
+
+    def test_predict(self):
+        for reset_after in (False, True):
+            with self.subTest(reset_after=reset_after):
+                model = random_model(self.rng, reset_after)
+                outputs = model.predict(self.inputs)
+                self.assertEqual(outputs.shape, (3, 6, 2))
+                np.testing.assert_allclose(outputs, reference_predict(model, self.inputs), rtol=1e-4, atol=1e-5)
+
+    def test_save_load(self):
+        for reset_after in (False, True):
+            with self.subTest(reset_after=reset_after):
+                model = random_model(self.rng, reset_after)
+                buffer = io.BytesIO()
+                model.save(buffer)
+                buffer.seek(0)
+                loaded = InferenceModel.load(buffer)
+                self.assertEqual(loaded.input_names, model.input_names)
+                self.assertEqual(loaded.layers, model.layers)
+                self.assertEqual(set(loaded.weights), set(model.weights))
+                np.testing.assert_array_equal(loaded.predict(self.inputs), model.predict(self.inputs))
+
+    def test_float16_weights(self):
+        model = random_model(self.rng, reset_after=True)
+        half = InferenceModel(
+            model.input_names, model.layers,
+            {name: weight.astype(np.float16) for name, weight in model.weights.items()})
+        buffer = io.BytesIO()
+        half.save(buffer)
+        buffer.seek(0)
+        loaded = InferenceModel.load(buffer)
+        self.assertTrue(all(weight.dtype == np.float16 for weight in loaded.weights.values()))
+        # The forward pass is computed with float32 regardless of the stored precision
+        self.assertEqual(loaded.predict(self.inputs).dtype, np.float32)
+        np.testing.assert_allclose(loaded.predict(self.inputs), model.predict(self.inputs), atol=0.05)
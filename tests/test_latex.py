@@ -1,8 +1,10 @@
+import random
 import tempfile
 from pathlib import Path
 from unittest import TestCase
 
-from stexls.latex.parser import LatexParser
+from stexls.latex.parser import (Environment, LatexException, LatexParser,
+                                 Node, OArgument, SyntaxErrorException)
 from stexls.latex.tokenizer import LatexTokenizer
 
 
@@ -77,6 +79,112 @@ class TestLatexParser(SetupEnvironment, TestCase):
             self.assertTupleEqual(('$',), token.envs)
 
 
+def _describe(node: Node) -> tuple:
+    ' Describes the node and everything it owns, so that the trees of different parsers can be compared. '
+    parts = [type(node).__name__, node.begin, node.end, getattr(node, 'lexeme', None)]
+    if isinstance(node, (Environment, OArgument)):
+        parts.append(None if node.name is None else _describe(node.name))
+    if isinstance(node, Environment):
+        parts.append(tuple(map(_describe, node.oargs)))
+        parts.append(tuple(map(_describe, node.rargs)))
+    if isinstance(node, OArgument):
+        parts.append(None if node.value is None else _describe(node.value))
+    parts.append(tuple(map(_describe, node.children)))
+    return tuple(parts)
+
+
+class TestFastParser(SetupEnvironment, TestCase):
+    ' Compares the trees of the fast backend with the trees of the ANTLR backend. '
+
+    documents = [
+        r'''
+        \begin{modsig}{file}
+            \gimport[smglom/mv]{structure}
+            \importmhmodule[repos=smglom/sets,path=set]{set}
+            \symi{symbol}
+            \symdef[name=sym,noverb]{symbol}[1]{\mathbf{#1}}
+            \begin{gviewsig}[creators=anon]{name}{source}{target}
+                \vassign{a}{b}
+            \end{gviewsig}
+        \end{modsig}
+        ''',
+        r'''
+        \begin{frame}[t]{Title \emph{emphasized}}
+            A \trefi[mod?sym]{symbol}, \defii[name=x]{first}{second} and $x = y$.
+            \begin{itemize}
+                \item[a] item, {braced {text}} [not an argument
+                \item \verb|\verbatim{| and \lstinline{\code[}
+            \end{itemize}
+            \newcommand{\cmd}[2][default]{#1 #2}
+            \begin{align*} x &= y \\ \end{document} \end{align*}
+            \[ display \] \( inline \) $$ display $$ \$ escaped
+        \end{frame} % comment \begin{ignored}
+        ''',
+        r'''\outer[key={\inner[a=b]{c}},value=\cmd[x]{y},flag=,{group}]{arg}[trailing''',
+    ]
+
+    atoms = [
+        'text ', '\n', ' ', '\\cmd', '\\begin', '\\end', '{', '}', '[', ']', '=', ',', '{frame}',
+        '$m$', '$$d$$', '\\(p\\)', '\\[q\\]', '%comment\n', '\\verb|v|', '\\newcommand{\\x}[1]{y}',
+        '\\begin{math}m\\end{math}', '\\\\', '\\$',
+    ]
+
+    def parse(self, content: str, backend: str, keep_tree: bool = True):
+        parser = LatexParser(self.file, keep_tree=keep_tree, backend=backend)
+        try:
+            parser.parse(content)
+        except LatexException:
+            return None
+        return parser
+
+    def assertSameTree(self, content: str, keep_tree: bool = True):
+        antlr = self.parse(content, 'antlr', keep_tree)
+        fast = self.parse(content, 'fast', keep_tree)
+        if antlr is None:
+            self.assertIsNone(fast, content)
+            return
+        self.assertIsNotNone(fast, content)
+        antlr_errors = [loc for loc, e in antlr.syntax_errors if isinstance(e, SyntaxErrorException)]
+        fast_errors = [loc for loc, e in fast.syntax_errors if isinstance(e, SyntaxErrorException)]
+        if antlr_errors:
+            # Errors after the first depend on how ANTLR recovers, only the first is reported by both
+            self.assertTrue(fast_errors, content)
+            self.assertEqual(antlr_errors[0], fast_errors[0], content)
+            return
+        self.assertListEqual(
+            [(loc, str(e)) for loc, e in antlr.syntax_errors],
+            [(loc, str(e)) for loc, e in fast.syntax_errors],
+            content)
+        self.assertEqual(_describe(antlr.root), _describe(fast.root), content)
+        self.assertListEqual(
+            [(env.begin, env.end) for env in antlr.environments],
+            [(env.begin, env.end) for env in fast.environments],
+            content)
+
+    def test_unknown_backend(self):
+        with self.assertRaises(ValueError):
+            LatexParser(self.file, backend='unknown')
+
+    def test_parse_file(self):
+        content = self.file.read_text()
+        self.assertSameTree(content)
+        self.assertSameTree(content, keep_tree=False)
+
+    def test_documents(self):
+        for document in self.documents:
+            self.assertSameTree(document)
+            self.assertSameTree(document, keep_tree=False)
+
+    def test_empty_document(self):
+        self.assertIsNone(self.parse('  % only a comment', 'fast'))
+
+    def test_random_documents(self):
+        rng = random.Random(0)
+        for _ in range(500):
+            content = ''.join(rng.choice(self.atoms) for _ in range(rng.randint(1, 30)))
+            self.assertSameTree(content)
+
+
 class TestLatexTokenizer(SetupEnvironment, TestCase):
     def test_tokenize(self):
         tokenizer = LatexTokenizer.from_file(self.file)
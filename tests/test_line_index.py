@@ -0,0 +1,37 @@
+from unittest import TestCase
+
+from stexls.util.line_index import LineIndex
+from stexls.vscode import Position, Range
+
+
+class TestLineIndex(TestCase):
+    def test_ascii(self):
+        text = 'first\n\nthird line\n'
+        index = LineIndex(text)
+        self.assertEqual(index.line_count, 4)
+        self.assertListEqual(['first', '', 'third line', ''], [index.line(i) for i in range(index.line_count)])
+        for offset in range(len(text) + 1):
+            position = index.offset_to_position(offset)
+            line_begin = text.rfind('\n', 0, offset) + 1
+            self.assertEqual(position, Position(text.count('\n', 0, offset), offset - line_begin))
+            self.assertEqual(index.position_to_offset(position.line, position.character), offset)
+        self.assertEqual(index.position_to_offset(10, 0), len(text))
+
+    def test_utf16(self):
+        text = 'Menge 𝔸 über ∀x\n𝔹𝔹x'
+        index = LineIndex(text)
+        # "ü" and "∀" are single code units, "𝔸" and "𝔹" are surrogate pairs
+        self.assertEqual(index.offset_to_position(text.index('ü')), Position(0, 9))
+        self.assertEqual(index.offset_to_position(text.index('∀')), Position(0, 14))
+        self.assertEqual(index.offset_to_position(text.rindex('x')), Position(1, 4))
+        self.assertEqual(index.position_to_offset(1, 4), text.rindex('x'))
+        # Inside of a surrogate pair
+        self.assertEqual(index.position_to_offset(1, 1), text.index('𝔹') + 1)
+        self.assertEqual(index.read(Range(Position(0, 9), Position(0, 13))), 'über')
+        self.assertEqual(index.read(Range(Position(0, 6), Position(1, 2))), '𝔸 über ∀x\n𝔹')
+        for offset in range(len(text) + 1):
+            position = index.offset_to_position(offset)
+            self.assertEqual(index.position_to_offset(position.line, position.character), offset)
+            line_begin = text.rfind('\n', 0, offset) + 1
+            utf16 = len(text[line_begin:offset].encode('utf-16-le')) // 2
+            self.assertEqual(position.character, utf16)
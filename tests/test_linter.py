@@ -1,7 +1,17 @@
-from unittest import TestCase
+import threading
+from pathlib import Path
+from unittest import TestCase, mock
+from urllib.parse import urlparse
 
+from stexls.latex.parser import LatexParser
+from stexls.latex.tokenizer import LatexTokenizer
 from stexls.linter.linter import Linter
+from stexls.stex.diagnostics import DiagnosticCodeName
+from stexls.stex.storage import PackedObjectStorage
+from stexls.trefier.tag_cache import TagCache
+from stexls.trefier.models.tags import Tag
 from stexls.util.workspace import Workspace
+from stexls.vscode import Position
 
 from tests.mock import MockGlossary
 
@@ -48,6 +58,191 @@ class TestLinter(TestCase, MockGlossary):
             result = self.linter.lint(file)
             self.assertListEqual([], result.diagnostics)
 
+    def test_compile_workspace_parallel(self):
+        self.write_modsig(r'\symi{value}')
+        self.write_binding(r'\trefi{value}')
+        progress = []
+        compiled_file_paths = self.linter.compile_workspace(
+            num_jobs=2, progress=lambda done, total: progress.append((done, total)))
+        self.linter.close()
+        self.assertSetEqual(
+            {self.module, self.binding}, set(compiled_file_paths))
+        self.assertSetEqual(
+            {self.module, self.binding}, set(self.linter.unlinked_object_buffer))
+        self.assertTupleEqual((2, 2), progress[-1])
+        self.assertFalse(
+            self.linter.compiler.recompilation_required(self.binding))
+
+    def test_check_version(self):
+        self.linter.tag_cache = TagCache(PackedObjectStorage(self.root / 'tags', name='tags'))
+        self.assertTrue(self.linter.check_version('1.0.0'))
+        self.assertFalse(self.linter.check_version('1.0.0'))
+        self.write_modsig(r'\symi{value}')
+        self.write_binding(r'\trefi{value}')
+        self.linter.lint(self.binding)
+        self.linter.tag_cache.storage.write('model/file.tex', b'tags')
+        self.assertNotEqual([], list(self.linter.linker.storage.keys()))
+        # Objects, links and tags of older versions are deleted
+        self.assertTrue(self.linter.check_version('2.0.0'))
+        self.assertTrue(self.linter.compiler.recompilation_required(self.binding))
+        self.assertEqual([], list(self.linter.linker.storage.keys()))
+        self.assertEqual([], list(self.linter.tag_cache.storage.keys()))
+        self.linter.tag_cache.storage.close()
+
+    def test_references(self):
+        module = self.module_name
+        self.write_modsig(r'\symi{value}')
+        self.write_binding(r'\trefi{value}')
+        self.new_module('module2')
+        self.write_modsig(rf'\gimport{{{module}}}')
+        self.write_binding(rf'\trefi[{module}]{{value}}')
+        self.new_module(module)
+        list(self.linter.compile_workspace())
+        self.linter.lint(self.module)
+        line = next(i for i, text in enumerate(self.module.read_text().split('\n')) if 'symi' in text)
+        position = Position(line, self.module.read_text().split('\n')[line].index('value'))
+        # The binding of the second module has only been compiled
+        references = self.linter.references(self.module, position)
+        self.assertSetEqual({self.module, self.binding, self.source / 'module2.en.tex'}, {
+            Path(urlparse(location.uri).path) for location in references})
+        # References are not found twice after the binding was linked
+        self.linter.lint(self.source / 'module2.en.tex')
+        self.assertEqual(len(references), len(self.linter.references(self.module, position)))
+
+    def test_references_of_same_named_module(self):
+        module = self.module_name
+        self.write_modsig(r'\symi{value}')
+        self.write_binding(r'\trefi{value}')
+        module_file, binding_file = self.module, self.binding
+        # A module with the same name in another repository
+        self.new_repo('other-repo')
+        self.new_module(module)
+        self.write_modsig(r'\symi{value}')
+        self.write_binding(r'\trefi{value}')
+        list(self.linter.compile_workspace())
+        self.linter.lint(module_file)
+        line = next(i for i, text in enumerate(module_file.read_text().split('\n')) if 'symi' in text)
+        position = Position(line, module_file.read_text().split('\n')[line].index('value'))
+        references = self.linter.references(module_file, position)
+        self.assertSetEqual({module_file, binding_file}, {
+            Path(urlparse(location.uri).path) for location in references})
+        # Objects of files that don't import the module are not loaded
+        self.assertIn(self.binding, self.linter.reference_index._pending)
+
+    def test_references_while_linting(self):
+        self.write_modsig(r'\symi{value}')
+        self.write_binding(r'\trefi{value}')
+        self.linter.lint(self.module)
+        line = next(i for i, text in enumerate(self.module.read_text().split('\n')) if 'symi' in text)
+        position = Position(line, self.module.read_text().split('\n')[line].index('value'))
+        results = []
+        # Another thread holds the lock of the linter, e.g. while it lints files
+        with self.linter.lock:
+            thread = threading.Thread(target=lambda: results.append(self.linter.references(self.module, position)))
+            thread.start()
+            thread.join(timeout=5)
+        self.assertFalse(thread.is_alive())
+        self.assertTrue(results[0])
+
+    def test_compile_workspace_keeps_newer_buffers(self):
+        self.write_modsig(r'\symi{value}')
+        self.write_binding(r'\trefi{value}')
+        content = self.binding.read_text().replace('value}', 'value} unsaved text')
+        self.assertTrue(self.workspace.open_file(self.binding, 1, content))
+        self.linter.lint(self.binding)
+        buffered = self.linter.unlinked_object_buffer[self.binding]
+        self.linter.compile_workspace()
+        self.assertIs(buffered, self.linter.unlinked_object_buffer[self.binding])
+        self.assertIn(self.module, self.linter.unlinked_object_buffer)
+
+    def test_only_saved_buffers_are_stored(self):
+        self.write_modsig(r'\symi{value}')
+        self.write_binding(r'\trefi{value}')
+        content = self.binding.read_text()
+        self.assertTrue(self.workspace.open_file(self.binding, 1, content))
+        self.assertTrue(self.workspace.is_saved(self.binding))
+        edited = content.replace('value}', 'value} unsaved text')
+        self.assertTrue(self.workspace.update_file(self.binding, 2, edited))
+        self.assertFalse(self.workspace.is_saved(self.binding))
+        self.linter.lint(self.binding)
+        self.assertTrue(self.linter.compiler.recompilation_required(self.binding, content=edited))
+        self.binding.write_text(edited)
+        self.assertTrue(self.workspace.save_file(self.binding))
+        self.assertTrue(self.workspace.is_saved(self.binding))
+        self.linter.lint(self.binding)
+        self.assertFalse(self.linter.compiler.recompilation_required(self.binding, content=edited))
+
+    def test_trefier_reuses_parser(self):
+        self.linter = Linter(self.workspace, outdir=self.root, keep_trees=True)
+        self.write_modsig(r'\symi{value}')
+        self.write_binding(r'\trefi{value}')
+        content = self.binding.read_text().replace('value}', 'value} unsaved text')
+        self.assertTrue(self.workspace.open_file(self.binding, 1, content))
+        predicted = []
+
+        class Model:
+            def predict(self, *files):
+                predicted.extend(files)
+                return [[] for _ in files]
+        parsed = []
+        parse = LatexParser.parse
+
+        def count_parse(parser, content=None):
+            parsed.append(parser.file)
+            return parse(parser, content)
+        with mock.patch.object(LatexParser, 'parse', count_parse):
+            self.linter.lint(self.binding, model=Model())
+            # The unchanged buffer is neither compiled nor parsed again
+            self.linter.lint(self.binding, model=Model())
+        self.assertEqual(1, parsed.count(self.binding))
+        self.assertEqual(2, len(predicted))
+        self.assertIs(predicted[0], predicted[1])
+        self.assertEqual(content, predicted[0].source)
+        self.assertIn('unsaved', [token.lexeme.strip() for token in predicted[0].root.tokens][-1])
+
+    def test_trees_are_only_kept_for_the_trefier(self):
+        self.write_modsig(r'\symi{value}')
+        self.write_binding(r'\trefi{value} text')
+        kept = []
+        parse = LatexParser.parse
+
+        def record_keep_tree(parser, content=None):
+            kept.append((parser.file, parser.keep_tree))
+            return parse(parser, content)
+        predicted = []
+
+        class Model:
+            def predict(self, *files):
+                predicted.extend(files)
+                return [[] for _ in files]
+        with mock.patch.object(LatexParser, 'parse', record_keep_tree):
+            self.linter.lint(self.binding, model=Model())
+        self.assertIsNone(self.linter.parse_cache)
+        # The compiler parses reduced trees, only the trefier parses the whole tree
+        self.assertIn((self.binding, False), kept)
+        self.assertEqual([(self.binding, True)], [entry for entry in kept if entry[1]])
+        self.assertIn('text', [token.lexeme.strip() for token in predicted[0].root.tokens])
+
+    def test_trefier_batch(self):
+        self.write_modsig(r'\symi{value}')
+        self.write_binding(r'\trefi{value} keyword')
+        batches = []
+
+        class Model:
+            def predict(self, *files):
+                batches.append([parser.file for parser in files])
+                return [
+                    [Tag(1.0, token) for token in LatexTokenizer.from_file(parser).tokens()]
+                    for parser in files
+                ]
+        results = self.linter.lint_files([self.binding, self.module, self.binding], model=Model())
+        self.assertEqual([[self.binding, self.module]], batches)
+        self.assertEqual([self.binding, self.module, self.binding], [result.object.file for result in results])
+        binding_tags = [d.message for d in results[0].diagnostics if d.code == DiagnosticCodeName.TREFIER_TAG_HINT.name]
+        self.assertTrue(any('keyword' in message for message in binding_tags))
+        # Tokens of annotations are not tagged
+        self.assertFalse(any('value' in message for message in binding_tags))
+
     def test_lint(self):
         self.write_modsig(r'''\symi{value}\symii{error}''')
         self.write_binding(r'''
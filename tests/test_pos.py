@@ -0,0 +1,107 @@
+import tempfile
+from pathlib import Path
+from unittest import TestCase
+
+import nltk
+import numpy as np
+
+from stexls.stex.storage import PackedObjectStorage
+from stexls.trefier.training.features import pos
+from stexls.trefier.training.features.pos import PosTagModel, split_sentences
+
+
+class Tagger:
+    ' Tags words as nouns and everything else as punctuation and records the tagged sentences. '
+
+    def __init__(self):
+        self.sentences = []
+
+    def tag_sents(self, sentences):
+        sentences = [list(sentence) for sentence in sentences]
+        self.sentences.extend(sentences)
+        return [[(word, 'NN' if word.isalpha() else '.') for word in sentence] for sentence in sentences]
+
+
+class TestPosTagModel(TestCase):
+    def setUp(self):
+        self.tagger = Tagger()
+        self.previous_tagger = pos._tagger
+        pos._tagger = self.tagger
+        self.model = PosTagModel.__new__(PosTagModel)
+        self.model.__setstate__(({'.': np.array([1.0, 0.0, 0.0]), 'NN': np.array([0.0, 1.0, 0.0])}, np.zeros(3)))
+
+    def tearDown(self):
+        pos._tagger = self.previous_tagger
+
+    def test_split_sentences(self):
+        self.assertEqual(split_sentences([]), [])
+        self.assertEqual(split_sentences('a b . c ! d'.split()), [(0, 3), (3, 5), (5, 6)])
+        # Long sentences are not cut
+        self.assertEqual(split_sentences(['a'] * 1000 + ['.', 'b']), [(0, 1001), (1001, 1002)])
+
+    def test_predict(self):
+        predictions = self.model.predict(['a b . c 1'.split(), []])
+        self.assertEqual(len(predictions), 2)
+        np.testing.assert_array_equal(predictions[0], [[0, 1, 0], [0, 1, 0], [1, 0, 0], [0, 1, 0], [1, 0, 0]])
+        self.assertEqual(predictions[1].shape, (0, 3))
+        self.assertEqual(self.model.num_categories, 3)
+
+    def test_only_changed_sentences_are_tagged(self):
+        self.model.predict(['a b . c d . e f'.split(), 'a b .'.split()])
+        self.assertEqual(self.tagger.sentences, [['a', 'b', '.'], ['c', 'd', '.'], ['e', 'f']])
+        self.tagger.sentences.clear()
+        self.model.predict(['a b . c x d . e f'.split()])
+        self.assertEqual(self.tagger.sentences, [['c', 'x', 'd', '.']])
+
+    def test_least_recently_used_sentences_are_evicted(self):
+        self.model.cache_size = 2
+        self.model.predict(['a .'.split(), 'b .'.split()])
+        self.model.predict(['a .'.split(), 'c .'.split()])
+        self.tagger.sentences.clear()
+        self.model.predict(['a .'.split(), 'b .'.split()])
+        self.assertEqual(self.tagger.sentences, [['b', '.']])
+
+    def test_storage(self):
+        with tempfile.TemporaryDirectory() as tmpdir:
+            self.model.storage = PackedObjectStorage(Path(tmpdir), name='pos')
+            expected = self.model.predict(['a b . c 1'.split()])
+            self.model.storage.close()
+            model = PosTagModel.__new__(PosTagModel)
+            model.__setstate__(self.model.__getstate__())
+            model.storage = PackedObjectStorage(Path(tmpdir), name='pos')
+            self.tagger.sentences.clear()
+            actual = model.predict(['a b . c 1'.split()])
+            model.storage.close()
+        self.assertEqual(self.tagger.sentences, [])
+        np.testing.assert_array_equal(actual[0], expected[0])
+
+
+class TestPosTagModelWithNltk(TestCase):
+    document = (
+        'A group is a set together with an associative binary operation . '
+        'The operation has an identity element and every element of the set has an inverse ! '
+        'Is every abelian group also a commutative monoid ? '
+        'Yes , because the inverses of its elements are not needed for that '
+        'and a monoid only requires the identity element and associativity . '
+        'Groups are used to describe the symmetries of geometric objects'
+    ).split()
+
+    def setUp(self):
+        try:
+            self.model = PosTagModel()
+        except LookupError:
+            self.skipTest('The nltk tagger is not installed.')
+
+    def encode(self, tags):
+        return np.array([self.model.tag_indices.get(tag, self.model._UNK_tag) for tag in tags])
+
+    def test_same_as_pos_tag(self):
+        actual = self.model.predict([self.document])[0]
+        # Each sentence is tagged exactly like nltk tags it on it's own
+        for begin, end in split_sentences(self.document):
+            expected = [tag for _, tag in nltk.pos_tag(self.document[begin:end])]
+            np.testing.assert_array_equal(actual[begin:end], self.encode(expected))
+        # Only tokens next to a sentence end see a different context than in the whole document
+        whole = self.encode(tag for _, tag in nltk.pos_tag(self.document))
+        same = np.all(actual == whole, axis=-1).mean()
+        self.assertGreaterEqual(same, 0.9)
@@ -0,0 +1,103 @@
+import json
+from enum import Enum, IntEnum
+from unittest import TestCase
+
+from stexls import vscode
+from stexls.jsonrpc.core import NotificationObject
+from stexls.jsonrpc.serialization import JsonEncoder, register_serializer, to_json_tree
+
+
+def default_serializer(child):
+    ' The generic fallback messages were written with before the serializer registry existed. '
+    try:
+        if hasattr(child, 'to_json') and callable(child.to_json):
+            return child.to_json()
+        elif hasattr(child, 'serialize') and callable(child.serialize):
+            return child.serialize()
+    except Exception:
+        pass
+    return dict(child.__dict__.items())
+
+
+class Color(Enum):
+    RED = 'red'
+
+
+class Level(IntEnum):
+    LOW = 1
+
+
+class Broken:
+    def __init__(self):
+        self.value = 1
+
+    def to_json(self):
+        raise ValueError()
+
+
+class Point:
+    def __init__(self, x, y):
+        self.x = x
+        self.y = y
+
+
+def diagnostics():
+    uri = 'file:///tmp/file.tex'
+    location = vscode.Range(vscode.Position(1, 2), vscode.Position(1, 5))
+    return NotificationObject('textDocument/publishDiagnostics', {
+        'uri': uri,
+        'diagnostics': [
+            vscode.Diagnostic(
+                location, 'message', vscode.DiagnosticSeverity.Warning, code=3, source='stexls',
+                relatedInformation=[vscode.DiagnosticRelatedInformation(vscode.Location(uri, location), 'here')]),
+            vscode.Diagnostic(location, 'message', vscode.DiagnosticSeverity.Error),
+        ],
+    })
+
+
+class TestSerialization(TestCase):
+    def test_same_json_as_default_serializer(self):
+        message = diagnostics()
+        expected = json.loads(json.dumps(message, default=default_serializer))
+        self.assertEqual(to_json_tree(message), expected)
+        self.assertEqual(json.loads(JsonEncoder().encode(message)), expected)
+        self.assertEqual(json.loads(JsonEncoder('json').encode(message)), expected)
+
+    def test_registered_vscode_serializers(self):
+        vscode.register_serializers()
+        message = diagnostics()
+        expected = json.loads(json.dumps(message, default=default_serializer))
+        self.assertEqual(to_json_tree(message), expected)
+        self.assertEqual(json.loads(JsonEncoder('json').encode(message)), expected)
+
+    def test_values(self):
+        self.assertEqual(
+            to_json_tree({'a': (1, Color.RED), 'b': [Level.LOW, None, True, 1.5], 'c': vscode.undefined}),
+            {'a': [1, 'red'], 'b': [1, None, True, 1.5], 'c': 'undefined'})
+        self.assertEqual(to_json_tree(Point(Point(1, 2), [3])), {'x': {'x': 1, 'y': 2}, 'y': [3]})
+
+    def test_failing_to_json_falls_back_to_attributes(self):
+        self.assertEqual(to_json_tree(Broken()), {'value': 1})
+
+    def test_register_serializer(self):
+        class Pair:
+            def __init__(self, a, b):
+                self.a, self.b = a, b
+        register_serializer(Pair, lambda pair: [pair.a, pair.b])
+        self.assertEqual(to_json_tree(Pair(Color.RED, 2)), ['red', 2])
+        self.assertEqual(JsonEncoder('json').encode(Pair(Color.RED, 2)), b'["red", 2]')
+
+    def test_unserializable(self):
+        with self.assertRaises(TypeError):
+            to_json_tree(object())
+        with self.assertRaises(TypeError):
+            JsonEncoder('json').encode({'a': object()})
+
+    def test_backend(self):
+        with self.assertRaises(ValueError):
+            JsonEncoder('yaml')
+        self.assertIn(JsonEncoder().backend, ('orjson', 'ujson', 'json'))
+
+    def test_charset(self):
+        encoder = JsonEncoder('json')
+        self.assertEqual(encoder.encode({'a': 1}, 'utf-16'), json.dumps({'a': 1}).encode('utf-16'))
@@ -1,12 +1,34 @@
+import difflib
+import io
+import itertools
+import os
+import random
+import string
+import time
+from pathlib import Path
+from typing import List
 from unittest import TestCase
 
-from stexls.stex.compiler import Compiler
+from stexls.stex.compiler import (Compiler, LazyStexObject, StexObject,
+                                  StexObjectReader, StexObjectWriter)
+from stexls.stex.dependency import Dependency
+from stexls.stex.dependency_index import DependencyIndex
 from stexls.stex.diagnostics import DiagnosticCodeName
 from stexls.stex.linker import Linker
 from stexls.stex.parser import (DefiIntermediateParseTree, IntermediateParser,
-                                ModnlIntermediateParseTree)
-from stexls.stex.symbols import (BindingSymbol, DefSymbol, ModuleSymbol,
-                                 ModuleType)
+                                ModnlIntermediateParseTree,
+                                ScopeIntermediateParseTree,
+                                SymdefIntermediateParseTree,
+                                TokenWithLocation,
+                                TrefiIntermediateParseTree)
+from stexls.stex.reference_type import ReferenceType
+from stexls.stex.references import Reference
+from stexls.stex.similarity_index import SimilarityIndex
+from stexls.stex.storage import DirectoryObjectStorage
+from stexls.stex.symbols import (BindingSymbol, DefSymbol, DefType,
+                                 ModuleSymbol, ModuleType, RootSymbol,
+                                 ScopeSymbol, Symbol, SymbolLookupTable)
+from stexls.vscode import Location, Position, Range
 
 from tests.mock import MockGlossary
 
@@ -248,6 +270,206 @@ class TestCompiler(TestCase, MockGlossary):
             DiagnosticCodeName.MTREF_QUESTIONMARK_CHECK.value,
             codes)
 
+    def test_recompilation_required(self):
+        file = self.write_binding(r'\trefi{value}')
+        compiler = Compiler(self.root, self.source)
+        self.assertTrue(compiler.recompilation_required(file))
+        compiler.compile(file)
+        self.assertFalse(compiler.recompilation_required(file))
+        # Touching the file does not change the content
+        os.utime(file, (time.time() + 10, time.time() + 10))
+        self.assertFalse(compiler.recompilation_required(file))
+        self.assertTrue(compiler.load_stamp(file).matches_stat(file))
+        self.assertTrue(compiler.recompilation_required(
+            file, content=r'\trefi{changed}'))
+        file.write_text(r'\trefi{changed}')
+        self.assertTrue(compiler.recompilation_required(file))
+        compiler.version = 'other'
+        self.assertTrue(compiler.recompilation_required(
+            file, content=r'\trefi{changed}'))
+
+    def test_objectfile_roundtrip(self):
+        file = self.write_binding(r'''
+            \trefi{value}
+            \defi[name=other]{value}
+            \trefi[undefined]{value}
+            \mtref[undefined?value]{value}''')
+        compiler = Compiler(self.root, self.source)
+        obj = compiler.compile(file)
+        fd = io.BytesIO()
+        StexObjectWriter(fd).write(obj)
+        fd.seek(0)
+        loaded = StexObjectReader(fd).read()
+        self.assertEqual(loaded.file, obj.file)
+        self.assertEqual(loaded.creation_time, obj.creation_time)
+        self.assertListEqual(
+            [(s.name, s.location, s.access_modifier, type(s)) for s in loaded.symbol_table.flat()],
+            [(s.name, s.location, s.access_modifier, type(s)) for s in obj.symbol_table.flat()])
+        self.assertListEqual(
+            [(r.range, r.name, r.reference_type, r.scope.qualified) for r in loaded.references],
+            [(r.range, r.name, r.reference_type, r.scope.qualified) for r in obj.references])
+        self.assertListEqual(
+            [(d.module_name, d.file_hint, d.scope.qualified) for d in loaded.dependencies],
+            [(d.module_name, d.file_hint, d.scope.qualified) for d in obj.dependencies])
+        self.assertListEqual(
+            [(d.range, d.message, d.code, d.severity) for d in loaded.diagnostics],
+            [(d.range, d.message, d.code, d.severity) for d in obj.diagnostics])
+        self.assertEqual(compiler.load_from_objectfile(file).file, obj.file)
+
+    def test_load_header_and_lazy_object(self):
+        self.write_modsig(r'\symi{value}')
+        file = self.write_binding(r'\trefi{value}')
+        compiler = Compiler(self.root, self.source)
+        compiler.compile(self.module)
+        obj = compiler.compile(file)
+        header = compiler.load_header(file)
+        self.assertEqual(header.file, obj.file)
+        self.assertSetEqual(header.dependency_files, {self.module})
+        self.assertEqual(header.interface_digest, obj.get_header().interface_digest)
+        self.assertListEqual(compiler.load_header(self.module).modules, [self.module_name])
+        lazy = compiler.load_from_objectfile(file, lazy=True)
+        self.assertIsInstance(lazy, LazyStexObject)
+        self.assertFalse(lazy.is_body_loaded)
+        self.assertSetEqual(lazy.get_header().dependency_files, {self.module})
+        self.assertFalse(lazy.is_body_loaded)
+        self.assertEqual(len(lazy.references), len(obj.references))
+        self.assertTrue(lazy.is_body_loaded)
+        # The interface of the module does not change if only private information changes
+        digest = compiler.load_header(self.module).interface_digest
+        self.write_modsig(r'''\symi{value}
+            \trefi{value}''')
+        compiler.compile(self.module)
+        self.assertEqual(compiler.load_header(self.module).interface_digest, digest)
+        # Imported symbols keep their location, which is part of the interface
+        self.write_modsig(r'''\trefi{value}
+            \symi{value}''')
+        compiler.compile(self.module)
+        self.assertNotEqual(compiler.load_header(self.module).interface_digest, digest)
+
+    def test_clone(self):
+        file = self.write_binding(r'''
+            \trefi{value}
+            \defi{definition}''')
+        obj = Compiler(self.root, self.source).compile(file)
+        cpy = obj.clone()
+        self.assertEqual(cpy.file, obj.file)
+        self.assertListEqual(
+            [symbol.qualified for symbol in cpy.symbol_table.flat()],
+            [symbol.qualified for symbol in obj.symbol_table.flat()])
+        copied_symbols = list(cpy.symbol_table.flat())
+        self.assertTrue(all(
+            a is not b for a, b in zip(copied_symbols, obj.symbol_table.flat())))
+        self.assertEqual(len(cpy.references), len(obj.references))
+        for ref in cpy.references:
+            self.assertTrue(any(ref.scope is symbol for symbol in [cpy.symbol_table, *copied_symbols]))
+        for dep in cpy.dependencies:
+            self.assertTrue(any(dep.scope is symbol for symbol in [cpy.symbol_table, *copied_symbols]))
+        # Modifying the copy does not modify the original
+        binding, = cpy.symbol_table.find(self.module_name)
+        binding.add_child(DefSymbol(DefType.DEF, binding.location, 'added'))
+        cpy.diagnostics.file_name_mismatch(binding.location.range, 'a', 'b')
+        self.assertNotIn('added', [symbol.name for symbol in obj.symbol_table.flat()])
+        self.assertEqual(len(cpy.diagnostics.diagnostics), len(obj.diagnostics.diagnostics) + 1)
+
+    def test_range_index(self):
+        file = self.write_binding(r'''
+            \trefi{value} and \trefii[module]{other}{value}
+            \begin{frame}
+                \defi{definition} and \trefi{definition}
+            \end{frame}''')
+        obj = Compiler(self.root, self.source).compile(file)
+        lines = file.read_text().split('\n')
+        positions = [
+            Position(line, character)
+            for line in range(len(lines) + 1)
+            for character in range(len(lines[line]) + 2 if line < len(lines) else 1)
+        ]
+        uri = file.as_uri()
+        own_symbols = [symbol for symbol in obj.symbol_table.flat() if symbol.location.uri == uri]
+        # Serialized and deserialized index behaves the same as the one that was built
+        fd = io.BytesIO()
+        StexObjectWriter(fd).write(obj)
+        fd.seek(0)
+        loaded = StexObjectReader(fd).read()
+        for position in positions:
+            expected = [symbol.qualified for symbol in own_symbols if symbol.location.range.contains(position)]
+            expected_references = [ref.range for ref in obj.references if ref.range.contains(position)]
+            for index in (obj.get_range_index(), loaded.range_index):
+                found = index.query(position)
+                self.assertListEqual(
+                    [item.qualified for item in found if not isinstance(item, Reference)], expected)
+                self.assertListEqual(
+                    [item.range for item in found if isinstance(item, Reference)], expected_references)
+        line = next(i for i, text in enumerate(lines) if r'\defi' in text)
+        position = Position(line, lines[line].index(r'\defi') + 1)
+        binding, frame = obj.get_namespace_at(position)
+        self.assertEqual(binding.name, self.module_name)
+        self.assertIs(frame.parent, binding)
+        # Definitions are resolved from the smallest reference under the cursor
+        ref = next(ref for ref in obj.references if ref.range.contains(position))
+        ref.resolved_symbols = [binding]
+        self.assertListEqual(obj.get_definitions_at(position), [binding])
+
+    def test_compile_incremental(self):
+        file = self.write_binding(r'''
+            First paragraph with \trefi{value} and some text.
+            Second paragraph with \trefi[module]{other} and more text.
+            Third paragraph with $x$ and \defi{definition}.''')
+        content = file.read_text()
+        compiler = Compiler(self.root, self.source)
+        document = compiler.compile_incremental(file, content, dryrun=True)
+
+        def key(obj):
+            return (
+                sorted(str((ref.range, ref.name, ref.reference_type)) for ref in obj.references),
+                sorted(str((diagnostic.range, diagnostic.message)) for diagnostic in obj.diagnostics),
+                [str((symbol.name, symbol.location.range)) for symbol in obj.symbol_table.flat()])
+
+        def trees(document):
+            ' Locations of the parse trees and their tokens. '
+            locations = []
+
+            def add(tree):
+                tokens = [value for value in vars(tree).values() if isinstance(value, TokenWithLocation)]
+                locations.append(str((type(tree).__name__, tree.location.range, [token.range for token in tokens])))
+            for root in document.intermediate_parser.roots:
+                root.traverse(add)
+            return sorted(locations)
+
+        # An edit inside a reference is compiled incrementally
+        previous = key(document.object)
+        content = content.replace(r'\trefi{value}', r'\trefii{new}{value}\n')
+        updated = compiler.compile_incremental(file, content, document, dryrun=True)
+        self.assertIs(updated.intermediate_parser, document.intermediate_parser)
+        full = compiler.compile_incremental(file, content, dryrun=True)
+        self.assertEqual(key(updated.object), key(full.object))
+        self.assertEqual(trees(updated), trees(full))
+        # The previous object may still be used by the linter and is not changed
+        self.assertIsNot(updated.object, document.object)
+        self.assertEqual(key(document.object), previous)
+        # An edit inside a definition is compiled again
+        document = updated
+        content = content.replace(r'\defi{definition}', r'\defi{changed}')
+        updated = compiler.compile_incremental(file, content, document, dryrun=True)
+        self.assertIsNot(updated.intermediate_parser, document.intermediate_parser)
+        self.assertEqual(key(updated.object), key(compiler.compile_incremental(file, content, dryrun=True).object))
+
+    def test_compile_incremental_stores_once(self):
+        file = self.write_binding(r'\trefi{value}')
+        content = file.read_text()
+        compiler = Compiler(self.root, self.source)
+        document = compiler.compile_incremental(file, content, dryrun=True)
+        self.assertFalse(document.stored)
+        self.assertTrue(compiler.recompilation_required(file, content=content))
+        compiler.compile_incremental(file, content, document)
+        self.assertTrue(document.stored)
+        self.assertFalse(compiler.recompilation_required(file, content=content))
+        written = compiler.storage.time_written(compiler.get_objectfile_key(file))
+        compiler.compile_incremental(file, content, document)
+        self.assertEqual(written, compiler.storage.time_written(compiler.get_objectfile_key(file)))
+        updated = compiler.compile_incremental(file, content.replace('value', 'other'), document, dryrun=True)
+        self.assertFalse(updated.stored)
+
 
 class TestIntermediate(TestCase, MockGlossary):
     """ This intermediate test is only for basic "does not crash" tests.
@@ -273,6 +495,86 @@ class TestIntermediate(TestCase, MockGlossary):
         self.assertListEqual(
             list(tok.text for tok in defi.tokens), 'will be ignored'.split())
 
+    # Documents with every kind of intermediate parse tree inside and next to text, math, groups and arguments
+    documents = [
+        r'''
+        \begin{modsig}[creators=anon]{module}
+            \gimport[smglom/sets]{set} \gimport*{structure}
+            \importmhmodule[repos=smglom/mv,path=structure]{structure}
+            \usemodule[smglom/sets]{set}
+            \symi{symbol} \symii*{two}{parts} $\symi{in math}$
+            \symdef[name=def,noverb]{symbol}[1]{\mathbf{#1}}
+            \vardef{var}{x}
+        \end{modsig}
+        ''',
+        r'''
+        \begin{mhmodnl}[creators=anon]{module}{en}
+            \begin{definition}[id=def]
+                A \defi[name=symbol]{symbol} and \Defii{two}{parts} {\adefi{alt}{text}},
+                \trefi[module?symbol]{symbol}, \mtrefii[?two]{two}{parts} and \Trefis{symbol}.
+            \end{definition}
+            \begin{frame}[title=\trefi{in oarg}] text $math$
+                \begin{omgroup}{\trefii{in}{rarg}} {\defii{in}{group}} \end{omgroup}
+                \begin{example} \begin{omtext} \drefi{nested} \end{omtext} \end{example}
+            \end{frame}
+        \end{mhmodnl}
+        ''',
+        r'''
+        \begin{gviewnl}[creators=anon,fromrepos=smglom/algebra]{view}{en}{source}{target}
+            \vassign{a}{b} \tassign[smglom/sets]{c}{d}
+            Any \trefi[source?symbol]{symbol}.
+        \end{gviewnl}
+        \begin{gviewsig}[creators=anon]{view}{source}{target} \vassign{a}{b} \end{gviewsig}
+        \begin{mhview}[frompath=a,topath=b]{source}{target} \tassign{a}{b} \end{mhview}
+        ''',
+        r'''
+        \begin{module}[id=module] \symdef{symbol}{text}
+            \begin{gstructure}{structure}{\trefi{value}} \defi{in structure} \end{gstructure}
+            \begin{smentry} \symi{entry} \end{smentry}
+        \end{module} \verb|\defi{verbatim}| % \trefi{comment}
+        ''',
+        # Syntax errors: Unclosed and unbalanced environments, arguments and groups
+        r'''\begin{modnl}{module}{en} \defi{a \begin{frame} \trefi[{b} \end{omgroup}''',
+        r'''\begin{frame} \defi{a}} \end{frame} \trefii{a}{ \end{modnl}''',
+    ]
+
+    def assertSameTrees(self, file: Path, backend: str):
+        def describe(tree):
+            return (type(tree), tree.location, [describe(child) for child in tree.children])
+        full = IntermediateParser(file).parse(keep_tree=True, backend=backend)
+        reduced = IntermediateParser(file).parse(keep_tree=False, backend=backend)
+        def errors(parser):
+            return {location: list(map(repr, errors)) for location, errors in parser.errors.items()}
+        self.assertDictEqual(errors(full), errors(reduced))
+        self.assertListEqual(list(map(describe, full.roots)), list(map(describe, reduced.roots)))
+        return full, reduced
+
+    def test_keep_tree_documents(self):
+        grammar_sample = Path(__file__).parent.parent / 'stexls' / 'latex' / 'grammar' / 'file.tex'
+        for content in [*self.documents, grammar_sample.read_text()]:
+            file = self.write_text(content)
+            for backend in ('antlr', 'fast'):
+                with self.subTest(content=content, backend=backend):
+                    self.assertSameTrees(file, backend)
+
+    def test_keep_tree(self):
+        file = self.write_binding(
+            r'''Text \begin{frame}[title=\trefi{in oarg}] text $math$
+            \emph{\defi{inline} \trefi[?symbol]{arg}}
+            \begin{omgroup}{\trefii{in}{rarg}} {\defii{in}{group}} \end{omgroup}
+            \end{frame} \symdef{symbol}{text}''')
+        full, reduced = self.assertSameTrees(file, 'antlr')
+        root, = reduced.roots
+        frame, symdef = root.children
+        self.assertIsInstance(frame, ScopeIntermediateParseTree)
+        self.assertIsInstance(symdef, SymdefIntermediateParseTree)
+        self.assertListEqual(
+            [type(child) for child in frame.children],
+            [DefiIntermediateParseTree, TrefiIntermediateParseTree, ScopeIntermediateParseTree])
+        self.assertIn('$math$', [tok.lexeme for tok in full.latex_parser.root.tokens])
+        self.assertListEqual(
+            ['inline', 'arg', 'symbol', 'text'], [tok.lexeme for tok in reduced.latex_parser.root.tokens])
+
 
 class TestLinker(TestCase, MockGlossary):
     def setUp(self) -> None:
@@ -314,6 +616,48 @@ class TestLinker(TestCase, MockGlossary):
         qualified_symbol, = binding.find([self.module_name, 'value'])
         self.assertIsInstance(qualified_symbol, DefSymbol)
 
+    def test_persisted_links(self):
+        self.write_modsig(r'\symi{value}')
+        self.write_binding(r'\trefi{value}')
+        compiler = Compiler(self.root, self.source)
+        objects = {
+            self.binding: compiler.compile(self.binding),
+            self.module: compiler.compile(self.module),
+        }
+        storage = DirectoryObjectStorage(self.source, '.stexlink')
+        Linker(self.root, storage).link(self.binding, objects, compiler)
+        # A new linker reuses the persisted link of the module
+        linker = Linker(self.root, storage)
+        self.assertFalse(linker._relink_required(objects, self.module, self.module_name, False))
+        linked_binding = linker.link(self.binding, objects, compiler)
+        linker.validate_object_references(linked_binding)
+        self.assertListEqual([], linked_binding.diagnostics.diagnostics)
+        # The persisted link is outdated after the module is compiled again
+        objects[self.module] = compiler.compile(self.module)
+        self.assertTrue(Linker(self.root, storage)._relink_required(
+            objects, self.module, self.module_name, False))
+
+    def test_unchanged_interface_is_not_relinked(self):
+        self.write_modsig(r'\symi{value}')
+        self.write_binding(r'\trefi{value}')
+        compiler = Compiler(self.root, self.source)
+        objects = {
+            self.binding: compiler.compile(self.binding),
+            self.module: compiler.compile(self.module),
+        }
+        linker = Linker(self.root)
+        linker.link(self.binding, objects, compiler)
+        # Only private information changed
+        self.write_modsig(r'''\symi{value}
+            \trefi{value}''')
+        objects[self.module] = compiler.compile(self.module)
+        self.assertFalse(linker._relink_required(objects, self.module, self.module_name, False))
+        # The symbol moved
+        self.write_modsig(r'''\trefi{value}
+            \symi{value}''')
+        objects[self.module] = compiler.compile(self.module)
+        self.assertTrue(linker._relink_required(objects, self.module, self.module_name, False))
+
     def test_missing_dependency(self):
         self.write_binding(r'''
             Reference symi: \trefi{value}
@@ -329,3 +673,158 @@ class TestLinker(TestCase, MockGlossary):
         self.assertEqual(
             DiagnosticCodeName.FILE_NOT_FOUND.value, file_not_found.code)
         self.assertIn(str(self.module), file_not_found.message)
+
+
+class TestDependencyIndex(TestCase, MockGlossary):
+    def setUp(self) -> None:
+        self.setup()
+
+    def tearDown(self) -> None:
+        self.cleanup()
+
+    def _make_object(self, file: Path, *imports: str) -> StexObject:
+        obj = StexObject(file)
+        for module in imports:
+            obj.dependencies.append(Dependency(
+                Range(Position(0, 0)), obj.symbol_table, module, ModuleType.MODSIG, self.source / f'{module}.tex'))
+        return obj
+
+    def test_dependents(self):
+        a, b, c = (self.source / f'{name}.tex' for name in 'abc')
+        index = DependencyIndex()
+        index.update(self._make_object(a))
+        index.update(self._make_object(b, 'a'))
+        index.update(self._make_object(c, 'b'))
+        self.assertSetEqual(index.find_dependents(a), {b})
+        self.assertSetEqual(index.find_dependents(a, transitive=True), {b, c})
+        self.assertSetEqual(index.find_importers('b'), {c})
+        self.assertSetEqual(index.find_importers('a', transitive=True), {b, c})
+        # Update an object that no longer imports anything
+        index.update(self._make_object(b))
+        self.assertSetEqual(index.find_dependents(a), set())
+        self.assertSetEqual(index.find_importers('a'), set())
+        self.assertSetEqual(index.find_dependents(b), {c})
+        index.remove(c)
+        self.assertSetEqual(index.find_dependents(b), set())
+
+    def test_references(self):
+        a, b = (self.source / f'{name}.tex' for name in 'ab')
+        index = DependencyIndex()
+        linked = self._make_object(b)
+        ref = Reference(Range(Position(0, 0)), linked.symbol_table, ['symbol'], ReferenceType.DEF)
+        ref.resolved_symbols.append(DefSymbol(DefType.DEF, Location(a.as_uri(), Position(1, 1)), 'symbol'))
+        linked.references.append(ref)
+        index.update_references(linked)
+        self.assertSetEqual(index.find_dependents(a), {b})
+        # Importing and referencing the same file
+        index.update(self._make_object(b, 'a'))
+        index.update_references(self._make_object(b))
+        self.assertSetEqual(index.find_dependents(a), {b})
+        index.remove(b)
+        self.assertSetEqual(index.find_dependents(a), set())
+
+
+class TestSymbolLookupTable(TestCase):
+    NAMES = ['a', 'b', 'c']
+
+    def _make_symbol_table(self, rng: random.Random) -> RootSymbol:
+        location = Location('file:///a.tex', Position(0, 0))
+        root = RootSymbol(location)
+        parents: List[Symbol] = [root]
+        for _ in range(40):
+            parent = rng.choice(parents)
+            name = rng.choice(self.NAMES)
+            kind = rng.randrange(4)
+            symbol: Symbol
+            if kind == 0:
+                symbol = ModuleSymbol(rng.choice(list(ModuleType)), location, name)
+            elif kind == 1:
+                symbol = BindingSymbol(location, name, 'en')
+            elif kind == 2:
+                symbol = ScopeSymbol(location, name, named=True)
+            else:
+                symbol = DefSymbol(rng.choice(list(DefType)), location, name)
+            # Duplicates are allowed on purpose
+            symbol.parent = parent
+            parent.children.setdefault(name, []).append(symbol)
+            parents.append(symbol)
+        return root
+
+    def test_same_as_lookup(self):
+        identifiers = [
+            name
+            for length in (1, 2, 3)
+            for name in itertools.product(self.NAMES, repeat=length)
+        ]
+        ref_types = [None, ReferenceType.ANY_DEFINITION, ReferenceType.ANY_MODULE, ReferenceType.BINDING]
+        for seed in range(10):
+            root = self._make_symbol_table(random.Random(seed))
+            for allow_lookup_through_module in (False, True):
+                table = SymbolLookupTable(allow_lookup_through_module)
+                for scope in [root, *root.flat()]:
+                    for identifier in identifiers:
+                        for ref_type in ref_types:
+                            expected = scope.lookup(
+                                identifier, ref_type, allow_lookup_through_module=allow_lookup_through_module)
+                            actual = table.lookup(scope, identifier, ref_type)
+                            self.assertListEqual(list(map(id, actual)), list(map(id, expected)))
+
+
+class TestSimilarityIndex(TestCase):
+    def _make_names(self, rng: random.Random) -> List[str]:
+        syllables = ['mod', 'ule', 'sym', 'def', 'set', 'group', 'ring', 'field', 'map', 'real']
+        return sorted({
+            '?'.join(''.join(rng.choices(syllables, k=rng.randint(1, 3))) for _ in range(rng.randint(1, 3)))
+            for _ in range(300)
+        })
+
+    def _misspell(self, rng: random.Random, name: str) -> str:
+        i = rng.randrange(len(name))
+        return name[:i] + rng.choice('aeiouxyz') + name[i + 1:]
+
+    def test_same_as_get_close_matches(self):
+        rng = random.Random(0)
+        short_names = sorted({''.join(rng.choices(string.ascii_lowercase, k=rng.randint(1, 4))) for _ in range(200)})
+        names = sorted(set(self._make_names(rng) + short_names))
+        index: SimilarityIndex[str] = SimilarityIndex()
+        for name in names:
+            index.add(name, name)
+        for name in rng.sample(short_names, 100):
+            query = self._misspell(rng, name)
+            self.assertListEqual(
+                [match for match, _ in index.find_similar(query)],
+                difflib.get_close_matches(query, names))
+        for name in rng.sample(names, 100):
+            query = self._misspell(rng, name)
+            # Long names sharing no trigram with the query may be missed, but not the most similar one
+            self.assertListEqual(
+                [match for match, _ in index.find_similar(query)][:1],
+                difflib.get_close_matches(query, names)[:1])
+
+    def test_short_names(self):
+        names = ['set', 'map', 'sum']
+        index: SimilarityIndex[str] = SimilarityIndex()
+        for name in names:
+            index.add(name, name)
+        # "sat" shares no trigram with "set"
+        self.assertListEqual(difflib.get_close_matches('sat', names), ['set'])
+        self.assertListEqual(index.find_similar('sat'), [('set', ['set'])])
+        index.add('setmap?sum', 'setmap?sum')
+        self.assertListEqual([match for match, _ in index.find_similar('setmap?sat')], ['setmap?sum'])
+
+    def test_find_misspelled(self):
+        rng = random.Random(1)
+        names = self._make_names(rng)
+        index: SimilarityIndex[str] = SimilarityIndex()
+        for name in names:
+            index.add(name, name)
+            index.add(name, name.upper())
+        for name in rng.sample(names, 50):
+            similar = dict(index.find_similar(self._misspell(rng, name), accept=str.islower))
+            self.assertIn(name, similar)
+            self.assertListEqual(similar[name], [name])
+        for name in names:
+            index.remove(name, name)
+            index.remove(name, name.upper())
+        self.assertEqual(len(index), 0)
+        self.assertListEqual(index.find_similar(names[0]), [])
@@ -0,0 +1,159 @@
+import pickle
+import tempfile
+from pathlib import Path
+from unittest import TestCase
+
+from stexls.stex.storage import (DirectoryObjectStorage, PackedObjectStorage,
+                                 open_object_storage)
+
+
+class TestDirectoryObjectStorage(TestCase):
+    def setUp(self):
+        self.dir = tempfile.TemporaryDirectory()
+        self.outdir = Path(self.dir.name)
+        self.storage = DirectoryObjectStorage(self.outdir)
+
+    def tearDown(self):
+        self.dir.cleanup()
+
+    def test_read_write(self):
+        self.assertIsNone(self.storage.read('/a/b.tex'))
+        self.assertIsNone(self.storage.time_written('/a/b.tex'))
+        self.storage.write('/a/b.tex', b'data')
+        self.assertEqual(self.storage.read('/a/b.tex'), b'data')
+        self.assertIn('/a/b.tex', self.storage)
+        self.assertTrue(self.storage.get_path('/a/b.tex').is_file())
+        self.assertTrue(self.storage.remove('/a/b.tex'))
+        self.assertFalse(self.storage.remove('/a/b.tex'))
+        self.assertIsNone(self.storage.read('/a/b.tex'))
+
+    def test_keys(self):
+        self.assertListEqual(list(self.storage.keys()), [])
+        self.storage.write('/a/b.tex', b'data')
+        self.storage.write('/a/c/d.tex', b'data')
+        self.storage.write('model/e.tex', b'data')
+        self.assertSetEqual(set(self.storage.keys()), {'/a/b.tex', '/a/c/d.tex', 'model/e.tex'})
+        self.storage.remove('/a/b.tex')
+        self.assertSetEqual(set(self.storage.keys()), {'/a/c/d.tex', 'model/e.tex'})
+        # Objects of other extensions in the same directory are not listed
+        DirectoryObjectStorage(self.outdir, extension='.other').write('/a/f.tex', b'data')
+        self.assertSetEqual(set(self.storage.keys()), {'/a/c/d.tex', 'model/e.tex'})
+
+    def test_clear(self):
+        self.storage.write('/a/b.tex', b'data')
+        self.storage.write('/a/c/d.tex', b'data')
+        self.storage.clear()
+        self.assertIsNone(self.storage.read('/a/b.tex'))
+        self.assertIsNone(self.storage.read('/a/c/d.tex'))
+        self.assertListEqual(list(self.outdir.iterdir()), [])
+
+
+class TestPackedObjectStorage(TestCase):
+    def setUp(self):
+        self.dir = tempfile.TemporaryDirectory()
+        self.outdir = Path(self.dir.name)
+        self.storage = PackedObjectStorage(self.outdir)
+
+    def tearDown(self):
+        self.storage.close()
+        self.dir.cleanup()
+
+    def test_open_object_storage(self):
+        self.assertIsInstance(open_object_storage(
+            self.outdir, 'packed'), PackedObjectStorage)
+        self.assertIsInstance(open_object_storage(
+            self.outdir, 'directory'), DirectoryObjectStorage)
+        self.assertRaises(ValueError, open_object_storage,
+                          self.outdir, 'undefined')
+
+    def test_read_write(self):
+        self.assertIsNone(self.storage.read('/a/b.tex'))
+        self.storage.write('/a/b.tex', b'data1')
+        self.storage.write('/a/c.tex', b'data2')
+        self.storage.write('/a/b.tex', b'data3')
+        self.assertEqual(self.storage.read('/a/b.tex'), b'data3')
+        self.assertEqual(self.storage.read('/a/c.tex'), b'data2')
+        self.assertSetEqual(set(self.storage.keys()), {'/a/b.tex', '/a/c.tex'})
+        self.assertIsNotNone(self.storage.time_written('/a/b.tex'))
+        self.assertListEqual(
+            sorted(p.name for p in self.outdir.iterdir() if p.suffix in ('.pack', '.lock')),
+            ['objects.lock', 'objects.pack'])
+
+    def test_remove(self):
+        self.storage.write('/a/b.tex', b'data')
+        self.assertTrue(self.storage.remove('/a/b.tex'))
+        self.assertFalse(self.storage.remove('/a/b.tex'))
+        self.assertIsNone(self.storage.read('/a/b.tex'))
+        self.storage.close()
+        reopened = PackedObjectStorage(self.outdir)
+        self.assertIsNone(reopened.read('/a/b.tex'))
+        reopened.close()
+
+    def test_reopen_with_and_without_index(self):
+        for i in range(10):
+            self.storage.write(f'/file{i}.tex', bytes([i]) * i)
+        self.storage.flush()
+        self.assertTrue((self.outdir / 'objects.idx').is_file())
+        # Writes after the index was flushed are recovered from the pack
+        self.storage.write('/file3.tex', b'new')
+        reopened = PackedObjectStorage(self.outdir)
+        self.assertEqual(reopened.read('/file3.tex'), b'new')
+        self.assertEqual(reopened.read('/file9.tex'), bytes([9]) * 9)
+        reopened.close()
+        (self.outdir / 'objects.idx').unlink()
+        reopened = PackedObjectStorage(self.outdir)
+        self.assertEqual(reopened.read('/file3.tex'), b'new')
+        self.assertEqual(len(list(reopened.keys())), 10)
+        reopened.close()
+
+    def test_concurrent_instances(self):
+        other = PackedObjectStorage(self.outdir)
+        self.storage.write('/a.tex', b'1')
+        self.assertEqual(other.read('/a.tex'), b'1')
+        other.write('/b.tex', b'2')
+        other.write('/a.tex', b'3')
+        self.assertEqual(self.storage.read('/b.tex'), b'2')
+        self.assertEqual(self.storage.read('/a.tex'), b'3')
+        other.compact()
+        self.assertEqual(self.storage.read('/a.tex'), b'3')
+        self.storage.write('/c.tex', b'4')
+        self.assertEqual(other.read('/c.tex'), b'4')
+        other.close()
+
+    def test_compaction(self):
+        storage = PackedObjectStorage(
+            self.outdir, name='compacted', compaction_min_garbage_bytes=1024)
+        data = b'x' * 512
+        for _ in range(16):
+            storage.write('/a.tex', data)
+            storage.write('/b.tex', data)
+        pack = self.outdir / 'compacted.pack'
+        self.assertLess(pack.stat().st_size, 8 * len(data))
+        self.assertEqual(storage.read('/a.tex'), data)
+        self.assertEqual(storage.read('/b.tex'), data)
+        storage.close()
+
+    def test_corrupted_tail_is_ignored(self):
+        self.storage.write('/a.tex', b'valid')
+        self.storage.close()
+        with open(self.outdir / 'objects.pack', 'ab') as fd:
+            fd.write(b'SR\x00\xff\xff')
+        reopened = PackedObjectStorage(self.outdir)
+        self.assertEqual(reopened.read('/a.tex'), b'valid')
+        reopened.write('/b.tex', b'valid')
+        reopened.close()
+        reopened = PackedObjectStorage(self.outdir)
+        self.assertEqual(reopened.read('/b.tex'), b'valid')
+        reopened.close()
+
+    def test_clear(self):
+        self.storage.write('/a.tex', b'data')
+        self.storage.clear()
+        self.assertIsNone(self.storage.read('/a.tex'))
+        self.assertListEqual(list(self.storage.keys()), [])
+
+    def test_pickle(self):
+        self.storage.write('/a.tex', b'data')
+        storage = pickle.loads(pickle.dumps(self.storage))
+        self.assertEqual(storage.read('/a.tex'), b'data')
+        storage.close()
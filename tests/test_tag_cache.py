@@ -0,0 +1,85 @@
+import tempfile
+from pathlib import Path
+from typing import List
+from unittest import TestCase
+
+from stexls.latex.parser import LatexParser
+from stexls.latex.tokenizer import LatexToken
+from stexls.stex.storage import PackedObjectStorage
+from stexls.trefier.models.tags import Tag
+from stexls.trefier.tag_cache import TagCache
+
+
+class Model:
+    """ Labels each token with the length of it's lexeme plus the number of tokens in the document,
+    so that every label depends on the whole document, and records the predicted documents. """
+
+    def __init__(self, fingerprint: str = 'model'):
+        self.fingerprint = fingerprint
+        self.documents: List[List[str]] = []
+
+    def predict_tokens(self, *documents: List[LatexToken]) -> List[List[Tag]]:
+        self.documents.extend([token.lexeme for token in document] for document in documents)
+        return [[Tag(float(len(token.lexeme) + len(document)), token) for token in document] for document in documents]
+
+
+class TestTagCache(TestCase):
+    def setUp(self):
+        self.tmpdir = tempfile.TemporaryDirectory()
+        self.storage = PackedObjectStorage(Path(self.tmpdir.name), name='tags')
+        self.cache = TagCache(self.storage)
+
+    def tearDown(self):
+        self.storage.close()
+        self.tmpdir.cleanup()
+
+    def parse(self, content: str) -> LatexParser:
+        parser = LatexParser(Path(self.tmpdir.name) / 'file.tex', backend='fast')
+        parser.parse(content)
+        return parser
+
+    def text(self, num_words: int, prefix: str = 'word') -> str:
+        return ' '.join(f'{prefix}{i}' for i in range(num_words))
+
+    def test_unchanged_file_is_not_predicted(self):
+        model = Model()
+        parser = self.parse(self.text(200))
+        tags, = self.cache.predict(model, parser)
+        self.assertEqual(1, len(model.documents))
+        self.assertEqual(200, len(model.documents[0]))
+        cached, = self.cache.predict(model, self.parse(self.text(200)))
+        self.assertEqual(1, len(model.documents))
+        self.assertEqual([tag.label for tag in tags], [tag.label for tag in cached])
+        self.assertEqual([tag.token.range for tag in tags], [tag.token.range for tag in cached])
+
+    def test_edited_file_is_tagged_like_a_new_file(self):
+        model = Model()
+        self.cache.predict(model, self.parse(self.text(400)))
+        words = self.text(400).split()
+        words[200:201] = ['edited', 'words']
+        tags, = self.cache.predict(model, self.parse(' '.join(words)))
+        expected, = Model().predict_tokens([tag.token for tag in tags])
+        self.assertEqual([tag.label for tag in expected], [tag.label for tag in tags])
+        self.assertEqual(2, len(model.documents))
+
+    def test_tags_of_previous_versions_are_replaced(self):
+        for i in range(5):
+            self.cache.predict(Model(), self.parse(self.text(100 + i)))
+        self.assertEqual(1, len(list(self.storage.keys())))
+        self.cache.remove(Path(self.tmpdir.name) / 'file.tex')
+        self.assertEqual([], list(self.storage.keys()))
+
+    def test_tags_are_persisted(self):
+        self.cache.predict(Model(), self.parse(self.text(100)))
+        self.storage.close()
+        model = Model()
+        cache = TagCache(PackedObjectStorage(Path(self.tmpdir.name), name='tags'))
+        cache.predict(model, self.parse(self.text(100)))
+        self.assertEqual([], model.documents)
+
+    def test_other_model_is_not_used(self):
+        self.cache.predict(Model('first'), self.parse(self.text(100)))
+        model = Model('second')
+        self.cache.predict(model, self.parse(self.text(100)))
+        self.assertEqual(1, len(model.documents))
+        self.assertTrue(all(key.startswith('second/') for key in self.storage.keys()))